@@ -140,6 +140,23 @@ extern NSString * const kHIBitcoinManagerStoppedNotification;
                   toPassword:(NSData *)toPassword
                        error:(NSError **)error;
 
+/** Sets how long deriving the wallet key from the password should take on this computer.
+ *
+ * Applies to wallets encrypted or re-encrypted from now on; the scrypt parameters are picked by measuring
+ * on this computer and are never weaker than the defaults.
+ *
+ * @param targetTime Time in seconds one key derivation should take
+ * @param memoryBudget Maximum memory used for a key derivation in bytes
+ */
+- (void)setKeyDerivationTargetTime:(NSTimeInterval)targetTime memoryBudget:(uint64_t)memoryBudget;
+
+/** Re-encrypts the wallet with scrypt parameters measured again on this computer.
+ *
+ * @param password The current wallet password as an UTF-16-encoded string.
+ * @param error A pointer to an error object (or NULL to throw an exception on errors)
+ */
+- (void)recalibrateWalletEncryptionWithPassword:(NSData *)password error:(NSError **)error;
+
 /** Checks if the given password is correct.
  *
  * @param password The password to be checked.
@@ -147,6 +164,27 @@ extern NSString * const kHIBitcoinManagerStoppedNotification;
  */
 - (BOOL)isPasswordCorrect:(NSData *)password;
 
+/** Keeps the wallet unlocked for a while, so that sending and signing work with a nil password.
+ *
+ * The wallet is locked again when it wasn't used for idleTimeout seconds, after absoluteTimeout seconds,
+ * or when lockWallet or stop is called. Changing the password and opening a payout queue still need the password.
+ *
+ * @param password The current wallet password as an UTF-16-encoded string.
+ * @param idleTimeout Time in seconds after the last use when the wallet is locked again
+ * @param absoluteTimeout Time in seconds after which the wallet is locked again in any case
+ * @param error A pointer to an error object (or NULL to throw an exception on errors)
+ */
+- (void)unlockWalletWithPassword:(NSData *)password
+                     idleTimeout:(NSTimeInterval)idleTimeout
+                 absoluteTimeout:(NSTimeInterval)absoluteTimeout
+                           error:(NSError **)error;
+
+/** Locks the wallet unlocked with unlockWalletWithPassword:idleTimeout:absoluteTimeout:error:. */
+- (void)lockWallet;
+
+/** Returns true while the wallet is unlocked. */
+- (BOOL)isWalletUnlocked;
+
 /** Signs a given text message with the user's private key and returns the signature.
  *
  * @param message Message to be signed.
@@ -208,6 +246,24 @@ extern NSString * const kHIBitcoinManagerStoppedNotification;
  */
 - (NSArray *)transactionsWithRange:(NSRange)range;
 
+/** Returns definitions of all transactions, read from a binary page instead of JSON
+ *
+ * @returns Array of all transactions to this wallet, like allTransactions
+ */
+- (NSArray *)allTransactionsFromBinaryPage;
+
+/** Returns transactions from given range, read from a binary page instead of JSON
+ *
+ * The page is read in place from the Java side's direct buffer, which is quicker than parsing JSON for long
+ * transaction lists. The dictionaries have the same keys as those returned by transactionsWithRange:, except for
+ * height and blockTime; the time keeps its milliseconds.
+ *
+ * @param range Range of requested transactions
+ *
+ * @returns An array of transactions from requested range, nil if there are none or the page couldn't be read
+ */
+- (NSArray *)transactionsFromBinaryPageWithRange:(NSRange)range;
+
 /** Checks if given address is valid address
  *
  * @param address Address string to be checked
@@ -279,6 +335,42 @@ extern NSString * const kHIBitcoinManagerStoppedNotification;
                      error:(NSError **)outError
                   callback:(void(^)(NSError*, NSDictionary*, NSString*))callback;
 
+/** Opens a queue that collects payouts and sends them together in one transaction with an output for each.
+ *
+ * Payouts are sent when maxEntries of them are waiting or maxDelay seconds after the first one. The password is
+ * checked and kept (as a derived key) until the queue is closed, so it's not needed for each payout.
+ *
+ * @param password wallet password, if any (also needed while the wallet is unlocked)
+ * @param maxEntries maximum number of payouts sent in one transaction
+ * @param maxDelay maximum time a payout waits for others, in seconds
+ * @param error Returned error if the password is wrong or a queue is already open
+ * @return true if the queue was opened
+ */
+- (BOOL)openPayoutQueueWithPassword:(NSData *)password
+                         maxEntries:(int)maxEntries
+                           maxDelay:(NSTimeInterval)maxDelay
+                              error:(NSError **)error;
+
+/** Adds a payout to the queue opened with openPayoutQueueWithPassword:maxEntries:maxDelay:error:.
+ *
+ * @param coins Amount of coins for the recipient to receive in satoshis
+ * @param recipient Recipient's address hash
+ * @param outError Returned error if the address or amount is invalid or no queue is open
+ * @param callback Block that will be called when the payout was sent or failed;
+ *                 returns: error (if any), hash of the transaction that includes the payout
+ * @return true if the payout was added to the queue
+ */
+- (BOOL)enqueuePayout:(uint64_t)coins
+          toRecipient:(NSString *)recipient
+                error:(NSError **)outError
+             callback:(void(^)(NSError*, NSString*))callback;
+
+/** Sends the waiting payouts now. */
+- (void)flushPayouts:(NSError **)error;
+
+/** Sends the waiting payouts and closes the payout queue. */
+- (void)closePayoutQueue:(NSError **)error;
+
 /** Exports (backs up) the wallet to given file URL.
  *
  * @param exportURL NSURL to local file where the wallet file should be copied to
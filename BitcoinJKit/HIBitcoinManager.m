@@ -13,6 +13,8 @@
 #import "HILogger.h"
 #import "jni_md.h"
 
+#import <libkern/OSByteOrder.h>
+
 @interface HIBitcoinManager () {
     JNIEnv *_jniEnv;
     jobject _managerObject;
@@ -38,6 +40,8 @@
 - (void)onPaymentRequestLoadFailedWithError:(jthrowable)error callback:(NSUInteger)callbackId;
 - (void)onPaymentRequestProcessed:(jstring)details callback:(NSUInteger)callbackId transactionId:(NSString *)txid;
 - (void)onPaymentRequestProcessingFailedWithError:(jthrowable)error callback:(NSUInteger)callbackId;
+- (void)onPayoutSent:(NSString *)txid callback:(NSUInteger)callbackId;
+- (void)onPayoutFailedWithError:(jthrowable)error callback:(NSUInteger)callbackId;
 - (void)handleJavaException:(jthrowable)exception useExceptionHandler:(BOOL)useHandler error:(NSError **)returnedError;
 
 @property (nonatomic, assign) BOOL isSyncing;
@@ -99,6 +103,195 @@ void JavaVMInitArgsRelease(JavaVMInitArgs vmArgs) {
 }
 
 
+#pragma mark - Helper functions for reading binary transaction pages
+
+// see TransactionBinaryWriter.java for the format
+static const uint32_t HITransactionPageMagic = 0x48545842;
+static const uint16_t HITransactionPageVersion = 1;
+static const size_t HITransactionPageHeaderSize = 20;
+static const size_t HITransactionRecordEntrySize = 10;
+static const uint8_t HITransactionInputHasAmount = 1;
+
+// reads little-endian values between position and end; once anything is out of bounds, failed is set and
+// all further reads return 0 or nil
+typedef struct {
+    const uint8_t *bytes;
+    size_t position;
+    size_t end;
+    BOOL failed;
+} HIPageReader;
+
+static BOOL HIPageReaderHasBytes(HIPageReader *reader, size_t count) {
+    if (reader->failed || reader->end - reader->position < count) {
+        reader->failed = YES;
+        return NO;
+    }
+
+    return YES;
+}
+
+static void HIPageReaderSkip(HIPageReader *reader, size_t count) {
+    if (HIPageReaderHasBytes(reader, count)) {
+        reader->position += count;
+    }
+}
+
+static uint8_t HIPageReaderReadUInt8(HIPageReader *reader) {
+    if (!HIPageReaderHasBytes(reader, 1)) {
+        return 0;
+    }
+
+    return reader->bytes[reader->position++];
+}
+
+static uint16_t HIPageReaderReadUInt16(HIPageReader *reader) {
+    if (!HIPageReaderHasBytes(reader, 2)) {
+        return 0;
+    }
+
+    uint16_t value = OSReadLittleInt16(reader->bytes, reader->position);
+    reader->position += 2;
+    return value;
+}
+
+static uint32_t HIPageReaderReadUInt32(HIPageReader *reader) {
+    if (!HIPageReaderHasBytes(reader, 4)) {
+        return 0;
+    }
+
+    uint32_t value = OSReadLittleInt32(reader->bytes, reader->position);
+    reader->position += 4;
+    return value;
+}
+
+static int64_t HIPageReaderReadInt64(HIPageReader *reader) {
+    if (!HIPageReaderHasBytes(reader, 8)) {
+        return 0;
+    }
+
+    int64_t value = (int64_t) OSReadLittleInt64(reader->bytes, reader->position);
+    reader->position += 8;
+    return value;
+}
+
+// uint8 length and ASCII characters, nil if empty
+static NSString * HIPageReaderReadString(HIPageReader *reader) {
+    uint8_t length = HIPageReaderReadUInt8(reader);
+
+    if (length == 0 || !HIPageReaderHasBytes(reader, length)) {
+        return nil;
+    }
+
+    NSString *string = [[NSString alloc] initWithBytes:reader->bytes + reader->position
+                                                length:length
+                                              encoding:NSASCIIStringEncoding];
+    reader->position += length;
+    return string;
+}
+
+static NSString * HIPageReaderReadTxid(HIPageReader *reader) {
+    if (!HIPageReaderHasBytes(reader, 32)) {
+        return nil;
+    }
+
+    NSMutableString *txid = [NSMutableString stringWithCapacity:64];
+
+    for (size_t i = 0; i < 32; i++) {
+        [txid appendFormat:@"%02x", reader->bytes[reader->position + i]];
+    }
+
+    reader->position += 32;
+    return txid;
+}
+
+// returns a dictionary with the same keys as the transaction JSON, or nil if the record is truncated
+static NSDictionary * HITransactionFromRecord(HIPageReader *record) {
+    static NSArray *confidenceNames;
+    static NSArray *outputTypeNames;
+    static dispatch_once_t onceToken;
+
+    dispatch_once(&onceToken, ^{
+        confidenceNames = @[@"unknown", @"building", @"pending", @"dead"];
+        outputTypeNames = @[@"own", @"external", @"pubkey", @"multisig", @"unknown"];
+    });
+
+    NSString *txid = HIPageReaderReadTxid(record);
+    int64_t amount = HIPageReaderReadInt64(record);
+    int64_t fee = HIPageReaderReadInt64(record);
+    int64_t time = HIPageReaderReadInt64(record);
+    uint8_t confidence = HIPageReaderReadUInt8(record);
+    HIPageReaderSkip(record, 3);
+    uint32_t peers = HIPageReaderReadUInt32(record);
+    uint32_t confirmations = HIPageReaderReadUInt32(record);
+    uint32_t inputCount = HIPageReaderReadUInt32(record);
+    uint32_t outputCount = HIPageReaderReadUInt32(record);
+
+    // don't trust the counts further than the record's length
+    uint64_t entryBytes = ((uint64_t) inputCount + outputCount) * HITransactionRecordEntrySize;
+    if (record->failed || entryBytes > record->end - record->position) {
+        return nil;
+    }
+
+    NSMutableArray *inputs = [NSMutableArray arrayWithCapacity:inputCount];
+
+    for (uint32_t i = 0; i < inputCount; i++) {
+        uint8_t flags = HIPageReaderReadUInt8(record);
+        int64_t inputAmount = HIPageReaderReadInt64(record);
+        NSString *address = HIPageReaderReadString(record);
+
+        NSMutableDictionary *input = [NSMutableDictionary dictionaryWithCapacity:2];
+
+        if (address) {
+            input[@"address"] = address;
+        }
+
+        if (flags & HITransactionInputHasAmount) {
+            input[@"amount"] = @(inputAmount);
+        }
+
+        [inputs addObject:input];
+    }
+
+    NSMutableArray *outputs = [NSMutableArray arrayWithCapacity:outputCount];
+
+    for (uint32_t i = 0; i < outputCount; i++) {
+        uint8_t type = HIPageReaderReadUInt8(record);
+        int64_t outputAmount = HIPageReaderReadInt64(record);
+        NSString *address = HIPageReaderReadString(record);
+
+        NSMutableDictionary *output = [NSMutableDictionary dictionaryWithCapacity:3];
+
+        if (address) {
+            output[@"address"] = address;
+        }
+
+        // 0 means the script couldn't be parsed, and then the JSON has no type either
+        if (type > 0 && type <= outputTypeNames.count) {
+            output[@"type"] = outputTypeNames[type - 1];
+        }
+
+        output[@"amount"] = @(outputAmount);
+        [outputs addObject:output];
+    }
+
+    if (record->failed) {
+        return nil;
+    }
+
+    return @{
+        @"txid": txid,
+        @"amount": @(amount),
+        @"fee": @(fee),
+        @"time": [NSDate dateWithTimeIntervalSince1970:time / 1000.0],
+        @"confidence": (confidence < confidenceNames.count) ? confidenceNames[confidence] : confidenceNames[0],
+        @"peers": @(peers),
+        @"confirmations": @(confirmations),
+        @"inputs": inputs,
+        @"outputs": outputs
+    };
+}
+
+
 #pragma mark - JNI callback functions
 
 JNIEXPORT void JNICALL onBalanceChanged(JNIEnv *env, jobject thisobject) {
@@ -182,6 +375,18 @@ JNIEXPORT void JNICALL onPaymentRequestProcessingFailed(JNIEnv *env, jobject thi
     }
 }
 
+JNIEXPORT void JNICALL onPayoutSent(JNIEnv *env, jobject thisobject, jint callbackId, jstring txid) {
+    @autoreleasepool {
+        [[HIBitcoinManager defaultManager] onPayoutSent:NSStringFromJString(env, txid) callback:callbackId];
+    }
+}
+
+JNIEXPORT void JNICALL onPayoutFailed(JNIEnv *env, jobject thisobject, jint callbackId, jthrowable error) {
+    @autoreleasepool {
+        [[HIBitcoinManager defaultManager] onPayoutFailedWithError:error callback:callbackId];
+    }
+}
+
 JNIEXPORT void JNICALL receiveLogFromJVM(JNIEnv *env, jobject thisobject, jstring fileName, jstring methodName,
                                          int lineNumber, jint level, jstring msg) {
     @autoreleasepool {
@@ -207,6 +412,8 @@ static JNINativeMethod methods[] = {
     {"onPaymentRequestLoadFailed", "(ILjava/lang/Throwable;)V",            (void *)&onPaymentRequestLoadFailed},
     {"onPaymentRequestProcessed", "(ILjava/lang/String;Ljava/lang/String;)V", (void *)&onPaymentRequestProcessed},
     {"onPaymentRequestProcessingFailed", "(ILjava/lang/Throwable;)V",      (void *)&onPaymentRequestProcessingFailed},
+    {"onPayoutSent",            "(ILjava/lang/String;)V",                  (void *)&onPayoutSent},
+    {"onPayoutFailed",          "(ILjava/lang/Throwable;)V",               (void *)&onPayoutFailed},
     {"onSynchronizationUpdate", "(F)V",                                    (void *)&onSynchronizationUpdate},
     {"onException",             "(Ljava/lang/Throwable;)V",                (void *)&onException}
 };
@@ -716,6 +923,22 @@ static NSString * const BitcoinJKitBundleIdentifier = @"com.hivewallet.BitcoinJK
     [self zeroCharArray:toCharArray size:(jsize)(toPassword.length / sizeof(jchar))];
 }
 
+- (void)setKeyDerivationTargetTime:(NSTimeInterval)targetTime memoryBudget:(uint64_t)memoryBudget {
+    [self callVoidMethodWithName:"setKeyDerivationTarget"
+                           error:NULL
+                       signature:"(JJ)V", (jlong) (targetTime * 1000), (jlong) memoryBudget];
+}
+
+- (void)recalibrateWalletEncryptionWithPassword:(NSData *)password error:(NSError **)error {
+    jarray charArray = JCharArrayFromNSData(_jniEnv, password);
+
+    [self callVoidMethodWithName:"recalibrateWalletEncryption"
+                           error:error
+                       signature:"([C)V", charArray];
+
+    [self zeroCharArray:charArray size:(jsize)(password.length / sizeof(jchar))];
+}
+
 - (NSString *)signMessage:(NSString *)message
              withPassword:(NSData *)password
                     error:(NSError **)error {
@@ -746,6 +969,27 @@ static NSString * const BitcoinJKitBundleIdentifier = @"com.hivewallet.BitcoinJK
     return result;
 }
 
+- (void)unlockWalletWithPassword:(NSData *)password
+                     idleTimeout:(NSTimeInterval)idleTimeout
+                 absoluteTimeout:(NSTimeInterval)absoluteTimeout
+                           error:(NSError **)error {
+    jarray charArray = JCharArrayFromNSData(_jniEnv, password);
+
+    [self callVoidMethodWithName:"unlockWallet"
+                           error:error
+                       signature:"([CJJ)V", charArray, (jlong) (idleTimeout * 1000), (jlong) (absoluteTimeout * 1000)];
+
+    [self zeroCharArray:charArray size:(jsize)(password.length / sizeof(jchar))];
+}
+
+- (void)lockWallet {
+    [self callVoidMethodWithName:"lockWallet" error:NULL signature:"()V"];
+}
+
+- (BOOL)isWalletUnlocked {
+    return [self callBooleanMethodWithName:"isWalletUnlocked" signature:"()Z"];
+}
+
 - (void)zeroCharArray:(jarray)charArray size:(jsize)size {
     if (charArray) {
         jchar zero[size];
@@ -897,6 +1141,67 @@ static NSString * const BitcoinJKitBundleIdentifier = @"com.hivewallet.BitcoinJK
     return nil;
 }
 
+- (NSArray *)allTransactionsFromBinaryPage {
+    return [self transactionsFromBinaryPageWithRange:NSMakeRange(0, self.transactionCount)];
+}
+
+- (NSArray *)transactionsFromBinaryPageWithRange:(NSRange)range {
+    jobject page = [self callObjectMethodWithName:"getTransactionsBinary"
+                                            error:NULL
+                                        signature:"(II)Ljava/nio/ByteBuffer;",
+                    range.location, range.length];
+
+    if (!page) {
+        return nil;
+    }
+
+    // the buffer is reused by the next call to getTransactionsBinary, so it's all read here
+    const uint8_t *bytes = (*_jniEnv)->GetDirectBufferAddress(_jniEnv, page);
+    jlong capacity = (*_jniEnv)->GetDirectBufferCapacity(_jniEnv, page);
+
+    if (!bytes || capacity < (jlong) HITransactionPageHeaderSize) {
+        HILogWarn(@"Couldn't access the transaction page");
+        return nil;
+    }
+
+    HIPageReader reader = { bytes, 0, (size_t) capacity, NO };
+    uint32_t magic = HIPageReaderReadUInt32(&reader);
+    uint16_t version = HIPageReaderReadUInt16(&reader);
+    HIPageReaderSkip(&reader, 2 + 4 + 4);
+    uint32_t recordCount = HIPageReaderReadUInt32(&reader);
+
+    if (magic != HITransactionPageMagic || version != HITransactionPageVersion) {
+        HILogWarn(@"Unsupported transaction page (magic %x, version %d)", magic, version);
+        return nil;
+    }
+
+    NSMutableArray *transactions = [NSMutableArray arrayWithCapacity:MIN(recordCount, range.length)];
+
+    for (uint32_t i = 0; i < recordCount; i++) {
+        uint32_t length = HIPageReaderReadUInt32(&reader);
+
+        if (!HIPageReaderHasBytes(&reader, length)) {
+            HILogWarn(@"Transaction page is truncated at record %d", i);
+            return nil;
+        }
+
+        // each record is read within its length, so that fields added to it later are skipped
+        HIPageReader record = { bytes, reader.position, reader.position + length, NO };
+        reader.position += length;
+
+        NSDictionary *transaction = HITransactionFromRecord(&record);
+
+        if (!transaction) {
+            HILogWarn(@"Couldn't read transaction record %d", i);
+            return nil;
+        }
+
+        [transactions addObject:transaction];
+    }
+
+    return transactions;
+}
+
 - (NSString *)walletDebuggingInfo {
     jstring info = [self callObjectMethodWithName:"getWalletDebuggingInfo" error:NULL signature:"()Ljava/lang/String;"];
     return NSStringFromJString(_jniEnv, info);
@@ -990,6 +1295,58 @@ static NSString * const BitcoinJKitBundleIdentifier = @"com.hivewallet.BitcoinJK
     }
 }
 
+- (BOOL)openPayoutQueueWithPassword:(NSData *)password
+                         maxEntries:(int)maxEntries
+                           maxDelay:(NSTimeInterval)maxDelay
+                              error:(NSError **)error {
+    jarray jPassword = JCharArrayFromNSData(_jniEnv, password);
+    NSError *openError = nil;
+
+    [self callVoidMethodWithName:"openPayoutQueue"
+                           error:&openError
+                       signature:"([CIJ)V", jPassword, maxEntries, (jlong) (maxDelay * 1000)];
+
+    [self zeroCharArray:jPassword size:(jsize)(password.length / sizeof(jchar))];
+
+    if (openError && error) {
+        *error = openError;
+    }
+
+    return (openError == nil);
+}
+
+- (BOOL)enqueuePayout:(uint64_t)coins
+          toRecipient:(NSString *)recipient
+                error:(NSError **)outError
+             callback:(void(^)(NSError*, NSString*))callback {
+
+    jstring jAmount = JStringFromNSString(_jniEnv, [NSString stringWithFormat:@"%lld", coins]);
+    jstring jRecipient = JStringFromNSString(_jniEnv, recipient);
+    NSUInteger callbackId = [self storeCallback:callback];
+    NSError *error = nil;
+
+    [self callVoidMethodWithName:"enqueuePayout"
+                           error:&error
+                       signature:"(Ljava/lang/String;Ljava/lang/String;I)V", jAmount, jRecipient, callbackId];
+
+    if (!error) {
+        return YES;
+    } else {
+        [self retrieveCallback:callbackId];
+
+        *outError = error;
+        return NO;
+    }
+}
+
+- (void)flushPayouts:(NSError **)error {
+    [self callVoidMethodWithName:"flushPayouts" error:error signature:"()V"];
+}
+
+- (void)closePayoutQueue:(NSError **)error {
+    [self callVoidMethodWithName:"closePayoutQueue" error:error signature:"()V"];
+}
+
 - (NSUInteger)storeCallback:(id)callback {
     NSUInteger callbackId = ++_callbackId;
     _callbacks[@(callbackId)] = [callback copy];
@@ -1260,6 +1617,29 @@ static NSString * const BitcoinJKitBundleIdentifier = @"com.hivewallet.BitcoinJK
     }
 }
 
+- (void)onPayoutSent:(NSString *)txid callback:(NSUInteger)callbackId {
+    void (^callback)(NSError*, NSString*) = [self retrieveCallback:callbackId];
+
+    if (callback) {
+        [self runSynchronouslyOnMainThread:^{
+            callback(nil, txid);
+        }];
+    }
+}
+
+- (void)onPayoutFailedWithError:(jthrowable)exception callback:(NSUInteger)callbackId {
+    void (^callback)(NSError*, NSString*) = [self retrieveCallback:callbackId];
+
+    if (callback) {
+        [self runSynchronouslyOnMainThread:^{
+            NSError *error = [NSError errorWithDomain:@"BitcoinKit"
+                                                 code:[self errorCodeForJavaException:exception]
+                                             userInfo:[self createUserInfoForJavaException:exception]];
+            callback(error, nil);
+        }];
+    }
+}
+
 - (void)endSending {
     _sending = NO;
     sendCompletionBlock = nil;
@@ -9,25 +9,24 @@ import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.TestNet3Params;
 import com.google.bitcoin.protocols.payments.PaymentRequestException;
 import com.google.bitcoin.protocols.payments.PaymentSession;
-import com.google.bitcoin.script.Script;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.SPVBlockStore;
 import com.google.bitcoin.store.UnreadableWalletException;
-import com.google.bitcoin.store.WalletProtobufSerializer;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import org.bitcoinj.wallet.Protos;
-import org.codehaus.jettison.json.JSONArray;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.impl.CocoaLogger;
+import org.slf4j.impl.FlightRecorder;
 import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.File;
@@ -35,29 +34,57 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.nio.CharBuffer;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
-public class BitcoinManager implements Thread.UncaughtExceptionHandler, TransactionConfidence.Listener {
+public class BitcoinManager implements Thread.UncaughtExceptionHandler {
     private NetworkParameters networkParams;
     private Wallet wallet;
     private String dataDirectory;
     private String checkpointsFilePath;
+    private String checkpointIndexFilePath;
 
     private PeerGroup peerGroup;
     private BlockStore blockStore;
+    private MonitoredBlockChain blockChain;
+    private BlockHeaderIndex blockHeaderIndex;
+    private PeerDatabase peerDatabase;
     private File walletFile;
-    private int blocksToDownload;
-    private HashSet<Transaction> trackedTransactions;
+    private SyncProgressTracker syncProgressTracker;
+    private BloomFilterMonitor bloomFilterMonitor;
+    private WalletHandle walletHandle;
     private HashMap<Integer, PaymentSession> paymentSessions;
+    private volatile PayoutQueue payoutQueue;
+    private ScryptCalibrator scryptCalibrator;
+    private TransactionSigner transactionSigner;
+    private NativeEventDispatcher eventDispatcher;
     private int paymentSessionsSequenceId = 0;
+    private boolean flightRecorderEnabled;
+    private boolean walletJournalEnabled;
+    private WalletJournal walletJournal;
+    private boolean stagedWalletLoadingEnabled;
+    private boolean parallelBlockDownloadEnabled;
+    private boolean branchAndBoundCoinSelectionEnabled;
+    private ParallelBlockDownloader blockDownloader;
+    private StagedWalletLoader stagedWalletLoader;
+    private volatile StartupProgress startupProgress;
+    private Future<?> startupTask;
+    private FlightRecorder flightRecorder;
+    private int rescanStartHeight = -1;
+    private int rescanBlocksSkipped;
+    private int rescanRemovedTransactions;
 
     private static final Logger log = LoggerFactory.getLogger(BitcoinManager.class);
 
@@ -67,9 +94,32 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     public BitcoinManager() {
         Threading.uncaughtExceptionHandler = this;
 
-        trackedTransactions = new HashSet<Transaction>();
         paymentSessions = new HashMap<Integer, PaymentSession>();
 
+        syncProgressTracker = new SyncProgressTracker(new SyncProgressTracker.Listener() {
+            public void onSynchronizationUpdate(float percent) {
+                if (percent >= 100.0f) {
+                    reachedStartupPhase(StartupProgress.Phase.SYNCED);
+                }
+
+                BitcoinManager.this.onSynchronizationUpdate(percent);
+            }
+        });
+
+        bloomFilterMonitor = new BloomFilterMonitor();
+        scryptCalibrator = new ScryptCalibrator();
+        transactionSigner = new TransactionSigner();
+
+        eventDispatcher = new NativeEventDispatcher(new NativeEventDispatcher.Target() {
+            public void dispatchBalanceChanged() {
+                onBalanceChanged();
+            }
+
+            public void dispatchTransactionChanged(Transaction tx) {
+                onTransactionChanged(tx.getHashAsString(), getJSONFromTransaction(tx));
+            }
+        });
+
         ((CocoaLogger) log).setLevel(CocoaLogger.HILoggerLevelDebug);
     }
 
@@ -93,14 +143,192 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
         checkpointsFilePath = path;
     }
 
+    public String getCheckpointIndexFilePath() {
+        return checkpointIndexFilePath;
+    }
+
+    /**
+     * The index is a binary, memory-mapped version of the checkpoints file (see CheckpointIndex). It can be shipped
+     * with the app; otherwise it's created in the data directory the first time checkpoints are needed.
+     */
+    public void setCheckpointIndexFilePath(String path) {
+        checkpointIndexFilePath = path;
+    }
+
+    public boolean isFlightRecorderEnabled() {
+        return flightRecorderEnabled;
+    }
+
+    /**
+     * If enabled, debug logs are kept in bitcoinkit.flightlog in the data directory from start() until stop(), even
+     * if they aren't sent to the Cocoa side. Read the file with org.slf4j.impl.FlightRecorderReader.
+     */
+    public void setFlightRecorderEnabled(boolean enabled) {
+        flightRecorderEnabled = enabled;
+    }
+
+    public boolean isWalletJournalEnabled() {
+        return walletJournalEnabled;
+    }
+
+    /**
+     * If enabled, wallet changes are saved by appending them to a journal next to the wallet file instead of saving
+     * the whole wallet after each change (see WalletJournal). Needs to be set before start().
+     */
+    public void setWalletJournalEnabled(boolean enabled) {
+        walletJournalEnabled = enabled;
+    }
+
+    public WalletJournal getWalletJournal() {
+        return walletJournal;
+    }
+
+    public boolean isStagedWalletLoadingEnabled() {
+        return stagedWalletLoadingEnabled;
+    }
+
+    /**
+     * If enabled, start() only loads the unspent and pending transactions before it returns and the rest of the
+     * wallet history is loaded in the background (see StagedWalletLoader). The chain download starts once the history
+     * is loaded, and methods that list transactions wait for it until then. Needs to be set before start().
+     */
+    public void setStagedWalletLoadingEnabled(boolean enabled) {
+        stagedWalletLoadingEnabled = enabled;
+    }
+
+    public boolean isParallelBlockDownloadEnabled() {
+        return parallelBlockDownloadEnabled;
+    }
+
+    /**
+     * If enabled, a chain download that's far behind fetches the blocks from all connected peers at once (see
+     * ParallelBlockDownloader) before PeerGroup's download peer takes over.
+     */
+    public void setParallelBlockDownloadEnabled(boolean enabled) {
+        parallelBlockDownloadEnabled = enabled;
+    }
+
+    public boolean isBranchAndBoundCoinSelectionEnabled() {
+        return branchAndBoundCoinSelectionEnabled;
+    }
+
+    /**
+     * If enabled, sends and fee quotes pick their inputs with BranchAndBoundCoinSelector, which looks for a set of
+     * outputs that needs no change, instead of bitcoinj's DefaultCoinSelector (oldest and largest outputs first).
+     */
+    public void setBranchAndBoundCoinSelectionEnabled(boolean enabled) {
+        branchAndBoundCoinSelectionEnabled = enabled;
+
+        if (walletHandle != null) {
+            walletHandle.setBranchAndBoundCoinSelection(enabled);
+        }
+    }
+
+    public NativeEventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    public BlockHeaderIndex getBlockHeaderIndex() {
+        return blockHeaderIndex;
+    }
+
+    /** Bloom filter statistics, and the settings that trade privacy (a higher false positive rate) for bandwidth. */
+    public BloomFilterMonitor getBloomFilterMonitor() {
+        return bloomFilterMonitor;
+    }
+
+    public SyncProgressTracker getSyncProgressTracker() {
+        return syncProgressTracker;
+    }
+
+    /** Returns the phases and timings of the last start(), startAsync() or createWallet(). */
+    public StartupProgress getStartupProgress() {
+        return startupProgress;
+    }
+
+    public String getStartupTimings() {
+        return (startupProgress != null) ? startupProgress.toString() : null;
+    }
+
 
     /* --- Wallet lifecycle --- */
 
     public void start() throws NoWalletException, UnreadableWalletException, IOException, BlockStoreException {
+        StartupProgress progress = new StartupProgress();
+        startupProgress = progress;
+
+        try {
+            runStartup();
+        } catch (Exception e) {
+            progress.fail(e);
+
+            Throwables.propagateIfInstanceOf(e, NoWalletException.class);
+            Throwables.propagateIfInstanceOf(e, UnreadableWalletException.class);
+            Throwables.propagateIfInstanceOf(e, IOException.class);
+            Throwables.propagateIfInstanceOf(e, BlockStoreException.class);
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Does the same as start() on a background thread and returns right away. The returned futures complete as
+     * the startup reaches each phase; a failure (e.g. NoWalletException) fails all phases that weren't reached.
+     * Nothing else should be called until WALLET_LOADED completes, except stop().
+     */
+    public StartupProgress startAsync() {
+        final StartupProgress progress = new StartupProgress();
+        startupProgress = progress;
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("BitcoinKit startup").setDaemon(true).build());
+
+        startupTask = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runStartup();
+                } catch (NoWalletException e) {
+                    progress.fail(e);
+                } catch (Exception e) {
+                    log.error("Startup failed", e);
+                    progress.fail(e);
+                }
+            }
+        });
+
+        executor.shutdown();
+        return progress;
+    }
+
+    private void waitForStartup() {
+        if (startupTask != null) {
+            try {
+                Uninterruptibles.getUninterruptibly(startupTask);
+            } catch (ExecutionException e) {
+                // already reported in the startup progress
+            }
+
+            startupTask = null;
+        }
+    }
+
+    private void reachedStartupPhase(StartupProgress.Phase phase) {
+        StartupProgress progress = startupProgress;
+
+        if (progress != null) {
+            progress.complete(phase);
+        }
+    }
+
+    private void runStartup() throws NoWalletException, UnreadableWalletException, IOException, BlockStoreException {
         if (networkParams == null) {
             setTestingNetwork(false);
         }
 
+        if (flightRecorderEnabled && flightRecorder == null) {
+            startFlightRecorder();
+        }
+
         // Try to read the wallet from storage, create a new one if not possible.
         wallet = null;
         walletFile = new File(dataDirectory + "/bitcoinkit.wallet");
@@ -111,7 +339,16 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
         }
 
         try {
-            useWallet(loadWalletFromFile(walletFile));
+            if (stagedWalletLoadingEnabled && StagedWalletLoader.isSupported() && getBlockchainFile().exists()) {
+                StagedWalletLoader loader = new StagedWalletLoader(walletFile);
+                Wallet wallet = new Wallet(networkParams);
+                addExtensionsToWallet(wallet);
+                loader.readCore(wallet);
+
+                useWallet(wallet, loader);
+            } else {
+                useWallet(loadWalletFromFile(walletFile), null);
+            }
         } catch (FileNotFoundException e) {
             throw new NoWalletException("No wallet file found at: " + walletFile);
         }
@@ -119,31 +356,22 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
 
     public void addExtensionsToWallet(Wallet wallet) {
         wallet.addExtension(new LastWalletChangeExtension());
+        wallet.addExtension(new WalletJournalExtension());
     }
 
     public Wallet loadWalletFromFile(File f) throws UnreadableWalletException {
         try {
-            FileInputStream stream = null;
-
-            try {
-                stream = new FileInputStream(f);
-
-                Wallet wallet = new Wallet(networkParams);
-                addExtensionsToWallet(wallet);
+            Wallet wallet = new Wallet(networkParams);
+            addExtensionsToWallet(wallet);
 
-                Protos.Wallet walletData = WalletProtobufSerializer.parseToProto(stream);
-                new WalletProtobufSerializer().readWallet(walletData, wallet);
+            // also applies the journal, if there's one
+            WalletJournal.readWallet(f, wallet);
 
-                if (!wallet.isConsistent()) {
-                    log.error("Loaded an inconsistent wallet");
-                }
-
-                return wallet;
-            } finally {
-                if (stream != null) {
-                    stream.close();
-                }
+            if (!wallet.isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
             }
+
+            return wallet;
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not open file", e);
         }
@@ -183,46 +411,107 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
         // just in case an old file exists there for some reason
         deleteBlockchainDataFile();
 
-        useWallet(wallet);
+        startupProgress = new StartupProgress();
+        useWallet(wallet, null);
     }
 
-    private void useWallet(Wallet wallet) throws BlockStoreException, IOException {
+    private void useWallet(Wallet wallet, StagedWalletLoader loader) throws BlockStoreException, IOException {
+        if (walletHandle != null) {
+            discardPayoutQueue();
+            walletHandle.close();
+        }
+
         this.wallet = wallet;
+        this.walletHandle = new WalletHandle("bitcoinkit", networkParams, wallet, walletFile, eventDispatcher,
+                new TransactionJSONCache());
+        walletHandle.setTransactionSigner(transactionSigner);
+        walletHandle.setBranchAndBoundCoinSelection(branchAndBoundCoinSelectionEnabled);
+        this.stagedWalletLoader = loader;
 
-        //make wallet autosave
-        wallet.autosaveToFile(walletFile, 1, TimeUnit.SECONDS, null);
+        Set<Transaction> savedPending = new HashSet<Transaction>(wallet.getPendingTransactions());
+
+        if (loader == null) {
+            startSavingWallet();
+        }
 
         log.info("Opening wallet " + getWalletAddress());
+        reachedStartupPhase(StartupProgress.Phase.WALLET_LOADED);
 
-        wallet.addEventListener(new AbstractWalletEventListener() {
-            // get notified when an incoming transaction is received
-            @Override
-            public void onCoinsReceived(Wallet w, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
-                BitcoinManager.this.onCoinsReceived(w, tx, prevBalance, newBalance);
-            }
+        startBlockchain(loader == null);
 
-            // get notified when we send a transaction, or when we restore an outgoing transaction from the blockchain
-            @Override
-            public void onCoinsSent(Wallet w, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
-                BitcoinManager.this.onCoinsSent(w, tx, prevBalance, newBalance);
+        if (loader == null) {
+            if (cleanupWallet(savedPending) && walletJournal != null) {
+                // removed transactions can't be journaled
+                walletJournal.compactLater();
             }
+        } else {
+            loadWalletHistory(loader, savedPending);
+        }
+    }
 
+    private void loadWalletHistory(StagedWalletLoader loader, final Set<Transaction> savedPending) {
+        loader.loadHistory(new Runnable() {
             @Override
-            public void onReorganize(Wallet wallet) {
-                BitcoinManager.this.onBalanceChanged();
+            public void run() {
+                try {
+                    startSavingWallet();
+
+                    if (cleanupWallet(savedPending)) {
+                        // transactions sent or received while loading weren't saved yet
+                        if (walletJournal != null) {
+                            walletJournal.compactLater();
+                        } else {
+                            wallet.saveToFile(walletFile);
+                        }
+                    }
+
+                    eventDispatcher.balanceChanged();
+
+                    if (peerGroup != null) {
+                        startBlockChainDownload();
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
             }
         });
+    }
+
+    /** Waits until a wallet opened with staged loading is complete, returns false if its history couldn't be loaded. */
+    private boolean waitForWalletHistory() {
+        return (stagedWalletLoader == null) || stagedWalletLoader.awaitHistory();
+    }
 
-        startBlockchain();
+    private void startSavingWallet() throws IOException {
+        if (walletJournal != null) {
+            walletJournal.close();
+            walletJournal = null;
+        }
 
+        if (walletJournalEnabled && WalletJournal.isSupported()) {
+            walletJournal = new WalletJournal(wallet, walletFile);
+        } else {
+            // a journal left from before would be applied to a newer wallet file next time
+            WalletJournal.removeJournal(wallet, walletFile);
+
+            //make wallet autosave
+            wallet.autosaveToFile(walletFile, 1, TimeUnit.SECONDS, null);
+        }
+    }
+
+    /** Returns true if the pending transactions aren't the same as in the wallet file anymore. */
+    private boolean cleanupWallet(Set<Transaction> savedPending) {
         wallet.cleanup();
+        walletHandle.rebuildTransactionIndex();
+
+        return !savedPending.equals(new HashSet<Transaction>(wallet.getPendingTransactions()));
     }
 
     private File getBlockchainFile() {
         return new File(dataDirectory + "/bitcoinkit.spvchain");
     }
 
-    private void startBlockchain() throws BlockStoreException {
+    private void startBlockchain(boolean downloadChain) throws BlockStoreException {
         // Load the block chain data file or generate a new one
         File chainFile = getBlockchainFile();
         boolean chainExistedAlready = chainFile.exists();
@@ -233,40 +522,33 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
             // cause ugly inconsistent wallet exceptions, so clear all old transaction data first
             log.info("Chain file missing - wallet transactions list will be rebuilt now");
             wallet.clearTransactions(0);
+            walletHandle.rebuildTransactionIndex();
 
-            String checkpointsFilePath = this.checkpointsFilePath;
-            if (checkpointsFilePath == null) {
-                checkpointsFilePath = dataDirectory + "/bitcoinkit.checkpoints";
+            if (walletJournal != null) {
+                walletJournal.compactLater();
             }
 
-            File checkpointsFile = new File(checkpointsFilePath);
-            if (checkpointsFile.exists()) {
-                long earliestKeyCreationTime = wallet.getEarliestKeyCreationTime();
-
-                if (earliestKeyCreationTime == 0) {
-                    // there was a bug in bitcoinj until recently that caused encrypted keys to lose their creation time
-                    // so if we have no data from the wallet, use the time of the first Hive commit (15.05.2013) instead
-                    earliestKeyCreationTime = 1368620845;
-                }
-
-                try {
-                    FileInputStream stream = new FileInputStream(checkpointsFile);
-                    CheckpointManager.checkpoint(networkParams, stream, blockStore, earliestKeyCreationTime);
-                } catch (IOException e) {
-                    throw new BlockStoreException("Could not load checkpoints file");
-                }
-            }
+            checkpointBlockStore(blockStore, getEarliestKeyCreationTime());
         }
 
-        BlockChain chain = new BlockChain(networkParams, wallet, blockStore);
+        reachedStartupPhase(StartupProgress.Phase.CHAIN_STORE_READY);
 
-        peerGroup = new PeerGroup(networkParams, chain);
+        blockChain = new MonitoredBlockChain(networkParams, wallet, blockStore, syncProgressTracker);
+        blockChain.setBloomFilterMonitor(bloomFilterMonitor);
+        attachBlockHeaderIndex(blockChain);
+
+        peerGroup = new PeerGroup(networkParams, blockChain);
         peerGroup.setUserAgent("BitcoinJKit", "0.9");
+        // known peers first, DNS seeds when there are none left to try
+        peerGroup.addPeerDiscovery(getPeerDatabase());
         peerGroup.addPeerDiscovery(new DnsDiscovery(networkParams));
+        peerGroup.addEventListener(peerDatabase);
         peerGroup.addWallet(wallet);
+        bloomFilterMonitor.setPeerGroup(peerGroup);
+        walletHandle.setTransactionBroadcaster(peerGroup);
 
-        onBalanceChanged();
-        trackPendingTransactions(wallet);
+        eventDispatcher.balanceChanged();
+        walletHandle.trackPendingTransactions();
 
         peerGroup.addEventListener(new AbstractPeerEventListener() {
             @Override
@@ -282,43 +564,137 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
 
         peerGroup.startAndWait();
 
-        // get notified about sync progress
-        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
-            @Override
-            public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
-                BitcoinManager.this.onBlocksDownloaded(peer, block, blocksLeft);
+        if (downloadChain) {
+            startBlockChainDownload();
+        }
+    }
+
+    private void attachBlockHeaderIndex(BlockChain chain) {
+        if (blockHeaderIndex == null) {
+            try {
+                blockHeaderIndex = new BlockHeaderIndex(networkParams, new File(dataDirectory + "/bitcoinkit.headers"));
+            } catch (IOException e) {
+                // transactions just won't have a block time
+                log.warn("Couldn't open the block header index: " + e);
+                return;
             }
+        }
 
-            @Override
-            public void onChainDownloadStarted(Peer peer, int blocksLeft) {
-                BitcoinManager.this.onChainDownloadStarted(peer, blocksLeft);
+        // the store may have been seeded from a checkpoint
+        blockHeaderIndex.notifyNewBestBlock(chain.getChainHead());
+
+        // updated before the wallet events are dispatched, so that their JSON has the block time
+        chain.addListener(blockHeaderIndex, Threading.SAME_THREAD);
+        walletHandle.setBlockHeaderIndex(blockHeaderIndex);
+    }
+
+    private PeerDatabase getPeerDatabase() {
+        if (peerDatabase == null) {
+            peerDatabase = new PeerDatabase(networkParams, new File(dataDirectory + "/bitcoinkit.peers"));
+
+            try {
+                peerDatabase.load();
+            } catch (IOException e) {
+                // it will just start from the DNS seeds
+                log.warn("Couldn't load the peer database: " + e);
             }
-        });
+        }
+
+        return peerDatabase;
     }
 
-    private void trackPendingTransactions(Wallet wallet) {
-        // we won't receive onCoinsReceived again for transactions that we already know about,
-        // so we need to listen to confidence changes again after a restart
-        for (Transaction tx : wallet.getPendingTransactions()) {
-            trackTransaction(tx);
+    private long getEarliestKeyCreationTime() {
+        long earliestKeyCreationTime = wallet.getEarliestKeyCreationTime();
+
+        if (earliestKeyCreationTime == 0) {
+            // there was a bug in bitcoinj until recently that caused encrypted keys to lose their creation time
+            // so if we have no data from the wallet, use the time of the first Hive commit (15.05.2013) instead
+            earliestKeyCreationTime = 1368620845;
+        }
+
+        return earliestKeyCreationTime;
+    }
+
+    private File getCheckpointsFile() {
+        String path = (checkpointsFilePath != null) ? checkpointsFilePath : dataDirectory + "/bitcoinkit.checkpoints";
+        return new File(path);
+    }
+
+    /** Starts a new block store from the last checkpoint a week before the time, if there are checkpoints. */
+    private void checkpointBlockStore(BlockStore store, long time) throws BlockStoreException {
+        File checkpointsFile = getCheckpointsFile();
+        CheckpointIndex checkpointIndex = openCheckpointIndex(checkpointsFile);
+
+        if (checkpointIndex != null) {
+            checkpointIndex.checkpoint(store, time);
+        } else if (checkpointsFile.exists()) {
+            try {
+                FileInputStream stream = new FileInputStream(checkpointsFile);
+                CheckpointManager.checkpoint(networkParams, stream, store, time);
+            } catch (IOException e) {
+                throw new BlockStoreException("Could not load checkpoints file");
+            }
         }
     }
 
-    private void trackTransaction(Transaction tx) {
-        if (!trackedTransactions.contains(tx)) {
-            log.debug("Tracking transaction " + tx.getHashAsString());
+    /** Opens the checkpoint index, or converts the checkpoints file into one if it's missing or outdated. */
+    private CheckpointIndex openCheckpointIndex(File checkpointsFile) {
+        File indexFile = new File((checkpointIndexFilePath != null) ?
+                checkpointIndexFilePath : dataDirectory + "/bitcoinkit.checkpoints.idx");
+
+        if (indexFile.exists()) {
+            try {
+                CheckpointIndex index = CheckpointIndex.open(networkParams, indexFile);
+
+                if (!checkpointsFile.exists() || index.isUpToDateWith(checkpointsFile)) {
+                    return index;
+                }
+            } catch (IOException e) {
+                log.warn("Couldn't open the checkpoint index: " + e);
+            }
+        }
 
-            tx.getConfidence().addEventListener(this);
-            trackedTransactions.add(tx);
+        if (checkpointsFile.exists()) {
+            try {
+                return CheckpointIndex.convert(networkParams, checkpointsFile, indexFile);
+            } catch (IOException e) {
+                // the checkpoints file is still usable without the index
+                log.warn("Couldn't convert the checkpoints file: " + e);
+            }
         }
+
+        return null;
     }
 
-    private void stopTrackingTransaction(Transaction tx) {
-        if (trackedTransactions.contains(tx)) {
-            log.debug("Stopped tracking transaction " + tx.getHashAsString());
+    private void startBlockChainDownload() {
+        // get notified about sync progress
+        final PeerEventListener progressListener = new AbstractPeerEventListener() {
+            @Override
+            public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+                BitcoinManager.this.onBlocksDownloaded(peer, block, blocksLeft);
+            }
 
-            tx.getConfidence().removeEventListener(this);
-            trackedTransactions.remove(tx);
+            @Override
+            public void onChainDownloadStarted(Peer peer, int blocksLeft) {
+                BitcoinManager.this.onChainDownloadStarted(peer, blocksLeft);
+            }
+        };
+
+        if (parallelBlockDownloadEnabled) {
+            final PeerGroup group = peerGroup;
+            blockDownloader = new ParallelBlockDownloader(networkParams, group, blockChain);
+
+            blockDownloader.start(progressListener, new Runnable() {
+                @Override
+                public void run() {
+                    // whatever is left, and new blocks from then on
+                    if (group.isRunning()) {
+                        group.startBlockChainDownload(progressListener);
+                    }
+                }
+            });
+        } else {
+            peerGroup.startBlockChainDownload(progressListener);
         }
     }
 
@@ -329,45 +705,224 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     }
 
     public void resetBlockchain() {
+        waitForWalletHistory();
+
         try {
             shutdownBlockchain();
             deleteBlockchainDataFile();
 
-            blocksToDownload = 0;
+            syncProgressTracker.reset();
+
+            walletHandle.stopTrackingTransactions();
+
+            startBlockchain(true);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Downloads the blocks from the given height on again, instead of the whole chain like resetBlockchain() does.
+     * Wallet transactions from those blocks are removed and found again during the download, older ones are kept.
+     * If the block store doesn't reach back that far, it's started over from the last checkpoint before that block.
+     */
+    public void rescanFromHeight(int height) {
+        long time = (blockHeaderIndex != null) ? blockHeaderIndex.getTime(height) : -1;
+        rescan(height, (time > 0) ? time : getEarliestKeyCreationTime());
+    }
+
+    /** Like rescanFromHeight(), starting from the first block at or after the given time (in milliseconds). */
+    public void rescanFromTime(long time) {
+        long timeSecs = time / 1000;
+        int height = -1;
+
+        if (blockHeaderIndex != null) {
+            height = blockHeaderIndex.getFirstHeightAtOrAfter(timeSecs);
 
-            for (Transaction tx : (HashSet<Transaction>) trackedTransactions.clone()) {
-                stopTrackingTransaction(tx);
+            if (height == blockHeaderIndex.getFirstHeight()) {
+                // the index doesn't say if there are earlier blocks after the time
+                height = -1;
             }
+        }
+
+        rescan(height, timeSecs);
+    }
+
+    /** Rewinds the chain to the block before height, or to a checkpoint before time (in seconds) if it can't. */
+    private void rescan(int height, long time) {
+        waitForWalletHistory();
+
+        try {
+            shutdownBlockchain();
+            walletHandle.stopTrackingTransactions();
 
-            startBlockchain();
+            File chainFile = getBlockchainFile();
+            SPVBlockStore store = new SPVBlockStore(networkParams, chainFile);
+            int previousHeight = store.getChainHead().getHeight();
+            StoredBlock rewindBlock = (height > 0) ? WalletRewinder.findBlock(networkParams, store, height - 1) : null;
+
+            if (rewindBlock == null) {
+                store.close();
+                chainFile.delete();
+
+                // the block before the checkpoint isn't in the new store, but the checkpoint itself was downloaded
+                store = new SPVBlockStore(networkParams, chainFile);
+                checkpointBlockStore(store, time);
+                rewindBlock = store.getChainHead();
+            }
+
+            // the wallet goes first, so that it's never behind the chain if this is interrupted
+            Wallet rewoundWallet = new Wallet(networkParams);
+            addExtensionsToWallet(rewoundWallet);
+            int removedTransactions = WalletRewinder.rewind(wallet, rewindBlock, rewoundWallet);
+            replaceWallet(rewoundWallet);
+
+            store.setChainHead(rewindBlock);
+            store.close();
+
+            rescanStartHeight = rewindBlock.getHeight() + 1;
+            rescanBlocksSkipped = rewindBlock.getHeight() - getFullRescanHeight();
+            rescanRemovedTransactions = removedTransactions;
+
+            log.info("Rescanning from height " + rescanStartHeight + " (chain was at " + previousHeight + "), "
+                    + Math.max(rescanBlocksSkipped, 0) + " blocks fewer than a full rescan");
+
+            syncProgressTracker.reset();
+            useWallet(rewoundWallet, null);
+            eventDispatcher.balanceChanged();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /** Saves the rewound wallet in place of the current one, which mustn't save itself (or its journal) anymore. */
+    private void replaceWallet(Wallet rewoundWallet) throws IOException {
+        if (walletJournal != null) {
+            walletJournal.close();
+            walletJournal = null;
+        }
+
+        wallet.shutdownAutosaveAndWait();
+
+        // a journal of the old wallet must not be applied to the new file
+        WalletJournalExtension journalExtension =
+                (WalletJournalExtension) rewoundWallet.getExtensions().get(WalletJournalExtension.EXTENSION_ID);
+        journalExtension.setGeneration(journalExtension.getGeneration() + 1);
+
+        rewoundWallet.saveToFile(walletFile);
+        WalletJournal.getJournalFile(walletFile).delete();
+    }
+
+    /** The height a rescan after resetBlockchain() would start from. */
+    private int getFullRescanHeight() {
+        CheckpointIndex checkpointIndex = openCheckpointIndex(getCheckpointsFile());
+
+        if (checkpointIndex == null) {
+            return 0;
+        }
+
+        long time = getEarliestKeyCreationTime() - CheckpointIndex.KEY_TIME_MARGIN;
+        return checkpointIndex.getCheckpointBefore(time).getHeight();
+    }
+
+    /** Describes the last rescan started with rescanFromHeight() or rescanFromTime(), or returns null if none was. */
+    public String getRescanSummary() {
+        if (rescanStartHeight < 0) {
+            return null;
+        }
+
+        long blocksProcessed = syncProgressTracker.getBlocksProcessed();
+        long syncTime = syncProgressTracker.getProcessingTimeMillis() + syncProgressTracker.getWaitingTimeMillis();
+        long savedSeconds = -1;
+
+        if (blocksProcessed > 0 && rescanBlocksSkipped > 0) {
+            savedSeconds = rescanBlocksSkipped * syncTime / blocksProcessed / 1000;
+        }
+
+        return "Rescan from height " + rescanStartHeight + ": " + rescanRemovedTransactions + " transactions removed, "
+                + blocksProcessed + " blocks processed, " + Math.max(rescanBlocksSkipped, 0) + " blocks skipped"
+                + ((savedSeconds >= 0) ? " (about " + savedSeconds + " s saved)" : "");
+    }
+
     public void stop() {
         try {
             log.info("Shutting down BitcoinManager...");
 
+            waitForStartup();
+            boolean walletComplete = waitForWalletHistory();
+
+            // payouts that weren't sent yet fail, there's no one to broadcast them to anymore
+            discardPayoutQueue();
+
+            if (walletHandle != null) {
+                walletHandle.lock();
+            }
             shutdownBlockchain();
+            eventDispatcher.flush();
+
+            if (blockHeaderIndex != null) {
+                if (walletHandle != null) {
+                    walletHandle.setBlockHeaderIndex(null);
+                }
+
+                blockHeaderIndex.close();
+                blockHeaderIndex = null;
+            }
 
-            if (wallet != null) {
+            if (walletJournal != null) {
+                walletJournal.close();
+                walletJournal = null;
+            } else if (wallet != null && walletComplete) {
                 wallet.saveToFile(walletFile);
             }
 
             log.info("Shutdown done.");
+
+            CocoaLogger.flushAsynchronousLogs(1000);
+            stopFlightRecorder();
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    private void startFlightRecorder() {
+        try {
+            flightRecorder = FlightRecorder.open(new File(dataDirectory + "/bitcoinkit.flightlog"));
+            CocoaLogger.setFlightRecorder(flightRecorder, CocoaLogger.HILoggerLevelDebug);
+        } catch (IOException e) {
+            // not worth failing the start for
+            log.warn("Couldn't open the flight recorder file: " + e);
+        }
+    }
+
+    private void stopFlightRecorder() throws IOException {
+        if (flightRecorder != null) {
+            CocoaLogger.setFlightRecorder(null, CocoaLogger.HILoggerLevelDebug);
+            flightRecorder.close();
+            flightRecorder = null;
+        }
+    }
+
     private void shutdownBlockchain() throws BlockStoreException {
         log.info("Shutting down PeerGroup...");
 
+        if (blockDownloader != null) {
+            blockDownloader.cancel();
+            blockDownloader = null;
+        }
+
         if (peerGroup != null) {
             peerGroup.stopAndWait();
             peerGroup.removeWallet(wallet);
+            bloomFilterMonitor.setPeerGroup(null);
+            walletHandle.setTransactionBroadcaster(null);
             peerGroup = null;
+
+            try {
+                peerDatabase.save();
+            } catch (IOException e) {
+                log.warn("Couldn't save the peer database: " + e);
+            }
         }
 
         log.info("Shutting down BlockStore...");
@@ -379,6 +934,8 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     }
 
     public void exportWallet(String path) throws java.io.IOException {
+        waitForWalletHistory();
+
         File backupFile = new File(path);
         wallet.saveToFile(backupFile);
     }
@@ -402,7 +959,7 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
         } catch (KeyCrypterException e) {
             throw new WrongPasswordException(e);
         } finally {
-            wipeAesKey(aesKey);
+            WalletHandle.wipeAesKey(aesKey);
 
             if (decryptedKey != null) {
                 decryptedKey.clearPrivateKey();
@@ -414,8 +971,7 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     /* --- Reading wallet data --- */
 
     public String getWalletAddress() {
-        ECKey ecKey = wallet.getKeys().get(0);
-        return ecKey.toAddress(networkParams).toString();
+        return walletHandle.getWalletAddress();
     }
 
     public String getWalletDebuggingInfo() {
@@ -423,105 +979,30 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     }
 
     public long getAvailableBalance() {
-        return (wallet != null) ? wallet.getBalance().longValue() : 0;
+        return (walletHandle != null) ? walletHandle.getAvailableBalance() : 0;
     }
 
     public long getEstimatedBalance() {
-        return (wallet != null) ? wallet.getBalance(Wallet.BalanceType.ESTIMATED).longValue() : 0;
+        return (walletHandle != null) ? walletHandle.getEstimatedBalance() : 0;
     }
 
 
     /* --- Reading transaction data --- */
 
-    private String getJSONFromTransaction(Transaction tx) throws ScriptException, JSONException {
-        if (tx == null) {
-            return null;
-        }
-
-        TransactionConfidence txConfidence = tx.getConfidence();
-        TransactionConfidence.ConfidenceType confidenceType = txConfidence.getConfidenceType();
-        String confidence;
-
-        if (confidenceType == TransactionConfidence.ConfidenceType.BUILDING) {
-            confidence = "building";
-        } else if (confidenceType == TransactionConfidence.ConfidenceType.PENDING) {
-            confidence = "pending";
-        } else if (confidenceType == TransactionConfidence.ConfidenceType.DEAD) {
-            confidence = "dead";
-        } else {
-            confidence = "unknown";
-        }
-
-        JSONArray inputs = new JSONArray();
-
-        for (TransactionInput input : tx.getInputs()) {
-            JSONObject inputData = new JSONObject();
-
-            if (!input.isCoinBase()) {
-                try {
-                    Script scriptSig = input.getScriptSig();
-                    Address fromAddress = new Address(networkParams, Utils.sha256hash160(scriptSig.getPubKey()));
-                    inputData.put("address", fromAddress);
-                } catch (ScriptException e) {
-                    // can't parse script, give up
-                }
-            }
-
-            TransactionOutput source = input.getConnectedOutput();
-            if (source != null) {
-                inputData.put("amount", source.getValue());
-            }
-
-            inputs.put(inputData);
-        }
-
-        JSONArray outputs = new JSONArray();
-
-        for (TransactionOutput output : tx.getOutputs()) {
-            JSONObject outputData = new JSONObject();
-
-            try {
-                Script scriptPubKey = output.getScriptPubKey();
-
-                if (scriptPubKey.isSentToAddress() || scriptPubKey.isPayToScriptHash()) {
-                    Address toAddress = scriptPubKey.getToAddress(networkParams);
-                    outputData.put("address", toAddress);
-
-                    if (toAddress.toString().equals(getWalletAddress())) {
-                        outputData.put("type", "own");
-                    } else {
-                        outputData.put("type", "external");
-                    }
-                } else if (scriptPubKey.isSentToRawPubKey()) {
-                    outputData.put("type", "pubkey");
-                } else if (scriptPubKey.isSentToMultiSig()) {
-                    outputData.put("type", "multisig");
-                } else {
-                    outputData.put("type", "unknown");
-                }
-            } catch (ScriptException e) {
-                // can't parse script, give up
-            }
-
-            outputData.put("amount", output.getValue());
-            outputs.put(outputData);
-        }
+    private String getJSONFromTransaction(Transaction tx) {
+        return walletHandle.getJSONFromTransaction(tx);
+    }
 
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
-        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    public String getTransactionJSONCacheStats() {
+        return (walletHandle != null) ? walletHandle.getTransactionJSONCacheStats() : null;
+    }
 
-        JSONObject result = new JSONObject();
-        result.put("amount", tx.getValue(wallet));
-        result.put("fee", getTransactionFee(tx));
-        result.put("txid", tx.getHashAsString());
-        result.put("time", dateFormat.format(tx.getUpdateTime()));
-        result.put("confidence", confidence);
-        result.put("peers", txConfidence.numBroadcastPeers());
-        result.put("confirmations", txConfidence.getDepthInBlocks());
-        result.put("inputs", inputs);
-        result.put("outputs", outputs);
+    public String getFeeEstimatorStats() {
+        return (walletHandle != null) ? walletHandle.getFeeEstimatorStats() : null;
+    }
 
-        return result.toString();
+    public String getTransactionSignerStats() {
+        return transactionSigner.toString();
     }
 
     public BigInteger getTransactionFee(Transaction tx) {
@@ -547,71 +1028,49 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     }
 
     public int getTransactionCount() {
-        return wallet.getTransactionsByTime().size();
+        waitForWalletHistory();
+        return (walletHandle != null) ? walletHandle.getTransactionCount() : 0;
     }
 
-    public String getAllTransactions() throws ScriptException, JSONException {
+    public String getAllTransactions() {
         return getTransactions(0, getTransactionCount());
     }
 
-    public String getTransaction(String tx) throws ScriptException, JSONException {
-        Sha256Hash hash = new Sha256Hash(tx);
-        return getJSONFromTransaction(wallet.getTransaction(hash));
+    public String getTransaction(String tx) {
+        waitForWalletHistory();
+        return walletHandle.getTransaction(tx);
     }
 
-    public String getTransaction(int idx) throws ScriptException, JSONException {
-        return getJSONFromTransaction(wallet.getTransactionsByTime().get(idx));
+    public String getTransaction(int idx) {
+        waitForWalletHistory();
+        return walletHandle.getTransaction(idx);
     }
 
-    public String getTransactions(int from, int count) throws ScriptException, JSONException {
-        List<Transaction> transactions = wallet.getTransactionsByTime();
-
-        if (from >= transactions.size())
-            return null;
-
-        int to = (from + count < transactions.size()) ? from + count : transactions.size();
+    public String getTransactions(int from, int count) {
+        waitForWalletHistory();
+        return (walletHandle != null) ? walletHandle.getTransactions(from, count) : null;
+    }
 
-        StringBuffer txs = new StringBuffer();
-        txs.append("[\n");
-        boolean first = true;
-        for (; from < to; from++) {
-            if (first)
-                first = false;
-            else
-                txs.append("\n,");
+    public ByteBuffer getAllTransactionsBinary() {
+        return getTransactionsBinary(0, getTransactionCount());
+    }
 
-            txs.append(getJSONFromTransaction(transactions.get(from)));
-        }
-        txs.append("]\n");
+    /** See WalletHandle.getTransactionsBinary(). */
+    public ByteBuffer getTransactionsBinary(int from, int count) {
+        waitForWalletHistory();
+        return (walletHandle != null) ? walletHandle.getTransactionsBinary(from, count) : null;
+    }
 
-        return txs.toString();
+    public boolean isTransactionIndexConsistent() {
+        waitForWalletHistory();
+        return (walletHandle != null) && walletHandle.isTransactionIndexConsistent();
     }
 
 
     /* --- Sending transactions --- */
 
     public String feeForSendingCoins(String amount, String sendToAddressString) throws InsufficientMoneyException {
-        try {
-            BigInteger amountToSend = new BigInteger(amount);
-            if (amountToSend.intValue() == 0 || sendToAddressString.equals("")) {
-                // assume default value for now
-                return Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.toString();
-            }
-
-            Address sendToAddress = new Address(networkParams, sendToAddressString);
-            Wallet.SendRequest request = Wallet.SendRequest.to(sendToAddress, amountToSend);
-
-            try {
-                wallet.completeTx(request);
-            } catch (KeyCrypterException e) {
-                // that's ok, we aren't sending this yet
-            }
-
-            return getTransactionFee(request.tx).toString();
-        } catch (AddressFormatException e) {
-            // assume default value for now
-            return Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.toString();
-        }
+        return walletHandle.feeForSendingCoins(amount, sendToAddressString);
     }
 
     public boolean isAddressValid(String address) {
@@ -626,34 +1085,98 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     public void sendCoins(String amount, final String sendToAddressString, char[] utf16Password)
             throws WrongPasswordException, AddressFormatException, InsufficientMoneyException {
 
+        final Wallet.SendResult sendResult = walletHandle.sendCoins(amount, sendToAddressString, utf16Password);
+
+        Futures.addCallback(sendResult.broadcastComplete, new FutureCallback<Transaction>() {
+            public void onSuccess(Transaction transaction) {
+                onTransactionSuccess(sendResult.tx.getHashAsString());
+            }
+
+            public void onFailure(Throwable throwable) {
+                onTransactionFailed();
+                throwable.printStackTrace();
+            }
+        });
+    }
+
+
+    /* --- Batched payouts --- */
+
+    /**
+     * Opens a queue that sends payouts enqueued with enqueuePayout in shared transactions, when maxEntries payouts
+     * are waiting or maxDelayMs after the first one. The password (null if the wallet isn't encrypted) is wiped, and
+     * the key derived from it is kept until closePayoutQueue is called. The password is needed even if the wallet is
+     * unlocked, since the queue's key isn't wiped when the signing session ends.
+     */
+    public synchronized void openPayoutQueue(char[] utf16Password, int maxEntries, long maxDelayMs)
+            throws WrongPasswordException {
+        if (payoutQueue != null) {
+            throw new IllegalStateException("A payout queue is already open");
+        }
+
         KeyParameter aesKey = null;
 
-        try {
-            BigInteger aToSend = new BigInteger(amount);
-            Address sendToAddress = new Address(networkParams, sendToAddressString);
-            final Wallet.SendRequest request = Wallet.SendRequest.to(sendToAddress, aToSend);
+        if (utf16Password != null || isWalletEncrypted()) {
+            aesKey = aesKeyForRequiredPassword(utf16Password);
 
-            aesKey = aesKeyForPassword(utf16Password);
-            request.aesKey = aesKey;
+            if (!wallet.checkAESKey(aesKey)) {
+                WalletHandle.wipeAesKey(aesKey);
+                throw new WrongPasswordException("Wrong password.");
+            }
+        }
 
-            final Wallet.SendResult sendResult = wallet.sendCoins(peerGroup, request);
-            Futures.addCallback(sendResult.broadcastComplete, new FutureCallback<Transaction>() {
-                public void onSuccess(Transaction transaction) {
-                    onTransactionSuccess(sendResult.tx.getHashAsString());
-                }
+        payoutQueue = new PayoutQueue(walletHandle, aesKey, maxEntries, maxDelayMs, new PayoutQueue.Listener() {
+            public void onPayoutSent(int callbackId, String txid) {
+                BitcoinManager.this.onPayoutSent(callbackId, txid);
+            }
 
-                public void onFailure(Throwable throwable) {
-                    onTransactionFailed();
-                    throwable.printStackTrace();
-                }
-            });
-        } catch (KeyCrypterException e) {
-            throw new WrongPasswordException(e);
-        } finally {
-            wipeAesKey(aesKey);
+            public void onPayoutFailed(int callbackId, Throwable error) {
+                BitcoinManager.this.onPayoutFailed(callbackId, error);
+            }
+        });
+    }
+
+    public void enqueuePayout(String amount, String sendToAddressString, int callbackId)
+            throws AddressFormatException {
+        PayoutQueue queue = payoutQueue;
+
+        if (queue == null) {
+            throw new IllegalStateException("No payout queue is open");
+        }
+
+        queue.enqueue(new Address(networkParams, sendToAddressString), new BigInteger(amount), callbackId);
+    }
+
+    /** Sends the waiting payouts without waiting for the size or time limit. */
+    public void flushPayouts() {
+        PayoutQueue queue = payoutQueue;
+
+        if (queue != null) {
+            queue.flush();
         }
     }
 
+    /** Sends the waiting payouts and closes the queue. */
+    public synchronized void closePayoutQueue() {
+        if (payoutQueue != null) {
+            payoutQueue.flush();
+            payoutQueue.close();
+            payoutQueue = null;
+        }
+    }
+
+    private synchronized void discardPayoutQueue() {
+        if (payoutQueue != null) {
+            payoutQueue.close();
+            payoutQueue = null;
+        }
+    }
+
+    public String getPayoutQueueStats() {
+        PayoutQueue queue = payoutQueue;
+        return (queue != null) ? queue.toString() : "PayoutQueue: not open";
+    }
+
 
     /* --- Handling payment requests --- */
 
@@ -744,9 +1267,9 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
 
         try {
             PaymentSession session = paymentSessions.get(sessionId);
-            final Wallet.SendRequest request = session.getSendRequest();
+            final Wallet.SendRequest request = walletHandle.newSendRequest(session.getSendRequest());
 
-            if (utf16Password != null) {
+            if (utf16Password != null || isWalletEncrypted()) {
                 aesKey = aesKeyForPassword(utf16Password);
                 request.aesKey = aesKey;
             }
@@ -766,7 +1289,7 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
                             wallet.commitTx(tx);
                             paymentSessions.remove(sessionId);
 
-                            onNewTransaction(tx);
+                            walletHandle.onNewTransaction(tx);
 
                             // we broadcast the transaction on our side anyway in case the server forgets to do it
                             // but we don't need to wait for any responses in this case
@@ -803,7 +1326,7 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
         } catch (KeyCrypterException e) {
             throw new WrongPasswordException(e);
         } finally {
-            wipeAesKey(aesKey);
+            WalletHandle.wipeAesKey(aesKey);
         }
     }
 
@@ -817,33 +1340,33 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     /* --- Encryption/decryption --- */
 
     private KeyParameter aesKeyForPassword(char[] utf16Password) throws WrongPasswordException {
-        KeyCrypter keyCrypter = wallet.getKeyCrypter();
-
-        if (keyCrypter == null) {
-            throw new WrongPasswordException("Wallet is not protected.");
-        }
+        return walletHandle.aesKeyForPassword(utf16Password);
+    }
 
-        return deriveKeyAndWipePassword(utf16Password, keyCrypter);
+    /** Doesn't fall back to the signing session's key for a null password. */
+    private KeyParameter aesKeyForRequiredPassword(char[] utf16Password) throws WrongPasswordException {
+        return walletHandle.aesKeyForPassword(utf16Password, true);
     }
 
-    private KeyParameter deriveKeyAndWipePassword(char[] utf16Password, KeyCrypter keyCrypter)
+    /**
+     * Keeps the wallet unlocked until it wasn't used for idleTimeoutMs or absoluteTimeoutMs pass, or lockWallet or
+     * stop is called. Until then, sending, signing and exporting the key work with a null password.
+     */
+    public void unlockWallet(char[] utf16Password, long idleTimeoutMs, long absoluteTimeoutMs)
             throws WrongPasswordException {
+        walletHandle.unlock(utf16Password, idleTimeoutMs, absoluteTimeoutMs);
+    }
 
-        if (utf16Password == null) {
-            throw new WrongPasswordException("No password provided.");
-        }
+    public void lockWallet() {
+        walletHandle.lock();
+    }
 
-        try {
-            return keyCrypter.deriveKey(CharBuffer.wrap(utf16Password));
-        } finally {
-            Arrays.fill(utf16Password, '\0');
-        }
+    public boolean isWalletUnlocked() {
+        return walletHandle.isUnlocked();
     }
 
-    private void wipeAesKey(KeyParameter aesKey) {
-        if (aesKey != null) {
-            Arrays.fill(aesKey.getKey(), (byte) 0);
-        }
+    public String getSigningSessionStats() {
+        return walletHandle.getSigningSessionStats();
     }
 
     public boolean isWalletEncrypted() {
@@ -853,54 +1376,128 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     public boolean isPasswordCorrect(char[] password) {
         KeyParameter aesKey = null;
 
+        if (password == null) {
+            // that would check the signing session's key, not a password
+            return false;
+        }
+
         try {
             aesKey = aesKeyForPassword(password);
             return wallet.checkAESKey(aesKey);
         } catch (WrongPasswordException e) {
             return false;
         } finally {
-            wipeAesKey(aesKey);
+            WalletHandle.wipeAesKey(aesKey);
         }
     }
 
+    /**
+     * Encrypts the wallet with a new password; both passwords are wiped. The old one is checked before anything is
+     * changed, and is needed even if the wallet is unlocked. An open payout queue is closed without sending the
+     * waiting payouts (they fail), since its key won't work anymore.
+     */
     public void changeWalletPassword(char[] oldUtf16Password, char[] newUtf16Password) throws WrongPasswordException {
-        // check if aes key for new password can be generated before decrypting
-        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt();
-        KeyParameter aesKey = deriveKeyAndWipePassword(newUtf16Password, keyCrypter);
+        KeyParameter oldAesKey = null;
+        KeyParameter aesKey = null;
 
-        updateLastWalletChange(wallet);
+        try {
+            if (isWalletEncrypted()) {
+                oldAesKey = aesKeyForRequiredPassword(oldUtf16Password);
 
-        if (isWalletEncrypted()) {
-            decryptWallet(oldUtf16Password);
-        }
+                if (!wallet.checkAESKey(oldAesKey)) {
+                    throw new WrongPasswordException("Wrong password.");
+                }
+            }
 
-        try {
-            wallet.encrypt(keyCrypter, aesKey);
+            // check if aes key for new password can be generated before decrypting
+            KeyCrypterScrypt keyCrypter = scryptCalibrator.createKeyCrypter();
+            aesKey = WalletHandle.deriveKeyAndWipePassword(newUtf16Password, keyCrypter);
+
+            // the new keys need to be saved together with the whole history
+            waitForWalletHistory();
+
+            discardPayoutQueue();
+
+            updateLastWalletChange(wallet);
+
+            if (oldAesKey != null) {
+                decryptWallet(oldAesKey);
+            }
+
+            try {
+                wallet.encrypt(keyCrypter, aesKey);
+            } finally {
+                // the signing session's key won't work anymore either
+                walletHandle.lock();
+            }
         } finally {
-            wipeAesKey(aesKey);
+            WalletHandle.wipeAesKey(oldAesKey);
+            WalletHandle.wipeAesKey(aesKey);
+
+            if (newUtf16Password != null) {
+                Arrays.fill(newUtf16Password, '\0');
+            }
+        }
+
+        if (walletJournal != null) {
+            // changed keys aren't journaled
+            walletJournal.compactLater();
         }
     }
 
-    private void decryptWallet(char[] oldUtf16Password) throws WrongPasswordException {
-        KeyParameter oldAesKey = aesKeyForPassword(oldUtf16Password);
+    /**
+     * Sets how long deriving the key from the password should take on this computer, and how much memory it may
+     * use, for wallets encrypted from now on (see ScryptCalibrator).
+     */
+    public void setKeyDerivationTarget(long targetTimeMs, long memoryBudget) {
+        scryptCalibrator.setTarget(targetTimeMs, memoryBudget);
+    }
+
+    /** Measures scrypt on this computer again and encrypts the wallet with the new parameters. */
+    public void recalibrateWalletEncryption(char[] utf16Password) throws WrongPasswordException {
+        if (utf16Password == null) {
+            throw new WrongPasswordException("No password provided.");
+        } else if (!isWalletEncrypted()) {
+            throw new IllegalStateException("Wallet is not encrypted");
+        }
+
+        scryptCalibrator.calibrate();
+
+        // both copies are wiped
+        changeWalletPassword(utf16Password.clone(), utf16Password);
+    }
+
+    /** Describes the scrypt parameters the wallet is encrypted with, or returns null if it isn't encrypted. */
+    public String getWalletEncryptionParameters() {
+        KeyCrypter keyCrypter = wallet.getKeyCrypter();
 
+        if (keyCrypter instanceof KeyCrypterScrypt) {
+            return ScryptCalibrator.describe(((KeyCrypterScrypt) keyCrypter).getScryptParameters());
+        } else {
+            return null;
+        }
+    }
+
+    public String getScryptCalibration() {
+        return scryptCalibrator.toString();
+    }
+
+    private void decryptWallet(KeyParameter oldAesKey) throws WrongPasswordException {
         try {
             wallet.decrypt(oldAesKey);
         } catch (KeyCrypterException e) {
             throw new WrongPasswordException(e);
-        } finally {
-            wipeAesKey(oldAesKey);
         }
     }
 
     private void encryptWallet(char[] utf16Password, Wallet wallet) throws WrongPasswordException {
-        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt();
-        KeyParameter aesKey = deriveKeyAndWipePassword(utf16Password, keyCrypter);
+        KeyCrypterScrypt keyCrypter = scryptCalibrator.createKeyCrypter();
+        KeyParameter aesKey = WalletHandle.deriveKeyAndWipePassword(utf16Password, keyCrypter);
 
         try {
             wallet.encrypt(keyCrypter, aesKey);
         } finally {
-            wipeAesKey(aesKey);
+            WalletHandle.wipeAesKey(aesKey);
         }
     }
 
@@ -917,7 +1514,7 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
         } catch (KeyCrypterException e) {
             throw new WrongPasswordException(e);
         } finally {
-            wipeAesKey(aesKey);
+            WalletHandle.wipeAesKey(aesKey);
 
             if (decryptedKey != null) {
                 decryptedKey.clearPrivateKey();
@@ -971,66 +1568,6 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     }
 
 
-    /* --- WalletEventListener --- */
-
-    public void onCoinsReceived(Wallet w, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
-        onNewTransaction(tx);
-    }
-
-    public void onCoinsSent(Wallet w, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
-        onNewTransaction(tx);
-    }
-
-    private void onNewTransaction(Transaction tx) {
-        // avoid double updates if we get both sent + received
-        if (!trackedTransactions.contains(tx)) {
-            // update the UI
-            onBalanceChanged();
-
-            String json = null;
-            try {
-                json = getJSONFromTransaction(tx);
-            } catch (JSONException e) {
-                // shouldn't happen
-            }
-
-            onTransactionChanged(tx.getHashAsString(), json);
-
-            // get notified when transaction is confirmed
-            if (tx.isPending()) {
-                trackTransaction(tx);
-            }
-        }
-    }
-
-
-    /* --- TransactionConfidence.Listener --- */
-
-    public void onConfidenceChanged(final Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
-        if (reason != TransactionConfidence.Listener.ChangeReason.TYPE) {
-            // we don't need to notify the UI of peer count or confirmation amount changes
-            return;
-        }
-
-        if (!tx.isPending()) {
-            // coins were confirmed (appeared in a block) - we don't need to listen anymore
-            stopTrackingTransaction(tx);
-        }
-
-        // update the UI
-        onBalanceChanged();
-
-        String json = null;
-        try {
-            json = getJSONFromTransaction(tx);
-        } catch (JSONException e) {
-            // shouldn't happen
-        }
-
-        onTransactionChanged(tx.getHashAsString(), json);
-    }
-
-
     /* --- Thread.UncaughtExceptionHandler --- */
 
     public void uncaughtException(Thread thread, Throwable exception) {
@@ -1041,6 +1578,7 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     /* PeerEventListener */
 
     public void onPeerConnected(Peer peer, int peerCount) {
+        reachedStartupPhase(StartupProgress.Phase.FIRST_PEER_CONNECTED);
         onPeerCountChanged(peerCount);
     }
 
@@ -1049,30 +1587,11 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
     }
 
     public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
-        updateBlocksLeft(blocksLeft);
+        syncProgressTracker.blocksDownloaded(blocksLeft);
     }
 
     public void onChainDownloadStarted(Peer peer, int blocksLeft) {
-        if (blocksToDownload == 0) {
-            // remember the total amount
-            blocksToDownload = blocksLeft;
-            log.debug("Starting blockchain sync: blocksToDownload := " + blocksLeft);
-        } else {
-            // we've already set that once and we're only downloading the remaining part
-            log.debug("Restarting blockchain sync: blocksToDownload = " + blocksToDownload + ", left = " + blocksLeft);
-        }
-
-        updateBlocksLeft(blocksLeft);
-    }
-
-    private void updateBlocksLeft(int blocksLeft) {
-        if (blocksToDownload == 0) {
-            log.debug("Blockchain sync finished.");
-            onSynchronizationUpdate(100.0f);
-        } else {
-            int downloadedSoFar = blocksToDownload - blocksLeft;
-            onSynchronizationUpdate(100.0f * downloadedSoFar / blocksToDownload);
-        }
+        syncProgressTracker.chainDownloadStarted(blocksLeft);
     }
 
 
@@ -1097,4 +1616,7 @@ public class BitcoinManager implements Thread.UncaughtExceptionHandler, Transact
 
     public native void onPaymentRequestProcessed(int callbackId, String txid, String ackDetails);
     public native void onPaymentRequestProcessingFailed(int callbackId, Throwable error);
+
+    public native void onPayoutSent(int callbackId, String txid);
+    public native void onPayoutFailed(int callbackId, Throwable error);
 }
@@ -0,0 +1,301 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractBlockChainListener;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the hash, time and chain work of every block in the best chain by height, in a memory-mapped file next
+ * to the SPV block store (which only keeps the most recent few thousand headers). It's added to the block chain
+ * as a listener and filled in as blocks connect, starting from the first chain head it sees - usually the
+ * checkpoint the store was seeded with.
+ *
+ * Each record also stores the highest block time up to its height. Block times aren't strictly increasing, but
+ * that maximum is, so the first block after a given time can be found with a binary search.
+ *
+ * Format: a 64 byte header (magic, version, record size, first height, record count, genesis block hash), followed
+ * by one record per height: hash (32 bytes), time (int), maximum time (int), chain work (12 bytes).
+ */
+public class BlockHeaderIndex extends AbstractBlockChainListener {
+    static final int MAGIC = 0x48424849;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 32 + 4 + 4 + StoredBlock.CHAIN_WORK_BYTES;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 8;
+    private static final int HEADER_FIRST_HEIGHT = 12;
+    private static final int HEADER_COUNT = 16;
+    private static final int HEADER_GENESIS_HASH = 20;
+
+    private static final int RECORD_TIME = 32;
+    private static final int RECORD_MAX_TIME = 36;
+    private static final int RECORD_CHAIN_WORK = 40;
+
+    // the file grows by this many records at a time
+    private static final int GROWTH_RECORDS = 4096;
+
+    private static final Logger log = LoggerFactory.getLogger(BlockHeaderIndex.class);
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    private int firstHeight;
+    private int count;
+
+    public BlockHeaderIndex(NetworkParameters params, File file) throws IOException {
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+
+        try {
+            byte[] genesisHash = params.getGenesisBlock().getHash().getBytes();
+            boolean existed = randomAccessFile.length() >= HEADER_SIZE;
+
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    Math.max(randomAccessFile.length(), HEADER_SIZE + GROWTH_RECORDS * RECORD_SIZE));
+
+            if (existed && isValid(genesisHash)) {
+                firstHeight = buffer.getInt(HEADER_FIRST_HEIGHT);
+                count = buffer.getInt(HEADER_COUNT);
+                log.info("Block header index has " + count + " blocks from height " + firstHeight);
+            } else {
+                if (existed) {
+                    log.warn("Block header index is damaged or from another network, starting a new one");
+                }
+
+                buffer.putInt(HEADER_MAGIC, MAGIC);
+                buffer.putInt(HEADER_VERSION, VERSION);
+                buffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+                buffer.position(HEADER_GENESIS_HASH);
+                buffer.put(genesisHash);
+                setRange(0, 0);
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    private boolean isValid(byte[] genesisHash) {
+        if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION
+                || buffer.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+            return false;
+        }
+
+        byte[] storedHash = new byte[32];
+        buffer.position(HEADER_GENESIS_HASH);
+        buffer.get(storedHash);
+
+        int storedCount = buffer.getInt(HEADER_COUNT);
+
+        return Arrays.equals(storedHash, genesisHash) && storedCount >= 0
+                && HEADER_SIZE + (long) storedCount * RECORD_SIZE <= buffer.capacity();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void close() throws IOException {
+        buffer.force();
+        randomAccessFile.close();
+    }
+
+
+    /* --- Updating --- */
+
+    /** Records the block as the new best block; anything above its height is forgotten. */
+    public synchronized void add(StoredBlock block) throws IOException {
+        int height = block.getHeight();
+
+        if (count == 0 || height < firstHeight || height > firstHeight + count) {
+            // nothing to connect it to (new index, a reset chain or a gap), so start over from here
+            setRange(height, 0);
+        }
+
+        int index = height - firstHeight;
+        ensureCapacity(index + 1);
+
+        int offset = getOffset(index);
+        int time = (int) block.getHeader().getTimeSeconds();
+        int maxTime = (index > 0) ? Math.max(time, buffer.getInt(getOffset(index - 1) + RECORD_MAX_TIME)) : time;
+
+        buffer.position(offset);
+        buffer.put(block.getHeader().getHash().getBytes());
+        buffer.putInt(time);
+        buffer.putInt(maxTime);
+        putChainWork(block.getChainWork());
+
+        setRange(firstHeight, index + 1);
+    }
+
+    private void putChainWork(BigInteger chainWork) {
+        byte[] bytes = chainWork.toByteArray();
+
+        if (bytes.length > StoredBlock.CHAIN_WORK_BYTES) {
+            // only the sign byte of a positive number can be dropped
+            bytes = Arrays.copyOfRange(bytes, bytes.length - StoredBlock.CHAIN_WORK_BYTES, bytes.length);
+        }
+
+        buffer.put(StoredBlock.EMPTY_BYTES, 0, StoredBlock.CHAIN_WORK_BYTES - bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void setRange(int firstHeight, int count) {
+        this.firstHeight = firstHeight;
+        this.count = count;
+
+        buffer.putInt(HEADER_FIRST_HEIGHT, firstHeight);
+        buffer.putInt(HEADER_COUNT, count);
+    }
+
+    private void ensureCapacity(int records) throws IOException {
+        long needed = HEADER_SIZE + (long) records * RECORD_SIZE;
+
+        if (needed > buffer.capacity()) {
+            long size = HEADER_SIZE + (long) (records + GROWTH_RECORDS) * RECORD_SIZE;
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) {
+        try {
+            add(block);
+        } catch (IOException e) {
+            log.error("Couldn't add block to the header index", e);
+        }
+    }
+
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>(newBlocks);
+
+        Collections.sort(blocks, new Comparator<StoredBlock>() {
+            @Override
+            public int compare(StoredBlock block1, StoredBlock block2) {
+                return block1.getHeight() - block2.getHeight();
+            }
+        });
+
+        notifyNewBestBlock(splitPoint);
+
+        for (StoredBlock block : blocks) {
+            notifyNewBestBlock(block);
+        }
+    }
+
+
+    /* --- Reading --- */
+
+    public synchronized int getFirstHeight() {
+        return firstHeight;
+    }
+
+    /** Returns the height of the best block in the index, or -1 if it's empty. */
+    public synchronized int getLastHeight() {
+        return (count > 0) ? firstHeight + count - 1 : -1;
+    }
+
+    public synchronized boolean contains(int height) {
+        return height >= firstHeight && height < firstHeight + count;
+    }
+
+    /** Returns null if the height isn't in the index. */
+    public synchronized Sha256Hash getHash(int height) {
+        if (!contains(height)) {
+            return null;
+        }
+
+        byte[] hash = new byte[32];
+        buffer.position(getOffset(height - firstHeight));
+        buffer.get(hash);
+        return new Sha256Hash(hash);
+    }
+
+    /** Returns the block time in seconds, or -1 if the height isn't in the index. */
+    public synchronized long getTime(int height) {
+        return contains(height) ? unsigned(buffer.getInt(getOffset(height - firstHeight) + RECORD_TIME)) : -1;
+    }
+
+    /** Returns null if the height isn't in the index. */
+    public synchronized BigInteger getChainWork(int height) {
+        if (!contains(height)) {
+            return null;
+        }
+
+        byte[] chainWork = new byte[StoredBlock.CHAIN_WORK_BYTES];
+        buffer.position(getOffset(height - firstHeight) + RECORD_CHAIN_WORK);
+        buffer.get(chainWork);
+        return new BigInteger(1, chainWork);
+    }
+
+    /**
+     * Returns the time of the block at the given height if its hash is the given one, i.e. if it's still in the best
+     * chain, or -1 otherwise.
+     */
+    public synchronized long getTime(int height, Sha256Hash hash) {
+        Sha256Hash indexedHash = getHash(height);
+        return (indexedHash != null && indexedHash.equals(hash)) ? getTime(height) : -1;
+    }
+
+    /**
+     * Returns the first height from which on all blocks are at or after the given time (in seconds, give or take the
+     * few hours by which block times can go back), the height after the last block if there's none, or the first
+     * height if all blocks are.
+     */
+    public synchronized int getFirstHeightAtOrAfter(long time) {
+        int low = 0;
+        int high = count;
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (unsigned(buffer.getInt(getOffset(middle) + RECORD_MAX_TIME)) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return firstHeight + low;
+    }
+
+    /** Returns the heights [from, to) of the blocks between the two times, both in seconds. */
+    public synchronized int[] getHeightRange(long fromTime, long toTime) {
+        return new int[] { getFirstHeightAtOrAfter(fromTime), getFirstHeightAtOrAfter(toTime) };
+    }
+
+    private static int getOffset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    private static long unsigned(int value) {
+        return value & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BlockHeaderIndex: " + count + " blocks from height " + firstHeight;
+    }
+}
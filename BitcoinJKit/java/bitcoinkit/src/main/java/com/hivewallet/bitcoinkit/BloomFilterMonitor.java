@@ -0,0 +1,230 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts how many of the transactions sent along with filtered blocks didn't belong to any wallet (bloom filter
+ * false positives) and how much data they took, and keeps the PeerGroup's filter in line with them:
+ *
+ * - if the observed false positive rate drifts above the target rate by more than the allowed factor (usually
+ *   because the wallet got new keys or outputs since the filter was made), the filter is recalculated;
+ * - if a bandwidth budget is set, the target rate itself is adjusted so that false positives take about that many
+ *   bytes per block. A higher rate gives more privacy, a lower one saves bandwidth.
+ *
+ * The rate is measured over at least MIN_SAMPLE_TRANSACTIONS block transactions since the last change, because
+ * at normal rates a single block only has a false positive or two.
+ */
+public class BloomFilterMonitor {
+    public static final double DEFAULT_MAX_DRIFT = 2.0;
+    public static final double MIN_RATE = 0.000001;
+    public static final double MAX_RATE = 0.01;
+    public static final int MIN_SAMPLE_TRANSACTIONS = 20000;
+
+    // used until the size of a false positive transaction is known
+    private static final int DEFAULT_TRANSACTION_SIZE = 400;
+
+    private static final Logger log = LoggerFactory.getLogger(BloomFilterMonitor.class);
+
+    private PeerGroup peerGroup;
+    private double targetRate = PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE;
+    private double maxDrift = DEFAULT_MAX_DRIFT;
+    private long bandwidthBudget;
+
+    private long filteredBlocks;
+    private long blockTransactions;
+    private long matchedTransactions;
+    private long falsePositives;
+    private long filteredBytes;
+    private long falsePositiveBytes;
+    private int recalculations;
+
+    // since the filter was last changed
+    private long sampleTransactions;
+    private long sampleFalsePositives;
+    private long sampleBlocks;
+
+
+    /* --- Configuration --- */
+
+    /** The PeerGroup whose filter is managed, or null while there's none. Its rate is set to the target rate. */
+    public void setPeerGroup(PeerGroup peerGroup) {
+        synchronized (this) {
+            this.peerGroup = peerGroup;
+            resetSample();
+        }
+
+        if (peerGroup != null) {
+            peerGroup.setBloomFilterFalsePositiveRate(getTargetRate());
+        }
+    }
+
+    public synchronized double getTargetRate() {
+        return targetRate;
+    }
+
+    public void setTargetRate(double rate) {
+        PeerGroup peerGroup;
+
+        synchronized (this) {
+            targetRate = Math.max(MIN_RATE, Math.min(rate, MAX_RATE));
+            rate = targetRate;
+            peerGroup = this.peerGroup;
+            resetSample();
+        }
+
+        if (peerGroup != null) {
+            peerGroup.setBloomFilterFalsePositiveRate(rate);
+        }
+    }
+
+    public synchronized double getMaxDrift() {
+        return maxDrift;
+    }
+
+    /** How far the observed rate may exceed the target rate (as a factor) before the filter is recalculated. */
+    public synchronized void setMaxDrift(double maxDrift) {
+        this.maxDrift = maxDrift;
+    }
+
+    public synchronized long getBandwidthBudget() {
+        return bandwidthBudget;
+    }
+
+    /** Bytes per block that false positives may take; the target rate is adjusted to that. 0 keeps the rate fixed. */
+    public synchronized void setBandwidthBudget(long bytesPerBlock) {
+        this.bandwidthBudget = bytesPerBlock;
+    }
+
+
+    /* --- Tracking --- */
+
+    /**
+     * Called for each filtered block added to the chain with the number of transactions in the full block, the
+     * number the filter matched, how many of those were false positives, and the bytes they took.
+     */
+    public void blockAdded(int transactions, int matched, int falsePositiveCount, int bytes,
+                           int falsePositiveByteCount) {
+        final PeerGroup peerGroup;
+        double newRate = -1;
+
+        synchronized (this) {
+            filteredBlocks++;
+            blockTransactions += transactions;
+            matchedTransactions += matched;
+            falsePositives += falsePositiveCount;
+            filteredBytes += bytes;
+            falsePositiveBytes += falsePositiveByteCount;
+
+            sampleBlocks++;
+            sampleTransactions += transactions;
+            sampleFalsePositives += falsePositiveCount;
+
+            if (this.peerGroup == null || sampleTransactions < MIN_SAMPLE_TRANSACTIONS) {
+                return;
+            }
+
+            peerGroup = this.peerGroup;
+            double observedRate = (double) sampleFalsePositives / sampleTransactions;
+
+            if (bandwidthBudget > 0) {
+                double budgetRate = getBudgetRate();
+
+                if (budgetRate > targetRate * maxDrift || budgetRate < targetRate / maxDrift) {
+                    log.info("Changing bloom filter false positive rate from " + targetRate + " to " + budgetRate
+                            + " to fit " + bandwidthBudget + " bytes per block");
+                    targetRate = budgetRate;
+                    newRate = budgetRate;
+                }
+            }
+
+            if (newRate < 0 && observedRate <= targetRate * maxDrift) {
+                return;
+            }
+
+            if (newRate < 0) {
+                log.info("Bloom filter false positive rate is " + observedRate + ", target is " + targetRate
+                        + ", recalculating the filter");
+            }
+
+            recalculations++;
+            resetSample();
+        }
+
+        // not on the chain's thread, which holds the chain lock while blocks are added
+        final double rate = newRate;
+
+        Threading.USER_THREAD.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (rate > 0) {
+                    peerGroup.setBloomFilterFalsePositiveRate(rate);
+                } else {
+                    peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.FORCE_SEND);
+                }
+            }
+        });
+    }
+
+    private double getBudgetRate() {
+        double transactionsPerBlock = (double) sampleTransactions / sampleBlocks;
+        double transactionSize = (falsePositives > 0) ? (double) falsePositiveBytes / falsePositives
+                : DEFAULT_TRANSACTION_SIZE;
+        double rate = bandwidthBudget / (transactionsPerBlock * transactionSize);
+
+        return Math.max(MIN_RATE, Math.min(rate, MAX_RATE));
+    }
+
+    private void resetSample() {
+        sampleBlocks = 0;
+        sampleTransactions = 0;
+        sampleFalsePositives = 0;
+    }
+
+
+    /* --- Statistics --- */
+
+    public synchronized long getFilteredBlocks() {
+        return filteredBlocks;
+    }
+
+    /** Transactions in the full blocks, i.e. what the filter was applied to. */
+    public synchronized long getBlockTransactions() {
+        return blockTransactions;
+    }
+
+    public synchronized long getMatchedTransactions() {
+        return matchedTransactions;
+    }
+
+    public synchronized long getFalsePositives() {
+        return falsePositives;
+    }
+
+    /** Bytes of filtered blocks including the transactions sent with them. */
+    public synchronized long getFilteredBytes() {
+        return filteredBytes;
+    }
+
+    public synchronized long getFalsePositiveBytes() {
+        return falsePositiveBytes;
+    }
+
+    /** False positives per block transaction over the whole session. */
+    public synchronized double getFalsePositiveRate() {
+        return (blockTransactions > 0) ? (double) falsePositives / blockTransactions : 0;
+    }
+
+    public synchronized int getRecalculations() {
+        return recalculations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BloomFilterMonitor: " + filteredBlocks + " blocks, " + filteredBytes + " bytes, " + falsePositives
+                + " false positives (" + falsePositiveBytes + " bytes), rate " + getFalsePositiveRate()
+                + ", target " + targetRate + ", " + recalculations + " recalculations";
+    }
+}
@@ -0,0 +1,240 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Coin selector that avoids change outputs and long input lists, an alternative to DefaultCoinSelector (which sorts
+ * all outputs on each call and takes the oldest and largest first). The wallets only use it if it's enabled with
+ * BitcoinManager.setBranchAndBoundCoinSelectionEnabled() or the MultiWalletManager equivalent.
+ *
+ * For each target it tries, in this order:
+ *
+ * 1. A depth-first branch and bound search over the outputs (largest first) for the fewest outputs that add up to
+ *    exactly the target, so that no change output is needed. It stops after maxTries steps or when the time budget
+ *    is used up. Sets that are only close to the target don't help: Wallet.FeeCalculation then asks again for a
+ *    larger target and keeps the change, because that pays less now. Sets with so many inputs that the fee
+ *    (per started kB) would be higher than with options 2 or 3 aren't considered either.
+ * 2. The smallest single output that covers the target, which leaves the large outputs for large payments.
+ * 3. The largest outputs until the target is covered, which needs the fewest inputs.
+ *
+ * The outputs are kept in a UtxoIndex between calls. The selection only depends on the outputs and the target
+ * unless the time budget runs out first (with the default budget, only for very large wallets on a slow machine).
+ * FeeEstimator asks the selector for the same inputs as completeTx() and has to get the same answer, so it turns
+ * the time budget off (NO_TIME_BUDGET) and leaves only the step limit; the default limit takes about a millisecond.
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    public static final int DEFAULT_MAX_TRIES = 100000;
+    public static final long DEFAULT_TIME_BUDGET_MS = 25;
+    public static final long NO_TIME_BUDGET = 0;
+
+    // the time is checked after this many tries
+    private static final int TIME_CHECK_INTERVAL = 1024;
+
+    // approximate sizes of a transaction (version, counts, lock time), a signed pay-to-address input and an output
+    private static final int TRANSACTION_OVERHEAD = 10;
+    private static final int INPUT_SIZE = 149;
+    private static final int OUTPUT_SIZE = 34;
+
+    private final UtxoIndex index = new UtxoIndex();
+    private int maxTries = DEFAULT_MAX_TRIES;
+    private long timeBudgetMs = DEFAULT_TIME_BUDGET_MS;
+
+    private long changelessSelections;
+    private long singleOutputSelections;
+    private long largestFirstSelections;
+    private long selectionTimeNs;
+
+    public synchronized void setMaxTries(int maxTries) {
+        this.maxTries = maxTries;
+    }
+
+    /** Limits the time one search may take, in addition to the tries; NO_TIME_BUDGET leaves only the tries. */
+    public synchronized void setTimeBudget(long milliseconds) {
+        this.timeBudgetMs = milliseconds;
+    }
+
+    public synchronized long getTimeBudget() {
+        return timeBudgetMs;
+    }
+
+    @Override
+    public synchronized CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates) {
+        long startTime = System.nanoTime();
+
+        try {
+            index.update(candidates);
+
+            UtxoIndex.Entry[] entries = index.getEntries();
+            long targetValue = target.longValue();
+
+            if (index.getTotalValue() < targetValue) {
+                // not enough (or the wallet is being emptied): Wallet works out what's missing from the total
+                return toSelection(entries, entries.length);
+            }
+
+            UtxoIndex.Entry single = index.getSmallestCovering(targetValue);
+            int largestFirstCount = 0;
+
+            if (single == null) {
+                long total = 0;
+
+                while (total < targetValue) {
+                    total += entries[largestFirstCount].value;
+                    largestFirstCount++;
+                }
+            }
+
+            // a changeless set may have as many inputs as fit in the same number of kB as the other options
+            int fallbackSize = getSize((single != null) ? 1 : largestFirstCount, 2);
+            int maxInputs = (fallbackSize / 1000 * 1000 + 999 - getSize(0, 1)) / INPUT_SIZE;
+
+            List<UtxoIndex.Entry> selected = searchChangeless(entries, targetValue, maxInputs, startTime);
+
+            if (selected != null) {
+                changelessSelections++;
+                return toSelection(selected);
+            } else if (single != null) {
+                singleOutputSelections++;
+
+                List<UtxoIndex.Entry> list = new ArrayList<UtxoIndex.Entry>(1);
+                list.add(single);
+                return toSelection(list);
+            } else {
+                largestFirstSelections++;
+                return toSelection(entries, largestFirstCount);
+            }
+        } finally {
+            selectionTimeNs += System.nanoTime() - startTime;
+        }
+    }
+
+    /**
+     * Branch and bound search: each step either includes the next output or, when the current set can't lead to a
+     * better solution any more (too much, too little even with all remaining outputs, or already as many outputs
+     * as the best one), backtracks to the last included output and continues without it. Outputs with the same
+     * value as an excluded predecessor are skipped, since they'd only lead to the same sums again.
+     */
+    private List<UtxoIndex.Entry> searchChangeless(UtxoIndex.Entry[] entries, long target, int maxInputs,
+                                                   long startTime) {
+        int n = entries.length;
+        long deadline = startTime + timeBudgetMs * 1000000;
+
+        boolean[] included = new boolean[n];
+        boolean[] best = null;
+        int bestCount = maxInputs + 1;
+
+        long currentValue = 0;
+        long remainingValue = index.getTotalValue();
+        int currentCount = 0;
+        int depth = 0;
+
+        for (int tries = 0; tries < maxTries; tries++) {
+            if (timeBudgetMs != NO_TIME_BUDGET && tries % TIME_CHECK_INTERVAL == TIME_CHECK_INTERVAL - 1
+                    && System.nanoTime() > deadline) {
+                break;
+            }
+
+            boolean backtrack;
+
+            if (currentValue == target) {
+                if (currentCount < bestCount) {
+                    bestCount = currentCount;
+                    best = included.clone();
+
+                    if (bestCount == 1) {
+                        break;
+                    }
+                }
+
+                backtrack = true;
+            } else {
+                backtrack = currentValue > target || currentValue + remainingValue < target
+                        || currentCount + 1 >= bestCount;
+            }
+
+            if (backtrack) {
+                // undo the excluded outputs after the last included one
+                while (depth > 0 && !included[depth - 1]) {
+                    depth--;
+                    remainingValue += entries[depth].value;
+                }
+
+                if (depth == 0) {
+                    break;
+                }
+
+                // and continue without that one
+                included[depth - 1] = false;
+                currentValue -= entries[depth - 1].value;
+                currentCount--;
+            } else {
+                UtxoIndex.Entry entry = entries[depth];
+                remainingValue -= entry.value;
+
+                if (depth > 0 && entry.value == entries[depth - 1].value && !included[depth - 1]) {
+                    included[depth] = false;
+                } else {
+                    included[depth] = true;
+                    currentValue += entry.value;
+                    currentCount++;
+                }
+
+                depth++;
+            }
+        }
+
+        if (best == null) {
+            return null;
+        }
+
+        List<UtxoIndex.Entry> selected = new ArrayList<UtxoIndex.Entry>(bestCount);
+
+        for (int i = 0; i < n; i++) {
+            if (best[i]) {
+                selected.add(entries[i]);
+            }
+        }
+
+        return selected;
+    }
+
+    private static int getSize(int inputs, int outputs) {
+        return TRANSACTION_OVERHEAD + inputs * INPUT_SIZE + outputs * OUTPUT_SIZE;
+    }
+
+    private static CoinSelection toSelection(UtxoIndex.Entry[] entries, int count) {
+        List<UtxoIndex.Entry> list = new ArrayList<UtxoIndex.Entry>(count);
+
+        for (int i = 0; i < count; i++) {
+            list.add(entries[i]);
+        }
+
+        return toSelection(list);
+    }
+
+    private static CoinSelection toSelection(List<UtxoIndex.Entry> entries) {
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(entries.size());
+        long total = 0;
+
+        for (UtxoIndex.Entry entry : entries) {
+            outputs.add(entry.output);
+            total += entry.value;
+        }
+
+        return new CoinSelection(BigInteger.valueOf(total), outputs);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BranchAndBoundCoinSelector: " + index.size() + " outputs, " + changelessSelections + " changeless, "
+                + singleOutputSelections + " single output, " + largestFirstSelections + " largest first, "
+                + (selectionTimeNs / 1000000) + " ms";
+    }
+}
@@ -0,0 +1,391 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.CheckpointManager;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.TestNet3Params;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.SPVBlockStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.impl.CocoaLogger;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A binary version of a bitcoinj checkpoints file that doesn't need to be parsed before it can be used. The file
+ * is memory-mapped and the checkpoint before a given time is found with a binary search, so seeding a new block
+ * store only reads a handful of records instead of the whole file.
+ *
+ * Format: a 64 byte header (magic, version, record count, record size, genesis block hash, size and modification
+ * time of the checkpoints file it was converted from, if any), followed by fixed-size records sorted by block time.
+ * Each record is the block time as a long followed by the StoredBlock in compact form.
+ *
+ * Can be run from the command line to build an index from checkpoints files, other indexes and SPV block stores,
+ * or to verify an index against a checkpoints file:
+ *
+ *   java -cp bitcoinkit.jar com.hivewallet.bitcoinkit.CheckpointIndex build mainnet out.idx checkpoints [x.spvchain]
+ *   java -cp bitcoinkit.jar com.hivewallet.bitcoinkit.CheckpointIndex verify mainnet out.idx checkpoints
+ */
+public class CheckpointIndex {
+    static final int MAGIC = 0x48434b49;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 8 + StoredBlock.COMPACT_SERIALIZED_SIZE;
+
+    // same margin as CheckpointManager.checkpoint(), in case the key creation time is slightly off
+    static final long KEY_TIME_MARGIN = 60 * 60 * 24 * 7;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_COUNT = 8;
+    private static final int HEADER_RECORD_SIZE = 12;
+    private static final int HEADER_GENESIS_HASH = 16;
+    private static final int HEADER_SOURCE_SIZE = 48;
+    private static final int HEADER_SOURCE_TIME = 56;
+
+    private static final byte[] CHECKPOINTS_HEADER = "CHECKPOINTS 1".getBytes(Charset.forName("US-ASCII"));
+    private static final Logger log = LoggerFactory.getLogger(CheckpointIndex.class);
+
+    /** Gives access to all checkpoints read from a checkpoints file. */
+    private static class CheckpointsFileReader extends CheckpointManager {
+        CheckpointsFileReader(NetworkParameters params, InputStream stream) throws IOException {
+            super(params, stream);
+        }
+
+        Collection<StoredBlock> getCheckpoints() {
+            return checkpoints.values();
+        }
+    }
+
+    private final NetworkParameters params;
+    private final MappedByteBuffer buffer;
+    private final int count;
+
+    private CheckpointIndex(NetworkParameters params, MappedByteBuffer buffer, int count) {
+        this.params = params;
+        this.buffer = buffer;
+        this.count = count;
+    }
+
+    public static CheckpointIndex open(NetworkParameters params, File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+
+        try {
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            // the mapping stays valid after the file is closed
+            randomAccessFile.close();
+        }
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(HEADER_MAGIC) != MAGIC) {
+            throw new IOException("Not a checkpoint index: " + file);
+        }
+
+        if (buffer.getInt(HEADER_VERSION) != VERSION || buffer.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+            throw new IOException("Unsupported checkpoint index version: " + buffer.getInt(HEADER_VERSION));
+        }
+
+        byte[] genesisHash = new byte[32];
+        buffer.position(HEADER_GENESIS_HASH);
+        buffer.get(genesisHash);
+
+        if (!Arrays.equals(genesisHash, params.getGenesisBlock().getHash().getBytes())) {
+            throw new IOException("Checkpoint index was built for a different network: " + file);
+        }
+
+        int count = buffer.getInt(HEADER_COUNT);
+
+        if (count < 0 || HEADER_SIZE + (long) count * RECORD_SIZE > buffer.capacity()) {
+            throw new IOException("Checkpoint index is damaged: " + file);
+        }
+
+        return new CheckpointIndex(params, buffer, count);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long getTime(int index) {
+        return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+    }
+
+    public StoredBlock get(int index) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(HEADER_SIZE + index * RECORD_SIZE + 8);
+        record.limit(HEADER_SIZE + (index + 1) * RECORD_SIZE);
+        return StoredBlock.deserializeCompact(params, record.slice());
+    }
+
+    /** Same as CheckpointManager.getCheckpointBefore(): the last checkpoint at or before the time, or genesis. */
+    public StoredBlock getCheckpointBefore(long time) {
+        int low = 0;
+        int high = count - 1;
+        int found = -1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+
+            if (getTime(middle) <= time) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        if (found >= 0) {
+            return get(found);
+        }
+
+        return new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+    }
+
+    /** Same as CheckpointManager.checkpoint(): makes the checkpoint a week before the time the new chain head. */
+    public void checkpoint(BlockStore store, long time) throws BlockStoreException {
+        StoredBlock checkpoint = getCheckpointBefore(time - KEY_TIME_MARGIN);
+        store.put(checkpoint);
+        store.setChainHead(checkpoint);
+    }
+
+    /** Returns false if the index was converted from an earlier version of the checkpoints file. */
+    public boolean isUpToDateWith(File checkpointsFile) {
+        long sourceSize = buffer.getLong(HEADER_SOURCE_SIZE);
+
+        // indexes built with the tool aren't tied to a checkpoints file
+        return sourceSize == 0 || (sourceSize == checkpointsFile.length()
+                && buffer.getLong(HEADER_SOURCE_TIME) == checkpointsFile.lastModified());
+    }
+
+
+    /* --- Building --- */
+
+    /** Converts a checkpoints file into an index, remembering its size and time so that changes can be noticed. */
+    public static CheckpointIndex convert(NetworkParameters params, File checkpointsFile, File indexFile)
+            throws IOException {
+        List<StoredBlock> checkpoints = readCheckpointsFile(params, checkpointsFile);
+        write(params, checkpoints, indexFile, checkpointsFile.length(), checkpointsFile.lastModified());
+
+        CheckpointIndex index = open(params, indexFile);
+        log.info("Converted " + checkpoints.size() + " checkpoints into " + indexFile);
+        return index;
+    }
+
+    public static List<StoredBlock> readCheckpointsFile(NetworkParameters params, File file) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+
+        try {
+            return new ArrayList<StoredBlock>(new CheckpointsFileReader(params, stream).getCheckpoints());
+        } finally {
+            stream.close();
+        }
+    }
+
+    /** Returns the blocks at difficulty transitions that are at least a month old (as bitcoinj's BuildCheckpoints). */
+    public static List<StoredBlock> readBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        SPVBlockStore store = new SPVBlockStore(params, file);
+        List<StoredBlock> checkpoints = new ArrayList<StoredBlock>();
+        long oneMonthAgo = System.currentTimeMillis() / 1000 - 60 * 60 * 24 * 30;
+
+        try {
+            StoredBlock block = store.getChainHead();
+
+            while (block != null) {
+                if (block.getHeight() % params.getInterval() == 0
+                        && block.getHeader().getTimeSeconds() <= oneMonthAgo) {
+                    checkpoints.add(block);
+                }
+
+                block = block.getPrev(store);
+            }
+        } finally {
+            store.close();
+        }
+
+        return checkpoints;
+    }
+
+    public static void write(NetworkParameters params, Collection<StoredBlock> checkpoints, File file)
+            throws IOException {
+        write(params, checkpoints, file, 0, 0);
+    }
+
+    private static void write(NetworkParameters params, Collection<StoredBlock> checkpoints, File file,
+                              long sourceSize, long sourceTime) throws IOException {
+        // keyed by time like in CheckpointManager; for equal times the higher block wins
+        TreeMap<Long, StoredBlock> sorted = new TreeMap<Long, StoredBlock>();
+
+        for (StoredBlock checkpoint : checkpoints) {
+            Long time = checkpoint.getHeader().getTimeSeconds();
+            StoredBlock previous = sorted.get(time);
+
+            if (previous == null || previous.getHeight() < checkpoint.getHeight()) {
+                sorted.put(time, checkpoint);
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + sorted.size() * RECORD_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(sorted.size());
+        buffer.putInt(RECORD_SIZE);
+        buffer.put(params.getGenesisBlock().getHash().getBytes());
+        buffer.putLong(sourceSize);
+        buffer.putLong(sourceTime);
+
+        for (StoredBlock checkpoint : sorted.values()) {
+            buffer.putLong(checkpoint.getHeader().getTimeSeconds());
+            checkpoint.serializeCompact(buffer);
+        }
+
+        // write a temporary file first so that a crash can't leave a half-written index behind
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(temporaryFile);
+
+        try {
+            stream.write(buffer.array());
+            stream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            // Windows can't rename over an existing file
+            file.delete();
+
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Could not move " + temporaryFile + " to " + file);
+            }
+        }
+    }
+
+
+    /* --- Verifying --- */
+
+    /** Checks that the index finds the same checkpoint as CheckpointManager for every time that matters. */
+    public static int verify(NetworkParameters params, CheckpointIndex index, File checkpointsFile)
+            throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(checkpointsFile));
+        CheckpointsFileReader manager;
+
+        try {
+            manager = new CheckpointsFileReader(params, stream);
+        } finally {
+            stream.close();
+        }
+
+        int mismatches = 0;
+
+        if (manager.numCheckpoints() != index.size()) {
+            log.warn("Checkpoint count differs: " + manager.numCheckpoints() + " vs. " + index.size());
+            mismatches++;
+        }
+
+        long genesisTime = params.getGenesisBlock().getTimeSeconds();
+
+        for (StoredBlock checkpoint : manager.getCheckpoints()) {
+            long time = checkpoint.getHeader().getTimeSeconds();
+
+            for (long t = time - 1; t <= time + 1; t++) {
+                if (t > genesisTime && !manager.getCheckpointBefore(t).equals(index.getCheckpointBefore(t))) {
+                    log.warn("Different checkpoint found for time " + t);
+                    mismatches++;
+                }
+            }
+        }
+
+        return mismatches;
+    }
+
+
+    /* --- Command line tool --- */
+
+    private static boolean startsWith(File file, byte[] prefix) throws IOException {
+        byte[] bytes = new byte[prefix.length];
+        InputStream stream = new FileInputStream(file);
+
+        try {
+            int read = stream.read(bytes);
+            return read == prefix.length && Arrays.equals(bytes, prefix);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static List<StoredBlock> readAny(NetworkParameters params, File file)
+            throws IOException, BlockStoreException {
+        if (startsWith(file, CHECKPOINTS_HEADER)) {
+            return readCheckpointsFile(params, file);
+        }
+
+        if (startsWith(file, ByteBuffer.allocate(4).putInt(MAGIC).array())) {
+            CheckpointIndex index = open(params, file);
+            List<StoredBlock> checkpoints = new ArrayList<StoredBlock>(index.size());
+
+            for (int i = 0; i < index.size(); i++) {
+                checkpoints.add(index.get(i));
+            }
+
+            return checkpoints;
+        }
+
+        return readBlockStore(params, file);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4 || !(args[0].equals("build") || args[0].equals("verify"))) {
+            System.err.println("Usage: CheckpointIndex build <mainnet|testnet> <index> "
+                    + "<checkpoints|index|spvchain>...");
+            System.err.println("       CheckpointIndex verify <mainnet|testnet> <index> <checkpoints>");
+            System.exit(1);
+        }
+
+        // there's no Cocoa side to log to
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+
+        NetworkParameters params = args[1].equals("testnet") ? TestNet3Params.get() : MainNetParams.get();
+        File indexFile = new File(args[2]);
+
+        if (args[0].equals("build")) {
+            List<StoredBlock> checkpoints = new ArrayList<StoredBlock>();
+
+            for (int i = 3; i < args.length; i++) {
+                List<StoredBlock> read = readAny(params, new File(args[i]));
+                System.err.println("Read " + read.size() + " checkpoints from " + args[i]);
+                checkpoints.addAll(read);
+            }
+
+            write(params, checkpoints, indexFile);
+            CheckpointIndex index = open(params, indexFile);
+
+            if (index.size() > 0) {
+                StoredBlock last = index.get(index.size() - 1);
+                System.err.println("Wrote " + index.size() + " checkpoints, last one at height " + last.getHeight()
+                        + " (" + last.getHeader().getHash() + ")");
+            }
+        } else {
+            int mismatches = verify(params, open(params, indexFile), new File(args[3]));
+            System.err.println((mismatches == 0) ? "Index matches the checkpoints file" : mismatches + " mismatches");
+            System.exit((mismatches == 0) ? 0 : 2);
+        }
+    }
+}
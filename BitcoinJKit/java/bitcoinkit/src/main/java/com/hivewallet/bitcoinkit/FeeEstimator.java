@@ -0,0 +1,483 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.VarInt;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calculates the fee that Wallet.completeTx() would pay for sending an amount to an address, without building and
+ * signing a transaction each time (the fee is shown while the user is typing the amount).
+ *
+ * The fee calculation is the one from Wallet.FeeCalculation, done with longs, and the inputs come from the
+ * wallet's coin selector with the same candidate outputs that completeTx() would give it. For DefaultCoinSelector,
+ * the outputs are kept sorted the way it sorts them, with running totals of their values and of the bytes needed
+ * to spend them, so that the inputs for any amount are found with a binary search. The outputs and the quotes are
+ * rebuilt after any change to the wallet (each new block changes the depths and so the order).
+ *
+ * If the transaction would be too big to be standard, the fee is taken from completeTx() as before. A
+ * BranchAndBoundCoinSelector used for quotes has its time budget turned off, so that it only stops after a fixed
+ * number of steps and gives completeTx() the same inputs as the quote.
+ */
+public class FeeEstimator {
+    private static final int MAX_QUOTES = 64;
+
+    // version and lock time
+    private static final int TRANSACTION_OVERHEAD = 4 + 4;
+
+    // outpoint, empty script and sequence number of an unsigned input
+    private static final int UNSIGNED_INPUT_SIZE = 32 + 4 + 1 + 4;
+
+    private static final long CENT = Utils.CENT.longValue();
+    private static final long REFERENCE_FEE = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.longValue();
+    private static final long MIN_NONDUST_OUTPUT = Transaction.MIN_NONDUST_OUTPUT.longValue();
+
+    private static class Quote {
+        final long fee;
+        final long valueMissing;
+
+        Quote(long fee, long valueMissing) {
+            this.fee = fee;
+            this.valueMissing = valueMissing;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final Wallet wallet;
+    private final AbstractWalletEventListener walletListener;
+
+    // increased (under the wallet lock) on any wallet change, without taking this object's lock
+    private final AtomicInteger walletChanges = new AtomicInteger();
+
+    // quotes for the wallet state and coin selector they were made with
+    private final LinkedHashMap<String, Quote> quotes;
+    private int quotesVersion = -1;
+    private CoinSelector quotesCoinSelector;
+
+    // candidate outputs with the bytes needed to sign them (-1 if unknown), and for DefaultCoinSelector the
+    // selectable ones in its order as running totals of values and signing sizes (index 0 is empty)
+    private int outputsVersion = -1;
+    private LinkedList<TransactionOutput> candidates;
+    private IdentityHashMap<TransactionOutput, Integer> signingSizes;
+    private long[] valueTotals;
+    private int[] signingSizeTotals;
+    private int changeOutputSize;
+
+    private long quoteCount;
+    private long cachedQuoteCount;
+    private long fullCalculations;
+    private int rebuilds;
+
+    public FeeEstimator(NetworkParameters params, Wallet wallet) {
+        this.params = params;
+        this.wallet = wallet;
+
+        this.quotes = new LinkedHashMap<String, Quote>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Quote> eldest) {
+                return size() > MAX_QUOTES;
+            }
+        };
+
+        this.walletListener = new AbstractWalletEventListener() {
+            @Override
+            public void onWalletChanged(Wallet w) {
+                walletChanges.incrementAndGet();
+            }
+
+            @Override
+            public void onReorganize(Wallet w) {
+                walletChanges.incrementAndGet();
+            }
+        };
+
+        // on the wallet's thread, so that no quote is made from outputs that already changed
+        wallet.addEventListener(walletListener, Threading.SAME_THREAD);
+    }
+
+    public void close() {
+        wallet.removeEventListener(walletListener);
+    }
+
+    /**
+     * Returns the fee for sending the amount to the address with a default SendRequest.
+     *
+     * @throws InsufficientMoneyException if the wallet doesn't have enough, with the missing value
+     * @throws IllegalArgumentException if the amount is dust
+     */
+    public synchronized long getFee(Address address, long amount) throws InsufficientMoneyException {
+        quoteCount++;
+
+        int version = walletChanges.get();
+        CoinSelector coinSelector = wallet.getCoinSelector();
+
+        if (quotesVersion != version || quotesCoinSelector != coinSelector) {
+            quotes.clear();
+            quotesVersion = version;
+            quotesCoinSelector = coinSelector;
+
+            if (coinSelector instanceof BranchAndBoundCoinSelector) {
+                // a search cut short by the clock could pick other inputs in completeTx() than in the quote
+                ((BranchAndBoundCoinSelector) coinSelector).setTimeBudget(BranchAndBoundCoinSelector.NO_TIME_BUDGET);
+            }
+        }
+
+        TransactionOutput output = new TransactionOutput(params, null, BigInteger.valueOf(amount), address);
+        int outputSize = output.bitcoinSerialize().length;
+        String key = outputSize + ":" + amount;
+        Quote quote = quotes.get(key);
+
+        if (quote != null) {
+            cachedQuoteCount++;
+        } else {
+            if (amount < CENT && output.getMinNonDustValue().longValue() > amount) {
+                throw new IllegalArgumentException("Tried to send dust with ensureMinRequiredFee set");
+            }
+
+            quote = calculate(amount, outputSize, coinSelector);
+
+            if (quote == null) {
+                quote = completeTransaction(address, amount);
+            }
+
+            quotes.put(key, quote);
+        }
+
+        if (quote.valueMissing > 0) {
+            throw new InsufficientMoneyException(BigInteger.valueOf(quote.valueMissing));
+        }
+
+        return quote.fee;
+    }
+
+    private Quote completeTransaction(Address address, long amount) {
+        fullCalculations++;
+
+        Wallet.SendRequest request = Wallet.SendRequest.to(address, BigInteger.valueOf(amount));
+
+        try {
+            wallet.completeTx(request);
+        } catch (KeyCrypterException e) {
+            // that's ok, we aren't sending this yet
+        } catch (InsufficientMoneyException e) {
+            return new Quote(0, e.missing.longValue());
+        }
+
+        return new Quote(TransactionDetails.getTransactionFee(request.tx), 0);
+    }
+
+
+    /* --- Spendable outputs --- */
+
+    private void updateOutputs() {
+        int version = walletChanges.get();
+
+        if (outputsVersion == version) {
+            return;
+        }
+
+        wallet.getLock().lock();
+
+        try {
+            ArrayList<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+            candidates = wallet.calculateAllSpendCandidates(true);
+            signingSizes = new IdentityHashMap<TransactionOutput, Integer>(candidates.size());
+
+            for (TransactionOutput output : candidates) {
+                signingSizes.put(output, getSigningSize(output));
+
+                if (DefaultCoinSelector.isSelectable(output.getParentTransaction())) {
+                    outputs.add(output);
+                }
+            }
+
+            sortOutputs(outputs);
+
+            valueTotals = new long[outputs.size() + 1];
+            signingSizeTotals = new int[outputs.size() + 1];
+
+            for (int i = 0; i < outputs.size(); i++) {
+                TransactionOutput output = outputs.get(i);
+                int signingSize = signingSizes.get(output);
+
+                valueTotals[i + 1] = valueTotals[i] + output.getValue().longValue();
+                signingSizeTotals[i + 1] = (signingSize < 0 || signingSizeTotals[i] < 0) ? -1
+                        : signingSizeTotals[i] + signingSize;
+            }
+
+            Address changeAddress = wallet.getChangeAddress();
+            TransactionOutput changeOutput = new TransactionOutput(params, null, BigInteger.ONE, changeAddress);
+            changeOutputSize = changeOutput.bitcoinSerialize().length;
+        } finally {
+            wallet.getLock().unlock();
+        }
+
+        outputsVersion = version;
+        rebuilds++;
+    }
+
+    /** The order of DefaultCoinSelector: depth times value, then value (both descending), then transaction hash. */
+    private static void sortOutputs(List<TransactionOutput> outputs) {
+        Collections.sort(outputs, new Comparator<TransactionOutput>() {
+            @Override
+            public int compare(TransactionOutput output1, TransactionOutput output2) {
+                BigInteger value1 = output1.getValue();
+                BigInteger value2 = output2.getValue();
+                BigInteger weight1 = value1.multiply(BigInteger.valueOf(getDepth(output1)));
+                BigInteger weight2 = value2.multiply(BigInteger.valueOf(getDepth(output2)));
+
+                int result = weight2.compareTo(weight1);
+
+                if (result == 0) {
+                    result = value2.compareTo(value1);
+                }
+
+                if (result == 0) {
+                    result = output1.getParentTransaction().getHash().toBigInteger()
+                            .compareTo(output2.getParentTransaction().getHash().toBigInteger());
+                }
+
+                return result;
+            }
+        });
+    }
+
+    private static int getDepth(TransactionOutput output) {
+        TransactionConfidence confidence = output.getParentTransaction().getConfidence();
+
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING) {
+            return confidence.getDepthInBlocks();
+        } else {
+            return 0;
+        }
+    }
+
+    /** Bytes that the signature script will add to an input spending the output, as Wallet estimates them. */
+    private int getSigningSize(TransactionOutput output) {
+        Script script = output.getScriptPubKey();
+
+        if (script.isSentToAddress()) {
+            return wallet.findKeyFromPubHash(script.getPubKeyHash()).getPubKey().length + 75;
+        } else if (script.isSentToRawPubKey()) {
+            return 74;
+        } else {
+            return -1;
+        }
+    }
+
+
+    /* --- Fee calculation --- */
+
+    /**
+     * Same steps as Wallet.FeeCalculation: try the fee for the current size, and if the change would be small or
+     * dust, also try with enough extra inputs to avoid that, then take the cheapest. Returns null if it can't be
+     * done here (unknown output types or a non-standard size).
+     */
+    private Quote calculate(long amount, int outputSize, CoinSelector coinSelector) {
+        updateOutputs();
+
+        boolean defaultCoinSelector = (coinSelector.getClass() == DefaultCoinSelector.class);
+
+        long feePerKb = Wallet.SendRequest.DEFAULT_FEE_PER_KB.longValue();
+        boolean needAtLeastReferenceFee = amount < CENT;
+
+        // what the inputs pay for the amount and fee in each category (-1 if there's no such solution):
+        // 1 - change is kept, 2 - small change with the reference fee, 3 - change left out
+        long paid1 = -1;
+        long paid2 = -1;
+        long paid3 = -1;
+
+        long additionalValue = -1;
+        long valueMissing = 0;
+        int lastCalculatedSize = 0;
+
+        while (true) {
+            long fees = (lastCalculatedSize > 0) ? (lastCalculatedSize / 1000 + 1) * feePerKb : feePerKb;
+
+            if (needAtLeastReferenceFee && fees < REFERENCE_FEE) {
+                fees = REFERENCE_FEE;
+            }
+
+            long valueNeeded = amount + fees + Math.max(additionalValue, 0);
+            long additionalValueSelected = additionalValue;
+
+            int inputs;
+            long valueGathered;
+            int signingSize;
+
+            if (defaultCoinSelector) {
+                inputs = select(valueNeeded);
+                valueGathered = valueTotals[inputs];
+                signingSize = signingSizeTotals[inputs];
+            } else {
+                CoinSelection selection = select(coinSelector, valueNeeded);
+                inputs = selection.gathered.size();
+                valueGathered = selection.valueGathered.longValue();
+                signingSize = getSigningSize(selection);
+            }
+
+            if (valueGathered < valueNeeded) {
+                valueMissing = valueNeeded - valueGathered;
+                break;
+            }
+
+            boolean eitherCategory2Or3 = false;
+            boolean isCategory3 = false;
+            long change = valueGathered - valueNeeded + Math.max(additionalValueSelected, 0);
+
+            if (change != 0 && change < CENT && fees < REFERENCE_FEE) {
+                eitherCategory2Or3 = true;
+                additionalValue = CENT;
+                change -= REFERENCE_FEE - fees;
+            }
+
+            int size = 0;
+            long changeValue = 0;
+
+            if (change > 0) {
+                if (MIN_NONDUST_OUTPUT >= change) {
+                    isCategory3 = true;
+                    additionalValue = REFERENCE_FEE + MIN_NONDUST_OUTPUT + 1;
+                } else {
+                    size += changeOutputSize;
+                    changeValue = change;
+
+                    if (!eitherCategory2Or3) {
+                        additionalValue = -1;
+                    }
+                }
+            } else if (eitherCategory2Or3) {
+                isCategory3 = true;
+                additionalValue = REFERENCE_FEE + 1;
+            }
+
+            if (signingSize < 0) {
+                return null;
+            }
+
+            size += TRANSACTION_OVERHEAD + VarInt.sizeOf(inputs) + inputs * UNSIGNED_INPUT_SIZE + VarInt.sizeOf(1)
+                    + outputSize;
+            size += signingSize;
+
+            if (size / 1000 > lastCalculatedSize / 1000 && feePerKb > 0) {
+                lastCalculatedSize = size;
+                additionalValue = additionalValueSelected;
+                continue;
+            }
+
+            if (size > Transaction.MAX_STANDARD_TX_SIZE) {
+                return null;
+            }
+
+            if (isCategory3) {
+                if (paid3 < 0) {
+                    paid3 = valueGathered;
+                }
+            } else if (eitherCategory2Or3) {
+                paid2 = valueGathered - changeValue;
+            } else {
+                paid1 = valueGathered - changeValue;
+            }
+
+            if (additionalValue >= 0) {
+                continue;
+            }
+
+            break;
+        }
+
+        long lowest = paid1;
+
+        if (paid2 >= 0 && (lowest < 0 || paid2 < lowest)) {
+            lowest = paid2;
+        }
+
+        if (paid3 >= 0 && (lowest < 0 || paid3 < lowest)) {
+            lowest = paid3;
+        }
+
+        if (lowest < 0) {
+            return new Quote(0, valueMissing);
+        }
+
+        return new Quote(lowest - amount, 0);
+    }
+
+    /** Number of outputs DefaultCoinSelector would take: the fewest from the start that add up to the value. */
+    private int select(long value) {
+        int low = 0;
+        int high = valueTotals.length - 1;
+
+        if (valueTotals[high] < value) {
+            return high;
+        }
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (valueTotals[middle] >= value) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+
+        return low;
+    }
+
+    /** Calls another coin selector the way completeTx() would, holding the wallet lock. */
+    private CoinSelection select(CoinSelector coinSelector, long value) {
+        wallet.getLock().lock();
+
+        try {
+            return coinSelector.select(BigInteger.valueOf(value), candidates);
+        } finally {
+            wallet.getLock().unlock();
+        }
+    }
+
+    private int getSigningSize(CoinSelection selection) {
+        int size = 0;
+
+        for (TransactionOutput output : selection.gathered) {
+            Integer signingSize = signingSizes.get(output);
+
+            if (signingSize == null || signingSize < 0) {
+                return -1;
+            }
+
+            size += signingSize;
+        }
+
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FeeEstimator: " + quoteCount + " quotes, " + cachedQuoteCount + " cached, " + fullCalculations
+                + " full calculations, " + rebuilds + " output rebuilds";
+    }
+}
@@ -0,0 +1,139 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PrunedException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * BlockChain that reports how long it takes to process each block and how much data the block took to download,
+ * and for filtered blocks, how many of their transactions were bloom filter false positives.
+ */
+public class MonitoredBlockChain extends BlockChain {
+    private final SyncProgressTracker tracker;
+    private volatile BloomFilterMonitor bloomFilterMonitor;
+
+    // BlockChain's constructor already calls addWallet(), so this can't be initialized here
+    private List<Wallet> wallets;
+
+    public MonitoredBlockChain(NetworkParameters params, Wallet wallet, BlockStore blockStore,
+                               SyncProgressTracker tracker) throws BlockStoreException {
+        super(params, wallet, blockStore);
+        this.tracker = tracker;
+    }
+
+    /** Creates a chain without wallets; add them with addWallet(). */
+    public MonitoredBlockChain(NetworkParameters params, BlockStore blockStore, SyncProgressTracker tracker)
+            throws BlockStoreException {
+        super(params, blockStore);
+        this.tracker = tracker;
+    }
+
+    public void setBloomFilterMonitor(BloomFilterMonitor monitor) {
+        bloomFilterMonitor = monitor;
+    }
+
+    @Override
+    public void addWallet(Wallet wallet) {
+        if (wallets == null) {
+            wallets = new CopyOnWriteArrayList<Wallet>();
+        }
+
+        wallets.add(wallet);
+        super.addWallet(wallet);
+    }
+
+    @Override
+    public void removeWallet(Wallet wallet) {
+        if (wallets != null) {
+            wallets.remove(wallet);
+        }
+
+        super.removeWallet(wallet);
+    }
+
+    @Override
+    public boolean add(Block block) throws VerificationException, PrunedException {
+        long start = System.nanoTime();
+
+        try {
+            return super.add(block);
+        } finally {
+            tracker.blockProcessed(getMessageSize(block), System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public boolean add(FilteredBlock block) throws VerificationException, PrunedException {
+        long start = System.nanoTime();
+        boolean added = false;
+
+        try {
+            added = super.add(block);
+            return added;
+        } finally {
+            int bytes = getMessageSize(block);
+
+            for (Transaction tx : block.getAssociatedTransactions().values()) {
+                bytes += getMessageSize(tx);
+            }
+
+            tracker.blockProcessed(bytes, System.nanoTime() - start);
+
+            if (added && bloomFilterMonitor != null) {
+                countFalsePositives(block, bytes);
+            }
+        }
+    }
+
+    /** Matched transactions that no wallet took after the block was added are false positives. */
+    private void countFalsePositives(FilteredBlock block, int bytes) {
+        List<Sha256Hash> matched = block.getTransactionHashes();
+        int falsePositives = 0;
+        int falsePositiveBytes = 0;
+
+        for (Sha256Hash hash : matched) {
+            if (!isInWallet(hash)) {
+                falsePositives++;
+
+                Transaction tx = block.getAssociatedTransactions().get(hash);
+                falsePositiveBytes += (tx != null) ? getMessageSize(tx) : 0;
+            }
+        }
+
+        bloomFilterMonitor.blockAdded(block.getTransactionCount(), matched.size(), falsePositives, bytes,
+                falsePositiveBytes);
+    }
+
+    private boolean isInWallet(Sha256Hash hash) {
+        if (wallets != null) {
+            for (Wallet wallet : wallets) {
+                if (wallet.getTransaction(hash) != null) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static int getMessageSize(Message message) {
+        try {
+            return message.getMessageSize();
+        } catch (IllegalStateException e) {
+            // message wasn't parsed from the network, so its size isn't known
+            return 0;
+        }
+    }
+}
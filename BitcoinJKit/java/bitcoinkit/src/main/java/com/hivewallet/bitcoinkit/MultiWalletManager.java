@@ -0,0 +1,603 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.CheckpointManager;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import com.google.bitcoin.net.discovery.DnsDiscovery;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.TestNet3Params;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.SPVBlockStore;
+import com.google.bitcoin.store.UnreadableWalletException;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Runs any number of wallets on one block chain and one peer group, instead of one BitcoinManager per wallet with
+ * its own peers, block store and sync. The peer group merges the wallets' keys into a single bloom filter.
+ *
+ * Wallets are stored as wallets/&lt;id&gt;.wallet in the data directory, and all of them are loaded in start().
+ * Each one is accessed through its WalletHandle, and changes are reported to the listener together with the handle
+ * of the wallet they concern.
+ */
+public class MultiWalletManager {
+    public static final int WALLET_JSON_CACHE_ENTRIES = 1000;
+    public static final long WALLET_JSON_CACHE_BYTES = 2 * 1024 * 1024;
+
+    private static final long AUTOSAVE_DELAY_MS = 1000;
+    private static final Pattern WALLET_ID_PATTERN = Pattern.compile("[A-Za-z0-9_\\-]+");
+    private static final String WALLET_FILE_EXTENSION = ".wallet";
+    private static final Logger log = LoggerFactory.getLogger(MultiWalletManager.class);
+
+    public interface Listener {
+        void onBalanceChanged(WalletHandle wallet);
+        void onTransactionChanged(WalletHandle wallet, String txid, String json);
+        void onSynchronizationUpdate(float percent);
+        void onPeerCountChanged(int peerCount);
+    }
+
+    private final Listener listener;
+    private final LinkedHashMap<String, WalletHandle> wallets;
+    private final SyncProgressTracker syncProgressTracker;
+    private final ScheduledExecutorService dispatchExecutor;
+    private final ScheduledExecutorService saveExecutor;
+    private final LinkedHashSet<WalletHandle> pendingSaves;
+    private final ScryptCalibrator scryptCalibrator;
+    private final TransactionSigner transactionSigner;
+
+    private NetworkParameters networkParams;
+    private String dataDirectory;
+    private String checkpointsFilePath;
+    private boolean branchAndBoundCoinSelectionEnabled;
+
+    private BlockStore blockStore;
+    private MonitoredBlockChain chain;
+    private PeerGroup peerGroup;
+
+    public MultiWalletManager(Listener listener) {
+        this.listener = listener;
+        this.wallets = new LinkedHashMap<String, WalletHandle>();
+        this.pendingSaves = new LinkedHashSet<WalletHandle>();
+        this.scryptCalibrator = new ScryptCalibrator();
+        this.transactionSigner = new TransactionSigner();
+
+        // shared by all wallets, so the number of threads doesn't grow with the number of wallets
+        this.dispatchExecutor = NativeEventDispatcher.createExecutor();
+        this.saveExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("BitcoinKit wallet saver").setDaemon(true).build());
+
+        this.syncProgressTracker = new SyncProgressTracker(new SyncProgressTracker.Listener() {
+            public void onSynchronizationUpdate(float percent) {
+                MultiWalletManager.this.listener.onSynchronizationUpdate(percent);
+            }
+        });
+    }
+
+    public void setTestingNetwork(boolean testing) {
+        if (testing) {
+            this.networkParams = TestNet3Params.get();
+        } else {
+            this.networkParams = MainNetParams.get();
+        }
+    }
+
+    /** Sets the network directly, e.g. to UnitTestParams in tests. */
+    void setNetworkParameters(NetworkParameters params) {
+        this.networkParams = params;
+    }
+
+    public void setDataDirectory(String path) {
+        dataDirectory = path;
+    }
+
+    public void setCheckpointsFilePath(String path) {
+        checkpointsFilePath = path;
+    }
+
+    public synchronized boolean isBranchAndBoundCoinSelectionEnabled() {
+        return branchAndBoundCoinSelectionEnabled;
+    }
+
+    /** Like BitcoinManager.setBranchAndBoundCoinSelectionEnabled(), for all wallets. */
+    public synchronized void setBranchAndBoundCoinSelectionEnabled(boolean enabled) {
+        branchAndBoundCoinSelectionEnabled = enabled;
+
+        for (WalletHandle handle : wallets.values()) {
+            handle.setBranchAndBoundCoinSelection(enabled);
+        }
+    }
+
+    public SyncProgressTracker getSyncProgressTracker() {
+        return syncProgressTracker;
+    }
+
+    private File getWalletsDirectory() {
+        return new File(dataDirectory + "/wallets");
+    }
+
+    private File getBlockchainFile() {
+        return new File(dataDirectory + "/wallets.spvchain");
+    }
+
+
+    /* --- Lifecycle --- */
+
+    /** Loads all wallets from the data directory and starts syncing them. */
+    public synchronized void start() throws UnreadableWalletException, IOException, BlockStoreException {
+        loadWallets();
+        startBlockchain();
+    }
+
+    /**
+     * Loads all wallets from the data directory and opens the block store, set back to where the wallets that are
+     * behind it need the chain to be replayed from.
+     */
+    synchronized void loadWallets() throws UnreadableWalletException, IOException, BlockStoreException {
+        if (networkParams == null) {
+            setTestingNetwork(false);
+        }
+
+        File walletsDirectory = getWalletsDirectory();
+
+        if (!walletsDirectory.isDirectory() && !walletsDirectory.mkdirs()) {
+            throw new IOException("Could not create wallets directory: " + walletsDirectory);
+        }
+
+        File[] walletFiles = walletsDirectory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(WALLET_FILE_EXTENSION);
+            }
+        });
+
+        LinkedHashMap<File, Wallet> loadedWallets = new LinkedHashMap<File, Wallet>();
+
+        for (File walletFile : walletFiles) {
+            loadedWallets.put(walletFile, loadWalletFromFile(walletFile));
+        }
+
+        log.info("Loaded " + loadedWallets.size() + " wallets");
+
+        // may replace wallets that have to be rewound
+        openBlockStore(loadedWallets);
+
+        for (Map.Entry<File, Wallet> entry : loadedWallets.entrySet()) {
+            String name = entry.getKey().getName();
+            String id = name.substring(0, name.length() - WALLET_FILE_EXTENSION.length());
+            addWalletHandle(id, entry.getValue(), entry.getKey());
+        }
+    }
+
+    private Wallet loadWalletFromFile(File file) throws UnreadableWalletException {
+        try {
+            InputStream stream = new BufferedInputStream(new FileInputStream(file));
+
+            try {
+                Wallet wallet = new Wallet(networkParams);
+                wallet.addExtension(new LastWalletChangeExtension());
+
+                Protos.Wallet walletData = WalletProtobufSerializer.parseToProto(stream);
+                new WalletProtobufSerializer().readWallet(walletData, wallet);
+
+                if (!wallet.isConsistent()) {
+                    log.error("Loaded an inconsistent wallet: " + file);
+                }
+
+                return wallet;
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not open file " + file, e);
+        }
+    }
+
+    private void openBlockStore(Map<File, Wallet> loadedWallets)
+            throws BlockStoreException, UnreadableWalletException, IOException {
+        File chainFile = getBlockchainFile();
+        boolean chainExistedAlready = chainFile.exists();
+        blockStore = new SPVBlockStore(networkParams, chainFile);
+
+        if (chainExistedAlready) {
+            int replayHeight = getReplayHeight(loadedWallets);
+
+            if (replayHeight < 0) {
+                return;
+            }
+
+            StoredBlock rewindBlock = (replayHeight > 0)
+                    ? WalletRewinder.findBlock(networkParams, blockStore, replayHeight - 1) : null;
+
+            if (rewindBlock != null) {
+                log.info("Replaying the chain from height " + replayHeight + " for wallets that are behind it");
+
+                // the wallets go first, so that they're never behind the chain if this is interrupted
+                rewindWallets(loadedWallets, rewindBlock);
+                blockStore.setChainHead(rewindBlock);
+                return;
+            }
+
+            // the store doesn't reach back far enough, so start over like below
+            log.info("Replaying the whole chain for wallets that are behind it");
+            blockStore.close();
+            chainFile.delete();
+            blockStore = new SPVBlockStore(networkParams, chainFile);
+        }
+
+        // the blockchain will be replayed for all wallets, so clear their old transaction data first
+        long earliestKeyCreationTime = Long.MAX_VALUE;
+
+        for (Wallet wallet : loadedWallets.values()) {
+            wallet.clearTransactions(0);
+            earliestKeyCreationTime = Math.min(earliestKeyCreationTime, getEarliestKeyCreationTime(wallet));
+        }
+
+        if (loadedWallets.isEmpty()) {
+            // keys created from now on don't need any earlier blocks
+            earliestKeyCreationTime = System.currentTimeMillis() / 1000;
+        }
+
+        String checkpointsFilePath = this.checkpointsFilePath;
+        if (checkpointsFilePath == null) {
+            checkpointsFilePath = dataDirectory + "/bitcoinkit.checkpoints";
+        }
+
+        File checkpointsFile = new File(checkpointsFilePath);
+        if (checkpointsFile.exists()) {
+            try {
+                FileInputStream stream = new FileInputStream(checkpointsFile);
+                CheckpointManager.checkpoint(networkParams, stream, blockStore, earliestKeyCreationTime);
+            } catch (IOException e) {
+                throw new BlockStoreException("Could not load checkpoints file");
+            }
+        }
+    }
+
+    /**
+     * Returns the lowest height that a wallet needs and didn't see yet (e.g. because it was closed or copied into the
+     * wallets directory while the others kept syncing), 0 if that's before the start of the block store, or -1 if
+     * all wallets are up to date.
+     */
+    private int getReplayHeight(Map<File, Wallet> loadedWallets) throws BlockStoreException {
+        StoredBlock head = blockStore.getChainHead();
+        int replayHeight = -1;
+
+        for (Map.Entry<File, Wallet> entry : loadedWallets.entrySet()) {
+            Wallet wallet = entry.getValue();
+            int lastSeenHeight = wallet.getLastBlockSeenHeight();
+            long keyTime = getEarliestKeyCreationTime(wallet) - CheckpointIndex.KEY_TIME_MARGIN;
+            StoredBlock block = head;
+            int walletReplayHeight = -1;
+
+            // blocks from before the wallet's keys were created can't contain its transactions
+            while (block.getHeight() > lastSeenHeight && block.getHeader().getTimeSeconds() >= keyTime) {
+                walletReplayHeight = block.getHeight();
+                block = block.getPrev(blockStore);
+
+                if (block == null) {
+                    walletReplayHeight = 0;
+                    break;
+                }
+            }
+
+            if (walletReplayHeight >= 0) {
+                log.info("Wallet " + entry.getKey().getName() + " has seen blocks up to height " + lastSeenHeight
+                        + ", chain is at " + head.getHeight());
+
+                replayHeight = (replayHeight < 0) ? walletReplayHeight : Math.min(replayHeight, walletReplayHeight);
+            }
+        }
+
+        return replayHeight;
+    }
+
+    /** Sets back the wallets that have seen blocks after the given one (see WalletRewinder) and saves them. */
+    private void rewindWallets(Map<File, Wallet> loadedWallets, StoredBlock block)
+            throws UnreadableWalletException, IOException {
+        for (Map.Entry<File, Wallet> entry : loadedWallets.entrySet()) {
+            if (entry.getValue().getLastBlockSeenHeight() <= block.getHeight()) {
+                continue;
+            }
+
+            Wallet rewoundWallet = new Wallet(networkParams);
+            rewoundWallet.addExtension(new LastWalletChangeExtension());
+            WalletRewinder.rewind(entry.getValue(), block, rewoundWallet);
+
+            rewoundWallet.saveToFile(entry.getKey());
+            entry.setValue(rewoundWallet);
+        }
+    }
+
+    private static long getEarliestKeyCreationTime(Wallet wallet) {
+        long keyCreationTime = wallet.getEarliestKeyCreationTime();
+
+        if (keyCreationTime == 0) {
+            // see BitcoinManager - encrypted keys could lose their creation time in older bitcoinj versions
+            keyCreationTime = 1368620845;
+        }
+
+        return keyCreationTime;
+    }
+
+    synchronized BlockStore getBlockStore() {
+        return blockStore;
+    }
+
+    private void startBlockchain() throws BlockStoreException {
+        chain = new MonitoredBlockChain(networkParams, blockStore, syncProgressTracker);
+
+        peerGroup = new PeerGroup(networkParams, chain);
+        peerGroup.setUserAgent("BitcoinJKit", "0.9");
+        peerGroup.addPeerDiscovery(new DnsDiscovery(networkParams));
+
+        for (WalletHandle handle : wallets.values()) {
+            attachWallet(handle);
+        }
+
+        peerGroup.addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public void onPeerConnected(Peer peer, int peerCount) {
+                listener.onPeerCountChanged(peerCount);
+            }
+
+            @Override
+            public void onPeerDisconnected(Peer peer, int peerCount) {
+                listener.onPeerCountChanged(peerCount);
+            }
+        });
+
+        peerGroup.startAndWait();
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+            @Override
+            public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+                syncProgressTracker.blocksDownloaded(blocksLeft);
+            }
+
+            @Override
+            public void onChainDownloadStarted(Peer peer, int blocksLeft) {
+                syncProgressTracker.chainDownloadStarted(blocksLeft);
+            }
+        });
+    }
+
+    private void attachWallet(WalletHandle handle) {
+        Wallet wallet = handle.getWallet();
+
+        chain.addWallet(wallet);
+        peerGroup.addWallet(wallet);
+        handle.setTransactionBroadcaster(peerGroup);
+
+        wallet.cleanup();
+        handle.rebuildTransactionIndex();
+        handle.trackPendingTransactions();
+        handle.getEventDispatcher().balanceChanged();
+    }
+
+    private void detachWallet(WalletHandle handle) {
+        Wallet wallet = handle.getWallet();
+
+        handle.setTransactionBroadcaster(null);
+        peerGroup.removeWallet(wallet);
+        chain.removeWallet(wallet);
+    }
+
+    public synchronized void stop() {
+        try {
+            log.info("Shutting down MultiWalletManager...");
+
+            if (peerGroup != null) {
+                peerGroup.stopAndWait();
+
+                for (WalletHandle handle : wallets.values()) {
+                    detachWallet(handle);
+                }
+
+                peerGroup = null;
+                chain = null;
+            }
+
+            if (blockStore != null) {
+                blockStore.close();
+                blockStore = null;
+            }
+
+            for (WalletHandle handle : wallets.values()) {
+                handle.getEventDispatcher().flush();
+                handle.close();
+                handle.getWallet().saveToFile(handle.getWalletFile());
+            }
+
+            wallets.clear();
+
+            synchronized (pendingSaves) {
+                pendingSaves.clear();
+            }
+
+            log.info("Shutdown done.");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /* --- Managing wallets --- */
+
+    /** Used for wallets created with a password; the calibration is done when the first one is created. */
+    public ScryptCalibrator getScryptCalibrator() {
+        return scryptCalibrator;
+    }
+
+    public synchronized List<String> getWalletIds() {
+        return new ArrayList<String>(wallets.keySet());
+    }
+
+    public synchronized WalletHandle getWallet(String id) {
+        return wallets.get(id);
+    }
+
+    public synchronized int getWalletCount() {
+        return wallets.size();
+    }
+
+    /**
+     * Creates a new wallet with a fresh key and adds it to the running chain. The key is new, so no blocks need to be
+     * downloaded again for it.
+     */
+    public synchronized WalletHandle createWallet(String id, char[] utf16Password)
+            throws IOException, ExistingWalletException, WrongPasswordException {
+        if (peerGroup == null) {
+            throw new IllegalStateException("createWallet cannot be called before start");
+        } else if (!WALLET_ID_PATTERN.matcher(id).matches()) {
+            throw new IllegalArgumentException("Invalid wallet id: " + id);
+        }
+
+        File walletFile = new File(getWalletsDirectory(), id + WALLET_FILE_EXTENSION);
+
+        if (wallets.containsKey(id) || walletFile.exists()) {
+            throw new ExistingWalletException("Trying to create a wallet even though one exists: " + walletFile);
+        }
+
+        Wallet wallet = new Wallet(networkParams);
+        LastWalletChangeExtension extension = new LastWalletChangeExtension();
+        extension.setLastWalletChangeDate(new Date());
+        wallet.addExtension(extension);
+
+        ECKey privateKey = new ECKey();
+        wallet.addKey(privateKey);
+        long creationTime = privateKey.getCreationTimeSeconds();
+
+        if (utf16Password != null) {
+            KeyCrypterScrypt keyCrypter = scryptCalibrator.createKeyCrypter();
+            KeyParameter aesKey = WalletHandle.deriveKeyAndWipePassword(utf16Password, keyCrypter);
+
+            try {
+                wallet.encrypt(keyCrypter, aesKey);
+            } finally {
+                WalletHandle.wipeAesKey(aesKey);
+            }
+
+            // temporary fix for bitcoinj creation time clearing bug
+            wallet.getKeys().get(0).setCreationTimeSeconds(creationTime);
+        }
+
+        wallet.saveToFile(walletFile);
+
+        WalletHandle handle = addWalletHandle(id, wallet, walletFile);
+        attachWallet(handle);
+        return handle;
+    }
+
+    /**
+     * Detaches the wallet from the chain and saves it; the file stays in the wallets directory. When it's loaded again
+     * in start(), the blocks it missed in the meantime are downloaded again.
+     */
+    public synchronized void closeWallet(String id) throws IOException {
+        WalletHandle handle = wallets.remove(id);
+
+        if (handle == null) {
+            return;
+        }
+
+        if (peerGroup != null) {
+            detachWallet(handle);
+        }
+
+        synchronized (pendingSaves) {
+            pendingSaves.remove(handle);
+        }
+
+        handle.getEventDispatcher().flush();
+        handle.close();
+        handle.getWallet().saveToFile(handle.getWalletFile());
+    }
+
+    private WalletHandle addWalletHandle(String id, Wallet wallet, File walletFile) {
+        DispatchTarget target = new DispatchTarget();
+        NativeEventDispatcher dispatcher = new NativeEventDispatcher(target, dispatchExecutor);
+        TransactionJSONCache cache = new TransactionJSONCache(WALLET_JSON_CACHE_ENTRIES, WALLET_JSON_CACHE_BYTES);
+
+        final WalletHandle handle = new WalletHandle(id, networkParams, wallet, walletFile, dispatcher, cache);
+        handle.setTransactionSigner(transactionSigner);
+        handle.setBranchAndBoundCoinSelection(branchAndBoundCoinSelectionEnabled);
+        target.handle = handle;
+
+        // instead of autosaveToFile, which would start a thread for each wallet
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                scheduleSave(handle);
+            }
+        });
+
+        wallets.put(id, handle);
+        return handle;
+    }
+
+    private void scheduleSave(final WalletHandle handle) {
+        synchronized (pendingSaves) {
+            if (!pendingSaves.add(handle)) {
+                return;
+            }
+        }
+
+        saveExecutor.schedule(new Runnable() {
+            public void run() {
+                synchronized (pendingSaves) {
+                    if (!pendingSaves.remove(handle)) {
+                        // closed in the meantime
+                        return;
+                    }
+                }
+
+                try {
+                    handle.getWallet().saveToFile(handle.getWalletFile());
+                } catch (IOException e) {
+                    log.error("Could not save wallet " + handle.getId() + ": " + e);
+                }
+            }
+        }, AUTOSAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private class DispatchTarget implements NativeEventDispatcher.Target {
+        WalletHandle handle;
+
+        public void dispatchBalanceChanged() {
+            listener.onBalanceChanged(handle);
+        }
+
+        public void dispatchTransactionChanged(Transaction tx) {
+            listener.onTransactionChanged(handle, tx.getHashAsString(), handle.getJSONFromTransaction(tx));
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects balance and transaction change notifications and passes them to the Cocoa side in batches. During
+ * a sync or rescan the same transaction can change many times per second; here repeated balance changes are merged
+ * into one and only the latest state of each transaction is sent once per flush.
+ *
+ * Events are flushed after the flush interval passes since the first unsent event, or right away when the number of
+ * pending transactions reaches the batch size. In synchronous mode every event is sent immediately on the calling
+ * thread, like before.
+ */
+public class NativeEventDispatcher {
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 200;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    public interface Target {
+        void dispatchBalanceChanged();
+        void dispatchTransactionChanged(Transaction tx);
+    }
+
+    private final Target target;
+    private final Object lock = new Object();
+    private final ScheduledExecutorService executor;
+    private final Runnable flushTask;
+
+    private volatile boolean synchronous;
+    private volatile long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    private boolean balanceChangePending;
+    private final LinkedHashMap<Sha256Hash, Transaction> pendingTransactions;
+    private ScheduledFuture<?> scheduledFlush;
+
+    private final AtomicLong balanceEvents = new AtomicLong();
+    private final AtomicLong coalescedBalanceEvents = new AtomicLong();
+    private final AtomicLong transactionEvents = new AtomicLong();
+    private final AtomicLong coalescedTransactionEvents = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    public NativeEventDispatcher(Target target) {
+        this(target, createExecutor());
+    }
+
+    /** Dispatchers of different wallets can share one executor, so that they don't need a thread each. */
+    public NativeEventDispatcher(Target target, ScheduledExecutorService executor) {
+        this.target = target;
+        this.pendingTransactions = new LinkedHashMap<Sha256Hash, Transaction>();
+        this.executor = executor;
+
+        this.flushTask = new Runnable() {
+            public void run() {
+                flush();
+            }
+        };
+    }
+
+    public static ScheduledExecutorService createExecutor() {
+        return Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("BitcoinKit event dispatcher").setDaemon(true).build());
+    }
+
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
+    public void setSynchronous(boolean synchronous) {
+        this.synchronous = synchronous;
+
+        if (synchronous) {
+            flush();
+        }
+    }
+
+    public long getFlushInterval() {
+        return flushIntervalMs;
+    }
+
+    public void setFlushInterval(long milliseconds) {
+        flushIntervalMs = milliseconds;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int size) {
+        maxBatchSize = size;
+    }
+
+    public void balanceChanged() {
+        balanceEvents.incrementAndGet();
+
+        if (synchronous) {
+            target.dispatchBalanceChanged();
+            return;
+        }
+
+        synchronized (lock) {
+            if (balanceChangePending) {
+                coalescedBalanceEvents.incrementAndGet();
+            } else {
+                balanceChangePending = true;
+            }
+
+            scheduleFlush(false);
+        }
+    }
+
+    public void transactionChanged(Transaction tx) {
+        transactionEvents.incrementAndGet();
+
+        if (synchronous) {
+            target.dispatchTransactionChanged(tx);
+            return;
+        }
+
+        synchronized (lock) {
+            // the transaction is only rendered when it's sent, so it always reflects its latest state
+            if (pendingTransactions.put(tx.getHash(), tx) != null) {
+                coalescedTransactionEvents.incrementAndGet();
+            }
+
+            scheduleFlush(pendingTransactions.size() >= maxBatchSize);
+        }
+    }
+
+    private void scheduleFlush(boolean immediately) {
+        if (scheduledFlush == null) {
+            scheduledFlush = executor.schedule(flushTask, immediately ? 0 : flushIntervalMs, TimeUnit.MILLISECONDS);
+        } else if (immediately && scheduledFlush.cancel(false)) {
+            scheduledFlush = executor.schedule(flushTask, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** Sends all pending events now, on the calling thread. */
+    public void flush() {
+        boolean sendBalanceChange;
+        List<Transaction> transactions;
+
+        synchronized (lock) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+
+            sendBalanceChange = balanceChangePending;
+            balanceChangePending = false;
+
+            transactions = new ArrayList<Transaction>(pendingTransactions.values());
+            pendingTransactions.clear();
+        }
+
+        if (!sendBalanceChange && transactions.isEmpty()) {
+            return;
+        }
+
+        flushes.incrementAndGet();
+
+        try {
+            if (sendBalanceChange) {
+                target.dispatchBalanceChanged();
+            }
+
+            for (Transaction tx : transactions) {
+                target.dispatchTransactionChanged(tx);
+            }
+        } catch (RuntimeException e) {
+            // we're usually on the dispatcher thread here, where nobody would see the exception
+            if (Threading.uncaughtExceptionHandler != null) {
+                Threading.uncaughtExceptionHandler.uncaughtException(Thread.currentThread(), e);
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    public long getBalanceEventCount() {
+        return balanceEvents.get();
+    }
+
+    public long getCoalescedBalanceEventCount() {
+        return coalescedBalanceEvents.get();
+    }
+
+    public long getTransactionEventCount() {
+        return transactionEvents.get();
+    }
+
+    public long getCoalescedTransactionEventCount() {
+        return coalescedTransactionEvents.get();
+    }
+
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NativeEventDispatcher: balance events = " + balanceEvents + " (" + coalescedBalanceEvents
+                + " coalesced), transaction events = " + transactionEvents + " (" + coalescedTransactionEvents
+                + " coalesced), flushes = " + flushes;
+    }
+}
@@ -0,0 +1,630 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.GetDataMessage;
+import com.google.bitcoin.core.GetHeadersMessage;
+import com.google.bitcoin.core.HeadersMessage;
+import com.google.bitcoin.core.InventoryItem;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.NotFoundMessage;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerEventListener;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Catches up with the chain using all connected peers instead of only PeerGroup's download peer. The headers
+ * after the chain head are fetched from the download peer first, then the filtered blocks are requested in
+ * ranges of heights from whichever peers are idle. The blocks are added to the chain in order, while later
+ * ranges are still being downloaded.
+ *
+ * A range that makes no progress for STALL_TIMEOUT_MS goes back to the queue and its peer is disconnected, as is
+ * a peer that is much slower than the others, so that PeerGroup connects to another one instead. Blocks that a peer
+ * doesn't have go to another peer, and if none of them has a block the download stops there.
+ *
+ * The responses are taken out of the peers' message streams in onPreMessageReceived(), so this has to be added
+ * to the PeerGroup with Threading.SAME_THREAD (start() does that). When it's done, failed or was cancelled, the
+ * chain is wherever it got to and PeerGroup's normal chain download should take over from there.
+ */
+public class ParallelBlockDownloader extends AbstractPeerEventListener {
+    public static final int DEFAULT_RANGE_SIZE = 500;
+
+    // not worth it for fewer blocks than this
+    public static final int MIN_BLOCKS = 2000;
+
+    static final long STALL_TIMEOUT_MS = 20000;
+    static final long HEADERS_TIMEOUT_MS = 30000;
+
+    // how far ahead of the chain blocks may be downloaded, in ranges
+    private static final int MAX_RANGES_AHEAD = 10;
+
+    // a peer downloading at less than this fraction of the median rate is replaced
+    private static final double MIN_RELATIVE_RATE = 0.25;
+
+    private static final Logger log = LoggerFactory.getLogger(ParallelBlockDownloader.class);
+
+    /** Heights requested from one peer at once. */
+    private static class Range {
+        final List<Integer> heights;
+
+        // peers that answered with a notfound for these heights
+        final HashSet<Peer> notFoundBy = new HashSet<Peer>();
+
+        long requestTime;
+        long lastProgressTime;
+
+        Range(List<Integer> heights) {
+            this.heights = heights;
+        }
+    }
+
+    private static class PeerState {
+        Range range;
+        FilteredBlock currentBlock;
+        double blocksPerSecond;
+    }
+
+    private final NetworkParameters params;
+    private final PeerGroup peerGroup;
+    private final AbstractBlockChain chain;
+    private final int rangeSize;
+
+    private final HashMap<Peer, PeerState> peerStates = new HashMap<Peer, PeerState>();
+    private final HashSet<Peer> replacedPeers = new HashSet<Peer>();
+    private final List<Peer> replacedPeersToClose = new ArrayList<Peer>();
+    private final LinkedList<Range> queue = new LinkedList<Range>();
+    private final HashMap<Integer, FilteredBlock> downloaded = new HashMap<Integer, FilteredBlock>();
+
+    private Peer headersPeer;
+    private SettableFuture<List<Block>> headersFuture;
+
+    private List<Block> headers;
+    private HashMap<Sha256Hash, Integer> heights;
+    private int firstHeight;
+    private int firstFilteredHeight;
+    private int nextHeight;
+
+    private long stallTimeoutMs = STALL_TIMEOUT_MS;
+    private volatile boolean cancelled;
+    private Thread thread;
+
+    public ParallelBlockDownloader(NetworkParameters params, PeerGroup peerGroup, AbstractBlockChain chain) {
+        this(params, peerGroup, chain, DEFAULT_RANGE_SIZE);
+    }
+
+    public ParallelBlockDownloader(NetworkParameters params, PeerGroup peerGroup, AbstractBlockChain chain,
+                                   int rangeSize) {
+        this.params = params;
+        this.peerGroup = peerGroup;
+        this.chain = chain;
+        this.rangeSize = rangeSize;
+    }
+
+    /** For tests, which don't want to wait 20 s for a stall. */
+    synchronized void setStallTimeout(long milliseconds) {
+        stallTimeoutMs = milliseconds;
+    }
+
+    /**
+     * Starts downloading on a new thread. progressListener gets the same onChainDownloadStarted() and
+     * onBlocksDownloaded() calls as with PeerGroup's download (with a null peer), whenDone is called on that thread
+     * at the end in any case.
+     */
+    public synchronized void start(final PeerEventListener progressListener, final Runnable whenDone) {
+        peerGroup.addEventListener(this, Threading.SAME_THREAD);
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    download(progressListener);
+                } catch (InterruptedException e) {
+                    log.info("Parallel block download cancelled");
+                } catch (Exception e) {
+                    log.warn("Parallel block download failed: " + e);
+                } finally {
+                    peerGroup.removeEventListener(ParallelBlockDownloader.this);
+                    whenDone.run();
+                }
+            }
+        }, "BitcoinKit block download");
+
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void cancel() {
+        cancelled = true;
+
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void download(PeerEventListener progressListener) throws Exception {
+        peerGroup.waitForPeers(1).get();
+
+        long startTime = System.currentTimeMillis();
+        StoredBlock chainHead = chain.getChainHead();
+        List<Block> newHeaders = downloadHeaders(chainHead);
+
+        if (newHeaders.size() < MIN_BLOCKS) {
+            log.info("Only " + newHeaders.size() + " blocks to download, leaving it to the download peer");
+            return;
+        }
+
+        prepare(chainHead, newHeaders);
+
+        log.info("Downloading blocks " + firstHeight + " to " + (firstHeight + headers.size() - 1) + " in parallel"
+                + " (headers took " + (System.currentTimeMillis() - startTime) + " ms)");
+
+        progressListener.onChainDownloadStarted(null, headers.size());
+        int lastHeight = firstHeight + headers.size() - 1;
+
+        while (true) {
+            if (cancelled) {
+                throw new InterruptedException();
+            }
+
+            int height = getNextHeight();
+
+            if (height > lastHeight) {
+                break;
+            }
+
+            boolean added;
+
+            if (height < firstFilteredHeight) {
+                added = chain.add(getHeader(height));
+
+                synchronized (this) {
+                    nextHeight++;
+                }
+            } else {
+                FilteredBlock block = takeNextBlock();
+
+                if (block == null) {
+                    scheduleAndWait();
+                    continue;
+                }
+
+                added = chain.add(block);
+            }
+
+            if (!added) {
+                throw new VerificationException("Block " + height + " doesn't connect to the chain");
+            }
+
+            progressListener.onBlocksDownloaded(null, getHeader(height), lastHeight - height);
+        }
+
+        log.info("Downloaded " + headers.size() + " blocks in parallel in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+
+    /* --- Headers --- */
+
+    private List<Block> downloadHeaders(StoredBlock chainHead) throws Exception {
+        Peer peer = peerGroup.getDownloadPeer();
+
+        if (peer == null) {
+            peer = peerGroup.getConnectedPeers().get(0);
+        }
+
+        List<Block> newHeaders = new ArrayList<Block>();
+        Sha256Hash lastHash = chainHead.getHeader().getHash();
+
+        while (true) {
+            SettableFuture<List<Block>> future = SettableFuture.create();
+
+            synchronized (this) {
+                headersPeer = peer;
+                headersFuture = future;
+            }
+
+            List<Sha256Hash> locator = Collections.singletonList(lastHash);
+            peer.sendMessage(new GetHeadersMessage(params, locator, Sha256Hash.ZERO_HASH));
+
+            List<Block> received = future.get(HEADERS_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            for (Block header : received) {
+                if (!header.getPrevBlockHash().equals(lastHash)) {
+                    throw new VerificationException("Headers from " + peer + " don't connect to the chain head");
+                }
+
+                header.verifyHeader();
+                newHeaders.add(header);
+                lastHash = header.getHash();
+            }
+
+            if (received.size() < HeadersMessage.MAX_HEADERS) {
+                return newHeaders;
+            }
+        }
+    }
+
+    private void prepare(StoredBlock chainHead, List<Block> newHeaders) {
+        headers = newHeaders;
+        heights = new HashMap<Sha256Hash, Integer>(newHeaders.size() * 2);
+        firstHeight = chainHead.getHeight() + 1;
+        nextHeight = firstHeight;
+        firstFilteredHeight = firstHeight;
+
+        // like PeerGroup, only headers are needed for blocks from before the wallet's first key
+        long fastCatchupTime = peerGroup.getFastCatchupTimeSecs();
+
+        while (firstFilteredHeight - firstHeight < headers.size()
+                && getHeader(firstFilteredHeight).getTimeSeconds() < fastCatchupTime) {
+            firstFilteredHeight++;
+        }
+
+        for (int i = 0; i < newHeaders.size(); i++) {
+            heights.put(newHeaders.get(i).getHash(), firstHeight + i);
+        }
+
+        int lastHeight = firstHeight + headers.size() - 1;
+
+        for (int start = firstFilteredHeight; start <= lastHeight; start += rangeSize) {
+            List<Integer> rangeHeights = new ArrayList<Integer>(rangeSize);
+
+            for (int height = start; height < start + rangeSize && height <= lastHeight; height++) {
+                rangeHeights.add(height);
+            }
+
+            queue.add(new Range(rangeHeights));
+        }
+    }
+
+    private Block getHeader(int height) {
+        return headers.get(height - firstHeight);
+    }
+
+
+    /* --- Scheduling --- */
+
+    private synchronized int getNextHeight() {
+        return nextHeight;
+    }
+
+    /** Returns the next block if it's there, and moves on to the one after it. */
+    private synchronized FilteredBlock takeNextBlock() {
+        FilteredBlock block = downloaded.remove(nextHeight);
+
+        if (block != null) {
+            nextHeight++;
+        }
+
+        return block;
+    }
+
+    /** Requests more blocks from idle peers, replaces stalled ones, then waits a bit for the next block. */
+    private void scheduleAndWait() throws InterruptedException {
+        HashMap<Peer, Range> requests = new HashMap<Peer, Range>();
+        List<Peer> closing;
+
+        synchronized (this) {
+            checkStalledPeers();
+            assignRanges(requests);
+            checkUnavailableBlocks();
+
+            closing = new ArrayList<Peer>(replacedPeersToClose);
+            replacedPeersToClose.clear();
+        }
+
+        // talking to peers while holding the lock could deadlock with their network threads
+        for (Peer peer : closing) {
+            // PeerGroup will connect to another one
+            peer.close();
+        }
+
+        for (Map.Entry<Peer, Range> request : requests.entrySet()) {
+            request(request.getKey(), request.getValue());
+        }
+
+        synchronized (this) {
+            if (!downloaded.containsKey(nextHeight)) {
+                wait(200);
+            }
+        }
+    }
+
+    private void assignRanges(HashMap<Peer, Range> requests) {
+        int maxHeight = nextHeight + MAX_RANGES_AHEAD * rangeSize;
+
+        for (Peer peer : peerGroup.getConnectedPeers()) {
+            if (queue.isEmpty() || queue.getFirst().heights.get(0) > maxHeight) {
+                return;
+            }
+
+            if (!isUsable(peer)) {
+                continue;
+            }
+
+            PeerState state = peerStates.get(peer);
+
+            if (state == null) {
+                state = new PeerState();
+                peerStates.put(peer, state);
+            }
+
+            if (state.range == null) {
+                Range range = takeRange(peer, maxHeight);
+
+                if (range != null) {
+                    range.requestTime = range.lastProgressTime = System.currentTimeMillis();
+                    state.range = range;
+                    requests.put(peer, range);
+                }
+            }
+        }
+    }
+
+    private boolean isUsable(Peer peer) {
+        return !replacedPeers.contains(peer)
+                && peer.getPeerVersionMessage().clientVersion >= FilteredBlock.MIN_PROTOCOL_VERSION;
+    }
+
+    /** Takes the first queued range up to maxHeight that the peer didn't already say it doesn't have. */
+    private Range takeRange(Peer peer, int maxHeight) {
+        Iterator<Range> iterator = queue.iterator();
+
+        while (iterator.hasNext()) {
+            Range range = iterator.next();
+
+            if (range.heights.get(0) > maxHeight) {
+                return null;
+            }
+
+            if (!range.notFoundBy.contains(peer)) {
+                iterator.remove();
+                return range;
+            }
+        }
+
+        return null;
+    }
+
+    /** Gives up (so that PeerGroup's download takes over) if all peers said they don't have some blocks. */
+    private void checkUnavailableBlocks() {
+        List<Peer> usablePeers = new ArrayList<Peer>();
+
+        for (Peer peer : peerGroup.getConnectedPeers()) {
+            if (isUsable(peer)) {
+                usablePeers.add(peer);
+            }
+        }
+
+        for (Range range : queue) {
+            if (!range.notFoundBy.isEmpty() && range.notFoundBy.containsAll(usablePeers)) {
+                throw new VerificationException("None of the peers has block " + range.heights.get(0));
+            }
+        }
+    }
+
+    private void request(Peer peer, Range range) {
+        GetDataMessage getData = new GetDataMessage(params);
+
+        for (int height : range.heights) {
+            getData.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, getHeader(height).getHash()));
+        }
+
+        try {
+            peer.sendMessage(getData);
+
+            // the pong ends the last block's transactions
+            peer.ping();
+        } catch (Exception e) {
+            log.warn("Couldn't request blocks from " + peer + ": " + e);
+
+            synchronized (this) {
+                PeerState state = peerStates.get(peer);
+
+                if (state != null && state.range == range) {
+                    requeue(state);
+                }
+            }
+        }
+    }
+
+    private void checkStalledPeers() {
+        long now = System.currentTimeMillis();
+
+        for (Peer peer : new ArrayList<Peer>(peerStates.keySet())) {
+            PeerState state = peerStates.get(peer);
+
+            if (state.range != null && now - state.range.lastProgressTime > stallTimeoutMs) {
+                log.info("Peer " + peer + " stalled, giving its blocks to another peer");
+                replace(peer, state);
+            }
+        }
+    }
+
+    private void replace(Peer peer, PeerState state) {
+        requeue(state);
+        peerStates.remove(peer);
+        replacedPeers.add(peer);
+        replacedPeersToClose.add(peer);
+    }
+
+    /** Puts the heights of the range that weren't downloaded back at the front of the queue. */
+    private void requeue(PeerState state) {
+        if (state.range == null) {
+            return;
+        }
+
+        List<Integer> missing = new ArrayList<Integer>();
+
+        for (int height : state.range.heights) {
+            if (!downloaded.containsKey(height) && height >= nextHeight) {
+                missing.add(height);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Range range = new Range(missing);
+            range.notFoundBy.addAll(state.range.notFoundBy);
+            queue.addFirst(range);
+        }
+
+        state.range = null;
+        state.currentBlock = null;
+    }
+
+    private void rangeFinished(Peer peer, PeerState state) {
+        Range range = state.range;
+        long time = Math.max(System.currentTimeMillis() - range.requestTime, 1);
+        state.blocksPerSecond = 1000.0 * range.heights.size() / time;
+
+        requeue(state);
+
+        double medianRate = getMedianRate();
+
+        if (peerStates.size() > 2 && state.blocksPerSecond < medianRate * MIN_RELATIVE_RATE) {
+            log.info("Peer " + peer + " is slow (" + (int) state.blocksPerSecond + " blocks/s, median "
+                    + (int) medianRate + "), replacing it");
+            replace(peer, state);
+        }
+    }
+
+    private double getMedianRate() {
+        List<Double> rates = new ArrayList<Double>();
+
+        for (PeerState state : peerStates.values()) {
+            if (state.blocksPerSecond > 0) {
+                rates.add(state.blocksPerSecond);
+            }
+        }
+
+        if (rates.isEmpty()) {
+            return 0;
+        }
+
+        Collections.sort(rates);
+        return rates.get(rates.size() / 2);
+    }
+
+
+    /* --- PeerEventListener --- */
+
+    @Override
+    public synchronized Message onPreMessageReceived(Peer peer, Message message) {
+        if (message instanceof HeadersMessage && peer == headersPeer && headersFuture != null) {
+            headersFuture.set(((HeadersMessage) message).getBlockHeaders());
+            headersFuture = null;
+            return null;
+        }
+
+        PeerState state = peerStates.get(peer);
+
+        if (state == null || state.range == null) {
+            return message;
+        }
+
+        if (message instanceof Transaction && state.currentBlock != null) {
+            try {
+                if (state.currentBlock.provideTransaction((Transaction) message)) {
+                    return null;
+                }
+            } catch (VerificationException e) {
+                log.warn("Invalid transaction from " + peer + ": " + e);
+            }
+        }
+
+        finishBlock(state);
+
+        if (message instanceof FilteredBlock) {
+            FilteredBlock block = (FilteredBlock) message;
+            Integer height = heights.get(block.getHash());
+
+            if (height != null && state.range.heights.contains(height)) {
+                state.currentBlock = block;
+                state.range.lastProgressTime = System.currentTimeMillis();
+                return null;
+            }
+        } else if (message instanceof NotFoundMessage) {
+            // the range is finished without those, they go back to the queue for another peer
+            List<Integer> notFound = new ArrayList<Integer>();
+
+            for (InventoryItem item : ((NotFoundMessage) message).getItems()) {
+                Integer height = heights.get(item.hash);
+
+                if (height != null && state.range.heights.remove(height)) {
+                    notFound.add(height);
+                }
+            }
+
+            if (!notFound.isEmpty()) {
+                Range range = new Range(notFound);
+                range.notFoundBy.addAll(state.range.notFoundBy);
+                range.notFoundBy.add(peer);
+                queue.addFirst(range);
+            }
+        }
+
+        if (isRangeComplete(state.range)) {
+            rangeFinished(peer, state);
+        }
+
+        return message;
+    }
+
+    private void finishBlock(PeerState state) {
+        if (state.currentBlock != null) {
+            downloaded.put(heights.get(state.currentBlock.getHash()), state.currentBlock);
+            state.currentBlock = null;
+            notifyAll();
+        }
+    }
+
+    private boolean isRangeComplete(Range range) {
+        for (int height : range.heights) {
+            if (height >= nextHeight && !downloaded.containsKey(height)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized void onPeerDisconnected(Peer peer, int peerCount) {
+        PeerState state = peerStates.remove(peer);
+
+        if (state != null && state.range != null) {
+            finishBlock(state);
+            requeue(state);
+        }
+
+        replacedPeers.remove(peer);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ParallelBlockDownloader: next height " + nextHeight + ", " + downloaded.size() + " blocks waiting, "
+                + queue.size() + " ranges queued, " + peerStates.size() + " peers";
+    }
+}
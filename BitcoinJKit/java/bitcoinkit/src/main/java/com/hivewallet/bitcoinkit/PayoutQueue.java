@@ -0,0 +1,328 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects payouts to many recipients and sends them together in one transaction with an output for each, so that
+ * the inputs, the change output and the fee are shared, and the password only needs to be derived once (when the
+ * queue is opened; the key is kept until it's closed).
+ *
+ * Payouts are sent after the maximum delay passes since the first unsent one, or right away when the maximum number
+ * of payouts is reached. If the wallet can't pay for all of them, the ones that were enqueued first are sent and the
+ * rest fail; if the transaction would be too large, the rest are sent in another one.
+ */
+public class PayoutQueue {
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+    public static final long DEFAULT_MAX_DELAY_MS = 60000;
+
+    private static final Logger log = LoggerFactory.getLogger(PayoutQueue.class);
+
+    public interface Listener {
+        /** Called for each payout when the transaction paying it was broadcast. */
+        void onPayoutSent(int callbackId, String txid);
+
+        void onPayoutFailed(int callbackId, Throwable error);
+    }
+
+    private static class Entry {
+        final Address address;
+        final BigInteger amount;
+        final int callbackId;
+
+        Entry(Address address, BigInteger amount, int callbackId) {
+            this.address = address;
+            this.amount = amount;
+            this.callbackId = callbackId;
+        }
+    }
+
+    private final WalletHandle walletHandle;
+    private final Wallet wallet;
+    private final Listener listener;
+    private final int maxEntries;
+    private final long maxDelayMs;
+    private final ScheduledExecutorService executor;
+    private final Runnable flushTask;
+
+    // guards the pending entries and the scheduled flush; sendLock is held while a batch is being sent
+    private final Object lock = new Object();
+    private final Object sendLock = new Object();
+
+    private final List<Entry> pending;
+    private Future<?> scheduledFlush;
+    private boolean closed;
+    private KeyParameter aesKey;
+
+    private final AtomicLong sentPayouts = new AtomicLong();
+    private final AtomicLong failedPayouts = new AtomicLong();
+    private final AtomicLong transactions = new AtomicLong();
+    private final AtomicLong fees = new AtomicLong();
+
+    /** The queue takes over the AES key (null if the wallet isn't encrypted) and wipes it when it's closed. */
+    public PayoutQueue(WalletHandle walletHandle, KeyParameter aesKey, int maxEntries, long maxDelayMs,
+                       Listener listener) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+
+        this.walletHandle = walletHandle;
+        this.wallet = walletHandle.getWallet();
+        this.aesKey = aesKey;
+        this.maxEntries = maxEntries;
+        this.maxDelayMs = maxDelayMs;
+        this.listener = listener;
+        this.pending = new ArrayList<Entry>();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("BitcoinKit payout queue").setDaemon(true).build());
+
+        this.flushTask = new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    log.error("Couldn't send payouts", e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Adds a payout; the listener is called with the callback id once it was sent or failed.
+     * @throws IllegalArgumentException if the amount is dust
+     */
+    public void enqueue(Address address, BigInteger amount, int callbackId) {
+        if (amount.compareTo(Transaction.MIN_NONDUST_OUTPUT) < 0) {
+            throw new IllegalArgumentException("Payout amount " + amount + " is too small to be sent");
+        }
+
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("The payout queue is closed");
+            }
+
+            pending.add(new Entry(address, amount, callbackId));
+
+            if (pending.size() >= maxEntries) {
+                if (scheduledFlush != null) {
+                    scheduledFlush.cancel(false);
+                }
+
+                scheduledFlush = executor.submit(flushTask);
+            } else if (scheduledFlush == null) {
+                scheduledFlush = executor.schedule(flushTask, maxDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    /** Sends all pending payouts now, on the calling thread. */
+    public void flush() {
+        synchronized (sendLock) {
+            while (true) {
+                List<Entry> batch;
+
+                synchronized (lock) {
+                    if (scheduledFlush != null) {
+                        scheduledFlush.cancel(false);
+                        scheduledFlush = null;
+                    }
+
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+
+                    List<Entry> first = pending.subList(0, Math.min(pending.size(), maxEntries));
+                    batch = new ArrayList<Entry>(first);
+                    first.clear();
+                }
+
+                send(batch);
+            }
+        }
+    }
+
+    /** Fails the payouts that weren't sent yet, stops the timer and wipes the key. */
+    public void close() {
+        List<Entry> unsent;
+
+        synchronized (lock) {
+            closed = true;
+
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+
+            unsent = new ArrayList<Entry>(pending);
+            pending.clear();
+        }
+
+        executor.shutdown();
+
+        // wait for a batch that's being sent
+        synchronized (sendLock) {
+            WalletHandle.wipeAesKey(aesKey);
+            aesKey = null;
+        }
+
+        fail(unsent, 0, new IllegalStateException("The payout queue was closed"));
+    }
+
+    private void send(List<Entry> batch) {
+        Wallet.SendRequest completed = null;
+        Exception tooMany = null;
+
+        // find the longest run of payouts (from the start) that the wallet can pay in one transaction;
+        // usually the first try, otherwise a binary search between the counts that fit and didn't fit
+        int fits = 0;
+        int fails = batch.size() + 1;
+        int count = batch.size();
+
+        try {
+            while (fits + 1 < fails) {
+                try {
+                    completed = complete(batch, count);
+                    fits = count;
+                } catch (InsufficientMoneyException e) {
+                    tooMany = e;
+                    fails = count;
+                } catch (IllegalArgumentException e) {
+                    // completeTx throws this when the transaction would be too large (dust is checked in enqueue)
+                    tooMany = e;
+                    fails = count;
+                }
+
+                count = (fits + fails) >>> 1;
+            }
+        } catch (KeyCrypterException e) {
+            fail(batch, 0, new WrongPasswordException(e));
+            return;
+        } catch (RuntimeException e) {
+            fail(batch, 0, e);
+            return;
+        }
+
+        if (fits < batch.size()) {
+            boolean requeued = false;
+
+            if (tooMany instanceof IllegalArgumentException && fits > 0) {
+                synchronized (lock) {
+                    if (!closed) {
+                        pending.addAll(0, batch.subList(fits, batch.size()));
+                        requeued = true;
+                    }
+                }
+            }
+
+            if (!requeued) {
+                fail(batch, fits, tooMany);
+            }
+        }
+
+        if (completed != null) {
+            broadcast(batch.subList(0, fits), completed.tx);
+        }
+    }
+
+    private Wallet.SendRequest complete(List<Entry> batch, int count) throws InsufficientMoneyException {
+        Transaction tx = walletHandle.newTransaction();
+
+        for (int i = 0; i < count; i++) {
+            Entry entry = batch.get(i);
+            tx.addOutput(entry.amount, entry.address);
+        }
+
+        Wallet.SendRequest request = Wallet.SendRequest.forTx(tx);
+        request.aesKey = aesKey;
+        wallet.completeTx(request);
+        return request;
+    }
+
+    private void broadcast(final List<Entry> entries, final Transaction tx) {
+        ListenableFuture<Transaction> future;
+
+        try {
+            future = walletHandle.commitAndBroadcast(tx);
+        } catch (RuntimeException e) {
+            fail(entries, 0, e);
+            return;
+        }
+
+        transactions.incrementAndGet();
+        fees.addAndGet(getFee(tx));
+        log.info("Sending " + entries.size() + " payouts in transaction " + tx.getHashAsString());
+
+        Futures.addCallback(future, new FutureCallback<Transaction>() {
+            public void onSuccess(Transaction transaction) {
+                String txid = tx.getHashAsString();
+
+                for (Entry entry : entries) {
+                    sentPayouts.incrementAndGet();
+                    listener.onPayoutSent(entry.callbackId, txid);
+                }
+            }
+
+            public void onFailure(Throwable throwable) {
+                fail(entries, 0, throwable);
+            }
+        });
+    }
+
+    private void fail(List<Entry> entries, int from, Throwable error) {
+        for (Entry entry : entries.subList(from, entries.size())) {
+            failedPayouts.incrementAndGet();
+            listener.onPayoutFailed(entry.callbackId, error);
+        }
+    }
+
+    private static long getFee(Transaction tx) {
+        long fee = 0;
+
+        for (TransactionInput input : tx.getInputs()) {
+            fee += input.getConnectedOutput().getValue().longValue();
+        }
+
+        for (TransactionOutput output : tx.getOutputs()) {
+            fee -= output.getValue().longValue();
+        }
+
+        return fee;
+    }
+
+    @Override
+    public String toString() {
+        long count = transactions.get();
+
+        return "PayoutQueue: " + sentPayouts.get() + " payouts sent in " + count + " transactions, "
+                + failedPayouts.get() + " failed, " + getPendingCount() + " pending, " + fees.get() + " fees paid"
+                + ((count > 0) ? " (" + fees.get() / count + " per transaction)" : "");
+    }
+}
@@ -0,0 +1,385 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.net.discovery.PeerDiscovery;
+import com.google.bitcoin.net.discovery.PeerDiscoveryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the peers that BitcoinKit connected to before, with their ping time, how fast they served blocks and
+ * how often connecting to them failed, and offers the best of them as a PeerDiscovery on the next start.
+ *
+ * PeerGroup only asks the next discovery if one returns no addresses, and doesn't keep the order of the addresses
+ * it gets. So this returns the known peers in small batches from the best down, and nothing once they've all been
+ * tried, which lets a discovery added after it (DNS) take over until the next round.
+ *
+ * The download speed is measured from the block and transaction messages a peer sends while blocks come in. During
+ * a filtered chain download that's the merkleblock plus the transactions that matched the filter, while
+ * onBlocksDownloaded() only gets the block header.
+ *
+ * Format: magic, version, network id, entry count, then per entry: address bytes (length + bytes), port, last
+ * success time, successes, failures, ping time, bytes downloaded and download time (ms). Version 1 only counted
+ * the block headers of a filtered download, so its download speeds are dropped when it's loaded.
+ */
+public class PeerDatabase extends AbstractPeerEventListener implements PeerDiscovery {
+    static final int MAGIC = 0x48504442;
+    static final int VERSION = 2;
+
+    public static final int DEFAULT_BATCH_SIZE = 8;
+    public static final int MAX_ENTRIES = 1000;
+
+    // peers that haven't worked for this long are forgotten
+    private static final long EXPIRY_MS = 30L * 24 * 60 * 60 * 1000;
+
+    // longer pauses between blocks mean the peer had nothing to send, not that it's slow
+    private static final long MAX_BLOCK_INTERVAL_MS = 10000;
+
+    private static final Logger log = LoggerFactory.getLogger(PeerDatabase.class);
+
+    static class Entry {
+        final InetSocketAddress address;
+        long lastSuccessTime;
+        int successes;
+        int failures;
+        long pingTime;
+        long bytesDownloaded;
+        long downloadTime;
+
+        Entry(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /** Higher is better: fast pings and downloads, weighted by how often connecting worked. */
+        double getScore() {
+            double latencyScore = 1000.0 / (((pingTime > 0) ? pingTime : 1000) + 50);
+            double throughputScore = Math.min(getBytesPerSecond() / 100000.0, 10);
+            double reliability = (successes + 1.0) / (successes + failures + 2.0);
+
+            return (latencyScore + throughputScore) * reliability;
+        }
+
+        double getBytesPerSecond() {
+            return (downloadTime > 0) ? 1000.0 * bytesDownloaded / downloadTime : 0;
+        }
+    }
+
+    private static class Session {
+        final Entry entry;
+        long lastBlockTime;
+
+        // block and transaction bytes received since the last block was downloaded
+        long bytesReceived;
+
+        Session(Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    private final NetworkParameters params;
+    private final File file;
+    private final HashMap<InetSocketAddress, Entry> entries = new HashMap<InetSocketAddress, Entry>();
+    private final HashMap<Peer, Session> sessions = new HashMap<Peer, Session>();
+
+    // addresses handed out in the current round, and those of the last batch that haven't connected yet
+    private final HashSet<InetSocketAddress> offered = new HashSet<InetSocketAddress>();
+    private final HashSet<InetSocketAddress> attempts = new HashSet<InetSocketAddress>();
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    public PeerDatabase(NetworkParameters params, File file) {
+        this.params = params;
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /** How many addresses are returned at a time, ideally a bit more than PeerGroup's maximum connections. */
+    public synchronized void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+
+    /* --- Loading & saving --- */
+
+    /** Loads the saved peers; a missing file just means there aren't any yet. */
+    public synchronized void load() throws IOException {
+        entries.clear();
+
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try {
+            int version = (stream.readInt() == MAGIC) ? stream.readInt() : -1;
+
+            if ((version != 1 && version != VERSION) || !params.getId().equals(stream.readUTF())) {
+                log.warn("Peer database is from another version or network, starting a new one");
+                return;
+            }
+
+            int count = stream.readInt();
+
+            for (int i = 0; i < count; i++) {
+                byte[] addressBytes = new byte[stream.readUnsignedByte()];
+                stream.readFully(addressBytes);
+
+                InetAddress address = InetAddress.getByAddress(addressBytes);
+                Entry entry = new Entry(new InetSocketAddress(address, stream.readInt()));
+                entry.lastSuccessTime = stream.readLong();
+                entry.successes = stream.readInt();
+                entry.failures = stream.readInt();
+                entry.pingTime = stream.readLong();
+                entry.bytesDownloaded = stream.readLong();
+                entry.downloadTime = stream.readLong();
+
+                if (version == 1) {
+                    entry.bytesDownloaded = 0;
+                    entry.downloadTime = 0;
+                }
+
+                entries.put(entry.address, entry);
+            }
+        } finally {
+            stream.close();
+        }
+
+        log.info("Loaded " + entries.size() + " known peers");
+    }
+
+    /** Saves the peers (including what's known about the connected ones so far) and drops the stale ones. */
+    public synchronized void save() throws IOException {
+        for (Peer peer : sessions.keySet()) {
+            updatePingTime(sessions.get(peer).entry, peer);
+        }
+
+        List<Entry> saved = getEntriesByScore();
+        long now = System.currentTimeMillis();
+
+        for (Entry entry : new ArrayList<Entry>(saved)) {
+            if (now - entry.lastSuccessTime > EXPIRY_MS) {
+                saved.remove(entry);
+            }
+        }
+
+        if (saved.size() > MAX_ENTRIES) {
+            saved = saved.subList(0, MAX_ENTRIES);
+        }
+
+        // write a temporary file first so that a crash can't leave a half-written database behind
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileStream = new FileOutputStream(temporaryFile);
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(fileStream));
+
+        try {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeUTF(params.getId());
+            stream.writeInt(saved.size());
+
+            for (Entry entry : saved) {
+                byte[] addressBytes = entry.address.getAddress().getAddress();
+                stream.writeByte(addressBytes.length);
+                stream.write(addressBytes);
+                stream.writeInt(entry.address.getPort());
+                stream.writeLong(entry.lastSuccessTime);
+                stream.writeInt(entry.successes);
+                stream.writeInt(entry.failures);
+                stream.writeLong(entry.pingTime);
+                stream.writeLong(entry.bytesDownloaded);
+                stream.writeLong(entry.downloadTime);
+            }
+
+            stream.flush();
+            fileStream.getFD().sync();
+        } finally {
+            stream.close();
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            // Windows can't rename over an existing file
+            file.delete();
+
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Could not move " + temporaryFile + " to " + file);
+            }
+        }
+    }
+
+    synchronized Entry getEntry(InetSocketAddress address) {
+        return entries.get(address);
+    }
+
+    private List<Entry> getEntriesByScore() {
+        List<Entry> sorted = new ArrayList<Entry>(entries.values());
+
+        Collections.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry entry1, Entry entry2) {
+                return Double.compare(entry2.getScore(), entry1.getScore());
+            }
+        });
+
+        return sorted;
+    }
+
+
+    /* --- PeerDiscovery --- */
+
+    @Override
+    public synchronized InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit)
+            throws PeerDiscoveryException {
+        // PeerGroup only asks again when it has run out of addresses, so the last batch didn't connect
+        for (InetSocketAddress address : attempts) {
+            Entry entry = entries.get(address);
+
+            if (entry != null) {
+                entry.failures++;
+            }
+        }
+
+        attempts.clear();
+
+        List<InetSocketAddress> batch = new ArrayList<InetSocketAddress>(batchSize);
+
+        for (Entry entry : getEntriesByScore()) {
+            if (batch.size() == batchSize) {
+                break;
+            }
+
+            if (!offered.contains(entry.address) && !isConnected(entry.address)) {
+                batch.add(entry.address);
+            }
+        }
+
+        if (batch.isEmpty()) {
+            // all known peers were tried, leave it to the next discovery and start over next time
+            offered.clear();
+        } else {
+            offered.addAll(batch);
+            attempts.addAll(batch);
+        }
+
+        return batch.toArray(new InetSocketAddress[batch.size()]);
+    }
+
+    private boolean isConnected(InetSocketAddress address) {
+        for (Peer peer : sessions.keySet()) {
+            if (peer.getAddress().toSocketAddress().equals(address)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+
+    /* --- PeerEventListener --- */
+
+    @Override
+    public synchronized void onPeerConnected(Peer peer, int peerCount) {
+        InetSocketAddress address = peer.getAddress().toSocketAddress();
+        Entry entry = entries.get(address);
+
+        if (entry == null) {
+            entry = new Entry(address);
+            entries.put(address, entry);
+        }
+
+        entry.successes++;
+        entry.lastSuccessTime = System.currentTimeMillis();
+
+        attempts.remove(address);
+        sessions.put(peer, new Session(entry));
+    }
+
+    @Override
+    public synchronized void onPeerDisconnected(Peer peer, int peerCount) {
+        Session session = sessions.remove(peer);
+
+        if (session != null) {
+            updatePingTime(session.entry, peer);
+        }
+    }
+
+    @Override
+    public synchronized Message onPreMessageReceived(Peer peer, Message message) {
+        if (message instanceof Block || message instanceof FilteredBlock || message instanceof Transaction) {
+            Session session = sessions.get(peer);
+
+            if (session != null) {
+                session.bytesReceived += message.getMessageSize();
+            }
+        }
+
+        return message;
+    }
+
+    @Override
+    public synchronized void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+        Session session = sessions.get(peer);
+
+        if (session == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        if (session.lastBlockTime > 0 && now - session.lastBlockTime <= MAX_BLOCK_INTERVAL_MS) {
+            session.entry.bytesDownloaded += session.bytesReceived;
+            session.entry.downloadTime += now - session.lastBlockTime;
+        }
+
+        session.bytesReceived = 0;
+        session.lastBlockTime = now;
+    }
+
+    private static void updatePingTime(Entry entry, Peer peer) {
+        long pingTime = peer.getPingTime();
+
+        if (pingTime > 0 && pingTime < Long.MAX_VALUE) {
+            entry.pingTime = pingTime;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PeerDatabase: " + entries.size() + " peers, " + sessions.size() + " connected";
+    }
+}
@@ -0,0 +1,166 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.SecureRandom;
+
+/**
+ * Picks scrypt parameters for wallet encryption so that deriving the key takes about the target time on this
+ * computer, instead of the fixed cost of new KeyCrypterScrypt() (which is a lot faster on some machines than on
+ * others). The parameters are saved in the wallet together with the encrypted keys.
+ *
+ * The memory cost (N) is doubled while the derivation stays within the target time and memory budget; if the budget
+ * is reached first, the parallelization (p) makes up the rest of the time. The parameters are never weaker than
+ * bitcoinj's defaults (N = 16384, r = 8, p = 1), even if the target time is shorter than that takes.
+ */
+public class ScryptCalibrator {
+    public static final long DEFAULT_TARGET_TIME_MS = 250;
+    public static final long DEFAULT_MEMORY_BUDGET = 64 * 1024 * 1024;
+
+    private static final Logger log = LoggerFactory.getLogger(ScryptCalibrator.class);
+
+    static final long MIN_N = 16384;
+    static final int R = 8;
+    static final int MAX_P = 64;
+
+    // the Java implementation of scrypt computes 128 * r * N as an int and rejects larger N, so 2^20 with r = 8
+    static final long MAX_N = Integer.highestOneBit(Integer.MAX_VALUE / 128 / R);
+
+    // N for the measurement, small enough to be quick on slow machines and large enough to be measurable
+    private static final long SAMPLE_N = 4096;
+    private static final int SAMPLE_RUNS = 3;
+
+    private static final SecureRandom secureRandom = new SecureRandom();
+
+    private long targetTimeMs = DEFAULT_TARGET_TIME_MS;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    // calibrated N and p, or 0 until calibrate is called
+    private long n;
+    private int p;
+    private long measuredTimeMs;
+
+    public synchronized long getTargetTime() {
+        return targetTimeMs;
+    }
+
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /** Sets the target derivation time and the maximum memory used for it; the next key crypter is recalibrated. */
+    public synchronized void setTarget(long targetTimeMs, long memoryBudget) {
+        if (targetTimeMs <= 0 || memoryBudget <= 0) {
+            throw new IllegalArgumentException("Target time and memory budget must be positive");
+        }
+
+        this.targetTimeMs = targetTimeMs;
+        this.memoryBudget = memoryBudget;
+        this.n = 0;
+    }
+
+    synchronized long getN() {
+        return n;
+    }
+
+    synchronized int getP() {
+        return p;
+    }
+
+    /** Returns a key crypter with the calibrated parameters and a new salt; calibrates first if needed. */
+    public synchronized KeyCrypterScrypt createKeyCrypter() {
+        if (n == 0) {
+            calibrate();
+        }
+
+        byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
+        secureRandom.nextBytes(salt);
+
+        return new KeyCrypterScrypt(createParameters(salt, n, p));
+    }
+
+    /** Measures scrypt on this computer and picks the parameters for the current target. */
+    public synchronized void calibrate() {
+        long start = System.currentTimeMillis();
+
+        // the first runs include class loading and JIT compilation
+        derive(SAMPLE_N / 4, 1);
+        derive(SAMPLE_N / 4, 1);
+
+        double sampleNs = Double.MAX_VALUE;
+
+        for (int i = 0; i < SAMPLE_RUNS; i++) {
+            sampleNs = Math.min(sampleNs, derive(SAMPLE_N, 1));
+        }
+
+        // the time grows linearly with N and p
+        double nsPerN = sampleNs / SAMPLE_N;
+        double targetNs = targetTimeMs * 1000000.0;
+        long maxMemory = Math.min(memoryBudget, Runtime.getRuntime().maxMemory() / 4);
+
+        long newN = MIN_N;
+
+        while (newN * 2 <= MAX_N && getMemoryUsage(newN * 2) <= maxMemory && nsPerN * newN * 2 <= targetNs) {
+            newN *= 2;
+        }
+
+        int newP = (int) Math.max(1, Math.min(MAX_P, Math.floor(targetNs / (nsPerN * newN))));
+
+        long time = derive(newN, newP);
+
+        // large N can be slower than the estimate once the memory doesn't fit in the caches anymore
+        while (time > targetNs * 3 / 2 && newN > MIN_N) {
+            newN /= 2;
+            time = derive(newN, newP);
+        }
+
+        n = newN;
+        p = newP;
+        measuredTimeMs = time / 1000000;
+
+        log.info("Calibrated scrypt in " + (System.currentTimeMillis() - start) + " ms: " + this);
+    }
+
+    private static long derive(long n, int p) {
+        byte[] salt = new byte[KeyCrypterScrypt.SALT_LENGTH];
+        KeyCrypterScrypt crypter = new KeyCrypterScrypt(createParameters(salt, n, p));
+
+        long start = System.nanoTime();
+        crypter.deriveKey("calibration");
+        return System.nanoTime() - start;
+    }
+
+    private static Protos.ScryptParameters createParameters(byte[] salt, long n, int p) {
+        return Protos.ScryptParameters.newBuilder()
+                .setSalt(ByteString.copyFrom(salt))
+                .setN(n)
+                .setR(R)
+                .setP(p)
+                .build();
+    }
+
+    /** The memory used by scrypt for N (and r = 8), not counting the much smaller buffers for p. */
+    private static long getMemoryUsage(long n) {
+        return 128L * R * n;
+    }
+
+    /** Describes the parameters of a wallet's key crypter. */
+    public static String describe(Protos.ScryptParameters parameters) {
+        return "N = " + parameters.getN() + ", r = " + parameters.getR() + ", p = " + parameters.getP()
+                + ", " + (128L * parameters.getR() * parameters.getN() / 1024 / 1024) + " MB";
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (n == 0) {
+            return "ScryptCalibrator: not calibrated, target " + targetTimeMs + " ms";
+        }
+
+        return "ScryptCalibrator: N = " + n + ", r = " + R + ", p = " + p + " (" + getMemoryUsage(n) / 1024 / 1024
+                + " MB), " + measuredTimeMs + " ms per key, target " + targetTimeMs + " ms";
+    }
+}
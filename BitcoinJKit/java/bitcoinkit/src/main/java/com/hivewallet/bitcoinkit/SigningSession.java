@@ -0,0 +1,131 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the AES key of an encrypted wallet for a limited time after it's unlocked, so that sending and signing
+ * don't need the password (and the scrypt key derivation that takes a large part of a second) each time.
+ *
+ * The session locks itself when it wasn't used for the idle timeout, or when the absolute timeout passes since it
+ * was unlocked, whichever comes first. The key is wiped then, also if nothing asks for it anymore.
+ */
+public class SigningSession {
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    public static final long DEFAULT_ABSOLUTE_TIMEOUT_MS = 30 * 60 * 1000;
+
+    // one thread for the expiry timers of all sessions
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("BitcoinKit signing session timer").setDaemon(true).build());
+
+    private final Runnable expiryTask;
+
+    private KeyParameter aesKey;
+    private long idleTimeoutNs;
+    private long lastUseTime;
+    private long expiryTime;
+    private ScheduledFuture<?> scheduledExpiry;
+
+    private long unlocks;
+    private long keysHandedOut;
+
+    public SigningSession() {
+        this.expiryTask = new Runnable() {
+            public void run() {
+                checkExpiry();
+            }
+        };
+    }
+
+    /** Takes over the key (wiping the previous one) until the timeouts pass or lock() is called. */
+    public synchronized void unlock(KeyParameter aesKey, long idleTimeoutMs, long absoluteTimeoutMs) {
+        if (idleTimeoutMs <= 0 || absoluteTimeoutMs <= 0) {
+            WalletHandle.wipeAesKey(aesKey);
+            throw new IllegalArgumentException("Timeouts must be positive");
+        }
+
+        lock();
+
+        long now = System.nanoTime();
+
+        this.aesKey = aesKey;
+        this.idleTimeoutNs = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.lastUseTime = now;
+        this.expiryTime = now + TimeUnit.MILLISECONDS.toNanos(absoluteTimeoutMs);
+        unlocks++;
+
+        scheduleExpiry(now);
+    }
+
+    public synchronized void lock() {
+        if (scheduledExpiry != null) {
+            scheduledExpiry.cancel(false);
+            scheduledExpiry = null;
+        }
+
+        WalletHandle.wipeAesKey(aesKey);
+        aesKey = null;
+    }
+
+    public synchronized boolean isUnlocked() {
+        checkExpiry();
+        return aesKey != null;
+    }
+
+    /**
+     * Returns a copy of the key, which the caller should wipe when it's done, or null if the session is locked.
+     * Counts as a use for the idle timeout.
+     */
+    public synchronized KeyParameter getKey() {
+        checkExpiry();
+
+        if (aesKey == null) {
+            return null;
+        }
+
+        lastUseTime = System.nanoTime();
+        keysHandedOut++;
+
+        return new KeyParameter(aesKey.getKey());
+    }
+
+    private synchronized void checkExpiry() {
+        if (aesKey == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        if (now - lastUseTime >= idleTimeoutNs || now - expiryTime >= 0) {
+            lock();
+        } else if (scheduledExpiry == null || scheduledExpiry.getDelay(TimeUnit.NANOSECONDS) <= 0) {
+            // the timer went off, but the session was used in the meantime
+            scheduleExpiry(now);
+        }
+    }
+
+    private void scheduleExpiry(long now) {
+        long delay = Math.min(lastUseTime + idleTimeoutNs, expiryTime) - now;
+        scheduledExpiry = timer.schedule(expiryTask, Math.max(delay, 0), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized String toString() {
+        long now = System.nanoTime();
+        String state;
+
+        if (aesKey != null) {
+            long remaining = Math.min(lastUseTime + idleTimeoutNs, expiryTime) - now;
+            state = "unlocked for " + Math.max(TimeUnit.NANOSECONDS.toSeconds(remaining), 0) + " s";
+        } else {
+            state = "locked";
+        }
+
+        return "SigningSession: " + state + ", " + unlocks + " unlocks, " + keysHandedOut + " key uses";
+    }
+}
@@ -0,0 +1,384 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.UnreadableWalletException;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads a wallet file in two stages. readCore() loads the keys, extensions, last seen block, unspent and pending
+ * transactions and whatever spends their outputs, which is everything the balance, the address and sending coins
+ * depend on. loadHistory() then adds the remaining spent and dead transactions to the same wallet on a background
+ * thread, and connects them to the transactions that were loaded first.
+ *
+ * The wallet must not be saved before the history is loaded, or the file would only keep the first stage.
+ */
+public class StagedWalletLoader {
+    private static final Logger log = LoggerFactory.getLogger(StagedWalletLoader.class);
+    private static final Method readTransaction = findMethod("readTransaction",
+            Protos.Transaction.class, NetworkParameters.class);
+    private static final Method connectTransactionOutputs = findMethod("connectTransactionOutputs",
+            Protos.Transaction.class);
+
+    /** A spent_by link that was left out of the first stage because the spending transaction wasn't loaded yet. */
+    private static class SpentByLink {
+        final Sha256Hash transaction;
+        final int outputIndex;
+        final Sha256Hash spentBy;
+        final int inputIndex;
+
+        SpentByLink(Sha256Hash transaction, int outputIndex, Sha256Hash spentBy, int inputIndex) {
+            this.transaction = transaction;
+            this.outputIndex = outputIndex;
+            this.spentBy = spentBy;
+            this.inputIndex = inputIndex;
+        }
+    }
+
+    /** Gives access to the transaction map, so that history can be connected to already loaded transactions. */
+    private static class HistorySerializer extends WalletProtobufSerializer {
+        void addTransaction(Transaction tx) {
+            txMap.put(ByteString.copyFrom(tx.getHash().getBytes()), tx);
+        }
+
+        Transaction getTransaction(ByteString hash) {
+            return txMap.get(hash);
+        }
+    }
+
+    private final File walletFile;
+    private final SettableFuture<Wallet> historyFuture = SettableFuture.create();
+
+    private Wallet wallet;
+    private List<Protos.Transaction> history;
+    private List<SpentByLink> deferredLinks;
+
+    public StagedWalletLoader(File walletFile) {
+        this.walletFile = walletFile;
+    }
+
+    private static Method findMethod(String name, Class<?>... parameterTypes) {
+        try {
+            Method method = WalletProtobufSerializer.class.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /** Staged loading needs access to WalletProtobufSerializer internals, so it's only possible if they're found. */
+    public static boolean isSupported() {
+        return readTransaction != null && connectTransactionOutputs != null;
+    }
+
+
+    /* --- First stage --- */
+
+    /** Loads everything but the spent and dead history into the wallet (also applies the journal, if there's one). */
+    public void readCore(Wallet wallet) throws IOException, UnreadableWalletException {
+        long startTime = System.currentTimeMillis();
+        Protos.Wallet snapshot;
+        InputStream stream = new BufferedInputStream(new FileInputStream(walletFile));
+
+        try {
+            snapshot = WalletProtobufSerializer.parseToProto(stream);
+        } finally {
+            stream.close();
+        }
+
+        Protos.Wallet walletData = WalletJournal.applyJournal(snapshot, WalletJournal.getJournalFile(walletFile));
+
+        HashSet<ByteString> core = findCoreTransactions(walletData);
+        List<Protos.Transaction> coreTransactions = new ArrayList<Protos.Transaction>(core.size());
+
+        history = new ArrayList<Protos.Transaction>();
+        deferredLinks = new ArrayList<SpentByLink>();
+
+        for (Protos.Transaction txProto : walletData.getTransactionList()) {
+            if (core.contains(txProto.getHash())) {
+                coreTransactions.add(removeLinksOutside(txProto, core));
+            } else {
+                history.add(txProto);
+            }
+        }
+
+        Protos.Wallet coreData = walletData.toBuilder().clearTransaction().addAllTransaction(coreTransactions).build();
+        new WalletProtobufSerializer().readWallet(coreData, wallet);
+        this.wallet = wallet;
+
+        log.info("Loaded " + coreTransactions.size() + " of " + walletData.getTransactionCount() + " wallet"
+                + " transactions in " + (System.currentTimeMillis() - startTime) + " ms, the rest will load later");
+    }
+
+    private static boolean isHistory(Protos.Transaction txProto) {
+        return txProto.getPool() == Protos.Transaction.Pool.SPENT || txProto.getPool() == Protos.Transaction.Pool.DEAD;
+    }
+
+    private static HashSet<ByteString> findCoreTransactions(Protos.Wallet walletData) {
+        HashSet<ByteString> core = new HashSet<ByteString>();
+
+        for (Protos.Transaction txProto : walletData.getTransactionList()) {
+            if (!isHistory(txProto)) {
+                core.add(txProto.getHash());
+
+                // whatever spends an unspent or pending output decides whether it's still available
+                for (Protos.TransactionOutput output : txProto.getTransactionOutputList()) {
+                    if (output.hasSpentByTransactionHash()) {
+                        core.add(output.getSpentByTransactionHash());
+                    }
+                }
+            }
+        }
+
+        return core;
+    }
+
+    private Protos.Transaction removeLinksOutside(Protos.Transaction txProto, HashSet<ByteString> core) {
+        Protos.Transaction.Builder builder = null;
+
+        for (int i = 0; i < txProto.getTransactionOutputCount(); i++) {
+            Protos.TransactionOutput output = txProto.getTransactionOutput(i);
+
+            if (output.hasSpentByTransactionHash() && !core.contains(output.getSpentByTransactionHash())) {
+                if (builder == null) {
+                    builder = txProto.toBuilder();
+                }
+
+                builder.getTransactionOutputBuilder(i).clearSpentByTransactionHash().clearSpentByTransactionIndex();
+
+                deferredLinks.add(new SpentByLink(
+                        new Sha256Hash(txProto.getHash().toByteArray()), i,
+                        new Sha256Hash(output.getSpentByTransactionHash().toByteArray()),
+                        output.getSpentByTransactionIndex()));
+            }
+        }
+
+        return (builder != null) ? builder.build() : txProto;
+    }
+
+
+    /* --- Second stage --- */
+
+    public int getPendingHistoryCount() {
+        return (history != null) ? history.size() : 0;
+    }
+
+    /**
+     * Starts adding the remaining transactions to the wallet passed to readCore() on a new thread. whenLoaded is
+     * called on that thread before the returned future completes, and isn't called if the history can't be loaded.
+     */
+    public ListenableFuture<Wallet> loadHistory(final Runnable whenLoaded) {
+        if (wallet == null) {
+            throw new IllegalStateException("loadHistory cannot be called before readCore");
+        }
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("BitcoinKit wallet loader").setDaemon(true).build());
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readHistory();
+
+                    if (whenLoaded != null) {
+                        whenLoaded.run();
+                    }
+
+                    historyFuture.set(wallet);
+                } catch (Throwable e) {
+                    log.error("Couldn't load the wallet history", e);
+                    historyFuture.setException(e);
+                } finally {
+                    executor.shutdown();
+                }
+            }
+        });
+
+        return historyFuture;
+    }
+
+    /** Waits until the history is loaded, returns false if that failed. */
+    public boolean awaitHistory() {
+        boolean interrupted = false;
+
+        try {
+            while (true) {
+                try {
+                    historyFuture.get();
+                    return true;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    return false;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isHistoryLoaded() {
+        return historyFuture.isDone();
+    }
+
+    private void readHistory() throws IllegalAccessException, UnreadableWalletException {
+        long startTime = System.currentTimeMillis();
+        HistorySerializer serializer = new HistorySerializer();
+
+        for (Transaction tx : wallet.getTransactions(true)) {
+            serializer.addTransaction(tx);
+        }
+
+        // parsing takes most of the time and doesn't touch the wallet, so it's done without holding its lock
+        List<Protos.Transaction> parsed = new ArrayList<Protos.Transaction>(history.size());
+
+        for (Protos.Transaction txProto : history) {
+            if (serializer.getTransaction(txProto.getHash()) == null) {
+                invoke(readTransaction, serializer, txProto, wallet.getParams());
+                parsed.add(txProto);
+            }
+        }
+
+        int added;
+
+        // the peer group is already running, so transactions and blocks may be arriving on other threads
+        wallet.getLock().lock();
+
+        try {
+            added = mergeHistory(serializer, parsed);
+        } finally {
+            wallet.getLock().unlock();
+        }
+
+        log.info("Loaded " + added + " more wallet transactions in "
+                + (System.currentTimeMillis() - startTime) + " ms");
+
+        history = null;
+        deferredLinks = null;
+    }
+
+    /** Adds the parsed history to the wallet and connects it to the rest, must be called with the wallet locked. */
+    private int mergeHistory(HistorySerializer serializer, List<Protos.Transaction> parsed)
+            throws IllegalAccessException, UnreadableWalletException {
+        List<Protos.Transaction> added = new ArrayList<Protos.Transaction>(parsed.size());
+
+        for (Protos.Transaction txProto : parsed) {
+            // a peer could have announced it again in the meantime
+            if (wallet.getTransaction(new Sha256Hash(txProto.getHash().toByteArray())) == null) {
+                added.add(txProto);
+            }
+        }
+
+        // spent_by links must point to the transactions that are in the wallet now
+        for (Transaction tx : wallet.getTransactions(true)) {
+            serializer.addTransaction(tx);
+        }
+
+        int height = wallet.getLastBlockSeenHeight();
+
+        for (Protos.Transaction txProto : added) {
+            WalletTransaction walletTx = (WalletTransaction) invoke(connectTransactionOutputs, serializer, txProto);
+            updateDepth(walletTx.getTransaction().getConfidence(), height);
+            wallet.addWalletTransaction(walletTx);
+        }
+
+        int missing = 0;
+
+        for (SpentByLink link : deferredLinks) {
+            Transaction tx = wallet.getTransaction(link.transaction);
+            Transaction spentBy = wallet.getTransaction(link.spentBy);
+
+            if (tx == null || spentBy == null) {
+                missing++;
+                continue;
+            }
+
+            TransactionOutput output = tx.getOutput(link.outputIndex);
+            TransactionInput input = spentBy.getInputs().get(link.inputIndex);
+
+            if (output.getSpentBy() == null) {
+                input.connect(output);
+                output.markAsSpent(input);
+            }
+        }
+
+        if (missing > 0) {
+            log.warn(missing + " spent outputs refer to transactions that are no longer in the wallet");
+        }
+
+        if (!wallet.isConsistent()) {
+            log.error("Wallet is inconsistent after loading the history");
+        }
+
+        return added.size();
+    }
+
+    private static Object invoke(Method method, Object target, Object... args)
+            throws IllegalAccessException, UnreadableWalletException {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof UnreadableWalletException) {
+                throw (UnreadableWalletException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new UnreadableWalletException("Could not read the wallet history", cause);
+            }
+        }
+    }
+
+    /**
+     * Blocks that arrived since the wallet was opened didn't increase the depth of transactions not loaded yet. Like
+     * the journal (see WalletJournal.withDepth()), the work done is scaled to the new depth.
+     */
+    private static void updateDepth(TransactionConfidence confidence, int height) {
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING && height > 0) {
+            int depth = height - confidence.getAppearedAtChainHeight() + 1;
+            int savedDepth = confidence.getDepthInBlocks();
+
+            if (depth > savedDepth) {
+                confidence.setDepthInBlocks(depth);
+
+                if (savedDepth > 0) {
+                    confidence.setWorkDone(confidence.getWorkDone()
+                            .multiply(BigInteger.valueOf(depth)).divide(BigInteger.valueOf(savedDepth)));
+                }
+            }
+        }
+    }
+}
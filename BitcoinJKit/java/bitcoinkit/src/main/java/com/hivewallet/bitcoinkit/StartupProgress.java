@@ -0,0 +1,97 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+
+/**
+ * Tracks the phases of BitcoinManager's startup. Each phase has a future that completes with the number of
+ * milliseconds since the start when the phase is reached, or fails with the exception that stopped the startup.
+ */
+public class StartupProgress {
+    public enum Phase {
+        /** The wallet is loaded, so its address, balance and transactions can be read. */
+        WALLET_LOADED,
+
+        /** The block store is open (and initialized from checkpoints, if needed). */
+        CHAIN_STORE_READY,
+
+        /** At least one peer has connected. */
+        FIRST_PEER_CONNECTED,
+
+        /** The chain download has caught up with the peers' best block. */
+        SYNCED
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(StartupProgress.class);
+
+    private final long startTime;
+    private final EnumMap<Phase, SettableFuture<Long>> futures;
+
+    public StartupProgress() {
+        startTime = System.currentTimeMillis();
+        futures = new EnumMap<Phase, SettableFuture<Long>>(Phase.class);
+
+        for (Phase phase : Phase.values()) {
+            futures.put(phase, SettableFuture.<Long>create());
+        }
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public ListenableFuture<Long> getFuture(Phase phase) {
+        return futures.get(phase);
+    }
+
+    public boolean isDone(Phase phase) {
+        return futures.get(phase).isDone();
+    }
+
+    /** Returns the milliseconds from the start until the phase was reached, or -1 if it wasn't (yet). */
+    public long getElapsedTime(Phase phase) {
+        SettableFuture<Long> future = futures.get(phase);
+
+        if (!future.isDone()) {
+            return -1;
+        }
+
+        try {
+            return future.get();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    void complete(Phase phase) {
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        if (futures.get(phase).set(elapsed)) {
+            log.info("Startup phase " + phase + " reached after " + elapsed + " ms");
+        }
+    }
+
+    /** Fails all phases that weren't reached yet. */
+    void fail(Throwable exception) {
+        for (SettableFuture<Long> future : futures.values()) {
+            future.setException(exception);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("StartupProgress:");
+
+        for (Phase phase : Phase.values()) {
+            long elapsed = getElapsedTime(phase);
+            builder.append(' ').append(phase).append(" = ");
+            builder.append((elapsed >= 0) ? elapsed + " ms" : (isDone(phase) ? "failed" : "pending"));
+        }
+
+        return builder.toString();
+    }
+}
@@ -0,0 +1,221 @@
+package com.hivewallet.bitcoinkit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the blockchain sync progress and decides when it's worth telling the UI about it. Instead of
+ * one update per downloaded block, updates are only published when enough time has passed or the progress has
+ * moved by at least the given step.
+ *
+ * It also measures the download rate over a sliding window (which gives the ETA), the number of bytes received
+ * in blocks and how much of the sync time was spent processing blocks in BlockChain vs. waiting for the network.
+ */
+public class SyncProgressTracker {
+    public static final long DEFAULT_MIN_UPDATE_INTERVAL_MS = 250;
+    public static final float DEFAULT_MIN_PERCENT_STEP = 1.0f;
+    public static final long DEFAULT_RATE_WINDOW_MS = 10000;
+
+    private static final long SAMPLE_INTERVAL_MS = 100;
+    private static final Logger log = LoggerFactory.getLogger(SyncProgressTracker.class);
+
+    public interface Listener {
+        void onSynchronizationUpdate(float percent);
+    }
+
+    private final Listener listener;
+
+    private volatile long minUpdateIntervalMs = DEFAULT_MIN_UPDATE_INTERVAL_MS;
+    private volatile float minPercentStep = DEFAULT_MIN_PERCENT_STEP;
+    private volatile long rateWindowMs = DEFAULT_RATE_WINDOW_MS;
+
+    private int blocksToDownload;
+    private int blocksLeft;
+    private long syncStartTime;
+    private long syncEndTime;
+    private long lastPublishedTime;
+    private float lastPublishedPercent = -1;
+
+    // samples of {time, blocks downloaded so far}
+    private final ArrayDeque<long[]> samples = new ArrayDeque<long[]>();
+
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong blocksProcessed = new AtomicLong();
+    private final AtomicLong processingTimeNanos = new AtomicLong();
+
+    public SyncProgressTracker(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setMinUpdateInterval(long milliseconds) {
+        minUpdateIntervalMs = milliseconds;
+    }
+
+    public void setMinPercentStep(float percent) {
+        minPercentStep = percent;
+    }
+
+    public void setRateWindow(long milliseconds) {
+        rateWindowMs = milliseconds;
+    }
+
+    public synchronized void reset() {
+        blocksToDownload = 0;
+        blocksLeft = 0;
+        syncStartTime = 0;
+        syncEndTime = 0;
+        lastPublishedTime = 0;
+        lastPublishedPercent = -1;
+        samples.clear();
+
+        bytesDownloaded.set(0);
+        blocksProcessed.set(0);
+        processingTimeNanos.set(0);
+    }
+
+    public void chainDownloadStarted(int blocksLeft) {
+        synchronized (this) {
+            if (blocksToDownload == 0) {
+                // remember the total amount
+                blocksToDownload = blocksLeft;
+                syncStartTime = System.currentTimeMillis();
+                syncEndTime = 0;
+                log.debug("Starting blockchain sync: blocksToDownload := " + blocksLeft);
+            } else {
+                // we've already set that once and we're only downloading the remaining part
+                log.debug("Restarting blockchain sync: blocksToDownload = " + blocksToDownload
+                        + ", left = " + blocksLeft);
+            }
+        }
+
+        blocksDownloaded(blocksLeft);
+    }
+
+    public void blocksDownloaded(int blocksLeft) {
+        float percent;
+
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            this.blocksLeft = blocksLeft;
+
+            if (blocksToDownload == 0) {
+                percent = 100.0f;
+            } else {
+                int downloadedSoFar = blocksToDownload - blocksLeft;
+                percent = 100.0f * downloadedSoFar / blocksToDownload;
+                addSample(now, downloadedSoFar);
+            }
+
+            if (blocksLeft == 0 && syncEndTime == 0 && syncStartTime != 0) {
+                syncEndTime = now;
+            }
+
+            boolean finished = (percent >= 100.0f);
+            boolean intervalPassed = (now - lastPublishedTime >= minUpdateIntervalMs);
+            boolean stepPassed = (percent - lastPublishedPercent >= minPercentStep);
+
+            if (percent == lastPublishedPercent || !(finished || intervalPassed || stepPassed)) {
+                return;
+            }
+
+            lastPublishedTime = now;
+            lastPublishedPercent = percent;
+
+            if (finished) {
+                log.debug("Blockchain sync finished.");
+            }
+        }
+
+        listener.onSynchronizationUpdate(percent);
+    }
+
+    /** Called from the block chain for every block it has processed. */
+    public void blockProcessed(int bytes, long nanos) {
+        bytesDownloaded.addAndGet(bytes);
+        blocksProcessed.incrementAndGet();
+        processingTimeNanos.addAndGet(nanos);
+    }
+
+    private void addSample(long now, int downloadedSoFar) {
+        long[] newest = samples.peekLast();
+
+        if (newest == null || now - newest[0] >= SAMPLE_INTERVAL_MS) {
+            samples.addLast(new long[] { now, downloadedSoFar });
+        } else {
+            newest[1] = downloadedSoFar;
+        }
+
+        while (samples.size() > 2 && now - samples.peekFirst()[0] > rateWindowMs) {
+            samples.removeFirst();
+        }
+    }
+
+    public synchronized int getBlocksToDownload() {
+        return blocksToDownload;
+    }
+
+    public synchronized int getBlocksLeft() {
+        return blocksLeft;
+    }
+
+    public synchronized float getLastPublishedPercent() {
+        return Math.max(lastPublishedPercent, 0);
+    }
+
+    /** Download rate in blocks per second over the last few seconds (see setRateWindow). */
+    public synchronized double getBlocksPerSecond() {
+        if (samples.size() < 2) {
+            return 0;
+        }
+
+        long[] oldest = samples.peekFirst();
+        long[] newest = samples.peekLast();
+        long elapsed = newest[0] - oldest[0];
+
+        return (elapsed > 0) ? 1000.0 * (newest[1] - oldest[1]) / elapsed : 0;
+    }
+
+    /** Estimated seconds until the sync is finished, or -1 if it can't be estimated yet. */
+    public synchronized long getEstimatedSecondsLeft() {
+        if (blocksLeft == 0) {
+            return 0;
+        }
+
+        double rate = getBlocksPerSecond();
+        return (rate > 0) ? (long) Math.ceil(blocksLeft / rate) : -1;
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    public long getBlocksProcessed() {
+        return blocksProcessed.get();
+    }
+
+    /** Time spent inside BlockChain adding blocks. */
+    public long getProcessingTimeMillis() {
+        return processingTimeNanos.get() / 1000000;
+    }
+
+    /** Time of the sync not spent processing blocks, i.e. mostly waiting for data from the network. */
+    public synchronized long getWaitingTimeMillis() {
+        if (syncStartTime == 0) {
+            return 0;
+        }
+
+        long end = (syncEndTime != 0) ? syncEndTime : System.currentTimeMillis();
+        return Math.max(0, end - syncStartTime - getProcessingTimeMillis());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SyncProgressTracker: " + (blocksToDownload - blocksLeft) + "/" + blocksToDownload + " blocks, "
+                + String.format("%.1f", getBlocksPerSecond()) + " blocks/s, ETA = " + getEstimatedSecondsLeft()
+                + " s, bytes = " + bytesDownloaded + ", processing = " + getProcessingTimeMillis()
+                + " ms, waiting = " + getWaitingTimeMillis() + " ms";
+    }
+}
@@ -0,0 +1,177 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decodes pages written by TransactionBinaryWriter (see there for the format description). The native side reads
+ * the buffer directly; this is used for checking and measuring the format from Java.
+ */
+public class TransactionBinaryReader {
+    public static class Page {
+        public final int totalCount;
+        public final int from;
+        public final List<Record> records;
+
+        Page(int totalCount, int from, List<Record> records) {
+            this.totalCount = totalCount;
+            this.from = from;
+            this.records = records;
+        }
+    }
+
+    public static class Record {
+        public final String txid;
+        public final long amount;
+        public final long fee;
+        public final long time;
+        public final String confidence;
+        public final int peers;
+        public final int confirmations;
+        public final List<Input> inputs;
+        public final List<Output> outputs;
+
+        Record(String txid, long amount, long fee, long time, String confidence, int peers, int confirmations,
+               List<Input> inputs, List<Output> outputs) {
+            this.txid = txid;
+            this.amount = amount;
+            this.fee = fee;
+            this.time = time;
+            this.confidence = confidence;
+            this.peers = peers;
+            this.confirmations = confirmations;
+            this.inputs = inputs;
+            this.outputs = outputs;
+        }
+    }
+
+    public static class Input {
+        /** Null if unknown. */
+        public final String address;
+
+        /** Null if the connected output isn't known. */
+        public final Long amount;
+
+        Input(String address, Long amount) {
+            this.address = address;
+            this.amount = amount;
+        }
+    }
+
+    public static class Output {
+        /** Null if unknown. */
+        public final String address;
+
+        /** Null if the script couldn't be parsed. */
+        public final TransactionDetails.OutputType type;
+
+        public final long amount;
+
+        Output(String address, TransactionDetails.OutputType type, long amount) {
+            this.address = address;
+            this.type = type;
+            this.amount = amount;
+        }
+    }
+
+    private static final String[] CONFIDENCE_NAMES = { "unknown", "building", "pending", "dead" };
+
+    /** Reads a page starting at the buffer's current position; the position and byte order are left unchanged. */
+    public static Page read(ByteBuffer page) {
+        ByteBuffer buffer = page.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        if (buffer.getInt() != TransactionBinaryWriter.MAGIC) {
+            throw new IllegalArgumentException("Not a transaction page");
+        }
+
+        short version = buffer.getShort();
+        if (version != TransactionBinaryWriter.VERSION) {
+            throw new IllegalArgumentException("Unsupported transaction page version " + version);
+        }
+
+        buffer.getShort();
+        int totalCount = buffer.getInt();
+        int from = buffer.getInt();
+        int recordCount = buffer.getInt();
+
+        List<Record> records = new ArrayList<Record>(recordCount);
+
+        for (int i = 0; i < recordCount; i++) {
+            int length = buffer.getInt();
+            int end = buffer.position() + length;
+
+            records.add(readRecord(buffer));
+
+            if (buffer.position() != end) {
+                throw new IllegalArgumentException("Record " + i + " has an invalid length");
+            }
+        }
+
+        return new Page(totalCount, from, Collections.unmodifiableList(records));
+    }
+
+    private static Record readRecord(ByteBuffer buffer) {
+        byte[] hash = new byte[32];
+        buffer.get(hash);
+
+        long amount = buffer.getLong();
+        long fee = buffer.getLong();
+        long time = buffer.getLong();
+        byte confidence = buffer.get();
+        buffer.get();
+        buffer.get();
+        buffer.get();
+        int peers = buffer.getInt();
+        int confirmations = buffer.getInt();
+        int inputCount = buffer.getInt();
+        int outputCount = buffer.getInt();
+
+        List<Input> inputs = new ArrayList<Input>(inputCount);
+
+        for (int i = 0; i < inputCount; i++) {
+            byte flags = buffer.get();
+            long inputAmount = buffer.getLong();
+            String address = readString(buffer);
+            boolean hasAmount = (flags & TransactionBinaryWriter.INPUT_FLAG_HAS_AMOUNT) != 0;
+
+            inputs.add(new Input(address, hasAmount ? Long.valueOf(inputAmount) : null));
+        }
+
+        List<Output> outputs = new ArrayList<Output>(outputCount);
+        TransactionDetails.OutputType[] types = TransactionDetails.OutputType.values();
+
+        for (int i = 0; i < outputCount; i++) {
+            int typeCode = buffer.get();
+            long outputAmount = buffer.getLong();
+            String address = readString(buffer);
+
+            outputs.add(new Output(address, (typeCode > 0) ? types[typeCode - 1] : null, outputAmount));
+        }
+
+        String confidenceName = (confidence >= 0 && confidence < CONFIDENCE_NAMES.length)
+                ? CONFIDENCE_NAMES[confidence] : CONFIDENCE_NAMES[0];
+
+        return new Record(new Sha256Hash(hash).toString(), amount, fee, time, confidenceName, peers, confirmations,
+                inputs, outputs);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.get() & 0xFF;
+
+        if (length == 0) {
+            return null;
+        }
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) buffer.get();
+        }
+
+        return new String(chars);
+    }
+}
@@ -0,0 +1,257 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a page of transactions into a direct ByteBuffer in a compact binary format, as an alternative to the JSON
+ * returned by getTransactions() - the native side can read the records in place without parsing anything.
+ *
+ * All numbers are little-endian. A page starts with a 20 byte header:
+ *
+ * <pre>
+ *   int32  magic          0x48545842 ("HTXB")
+ *   int16  version        1
+ *   int16  reserved
+ *   int32  totalCount     number of transactions in the wallet
+ *   int32  from           index of the first transaction in this page
+ *   int32  recordCount    number of records that follow
+ * </pre>
+ *
+ * followed by recordCount transaction records:
+ *
+ * <pre>
+ *   int32  length         number of bytes in the record after this field
+ *   byte[32] txid         in the same byte order as the hex txid
+ *   int64  amount         value sent to (or from, if negative) the wallet, in satoshis
+ *   int64  fee            in satoshis, 0 if unknown
+ *   int64  time           update time in milliseconds since 1970
+ *   int8   confidence     0 = unknown, 1 = building, 2 = pending, 3 = dead
+ *   int8[3] reserved
+ *   int32  peers
+ *   int32  confirmations
+ *   int32  inputCount
+ *   int32  outputCount
+ *   inputs:  int8 flags (bit 0: amount is known), int64 amount, string address
+ *   outputs: int8 type (0 = script can't be parsed, 1 = own, 2 = external, 3 = pubkey, 4 = multisig,
+ *            5 = unknown), int64 amount, string address
+ * </pre>
+ *
+ * Strings are stored as a uint8 length followed by that many ASCII bytes; an empty string means no address.
+ *
+ * Encoded records are kept in an LRU cache like TransactionJSONCache, with the confidence, peers and confirmations
+ * fields overwritten on each write. Like there, a transaction's record needs to be invalidated when anything else
+ * about it changes.
+ */
+public class TransactionBinaryWriter {
+    public static final int MAGIC = 0x48545842;
+    public static final short VERSION = 1;
+
+    public static final int HEADER_SIZE = 20;
+    public static final int RECORD_FIXED_SIZE = 80;
+    public static final int ENTRY_FIXED_SIZE = 10;
+
+    public static final byte CONFIDENCE_UNKNOWN = 0;
+    public static final byte CONFIDENCE_BUILDING = 1;
+    public static final byte CONFIDENCE_PENDING = 2;
+    public static final byte CONFIDENCE_DEAD = 3;
+
+    public static final byte INPUT_FLAG_HAS_AMOUNT = 1;
+
+    public static final int DEFAULT_MAX_CACHED_RECORDS = 10000;
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    // offsets of the fields that change all the time, from the start of the record's length field
+    private static final int CONFIDENCE_OFFSET = 60;
+    private static final int PEERS_OFFSET = 64;
+    private static final int CONFIRMATIONS_OFFSET = 68;
+
+    private final TransactionDetails details;
+    private final ArrayList<String> inputAddresses;
+    private final ArrayList<String> outputAddresses;
+    private final LinkedHashMap<Sha256Hash, byte[]> cachedRecords;
+    private ByteBuffer buffer;
+
+    public TransactionBinaryWriter(TransactionDetails details) {
+        this(details, DEFAULT_MAX_CACHED_RECORDS);
+    }
+
+    public TransactionBinaryWriter(TransactionDetails details, final int maxCachedRecords) {
+        this.details = details;
+        this.inputAddresses = new ArrayList<String>();
+        this.outputAddresses = new ArrayList<String>();
+        this.buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+
+        this.cachedRecords = new LinkedHashMap<Sha256Hash, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, byte[]> eldest) {
+                return size() > maxCachedRecords;
+            }
+        };
+    }
+
+    /**
+     * Writes the given transactions as one page. The returned buffer is reused by the next call, so its contents
+     * are only valid until then.
+     */
+    public synchronized ByteBuffer write(List<Transaction> transactions, int from, int totalCount) {
+        buffer.clear();
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) 0);
+        buffer.putInt(totalCount);
+        buffer.putInt(from);
+        buffer.putInt(transactions.size());
+
+        for (Transaction tx : transactions) {
+            writeRecord(tx);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Drops the cached record of the transaction, e.g. because its amount or time changed. */
+    public synchronized void invalidate(Sha256Hash hash) {
+        cachedRecords.remove(hash);
+    }
+
+    public synchronized void invalidateAll() {
+        cachedRecords.clear();
+    }
+
+    synchronized int getCachedRecordCount() {
+        return cachedRecords.size();
+    }
+
+    private void writeRecord(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        byte[] cached = cachedRecords.get(tx.getHash());
+        int start = buffer.position();
+
+        if (cached != null) {
+            ensureRemaining(cached.length);
+            buffer.put(cached);
+        } else {
+            encodeRecord(tx);
+
+            cached = new byte[buffer.position() - start];
+            ByteBuffer record = buffer.duplicate();
+            record.position(start);
+            record.get(cached);
+            cachedRecords.put(tx.getHash(), cached);
+        }
+
+        buffer.put(start + CONFIDENCE_OFFSET, getConfidenceCode(confidence.getConfidenceType()));
+        buffer.putInt(start + PEERS_OFFSET, confidence.numBroadcastPeers());
+        buffer.putInt(start + CONFIRMATIONS_OFFSET, confidence.getDepthInBlocks());
+    }
+
+    private void encodeRecord(Transaction tx) {
+        List<TransactionInput> inputs = tx.getInputs();
+        List<TransactionOutput> outputs = tx.getOutputs();
+
+        // resolve addresses first, so that we know exactly how much space the record needs
+        int length = RECORD_FIXED_SIZE - 4;
+        inputAddresses.clear();
+        outputAddresses.clear();
+
+        for (TransactionInput input : inputs) {
+            String address = details.getInputAddress(input);
+            inputAddresses.add(address);
+            length += ENTRY_FIXED_SIZE + ((address != null) ? address.length() : 0);
+        }
+
+        for (TransactionOutput output : outputs) {
+            String address = details.getOutputAddress(output);
+            outputAddresses.add(address);
+            length += ENTRY_FIXED_SIZE + ((address != null) ? address.length() : 0);
+        }
+
+        ensureRemaining(4 + length);
+
+        buffer.putInt(length);
+        buffer.put(tx.getHash().getBytes());
+        buffer.putLong(tx.getValue(details.getWallet()).longValue());
+        buffer.putLong(TransactionDetails.getTransactionFee(tx));
+        buffer.putLong(tx.getUpdateTime().getTime());
+
+        // confidence, peers and confirmations are filled in by writeRecord()
+        buffer.put(CONFIDENCE_UNKNOWN);
+        buffer.put((byte) 0).put((byte) 0).put((byte) 0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(inputs.size());
+        buffer.putInt(outputs.size());
+
+        for (int i = 0; i < inputs.size(); i++) {
+            TransactionOutput source = inputs.get(i).getConnectedOutput();
+
+            buffer.put((source != null) ? INPUT_FLAG_HAS_AMOUNT : 0);
+            buffer.putLong((source != null) ? source.getValue().longValue() : 0);
+            putString(inputAddresses.get(i));
+        }
+
+        for (int i = 0; i < outputs.size(); i++) {
+            TransactionOutput output = outputs.get(i);
+            String address = outputAddresses.get(i);
+            TransactionDetails.OutputType type = details.getOutputType(output, address);
+
+            buffer.put((type != null) ? (byte) (type.ordinal() + 1) : 0);
+            buffer.putLong(output.getValue().longValue());
+            putString(address);
+        }
+    }
+
+    private void putString(String string) {
+        if (string == null) {
+            buffer.put((byte) 0);
+            return;
+        }
+
+        // addresses are base58, so one char is always one byte
+        buffer.put((byte) string.length());
+
+        for (int i = 0; i < string.length(); i++) {
+            buffer.put((byte) string.charAt(i));
+        }
+    }
+
+    private void ensureRemaining(int bytes) {
+        if (buffer.remaining() < bytes) {
+            int capacity = buffer.capacity();
+
+            while (capacity - buffer.position() < bytes) {
+                capacity *= 2;
+            }
+
+            ByteBuffer larger = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+
+    static byte getConfidenceCode(TransactionConfidence.ConfidenceType confidenceType) {
+        if (confidenceType == TransactionConfidence.ConfidenceType.BUILDING) {
+            return CONFIDENCE_BUILDING;
+        } else if (confidenceType == TransactionConfidence.ConfidenceType.PENDING) {
+            return CONFIDENCE_PENDING;
+        } else if (confidenceType == TransactionConfidence.ConfidenceType.DEAD) {
+            return CONFIDENCE_DEAD;
+        } else {
+            return CONFIDENCE_UNKNOWN;
+        }
+    }
+}
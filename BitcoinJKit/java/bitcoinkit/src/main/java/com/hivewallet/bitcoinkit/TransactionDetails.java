@@ -0,0 +1,140 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.script.Script;
+
+/**
+ * Extracts the transaction data that's passed to the Cocoa side (addresses, output types, fee), shared by the
+ * JSON and binary transaction writers.
+ */
+public class TransactionDetails {
+    public enum OutputType {
+        OWN("own"), EXTERNAL("external"), PUBKEY("pubkey"), MULTISIG("multisig"), UNKNOWN("unknown");
+
+        private final String name;
+
+        OutputType(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final NetworkParameters networkParams;
+    private final Wallet wallet;
+    private final String ownAddress;
+
+    public TransactionDetails(NetworkParameters networkParams, Wallet wallet) {
+        this.networkParams = networkParams;
+        this.wallet = wallet;
+
+        // outputs are marked as "own" only if they go to the main wallet address (see getWalletAddress())
+        this.ownAddress = wallet.getKeys().get(0).toAddress(networkParams).toString();
+    }
+
+    public Wallet getWallet() {
+        return wallet;
+    }
+
+    public static String getConfidenceName(TransactionConfidence.ConfidenceType confidenceType) {
+        if (confidenceType == TransactionConfidence.ConfidenceType.BUILDING) {
+            return "building";
+        } else if (confidenceType == TransactionConfidence.ConfidenceType.PENDING) {
+            return "pending";
+        } else if (confidenceType == TransactionConfidence.ConfidenceType.DEAD) {
+            return "dead";
+        } else {
+            return "unknown";
+        }
+    }
+
+    /** Returns the sender's address, or null if it's a coinbase input or the script can't be parsed. */
+    public String getInputAddress(TransactionInput input) {
+        if (input.isCoinBase()) {
+            return null;
+        }
+
+        try {
+            Script scriptSig = input.getScriptSig();
+            return new Address(networkParams, Utils.sha256hash160(scriptSig.getPubKey())).toString();
+        } catch (ScriptException e) {
+            // can't parse script, give up
+            return null;
+        }
+    }
+
+    /** Returns the recipient's address for pay-to-address and P2SH outputs, null otherwise. */
+    public String getOutputAddress(TransactionOutput output) {
+        try {
+            Script scriptPubKey = output.getScriptPubKey();
+
+            if (scriptPubKey.isSentToAddress() || scriptPubKey.isPayToScriptHash()) {
+                return scriptPubKey.getToAddress(networkParams).toString();
+            } else {
+                return null;
+            }
+        } catch (ScriptException e) {
+            // can't parse script, give up
+            return null;
+        }
+    }
+
+    /**
+     * Returns the type of the output, or null if the script can't be parsed.
+     * @param address the result of getOutputAddress() for this output
+     */
+    public OutputType getOutputType(TransactionOutput output, String address) {
+        if (address != null) {
+            return address.equals(ownAddress) ? OutputType.OWN : OutputType.EXTERNAL;
+        }
+
+        try {
+            Script scriptPubKey = output.getScriptPubKey();
+
+            if (scriptPubKey.isSentToAddress() || scriptPubKey.isPayToScriptHash()) {
+                // getOutputAddress() couldn't read the address
+                return null;
+            } else if (scriptPubKey.isSentToRawPubKey()) {
+                return OutputType.PUBKEY;
+            } else if (scriptPubKey.isSentToMultiSig()) {
+                return OutputType.MULTISIG;
+            } else {
+                return OutputType.UNKNOWN;
+            }
+        } catch (ScriptException e) {
+            // can't parse script, give up
+            return null;
+        }
+    }
+
+    /** Same calculation as BitcoinManager.getTransactionFee(), but without going through BigInteger. */
+    public static long getTransactionFee(Transaction tx) {
+        long fee = 0;
+
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput connected = input.getConnectedOutput();
+            if (connected != null) {
+                fee += connected.getValue().longValue();
+            } else {
+                // we can't calculate the fee amount without having all data
+                return 0;
+            }
+        }
+
+        for (TransactionOutput output : tx.getOutputs()) {
+            fee -= output.getValue().longValue();
+        }
+
+        return fee;
+    }
+}
@@ -0,0 +1,166 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.Wallet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps the wallet's transactions sorted by update time (newest first), the same order as
+ * Wallet.getTransactionsByTime(), so that paging through history doesn't require copying and sorting
+ * the whole transaction set on every call. It's kept up to date from the wallet and confidence listeners.
+ */
+public class TransactionIndex {
+    private final ArrayList<Transaction> transactions;
+    private final HashMap<Sha256Hash, Long> indexedTimes;
+
+    public TransactionIndex() {
+        transactions = new ArrayList<Transaction>();
+        indexedTimes = new HashMap<Sha256Hash, Long>();
+    }
+
+    /** Discards the current contents and reads all (non-dead) transactions from the wallet again. */
+    public synchronized void rebuild(Wallet wallet) {
+        transactions.clear();
+        indexedTimes.clear();
+
+        Set<Transaction> walletTransactions = wallet.getTransactions(false);
+        transactions.ensureCapacity(walletTransactions.size());
+
+        for (Transaction tx : walletTransactions) {
+            transactions.add(tx);
+            indexedTimes.put(tx.getHash(), updateTimeOf(tx));
+        }
+
+        Collections.sort(transactions, new Comparator<Transaction>() {
+            public int compare(Transaction tx1, Transaction tx2) {
+                return compareEntries(updateTimeOf(tx1), tx1.getHash(), updateTimeOf(tx2), tx2.getHash());
+            }
+        });
+    }
+
+    /**
+     * Adds a transaction to the index, or moves it to its new position if its update time has changed
+     * (e.g. when it's included in a block). Transactions that became dead are removed, like in the wallet.
+     */
+    public synchronized void update(Transaction tx) {
+        remove(tx);
+
+        if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD) {
+            return;
+        }
+
+        long time = updateTimeOf(tx);
+        int position = search(time, tx.getHash());
+
+        // search returns (-(insertion point) - 1) if the entry isn't there, which it can't be after remove()
+        transactions.add(-position - 1, tx);
+        indexedTimes.put(tx.getHash(), time);
+    }
+
+    public synchronized void remove(Transaction tx) {
+        Long time = indexedTimes.get(tx.getHash());
+
+        if (time != null) {
+            int position = search(time, tx.getHash());
+
+            if (position >= 0) {
+                transactions.remove(position);
+            }
+
+            indexedTimes.remove(tx.getHash());
+        }
+    }
+
+    public synchronized int size() {
+        return transactions.size();
+    }
+
+    public synchronized Transaction get(int idx) {
+        return transactions.get(idx);
+    }
+
+    /** Returns a copy of up to count transactions starting at index from (empty if from is past the end). */
+    public synchronized List<Transaction> getRange(int from, int count) {
+        int size = transactions.size();
+
+        if (from >= size) {
+            return Collections.emptyList();
+        }
+
+        int to = (from + count < size) ? from + count : size;
+        return new ArrayList<Transaction>(transactions.subList(from, to));
+    }
+
+    /**
+     * Checks if the index contains exactly the same transactions as the wallet, in the same order as
+     * Wallet.getTransactionsByTime() would return them. Expensive - meant for tests and debugging.
+     */
+    public synchronized boolean isConsistentWith(Wallet wallet) {
+        Set<Transaction> walletTransactions = wallet.getTransactions(false);
+
+        if (walletTransactions.size() != transactions.size()) {
+            return false;
+        }
+
+        for (Transaction tx : walletTransactions) {
+            Long time = indexedTimes.get(tx.getHash());
+
+            if (time == null || time != updateTimeOf(tx)) {
+                return false;
+            }
+        }
+
+        for (int i = 1; i < transactions.size(); i++) {
+            Transaction previous = transactions.get(i - 1);
+            Transaction current = transactions.get(i);
+
+            if (updateTimeOf(previous) < updateTimeOf(current)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int search(long time, Sha256Hash hash) {
+        int low = 0;
+        int high = transactions.size() - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Transaction tx = transactions.get(middle);
+            int result = compareEntries(indexedTimes.get(tx.getHash()), tx.getHash(), time, hash);
+
+            if (result < 0) {
+                low = middle + 1;
+            } else if (result > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    private static int compareEntries(long time1, Sha256Hash hash1, long time2, Sha256Hash hash2) {
+        // newest first; the hash is only used to make the order of transactions with equal times stable
+        if (time1 != time2) {
+            return (time1 > time2) ? -1 : 1;
+        } else {
+            return hash1.compareTo(hash2);
+        }
+    }
+
+    private static long updateTimeOf(Transaction tx) {
+        return tx.getUpdateTime().getTime();
+    }
+}
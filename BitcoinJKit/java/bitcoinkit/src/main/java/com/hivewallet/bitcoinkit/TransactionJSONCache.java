@@ -0,0 +1,144 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of rendered transaction JSON, limited both by number of entries and by (approximate) memory used.
+ *
+ * Only the parts of the JSON that don't change once a transaction is in the wallet are cached. The confidence,
+ * peers and confirmations fields change all the time (e.g. with every new block), so they're inserted between
+ * the cached parts each time the JSON is requested. Entries need to be removed explicitly when anything else
+ * about the transaction changes.
+ */
+public class TransactionJSONCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    // rough per-entry cost of the map entry, hash and entry objects on top of the string contents
+    private static final int ENTRY_OVERHEAD_BYTES = 160;
+
+    private final LinkedHashMap<Sha256Hash, Entry> entries;
+    private final int maxEntries;
+    private final long maxBytes;
+    private long usedBytes;
+    private long hits;
+    private long misses;
+
+    public static class Entry {
+        private final String head;
+        private final String tail;
+
+        /**
+         * @param head JSON object fields preceding the confidence field, including the opening brace
+         * @param tail JSON object fields following the confirmations field, including the closing brace
+         */
+        public Entry(String head, String tail) {
+            this.head = head;
+            this.tail = tail;
+        }
+
+        public void appendTo(StringBuilder buffer, String confidence, int peers, int confirmations) {
+            appendTo(buffer, confidence, peers, confirmations, -1, null);
+        }
+
+        /** The block height and time are only added if the block time is known (see BlockHeaderIndex). */
+        public void appendTo(StringBuilder buffer, String confidence, int peers, int confirmations,
+                             int height, String blockTime) {
+            buffer.append(head);
+            buffer.append(",\"confidence\":\"").append(confidence).append('"');
+            buffer.append(",\"peers\":").append(peers);
+            buffer.append(",\"confirmations\":").append(confirmations);
+
+            if (blockTime != null) {
+                buffer.append(",\"height\":").append(height);
+                buffer.append(",\"blockTime\":\"").append(blockTime).append('"');
+            }
+
+            buffer.append(',').append(tail);
+        }
+
+        long getSizeInBytes() {
+            return 2L * (head.length() + tail.length()) + ENTRY_OVERHEAD_BYTES;
+        }
+    }
+
+    public TransactionJSONCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    public TransactionJSONCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<Sha256Hash, Entry>(16, 0.75f, true);
+    }
+
+    public synchronized Entry get(Sha256Hash hash) {
+        Entry entry = entries.get(hash);
+
+        if (entry != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+
+        return entry;
+    }
+
+    public synchronized void put(Sha256Hash hash, Entry entry) {
+        Entry previous = entries.put(hash, entry);
+
+        if (previous != null) {
+            usedBytes -= previous.getSizeInBytes();
+        }
+
+        usedBytes += entry.getSizeInBytes();
+
+        // evict least recently used entries until we fit within both limits again
+        Iterator<Map.Entry<Sha256Hash, Entry>> iterator = entries.entrySet().iterator();
+
+        while ((entries.size() > maxEntries || usedBytes > maxBytes) && iterator.hasNext()) {
+            Map.Entry<Sha256Hash, Entry> eldest = iterator.next();
+            usedBytes -= eldest.getValue().getSizeInBytes();
+            iterator.remove();
+        }
+    }
+
+    public synchronized void remove(Sha256Hash hash) {
+        Entry entry = entries.remove(hash);
+
+        if (entry != null) {
+            usedBytes -= entry.getSizeInBytes();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "TransactionJSONCache: entries = " + entries.size() + ", bytes = " + usedBytes
+                + ", hits = " + hits + ", misses = " + misses;
+    }
+}
@@ -0,0 +1,166 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Writes transaction JSON directly as text, without building a Jettison object tree first. The output is exactly
+ * what JSONObject.toString() used to return for the same data (same field order, number format and escaping).
+ */
+public class TransactionJSONWriter {
+    private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
+            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return dateFormat;
+        }
+    };
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final TransactionDetails details;
+    private final StringBuilder buffer;
+
+    public TransactionJSONWriter(TransactionDetails details) {
+        this.details = details;
+        this.buffer = new StringBuilder(1024);
+    }
+
+    /**
+     * Renders the fields of the transaction that don't depend on its confidence. The buffer used for that is
+     * reused between calls, so the only allocations left are the two resulting strings.
+     */
+    public synchronized TransactionJSONCache.Entry render(Transaction tx) {
+        buffer.setLength(0);
+        buffer.append("{\"amount\":").append(tx.getValue(details.getWallet()));
+        buffer.append(",\"fee\":").append(TransactionDetails.getTransactionFee(tx));
+        buffer.append(",\"txid\":");
+        appendString(buffer, tx.getHashAsString());
+        buffer.append(",\"time\":");
+        appendString(buffer, formatTime(tx.getUpdateTime()));
+        String head = buffer.toString();
+
+        buffer.setLength(0);
+        buffer.append("\"inputs\":[");
+
+        boolean firstInput = true;
+        for (TransactionInput input : tx.getInputs()) {
+            if (!firstInput) {
+                buffer.append(',');
+            }
+
+            appendInput(buffer, input);
+            firstInput = false;
+        }
+
+        buffer.append("],\"outputs\":[");
+
+        boolean firstOutput = true;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!firstOutput) {
+                buffer.append(',');
+            }
+
+            appendOutput(buffer, output);
+            firstOutput = false;
+        }
+
+        buffer.append("]}");
+        String tail = buffer.toString();
+
+        return new TransactionJSONCache.Entry(head, tail);
+    }
+
+    /** Formats a date the same way as the time field. */
+    static String formatTime(Date date) {
+        return DATE_FORMAT.get().format(date);
+    }
+
+    private void appendInput(StringBuilder out, TransactionInput input) {
+        String address = details.getInputAddress(input);
+
+        out.append('{');
+
+        if (address != null) {
+            out.append("\"address\":");
+            appendString(out, address);
+        }
+
+        TransactionOutput source = input.getConnectedOutput();
+        if (source != null) {
+            if (address != null) {
+                out.append(',');
+            }
+
+            out.append("\"amount\":").append(source.getValue());
+        }
+
+        out.append('}');
+    }
+
+    private void appendOutput(StringBuilder out, TransactionOutput output) {
+        String address = details.getOutputAddress(output);
+        TransactionDetails.OutputType type = details.getOutputType(output, address);
+
+        out.append('{');
+
+        if (address != null) {
+            out.append("\"address\":");
+            appendString(out, address);
+            out.append(',');
+        }
+
+        if (type != null) {
+            out.append("\"type\":\"").append(type.getName()).append("\",");
+        }
+
+        out.append("\"amount\":").append(output.getValue());
+        out.append('}');
+    }
+
+    /** Appends a quoted string escaped the same way as Jettison's JSONObject.quote(). */
+    static void appendString(StringBuilder out, String string) {
+        out.append('"');
+
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                default:
+                    if (c < ' ') {
+                        out.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+
+        out.append('"');
+    }
+}
@@ -0,0 +1,379 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.macs.HMac;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Signs the inputs of transactions that spend many outputs on several threads, instead of one after another in
+ * Transaction.signInputs (which also decrypts the key again for every input).
+ *
+ * Each key is decrypted once per transaction. The inputs are split into one range per thread, and each thread
+ * computes the signature hashes on its own copy of the transaction, since hashForSignature changes the input
+ * scripts while it runs. The signatures use a deterministic nonce (RFC 6979) instead of a random one, so the
+ * signed transaction is exactly the same whatever the number of threads. The scripts are set on the calling thread.
+ *
+ * Wallet.completeTx calls signInputs on the request's transaction, so transactions created with newTransaction()
+ * are signed here when they're completed.
+ */
+public class TransactionSigner {
+    public static final int DEFAULT_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+
+    // fewer inputs than this are signed on the calling thread
+    public static final int PARALLEL_THRESHOLD = 8;
+
+    private static final Logger log = LoggerFactory.getLogger(TransactionSigner.class);
+
+    private static final BigInteger CURVE_ORDER = ECKey.CURVE.getN();
+
+    /** A transaction that Wallet.completeTx signs with the signer. */
+    public static class SigningTransaction extends Transaction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient TransactionSigner signer;
+
+        private SigningTransaction(NetworkParameters params, TransactionSigner signer) {
+            super(params);
+            this.signer = signer;
+        }
+
+        @Override
+        public synchronized void signInputs(SigHash hashType, Wallet wallet, KeyParameter aesKey) {
+            if (hashType != SigHash.ALL || signer == null) {
+                super.signInputs(hashType, wallet, aesKey);
+            } else {
+                signer.signInputs(this, wallet, aesKey);
+            }
+        }
+    }
+
+    private static class Input {
+        final int index;
+        final ECKey key;
+        final ECKey signingKey;
+        final byte[] connectedScript;
+        final boolean payToAddress;
+        TransactionSignature signature;
+
+        Input(int index, ECKey key, ECKey signingKey, byte[] connectedScript, boolean payToAddress) {
+            this.index = index;
+            this.key = key;
+            this.signingKey = signingKey;
+            this.connectedScript = connectedScript;
+            this.payToAddress = payToAddress;
+        }
+    }
+
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong signedTransactions = new AtomicLong();
+    private final AtomicLong signedInputs = new AtomicLong();
+    private final AtomicLong signingTimeNs = new AtomicLong();
+
+    public TransactionSigner() {
+        this(DEFAULT_THREADS);
+    }
+
+    /** The threads are started when needed and stop again after a minute without transactions to sign. */
+    public TransactionSigner(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("BitcoinKit signer %d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public Transaction newTransaction(NetworkParameters params) {
+        return new SigningTransaction(params, this);
+    }
+
+    /**
+     * Returns a copy of a request that was created elsewhere (e.g. by PaymentSession), with its outputs in
+     * a transaction from newTransaction(), so that Wallet.completeTx signs it here.
+     * @throws IllegalArgumentException if the request's transaction already has inputs
+     */
+    public Wallet.SendRequest newSendRequest(Wallet.SendRequest request) {
+        if (!request.tx.getInputs().isEmpty()) {
+            throw new IllegalArgumentException("Only requests without inputs can be copied");
+        }
+
+        NetworkParameters params = request.tx.getParams();
+        Transaction tx = newTransaction(params);
+
+        for (TransactionOutput output : request.tx.getOutputs()) {
+            tx.addOutput(new TransactionOutput(params, tx, output.getValue(), output.getScriptBytes()));
+        }
+
+        Wallet.SendRequest copy = Wallet.SendRequest.forTx(tx);
+        copy.emptyWallet = request.emptyWallet;
+        copy.changeAddress = request.changeAddress;
+        copy.fee = request.fee;
+        copy.feePerKb = request.feePerKb;
+        copy.ensureMinRequiredFee = request.ensureMinRequiredFee;
+        copy.aesKey = request.aesKey;
+        copy.coinSelector = request.coinSelector;
+        return copy;
+    }
+
+    /**
+     * Signs the inputs that spend the wallet's outputs, like Transaction.signInputs with SigHash.ALL. Inputs without
+     * a connected output, or that already spend it correctly, are left alone.
+     * @throws KeyCrypterException if the key can't be decrypted with the AES key
+     */
+    public void signInputs(Transaction tx, Wallet wallet, KeyParameter aesKey) {
+        long startTime = System.nanoTime();
+
+        IdentityHashMap<ECKey, ECKey> signingKeys = new IdentityHashMap<ECKey, ECKey>();
+        List<Input> inputs = new ArrayList<Input>(tx.getInputs().size());
+
+        try {
+            for (int i = 0; i < tx.getInputs().size(); i++) {
+                Input input = prepareInput(tx, i, wallet, aesKey, signingKeys);
+
+                if (input != null) {
+                    inputs.add(input);
+                }
+            }
+
+            if (inputs.isEmpty()) {
+                return;
+            }
+
+            byte[] unsignedTx = tx.bitcoinSerialize();
+            int chunks = Math.min(threads, (inputs.size() + PARALLEL_THRESHOLD - 1) / PARALLEL_THRESHOLD);
+
+            if (chunks <= 1) {
+                sign(tx.getParams(), unsignedTx, inputs);
+            } else {
+                signInParallel(tx.getParams(), unsignedTx, inputs, chunks);
+            }
+        } finally {
+            for (ECKey key : signingKeys.keySet()) {
+                ECKey signingKey = signingKeys.get(key);
+
+                if (signingKey != null && signingKey != key) {
+                    signingKey.clearPrivateKey();
+                }
+            }
+        }
+
+        for (Input input : inputs) {
+            TransactionInput txInput = tx.getInput(input.index);
+
+            if (input.payToAddress) {
+                txInput.setScriptSig(ScriptBuilder.createInputScript(input.signature, input.key));
+            } else {
+                txInput.setScriptSig(ScriptBuilder.createInputScript(input.signature));
+            }
+        }
+
+        signedTransactions.incrementAndGet();
+        signedInputs.addAndGet(inputs.size());
+        signingTimeNs.addAndGet(System.nanoTime() - startTime);
+    }
+
+    private Input prepareInput(Transaction tx, int index, Wallet wallet, KeyParameter aesKey,
+                               IdentityHashMap<ECKey, ECKey> signingKeys) {
+        TransactionInput txInput = tx.getInput(index);
+        TransactionOutPoint outpoint = txInput.getOutpoint();
+        TransactionOutput connectedOutput = outpoint.getConnectedOutput();
+
+        if (connectedOutput == null) {
+            log.warn("Missing connected output, assuming input {} is already signed.", index);
+            return null;
+        }
+
+        if (txInput.getScriptBytes().length != 0) {
+            try {
+                txInput.getScriptSig().correctlySpends(tx, index, connectedOutput.getScriptPubKey(), true);
+                return null;
+            } catch (ScriptException e) {
+                // not signed yet, or not correctly
+            }
+        }
+
+        ECKey key = outpoint.getConnectedKey(wallet);
+
+        if (key == null) {
+            throw new IllegalStateException("Transaction exists in wallet that we cannot redeem: "
+                    + outpoint.getHash());
+        }
+
+        if (!signingKeys.containsKey(key)) {
+            if (key.isEncrypted()) {
+                signingKeys.put(key, key.decrypt(wallet.getKeyCrypter(), aesKey));
+            } else {
+                // watch only keys get a dummy signature, like in Transaction.signInputs
+                signingKeys.put(key, key.hasPrivKey() ? key : null);
+            }
+        }
+
+        Script scriptPubKey = connectedOutput.getScriptPubKey();
+
+        if (!scriptPubKey.isSentToAddress() && !scriptPubKey.isSentToRawPubKey()) {
+            throw new ScriptException("Do not understand script type: " + scriptPubKey);
+        }
+
+        return new Input(index, key, signingKeys.get(key), connectedOutput.getScriptBytes(),
+                scriptPubKey.isSentToAddress());
+    }
+
+    private void signInParallel(final NetworkParameters params, final byte[] unsignedTx, List<Input> inputs,
+                                int chunks) {
+        List<Future<?>> futures = new ArrayList<Future<?>>(chunks);
+
+        for (int i = 0; i < chunks; i++) {
+            final List<Input> chunk = inputs.subList(inputs.size() * i / chunks, inputs.size() * (i + 1) / chunks);
+
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    sign(params, unsignedTx, chunk);
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    /** Signs the inputs using a copy of the transaction for the signature hashes. */
+    private static void sign(NetworkParameters params, byte[] unsignedTx, List<Input> inputs) {
+        Transaction copy = new Transaction(params, unsignedTx);
+
+        for (Input input : inputs) {
+            if (input.signingKey == null) {
+                input.signature = TransactionSignature.dummy();
+                continue;
+            }
+
+            Sha256Hash hash = copy.hashForSignature(input.index, input.connectedScript, Transaction.SigHash.ALL, false);
+            ECKey.ECDSASignature signature = signDeterministically(input.signingKey, hash.getBytes());
+            input.signature = new TransactionSignature(signature, Transaction.SigHash.ALL, false);
+        }
+    }
+
+    /** ECDSA with the nonce derived from the key and the hash as described in RFC 6979 (HMAC-SHA256). */
+    static ECKey.ECDSASignature signDeterministically(ECKey key, byte[] hash) {
+        BigInteger privateKey = new BigInteger(1, key.getPrivKeyBytes());
+        BigInteger e = new BigInteger(1, hash);
+
+        byte[] x = toBytes32(privateKey);
+        byte[] h = toBytes32(e.mod(CURVE_ORDER));
+
+        HMac hmac = new HMac(new SHA256Digest());
+        byte[] v = new byte[32];
+        byte[] k = new byte[32];
+        Arrays.fill(v, (byte) 1);
+
+        k = mac(hmac, k, v, new byte[] { 0 }, x, h);
+        v = mac(hmac, k, v);
+        k = mac(hmac, k, v, new byte[] { 1 }, x, h);
+        v = mac(hmac, k, v);
+
+        try {
+            while (true) {
+                v = mac(hmac, k, v);
+                BigInteger nonce = new BigInteger(1, v);
+
+                if (nonce.signum() > 0 && nonce.compareTo(CURVE_ORDER) < 0) {
+                    BigInteger r = ECKey.CURVE.getG().multiply(nonce).getX().toBigInteger().mod(CURVE_ORDER);
+
+                    if (r.signum() != 0) {
+                        BigInteger s = nonce.modInverse(CURVE_ORDER).multiply(e.add(privateKey.multiply(r)))
+                                .mod(CURVE_ORDER);
+
+                        if (s.signum() != 0) {
+                            ECKey.ECDSASignature signature = new ECKey.ECDSASignature(r, s);
+                            signature.ensureCanonical();
+                            return signature;
+                        }
+                    }
+                }
+
+                k = mac(hmac, k, v, new byte[] { 0 });
+                v = mac(hmac, k, v);
+            }
+        } finally {
+            Arrays.fill(x, (byte) 0);
+            Arrays.fill(k, (byte) 0);
+            Arrays.fill(v, (byte) 0);
+        }
+    }
+
+    private static byte[] mac(HMac hmac, byte[] key, byte[]... parts) {
+        hmac.init(new KeyParameter(key));
+
+        for (byte[] part : parts) {
+            hmac.update(part, 0, part.length);
+        }
+
+        byte[] result = new byte[hmac.getMacSize()];
+        hmac.doFinal(result, 0);
+        return result;
+    }
+
+    private static byte[] toBytes32(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        byte[] result = new byte[32];
+
+        // without the sign byte or with leading zeros
+        int length = Math.min(bytes.length, 32);
+        System.arraycopy(bytes, bytes.length - length, result, 32 - length, length);
+        Arrays.fill(bytes, (byte) 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "TransactionSigner: " + threads + " threads, " + signedTransactions.get() + " transactions with "
+                + signedInputs.get() + " inputs signed, " + (signingTimeNs.get() / 1000000) + " ms";
+    }
+}
@@ -0,0 +1,147 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * The wallet's spendable outputs sorted by value (largest first), for BranchAndBoundCoinSelector.
+ *
+ * Wallet only hands the coin selector a list of all candidate outputs, so the index is brought up to date with that
+ * list on each selection: new outputs are inserted and outputs that were spent are removed. Usually only a few
+ * change between two sends, so the rest doesn't need to be sorted again. Like DefaultCoinSelector, only outputs of
+ * transactions that are in the chain or were sent by us and announced by peers are included.
+ */
+class UtxoIndex {
+    static class Entry {
+        final TransactionOutput output;
+        final long value;
+        final long sequence;
+        int generation;
+
+        Entry(TransactionOutput output, long sequence) {
+            this.output = output;
+            this.value = output.getValue().longValue();
+            this.sequence = sequence;
+        }
+    }
+
+    private final TreeSet<Entry> sorted;
+    private final IdentityHashMap<TransactionOutput, Entry> entries;
+
+    private int generation;
+    private long nextSequence;
+    private long totalValue;
+
+    // sorted entries as an array, until the next change
+    private Entry[] array;
+
+    UtxoIndex() {
+        this.entries = new IdentityHashMap<TransactionOutput, Entry>();
+
+        // equal values are kept in the order they were added, so that selections don't depend on hash codes
+        this.sorted = new TreeSet<Entry>(new Comparator<Entry>() {
+            @Override
+            public int compare(Entry entry1, Entry entry2) {
+                if (entry1.value != entry2.value) {
+                    return (entry1.value > entry2.value) ? -1 : 1;
+                } else if (entry1.sequence != entry2.sequence) {
+                    return (entry1.sequence < entry2.sequence) ? -1 : 1;
+                } else {
+                    return 0;
+                }
+            }
+        });
+    }
+
+    /** Adds and removes entries so that the index has exactly the selectable candidates; returns true if it changed. */
+    boolean update(Collection<TransactionOutput> candidates) {
+        generation++;
+
+        boolean changed = false;
+        int found = 0;
+
+        for (TransactionOutput output : candidates) {
+            if (!DefaultCoinSelector.isSelectable(output.getParentTransaction())) {
+                continue;
+            }
+
+            Entry entry = entries.get(output);
+
+            if (entry == null) {
+                entry = new Entry(output, nextSequence++);
+                entries.put(output, entry);
+                sorted.add(entry);
+                totalValue += entry.value;
+                changed = true;
+            }
+
+            entry.generation = generation;
+            found++;
+        }
+
+        if (found != entries.size()) {
+            Iterator<Entry> iterator = entries.values().iterator();
+
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+
+                if (entry.generation != generation) {
+                    iterator.remove();
+                    sorted.remove(entry);
+                    totalValue -= entry.value;
+                }
+            }
+
+            changed = true;
+        }
+
+        if (changed) {
+            array = null;
+        }
+
+        return changed;
+    }
+
+    /** All entries, largest value first. The array is shared and must not be modified. */
+    Entry[] getEntries() {
+        if (array == null) {
+            array = sorted.toArray(new Entry[sorted.size()]);
+        }
+
+        return array;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getTotalValue() {
+        return totalValue;
+    }
+
+    /** Returns the entry with the smallest value that is at least the given value, or null if there's none. */
+    Entry getSmallestCovering(long value) {
+        Entry[] entries = getEntries();
+        int low = 0;
+        int high = entries.length;
+
+        // entries[0 .. low) are >= value
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (entries[middle].value >= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return (low > 0) ? entries[low - 1] : null;
+    }
+}
@@ -0,0 +1,563 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.AddressFormatException;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionBroadcaster;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.crypto.KeyCrypter;
+import com.google.bitcoin.crypto.KeyCrypterException;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single wallet together with everything needed to present its transactions (index, JSON cache and writers) and
+ * the listeners that keep those up to date and report changes through the event dispatcher.
+ *
+ * The block chain and the peer group aren't managed here - BitcoinManager uses one handle for its only wallet, and
+ * MultiWalletManager attaches the wallets of all its handles to one shared chain and peer group.
+ */
+public class WalletHandle implements TransactionConfidence.Listener {
+    private static final Logger log = LoggerFactory.getLogger(WalletHandle.class);
+
+    private final String id;
+    private final NetworkParameters networkParams;
+    private final Wallet wallet;
+    private final File walletFile;
+    private final NativeEventDispatcher eventDispatcher;
+    private final AbstractWalletEventListener walletListener;
+
+    private final HashSet<Transaction> trackedTransactions;
+    private final TransactionIndex transactionIndex;
+    private final TransactionJSONCache transactionJSONCache;
+    private final TransactionDetails transactionDetails;
+    private final TransactionJSONWriter transactionJSONWriter;
+    private final TransactionBinaryWriter transactionBinaryWriter;
+    private final FeeEstimator feeEstimator;
+    private final SigningSession signingSession;
+
+    private volatile TransactionBroadcaster transactionBroadcaster;
+    private volatile BlockHeaderIndex blockHeaderIndex;
+    private volatile TransactionSigner transactionSigner;
+
+    public WalletHandle(String id, NetworkParameters networkParams, Wallet wallet, File walletFile,
+                        NativeEventDispatcher eventDispatcher, TransactionJSONCache transactionJSONCache) {
+        this.id = id;
+        this.networkParams = networkParams;
+        this.wallet = wallet;
+        this.walletFile = walletFile;
+        this.eventDispatcher = eventDispatcher;
+        this.transactionJSONCache = transactionJSONCache;
+
+        this.trackedTransactions = new HashSet<Transaction>();
+        this.transactionIndex = new TransactionIndex();
+        this.transactionDetails = new TransactionDetails(networkParams, wallet);
+        this.transactionJSONWriter = new TransactionJSONWriter(transactionDetails);
+        this.transactionBinaryWriter = new TransactionBinaryWriter(transactionDetails);
+        this.feeEstimator = new FeeEstimator(networkParams, wallet);
+        this.signingSession = new SigningSession();
+        transactionJSONCache.clear();
+
+        this.walletListener = new AbstractWalletEventListener() {
+            // get notified when an incoming transaction is received
+            @Override
+            public void onCoinsReceived(Wallet w, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+                onNewTransaction(tx);
+            }
+
+            // get notified when we send a transaction, or when we restore an outgoing transaction from the blockchain
+            @Override
+            public void onCoinsSent(Wallet w, Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+                onNewTransaction(tx);
+            }
+
+            @Override
+            public void onReorganize(Wallet w) {
+                WalletHandle.this.onReorganize();
+            }
+        };
+
+        wallet.addEventListener(walletListener);
+    }
+
+    /** Stops listening to the wallet and its transactions. */
+    public void close() {
+        wallet.removeEventListener(walletListener);
+        feeEstimator.close();
+        signingSession.lock();
+        stopTrackingTransactions();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Wallet getWallet() {
+        return wallet;
+    }
+
+    public File getWalletFile() {
+        return walletFile;
+    }
+
+    public NativeEventDispatcher getEventDispatcher() {
+        return eventDispatcher;
+    }
+
+    /** Set by the owner while the peer group is running, so that the wallet can send transactions. */
+    public void setTransactionBroadcaster(TransactionBroadcaster broadcaster) {
+        transactionBroadcaster = broadcaster;
+    }
+
+    /** Signs the inputs of sent transactions in parallel; without one, bitcoinj signs them one by one. */
+    public void setTransactionSigner(TransactionSigner signer) {
+        transactionSigner = signer;
+    }
+
+    /**
+     * Picks the inputs of sends and fee quotes with a BranchAndBoundCoinSelector instead of the wallet's
+     * DefaultCoinSelector. The selector isn't saved with the wallet.
+     */
+    public void setBranchAndBoundCoinSelection(boolean enabled) {
+        boolean installed = wallet.getCoinSelector() instanceof BranchAndBoundCoinSelector;
+
+        if (enabled && !installed) {
+            wallet.setCoinSelector(new BranchAndBoundCoinSelector());
+        } else if (!enabled && installed) {
+            wallet.setCoinSelector(new DefaultCoinSelector());
+        }
+    }
+
+    /** Lets the transaction JSON include the height and time of the block a transaction is in. */
+    public void setBlockHeaderIndex(BlockHeaderIndex index) {
+        blockHeaderIndex = index;
+    }
+
+
+    /* --- Tracking transactions --- */
+
+    public void trackPendingTransactions() {
+        // we won't receive onCoinsReceived again for transactions that we already know about,
+        // so we need to listen to confidence changes again after a restart
+        for (Transaction tx : wallet.getPendingTransactions()) {
+            trackTransaction(tx);
+        }
+    }
+
+    private void trackTransaction(Transaction tx) {
+        if (!trackedTransactions.contains(tx)) {
+            log.debug("Tracking transaction " + tx.getHashAsString());
+
+            tx.getConfidence().addEventListener(this);
+            trackedTransactions.add(tx);
+        }
+    }
+
+    private void stopTrackingTransaction(Transaction tx) {
+        if (trackedTransactions.contains(tx)) {
+            log.debug("Stopped tracking transaction " + tx.getHashAsString());
+
+            tx.getConfidence().removeEventListener(this);
+            trackedTransactions.remove(tx);
+        }
+    }
+
+    public void stopTrackingTransactions() {
+        for (Transaction tx : (HashSet<Transaction>) trackedTransactions.clone()) {
+            stopTrackingTransaction(tx);
+        }
+    }
+
+    /** Needs to be called after transactions were added to or removed from the wallet without notifying listeners. */
+    public void rebuildTransactionIndex() {
+        transactionIndex.rebuild(wallet);
+        transactionJSONCache.clear();
+        transactionBinaryWriter.invalidateAll();
+    }
+
+
+    /* --- Reading wallet data --- */
+
+    public String getWalletAddress() {
+        ECKey ecKey = wallet.getKeys().get(0);
+        return ecKey.toAddress(networkParams).toString();
+    }
+
+    public long getAvailableBalance() {
+        return wallet.getBalance().longValue();
+    }
+
+    public long getEstimatedBalance() {
+        return wallet.getBalance(Wallet.BalanceType.ESTIMATED).longValue();
+    }
+
+
+    /* --- Reading transaction data --- */
+
+    public String getJSONFromTransaction(Transaction tx) {
+        if (tx == null) {
+            return null;
+        }
+
+        StringBuilder buffer = new StringBuilder(1024);
+        appendTransactionJSON(buffer, tx);
+        return buffer.toString();
+    }
+
+    private void appendTransactionJSON(StringBuilder buffer, Transaction tx) {
+        TransactionJSONCache.Entry cached = transactionJSONCache.get(tx.getHash());
+
+        if (cached == null) {
+            cached = transactionJSONWriter.render(tx);
+            transactionJSONCache.put(tx.getHash(), cached);
+        }
+
+        TransactionConfidence txConfidence = tx.getConfidence();
+        String confidence = TransactionDetails.getConfidenceName(txConfidence.getConfidenceType());
+
+        BlockHeaderIndex index = blockHeaderIndex;
+        int height = -1;
+        long blockTime = -1;
+
+        if (index != null && txConfidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING) {
+            height = txConfidence.getAppearedAtChainHeight();
+            blockTime = getBlockTime(index, tx, height);
+        }
+
+        cached.appendTo(buffer, confidence, txConfidence.numBroadcastPeers(), txConfidence.getDepthInBlocks(), height,
+                (blockTime >= 0) ? TransactionJSONWriter.formatTime(new Date(blockTime * 1000)) : null);
+    }
+
+    /** Returns the time of the block at the height if the transaction is in it, or -1 if that isn't known. */
+    private static long getBlockTime(BlockHeaderIndex index, Transaction tx, int height) {
+        Sha256Hash blockHash = index.getHash(height);
+        Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+
+        if (blockHash == null || (appearsIn != null && !appearsIn.containsKey(blockHash))) {
+            return -1;
+        }
+
+        return index.getTime(height);
+    }
+
+    /** Also drops the transaction's binary record, which is cached on the same terms. */
+    private void invalidateCachedJSON(Transaction tx) {
+        transactionJSONCache.remove(tx.getHash());
+        transactionBinaryWriter.invalidate(tx.getHash());
+
+        // transactions spending this one's outputs can now show their input amounts and fee
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+
+            if (spentBy != null && spentBy.getParentTransaction() != null) {
+                transactionJSONCache.remove(spentBy.getParentTransaction().getHash());
+                transactionBinaryWriter.invalidate(spentBy.getParentTransaction().getHash());
+            }
+        }
+    }
+
+    public String getTransactionJSONCacheStats() {
+        return transactionJSONCache.toString();
+    }
+
+    public String getFeeEstimatorStats() {
+        return feeEstimator.toString();
+    }
+
+    public int getTransactionCount() {
+        return transactionIndex.size();
+    }
+
+    public String getAllTransactions() {
+        return getTransactions(0, getTransactionCount());
+    }
+
+    public String getTransaction(String tx) {
+        Sha256Hash hash = new Sha256Hash(tx);
+        return getJSONFromTransaction(wallet.getTransaction(hash));
+    }
+
+    public String getTransaction(int idx) {
+        return getJSONFromTransaction(transactionIndex.get(idx));
+    }
+
+    public String getTransactions(int from, int count) {
+        List<Transaction> transactions = transactionIndex.getRange(from, count);
+
+        if (transactions.isEmpty())
+            return null;
+
+        StringBuilder txs = new StringBuilder(transactions.size() * 512);
+        txs.append("[\n");
+        boolean first = true;
+        for (Transaction tx : transactions) {
+            if (first)
+                first = false;
+            else
+                txs.append("\n,");
+
+            appendTransactionJSON(txs, tx);
+        }
+        txs.append("]\n");
+
+        return txs.toString();
+    }
+
+    public ByteBuffer getAllTransactionsBinary() {
+        return getTransactionsBinary(0, getTransactionCount());
+    }
+
+    /**
+     * Returns the same transactions as getTransactions(), in the binary format described in TransactionBinaryWriter.
+     * The buffer is direct and is reused by the next call, so it needs to be read before calling this again.
+     */
+    public ByteBuffer getTransactionsBinary(int from, int count) {
+        List<Transaction> transactions = transactionIndex.getRange(from, count);
+
+        if (transactions.isEmpty())
+            return null;
+
+        return transactionBinaryWriter.write(transactions, from, transactionIndex.size());
+    }
+
+    public boolean isTransactionIndexConsistent() {
+        return transactionIndex.isConsistentWith(wallet);
+    }
+
+
+    /* --- Sending transactions --- */
+
+    public String feeForSendingCoins(String amount, String sendToAddressString) throws InsufficientMoneyException {
+        try {
+            BigInteger amountToSend = new BigInteger(amount);
+            if (amountToSend.intValue() == 0 || sendToAddressString.equals("")) {
+                // assume default value for now
+                return Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.toString();
+            }
+
+            Address sendToAddress = new Address(networkParams, sendToAddressString);
+            return String.valueOf(feeEstimator.getFee(sendToAddress, amountToSend.longValue()));
+        } catch (AddressFormatException e) {
+            // assume default value for now
+            return Transaction.REFERENCE_DEFAULT_MIN_TX_FEE.toString();
+        }
+    }
+
+    /** Sends the coins through the broadcaster set with setTransactionBroadcaster; the password is wiped. */
+    public Wallet.SendResult sendCoins(String amount, String sendToAddressString, char[] utf16Password)
+            throws WrongPasswordException, AddressFormatException, InsufficientMoneyException {
+        TransactionBroadcaster broadcaster = getTransactionBroadcaster();
+
+        KeyParameter aesKey = null;
+
+        try {
+            BigInteger aToSend = new BigInteger(amount);
+            Address sendToAddress = new Address(networkParams, sendToAddressString);
+            Transaction tx = newTransaction();
+            tx.addOutput(aToSend, sendToAddress);
+            Wallet.SendRequest request = Wallet.SendRequest.forTx(tx);
+
+            aesKey = aesKeyForPassword(utf16Password);
+            request.aesKey = aesKey;
+
+            return wallet.sendCoins(broadcaster, request);
+        } catch (KeyCrypterException e) {
+            throw new WrongPasswordException(e);
+        } finally {
+            wipeAesKey(aesKey);
+        }
+    }
+
+
+    /** Returns an empty transaction to be completed with Wallet.completeTx and signed by the transaction signer. */
+    public Transaction newTransaction() {
+        TransactionSigner signer = transactionSigner;
+        return (signer != null) ? signer.newTransaction(networkParams) : new Transaction(networkParams);
+    }
+
+    /** Returns the request, or a copy of it that's signed by the transaction signer (see there). */
+    public Wallet.SendRequest newSendRequest(Wallet.SendRequest request) {
+        TransactionSigner signer = transactionSigner;
+        return (signer != null) ? signer.newSendRequest(request) : request;
+    }
+
+    /** Commits a transaction that was completed with Wallet.completeTx and broadcasts it like sendCoins. */
+    public ListenableFuture<Transaction> commitAndBroadcast(Transaction tx) {
+        TransactionBroadcaster broadcaster = getTransactionBroadcaster();
+
+        wallet.commitTx(tx);
+        return broadcaster.broadcastTransaction(tx);
+    }
+
+    private TransactionBroadcaster getTransactionBroadcaster() {
+        TransactionBroadcaster broadcaster = transactionBroadcaster;
+
+        if (broadcaster == null) {
+            throw new IllegalStateException("Wallet " + id + " isn't connected to the network");
+        }
+
+        return broadcaster;
+    }
+
+
+    /* --- Encryption/decryption --- */
+
+    /**
+     * Returns the key for the password, or a copy of the signing session's key if the password is null and the
+     * wallet is unlocked. The password is wiped, and the caller should wipe the key.
+     */
+    public KeyParameter aesKeyForPassword(char[] utf16Password) throws WrongPasswordException {
+        return aesKeyForPassword(utf16Password, false);
+    }
+
+    /**
+     * Like aesKeyForPassword(char[]), but with requirePassword a null password is rejected even if the wallet is
+     * unlocked. The signing session only stands in for the password when sending, signing and exporting; changing
+     * the password, or keeping the key after the session may have ended, needs the password itself.
+     */
+    public KeyParameter aesKeyForPassword(char[] utf16Password, boolean requirePassword)
+            throws WrongPasswordException {
+        KeyCrypter keyCrypter = wallet.getKeyCrypter();
+
+        if (keyCrypter == null) {
+            throw new WrongPasswordException("Wallet is not protected.");
+        }
+
+        if (utf16Password == null && !requirePassword) {
+            KeyParameter sessionKey = signingSession.getKey();
+
+            if (sessionKey != null) {
+                return sessionKey;
+            }
+        }
+
+        return deriveKeyAndWipePassword(utf16Password, keyCrypter);
+    }
+
+    /**
+     * Keeps the key for the password until the wallet wasn't used for idleTimeoutMs, absoluteTimeoutMs pass or
+     * lock() is called; until then, sending, signing and exporting also work with a null password.
+     */
+    public void unlock(char[] utf16Password, long idleTimeoutMs, long absoluteTimeoutMs)
+            throws WrongPasswordException {
+        if (utf16Password == null) {
+            throw new WrongPasswordException("No password provided.");
+        }
+
+        KeyParameter aesKey = aesKeyForPassword(utf16Password);
+
+        if (!wallet.checkAESKey(aesKey)) {
+            wipeAesKey(aesKey);
+            throw new WrongPasswordException("Wrong password.");
+        }
+
+        signingSession.unlock(aesKey, idleTimeoutMs, absoluteTimeoutMs);
+    }
+
+    public void lock() {
+        signingSession.lock();
+    }
+
+    public boolean isUnlocked() {
+        return signingSession.isUnlocked();
+    }
+
+    public String getSigningSessionStats() {
+        return signingSession.toString();
+    }
+
+    static KeyParameter deriveKeyAndWipePassword(char[] utf16Password, KeyCrypter keyCrypter)
+            throws WrongPasswordException {
+
+        if (utf16Password == null) {
+            throw new WrongPasswordException("No password provided.");
+        }
+
+        try {
+            return keyCrypter.deriveKey(CharBuffer.wrap(utf16Password));
+        } finally {
+            Arrays.fill(utf16Password, '\0');
+        }
+    }
+
+    static void wipeAesKey(KeyParameter aesKey) {
+        if (aesKey != null) {
+            Arrays.fill(aesKey.getKey(), (byte) 0);
+        }
+    }
+
+
+    /* --- Wallet and confidence events --- */
+
+    public void onNewTransaction(Transaction tx) {
+        transactionIndex.update(tx);
+        invalidateCachedJSON(tx);
+
+        // avoid double updates if we get both sent + received
+        if (!trackedTransactions.contains(tx)) {
+            // update the UI
+            eventDispatcher.balanceChanged();
+            eventDispatcher.transactionChanged(tx);
+
+            // get notified when transaction is confirmed
+            if (tx.isPending()) {
+                trackTransaction(tx);
+            }
+        }
+    }
+
+    public void onReorganize() {
+        // any number of transactions could have changed their position or become dead
+        rebuildTransactionIndex();
+
+        eventDispatcher.balanceChanged();
+    }
+
+    public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+        if (reason != TransactionConfidence.Listener.ChangeReason.TYPE) {
+            // we don't need to notify the UI of peer count or confirmation amount changes
+            return;
+        }
+
+        if (!tx.isPending()) {
+            // coins were confirmed (appeared in a block) - we don't need to listen anymore
+            stopTrackingTransaction(tx);
+        }
+
+        // the update time changes when the transaction gets into a block, and dead transactions disappear
+        transactionIndex.update(tx);
+
+        // time, amounts and connected inputs may have changed; depth and peers are never cached
+        invalidateCachedJSON(tx);
+
+        // update the UI
+        eventDispatcher.balanceChanged();
+        eventDispatcher.transactionChanged(tx);
+    }
+
+    @Override
+    public String toString() {
+        return "WalletHandle: " + id + ", " + transactionIndex.size() + " transactions";
+    }
+}
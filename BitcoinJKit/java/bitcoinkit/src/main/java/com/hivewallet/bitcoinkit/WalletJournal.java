@@ -0,0 +1,827 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractWalletEventListener;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletExtension;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.store.UnreadableWalletException;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.utils.Threading;
+import com.google.bitcoin.wallet.WalletTransaction;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Saves wallet changes by appending small records to a journal next to the wallet file, instead of writing the whole
+ * wallet again after each change like Wallet.autosaveToFile does. Every now and then (when the journal gets as big
+ * as the wallet file) the wallet is saved in full in the background and the journal is emptied. When loading,
+ * readWallet() applies the journal to the saved wallet.
+ *
+ * Journal format (big-endian):
+ *
+ *   header:
+ *     int32   magic, "HWJL"
+ *     int32   format version (1)
+ *     int64   generation of the wallet snapshot the journal applies to (see WalletJournalExtension)
+ *
+ *   records:
+ *     int32   payload length
+ *     int8    type
+ *     bytes   payload
+ *     int32   CRC32 of type and payload
+ *
+ *   record types:
+ *     1 - transaction: Protos.Transaction with the complete current state of one wallet transaction
+ *     2 - extension: Protos.Extension
+ *     3 - last seen block: 32 bytes of hash, int32 height, int64 time in seconds
+ *
+ * Records always contain the complete state of what they describe, so applying the same or an older record again is
+ * harmless as long as newer records follow. Confirmation counts aren't journaled - they're calculated from the last
+ * seen block height when the journal is applied, and the work done is extrapolated from them. Anything that can't be
+ * expressed as a record (removed transactions, reorganizations, new keys) makes the journal save the whole wallet
+ * instead.
+ *
+ * The transaction records are created with WalletProtobufSerializer's own (private) method, so that they're exactly
+ * what the serializer would write; if that method can't be found, isSupported() returns false.
+ */
+public class WalletJournal {
+    public enum SyncPolicy {
+        /** Sync the journal to disk after every change. */
+        ALWAYS,
+
+        /** Sync at most once per sync interval (changes are still written to the OS immediately). */
+        INTERVAL,
+
+        /** Leave it to the OS. */
+        NEVER
+    }
+
+    public static final long DEFAULT_SYNC_INTERVAL_MS = 1000;
+    public static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+    static final int MAGIC = 0x48574a4c;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    static final byte RECORD_TRANSACTION = 1;
+    static final byte RECORD_EXTENSION = 2;
+    static final byte RECORD_LAST_BLOCK = 3;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+    private static final Method makeTxProto = findMakeTxProto();
+
+    private final Wallet wallet;
+    private final File walletFile;
+    private final File journalFile;
+    private final WalletJournalExtension journalExtension;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final ScheduledExecutorService executor;
+    private final AbstractWalletEventListener walletListener;
+
+    private final ConcurrentHashMap<Sha256Hash, TransactionConfidence.ConfidenceType> journaledTypes;
+    private final HashMap<String, byte[]> journaledExtensions;
+    private Sha256Hash journaledLastBlock;
+
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(4096);
+    private final DataOutputStream recordStream = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+
+    private volatile SyncPolicy syncPolicy = SyncPolicy.INTERVAL;
+    private volatile long syncIntervalMs = DEFAULT_SYNC_INTERVAL_MS;
+
+    private long journalSize;
+    private long snapshotSize;
+    private long lastSyncTime;
+    private boolean syncScheduled;
+    private boolean compactionScheduled;
+    private boolean closed;
+
+    private long recordsWritten;
+    private long journalBytesWritten;
+    private long snapshotsWritten;
+    private long snapshotBytesWritten;
+    private long syncs;
+
+    private static Method findMakeTxProto() {
+        try {
+            Method method = WalletProtobufSerializer.class.getDeclaredMethod("makeTxProto", WalletTransaction.class);
+            method.setAccessible(true);
+            return method;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public static boolean isSupported() {
+        return makeTxProto != null;
+    }
+
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+
+    /* --- Loading --- */
+
+    /** Loads the wallet from the wallet file and the journal, if there's one for this version of the file. */
+    public static void readWallet(File walletFile, Wallet wallet) throws IOException, UnreadableWalletException {
+        Protos.Wallet snapshot;
+        InputStream stream = new BufferedInputStream(new FileInputStream(walletFile));
+
+        try {
+            snapshot = WalletProtobufSerializer.parseToProto(stream);
+        } finally {
+            stream.close();
+        }
+
+        new WalletProtobufSerializer().readWallet(applyJournal(snapshot, getJournalFile(walletFile)), wallet);
+    }
+
+    static Protos.Wallet applyJournal(Protos.Wallet snapshot, File journalFile) throws IOException {
+        if (!journalFile.exists()) {
+            return snapshot;
+        }
+
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+
+        try {
+            if (!readHeader(stream, getGeneration(snapshot))) {
+                log.info("Ignoring wallet journal written for an earlier version of the wallet file");
+                return snapshot;
+            }
+
+            Protos.Wallet.Builder builder = snapshot.toBuilder();
+            HashMap<ByteString, Integer> positions = new HashMap<ByteString, Integer>();
+
+            for (int i = 0; i < builder.getTransactionCount(); i++) {
+                positions.put(builder.getTransaction(i).getHash(), i);
+            }
+
+            int count = 0;
+            byte[] record;
+
+            while ((record = readRecord(stream)) != null) {
+                applyRecord(builder, positions, record);
+                count++;
+            }
+
+            updateDepths(builder);
+
+            log.info("Applied " + count + " wallet journal records");
+            return builder.build();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static long getGeneration(Protos.Wallet walletData) {
+        for (Protos.Extension extension : walletData.getExtensionList()) {
+            if (extension.getId().equals(WalletJournalExtension.EXTENSION_ID)) {
+                return WalletJournalExtension.parseGeneration(extension.getData().toByteArray());
+            }
+        }
+
+        return 0;
+    }
+
+    private static boolean readHeader(DataInputStream stream, long generation) throws IOException {
+        try {
+            return stream.readInt() == MAGIC && stream.readInt() == VERSION && stream.readLong() == generation;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /** Returns the type byte followed by the payload, or null at the end of the journal or at a damaged record. */
+    private static byte[] readRecord(DataInputStream stream) throws IOException {
+        try {
+            int length = stream.readInt();
+
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                log.warn("Wallet journal contains a damaged record, ignoring the rest");
+                return null;
+            }
+
+            byte[] record = new byte[length + 1];
+            stream.readFully(record);
+
+            CRC32 crc = new CRC32();
+            crc.update(record);
+
+            if ((int) crc.getValue() != stream.readInt()) {
+                log.warn("Wallet journal contains a damaged record, ignoring the rest");
+                return null;
+            }
+
+            return record;
+        } catch (EOFException e) {
+            // a record that was being written when the app was terminated
+            return null;
+        }
+    }
+
+    private static void applyRecord(Protos.Wallet.Builder builder, HashMap<ByteString, Integer> positions,
+                                    byte[] record) throws IOException {
+        byte[] payload = Arrays.copyOfRange(record, 1, record.length);
+
+        switch (record[0]) {
+            case RECORD_TRANSACTION:
+                Protos.Transaction tx = Protos.Transaction.parseFrom(payload);
+                Integer position = positions.get(tx.getHash());
+
+                if (position != null) {
+                    builder.setTransaction(position, tx);
+                } else {
+                    positions.put(tx.getHash(), builder.getTransactionCount());
+                    builder.addTransaction(tx);
+                }
+                break;
+
+            case RECORD_EXTENSION:
+                Protos.Extension extension = Protos.Extension.parseFrom(payload);
+                boolean replaced = false;
+
+                for (int i = 0; i < builder.getExtensionCount() && !replaced; i++) {
+                    if (builder.getExtension(i).getId().equals(extension.getId())) {
+                        builder.setExtension(i, extension);
+                        replaced = true;
+                    }
+                }
+
+                if (!replaced) {
+                    builder.addExtension(extension);
+                }
+                break;
+
+            case RECORD_LAST_BLOCK:
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                byte[] hash = new byte[32];
+                buffer.get(hash);
+
+                builder.setLastSeenBlockHash(ByteString.copyFrom(hash));
+                builder.setLastSeenBlockHeight(buffer.getInt());
+                builder.setLastSeenBlockTimeSecs(buffer.getLong());
+                break;
+
+            default:
+                throw new IOException("Unknown wallet journal record type " + record[0]);
+        }
+    }
+
+    private static void updateDepths(Protos.Wallet.Builder builder) {
+        if (!builder.hasLastSeenBlockHeight()) {
+            return;
+        }
+
+        int height = builder.getLastSeenBlockHeight();
+
+        for (int i = 0; i < builder.getTransactionCount(); i++) {
+            Protos.Transaction tx = builder.getTransaction(i);
+            Protos.TransactionConfidence confidence = tx.getConfidence();
+
+            if (tx.hasConfidence() && confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+                    && confidence.hasAppearedAtHeight()) {
+                int depth = height - confidence.getAppearedAtHeight() + 1;
+
+                if (depth > 0 && depth != confidence.getDepth()) {
+                    builder.setTransaction(i, tx.toBuilder().setConfidence(withDepth(confidence, depth)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the confidence with another depth, and the work done scaled to it (the work of the blocks added or
+     * removed isn't known, so the same work per block is assumed).
+     */
+    static Protos.TransactionConfidence withDepth(Protos.TransactionConfidence confidence, int depth) {
+        Protos.TransactionConfidence.Builder updated = confidence.toBuilder().setDepth(depth);
+
+        if (confidence.hasWorkDone() && confidence.getDepth() > 0) {
+            BigInteger workDone = BigInteger.valueOf(confidence.getWorkDone())
+                    .multiply(BigInteger.valueOf(depth)).divide(BigInteger.valueOf(confidence.getDepth()));
+            updated.setWorkDone(workDone.longValue());
+        }
+
+        return updated.build();
+    }
+
+    /** Saves the wallet in full and deletes the journal, for when the wallet won't be saved through the journal. */
+    public static void removeJournal(Wallet wallet, File walletFile) throws IOException {
+        File journalFile = getJournalFile(walletFile);
+
+        if (journalFile.exists()) {
+            wallet.saveToFile(walletFile);
+
+            if (!journalFile.delete()) {
+                throw new IOException("Could not delete wallet journal " + journalFile);
+            }
+        }
+    }
+
+
+    /* --- Writing --- */
+
+    /**
+     * Starts journaling changes of a wallet that was loaded with readWallet(). The wallet needs to contain
+     * a WalletJournalExtension if it was saved with one (i.e. it has to be added before loading).
+     */
+    public WalletJournal(Wallet wallet, File walletFile) throws IOException {
+        if (!isSupported()) {
+            throw new IllegalStateException("Wallet journal isn't supported with this version of bitcoinj");
+        }
+
+        this.wallet = wallet;
+        this.walletFile = walletFile;
+        this.journalFile = getJournalFile(walletFile);
+        this.snapshotSize = walletFile.length();
+        this.journaledTypes = new ConcurrentHashMap<Sha256Hash, TransactionConfidence.ConfidenceType>();
+        this.journaledExtensions = new HashMap<String, byte[]>();
+
+        WalletExtension extension = wallet.getExtensions().get(WalletJournalExtension.EXTENSION_ID);
+
+        if (extension == null) {
+            extension = new WalletJournalExtension();
+            wallet.addExtension(extension);
+        }
+
+        journalExtension = (WalletJournalExtension) extension;
+
+        randomAccessFile = new RandomAccessFile(journalFile, "rw");
+        channel = randomAccessFile.getChannel();
+
+        try {
+            openJournal();
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+
+        // the current state is already saved, only changes from now on need to be journaled
+        for (Transaction tx : wallet.getTransactions(true)) {
+            journaledTypes.put(tx.getHash(), tx.getConfidence().getConfidenceType());
+        }
+
+        for (WalletExtension walletExtension : wallet.getExtensions().values()) {
+            journaledExtensions.put(walletExtension.getWalletExtensionID(), walletExtension.serializeWalletExtension());
+        }
+
+        journaledLastBlock = wallet.getLastBlockSeenHash();
+
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("BitcoinKit wallet journal").setDaemon(true).build());
+
+        // a new block changes the depth of every transaction, and handing each of those changes to the user thread
+        // costs more than journaling the block - so the listener runs on the wallet's thread, with its lock held,
+        // and only passes on confidence changes that could be a change of the type; it mustn't take our lock there
+        walletListener = new AbstractWalletEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet w, final Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+                Threading.USER_THREAD.execute(new Runnable() {
+                    public void run() {
+                        onTransactionChanged(tx);
+                    }
+                });
+            }
+
+            @Override
+            public void onCoinsSent(Wallet w, final Transaction tx, BigInteger prevBalance, BigInteger newBalance) {
+                Threading.USER_THREAD.execute(new Runnable() {
+                    public void run() {
+                        onTransactionChanged(tx);
+                    }
+                });
+            }
+
+            @Override
+            public void onTransactionConfidenceChanged(Wallet w, final Transaction tx) {
+                if (journaledTypes.get(tx.getHash()) == tx.getConfidence().getConfidenceType()) {
+                    return;
+                }
+
+                Threading.USER_THREAD.execute(new Runnable() {
+                    public void run() {
+                        onConfidenceChanged(tx);
+                    }
+                });
+            }
+
+            @Override
+            public void onWalletChanged(Wallet w) {
+                Threading.USER_THREAD.execute(new Runnable() {
+                    public void run() {
+                        onOtherChanges();
+                    }
+                });
+            }
+
+            @Override
+            public void onReorganize(Wallet w) {
+                compactOnUserThread();
+            }
+
+            @Override
+            public void onKeysAdded(Wallet w, List<ECKey> keys) {
+                compactOnUserThread();
+            }
+
+            @Override
+            public void onScriptsAdded(Wallet w, List<Script> scripts) {
+                compactOnUserThread();
+            }
+        };
+
+        wallet.addEventListener(walletListener, Threading.SAME_THREAD);
+    }
+
+    /** Compaction locks the wallet while holding our lock, so we can't take our lock while the wallet is locked. */
+    private void compactOnUserThread() {
+        Threading.USER_THREAD.execute(new Runnable() {
+            public void run() {
+                compactLater();
+            }
+        });
+    }
+
+    /** Continues after the last complete record if the journal belongs to the current snapshot, or starts over. */
+    private void openJournal() throws IOException {
+        long generation = journalExtension.getGeneration();
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        long validEnd = 0;
+
+        try {
+            if (readHeader(stream, generation)) {
+                validEnd = HEADER_SIZE;
+                byte[] record;
+
+                while ((record = readRecord(stream)) != null) {
+                    validEnd += record.length + 8;
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        if (validEnd == 0) {
+            resetJournal(generation);
+        } else {
+            channel.truncate(validEnd);
+            channel.position(validEnd);
+            journalSize = validEnd;
+        }
+    }
+
+    private void resetJournal(long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+
+        channel.truncate(0);
+        channel.position(0);
+        channel.write(header);
+        channel.force(false);
+
+        journalSize = HEADER_SIZE;
+    }
+
+    public void setSyncPolicy(SyncPolicy policy) {
+        syncPolicy = policy;
+    }
+
+    public void setSyncInterval(long milliseconds) {
+        syncIntervalMs = milliseconds;
+    }
+
+    private synchronized void onTransactionChanged(Transaction tx) {
+        if (closed) {
+            return;
+        }
+
+        try {
+            appendTransactionAndSpentParents(tx);
+            writeRecords();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private synchronized void onConfidenceChanged(Transaction tx) {
+        if (closed || journaledTypes.get(tx.getHash()) == tx.getConfidence().getConfidenceType()) {
+            // only changes of the confidence type are journaled, depth is calculated when loading
+            return;
+        }
+
+        try {
+            // if it became dead, the outputs it spent are unspent again
+            appendTransactionAndSpentParents(tx);
+            writeRecords();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private synchronized void onOtherChanges() {
+        if (closed) {
+            return;
+        }
+
+        try {
+            Sha256Hash lastBlock = wallet.getLastBlockSeenHash();
+
+            if (lastBlock != null && !lastBlock.equals(journaledLastBlock)) {
+                appendLastBlock(lastBlock, wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenTimeSecs());
+            }
+
+            for (WalletExtension extension : wallet.getExtensions().values()) {
+                if (extension != journalExtension) {
+                    appendExtensionIfChanged(extension);
+                }
+            }
+
+            writeRecords();
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    private void appendTransactionAndSpentParents(Transaction tx) throws IOException {
+        appendTransaction(tx);
+
+        // outputs spent by this transaction changed their state in the transactions they belong to
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput connected = input.getConnectedOutput();
+
+            if (connected != null && connected.getParentTransaction() != null) {
+                appendTransaction(connected.getParentTransaction());
+            }
+        }
+    }
+
+    private void appendTransaction(Transaction tx) throws IOException {
+        if (wallet.getTransaction(tx.getHash()) == null) {
+            return;
+        }
+
+        Protos.Transaction proto;
+
+        try {
+            proto = (Protos.Transaction) makeTxProto.invoke(null, new WalletTransaction(getPool(tx), tx));
+        } catch (Exception e) {
+            throw new IOException("Could not serialize transaction " + tx.getHashAsString(), e);
+        }
+
+        appendRecord(RECORD_TRANSACTION, proto.toByteArray());
+        journaledTypes.put(tx.getHash(), tx.getConfidence().getConfidenceType());
+    }
+
+    private WalletTransaction.Pool getPool(Transaction tx) {
+        // same rules that Wallet uses to move transactions between its pools
+        switch (tx.getConfidence().getConfidenceType()) {
+            case DEAD:
+                return WalletTransaction.Pool.DEAD;
+            case PENDING:
+                return WalletTransaction.Pool.PENDING;
+            default:
+                return tx.isEveryOwnedOutputSpent(wallet)
+                        ? WalletTransaction.Pool.SPENT : WalletTransaction.Pool.UNSPENT;
+        }
+    }
+
+    private void appendLastBlock(Sha256Hash hash, int height, long timeSecs) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(44);
+        payload.put(hash.getBytes()).putInt(height).putLong(timeSecs);
+
+        appendRecord(RECORD_LAST_BLOCK, payload.array());
+        journaledLastBlock = hash;
+    }
+
+    private void appendExtensionIfChanged(WalletExtension extension) throws IOException {
+        String id = extension.getWalletExtensionID();
+        byte[] data = extension.serializeWalletExtension();
+
+        if (Arrays.equals(data, journaledExtensions.get(id))) {
+            return;
+        }
+
+        Protos.Extension proto = Protos.Extension.newBuilder()
+                .setId(id)
+                .setData(ByteString.copyFrom(data))
+                .setMandatory(extension.isWalletExtensionMandatory())
+                .build();
+
+        appendRecord(RECORD_EXTENSION, proto.toByteArray());
+        journaledExtensions.put(id, data);
+    }
+
+    private void appendRecord(byte type, byte[] payload) throws IOException {
+        crc.reset();
+        crc.update(type);
+        crc.update(payload);
+
+        recordStream.writeInt(payload.length);
+        recordStream.writeByte(type);
+        recordStream.write(payload);
+        recordStream.writeInt((int) crc.getValue());
+
+        recordsWritten++;
+    }
+
+    private void writeRecords() throws IOException {
+        if (recordBytes.size() == 0) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(recordBytes.toByteArray());
+        recordBytes.reset();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+
+        journalSize += buffer.limit();
+        journalBytesWritten += buffer.limit();
+
+        syncAccordingToPolicy();
+
+        if (journalSize > Math.max(MIN_COMPACTION_SIZE, snapshotSize)) {
+            compactLater();
+        }
+    }
+
+    private void syncAccordingToPolicy() throws IOException {
+        SyncPolicy policy = syncPolicy;
+
+        if (policy == SyncPolicy.ALWAYS) {
+            sync();
+        } else if (policy == SyncPolicy.INTERVAL) {
+            long wait = lastSyncTime + syncIntervalMs - System.currentTimeMillis();
+
+            if (wait <= 0) {
+                sync();
+            } else if (!syncScheduled) {
+                syncScheduled = true;
+
+                executor.schedule(new Runnable() {
+                    public void run() {
+                        syncNow();
+                    }
+                }, wait, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private synchronized void syncNow() {
+        syncScheduled = false;
+
+        if (!closed) {
+            try {
+                sync();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        channel.force(false);
+        lastSyncTime = System.currentTimeMillis();
+        syncs++;
+    }
+
+    private void failed(IOException e) {
+        log.error("Could not write to wallet journal, saving the whole wallet instead: " + e);
+        recordBytes.reset();
+        compactLater();
+    }
+
+
+    /* --- Compacting --- */
+
+    /** Saves the whole wallet and empties the journal on a background thread. */
+    public synchronized void compactLater() {
+        if (closed || compactionScheduled) {
+            return;
+        }
+
+        compactionScheduled = true;
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    log.error("Could not save wallet: " + e);
+                }
+            }
+        });
+    }
+
+    /** Saves the whole wallet and empties the journal now. */
+    public synchronized void compact() throws IOException {
+        compactionScheduled = false;
+
+        if (closed) {
+            return;
+        }
+
+        // the journal can only be emptied once the new snapshot is in place, and a journal that's left behind
+        // if we don't get that far must not be applied to the new snapshot - hence the generation number
+        long oldGeneration = journalExtension.getGeneration();
+        journalExtension.setGeneration(oldGeneration + 1);
+
+        try {
+            wallet.saveToFile(walletFile);
+        } catch (IOException e) {
+            journalExtension.setGeneration(oldGeneration);
+            throw e;
+        }
+
+        snapshotSize = walletFile.length();
+        snapshotsWritten++;
+        snapshotBytesWritten += snapshotSize;
+
+        resetJournal(oldGeneration + 1);
+    }
+
+    /** Saves the whole wallet and stops journaling. */
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        wallet.removeEventListener(walletListener);
+
+        try {
+            compact();
+        } finally {
+            closed = true;
+            executor.shutdown();
+            randomAccessFile.close();
+        }
+    }
+
+
+    /* --- Statistics --- */
+
+    public synchronized long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    /** Bytes appended to the journal so far, not counting headers. */
+    public synchronized long getJournalBytesWritten() {
+        return journalBytesWritten;
+    }
+
+    public synchronized long getSnapshotsWritten() {
+        return snapshotsWritten;
+    }
+
+    public synchronized long getSnapshotBytesWritten() {
+        return snapshotBytesWritten;
+    }
+
+    public synchronized long getJournalSize() {
+        return journalSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "WalletJournal: " + journalFile + ", size = " + journalSize + ", records = " + recordsWritten
+                + ", bytes = " + journalBytesWritten + ", snapshots = " + snapshotsWritten + " ("
+                + snapshotBytesWritten + " bytes), syncs = " + syncs + ", policy = " + syncPolicy;
+    }
+}
@@ -0,0 +1,55 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.core.WalletExtension;
+import java.nio.ByteBuffer;
+
+/**
+ * Stores the generation of the wallet snapshot, so that a journal written for an earlier snapshot is never applied
+ * to a newer one (see WalletJournal).
+ */
+public class WalletJournalExtension implements WalletExtension {
+    static final String EXTENSION_ID = WalletJournalExtension.class.getName();
+
+    private volatile long generation;
+
+    public WalletJournalExtension() {
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public void setGeneration(long generation) {
+        this.generation = generation;
+    }
+
+    @Override
+    public String getWalletExtensionID() {
+        return EXTENSION_ID;
+    }
+
+    @Override
+    public boolean isWalletExtensionMandatory() {
+        return false;
+    }
+
+    @Override
+    public byte[] serializeWalletExtension() {
+        return ByteBuffer.allocate(8).putLong(generation).array();
+    }
+
+    @Override
+    public void deserializeWalletExtension(Wallet containingWallet, byte[] data) throws Exception {
+        generation = parseGeneration(data);
+    }
+
+    static long parseGeneration(byte[] data) {
+        return (data.length == 8) ? ByteBuffer.wrap(data).getLong() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "WalletJournalExtension: generation = " + generation;
+    }
+}
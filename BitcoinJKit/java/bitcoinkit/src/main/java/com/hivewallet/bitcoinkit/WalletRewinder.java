@@ -0,0 +1,176 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.UnreadableWalletException;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.wallet.Protos;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+
+/**
+ * Sets a wallet back to an earlier block for a partial rescan. bitcoinj can only clear all transactions at once,
+ * so the wallet is copied through its protobuf form, leaving out the transactions that appeared after the block.
+ * Pending and dead transactions that depend on those (by spending their outputs or being overridden by them) are
+ * left out as well. Outputs they spent become spendable again, and the depths (with the work done scaled to them)
+ * and the last seen block are set back to the block.
+ */
+public class WalletRewinder {
+    private static final Logger log = LoggerFactory.getLogger(WalletRewinder.class);
+
+    private WalletRewinder() {
+    }
+
+    /**
+     * Reads the rewound version of source into target, which should be a new wallet with the same extensions.
+     * Returns the number of transactions that were left out.
+     */
+    public static int rewind(Wallet source, StoredBlock block, Wallet target) throws UnreadableWalletException {
+        int height = block.getHeight();
+        Protos.Wallet walletData = new WalletProtobufSerializer().walletToProto(source);
+        HashSet<ByteString> removed = new HashSet<ByteString>();
+
+        for (Protos.Transaction txProto : walletData.getTransactionList()) {
+            if (appearedAfter(txProto, height)) {
+                removed.add(txProto.getHash());
+            }
+        }
+
+        int dependent = removeDependentTransactions(walletData, removed);
+
+        Protos.Wallet.Builder builder = walletData.toBuilder().clearTransaction();
+
+        for (Protos.Transaction txProto : walletData.getTransactionList()) {
+            if (!removed.contains(txProto.getHash())) {
+                builder.addTransaction(rewindTransaction(source, txProto, removed, height));
+            }
+        }
+
+        builder.setLastSeenBlockHash(ByteString.copyFrom(block.getHeader().getHash().getBytes()));
+        builder.setLastSeenBlockHeight(height);
+        builder.setLastSeenBlockTimeSecs(block.getHeader().getTimeSeconds());
+
+        new WalletProtobufSerializer().readWallet(builder.build(), target);
+
+        if (!target.isConsistent()) {
+            log.error("Wallet is inconsistent after rewinding to height " + height);
+        }
+
+        log.info("Rewound wallet to height " + height + ", removed " + removed.size() + " transactions (" + dependent
+                + " of them pending or dead ones that depended on the others)");
+        return removed.size();
+    }
+
+    /**
+     * Returns the block at the given height if it can be found in the store, together with the first block of its
+     * difficulty period, which is needed to check the next difficulty transition.
+     */
+    public static StoredBlock findBlock(NetworkParameters params, BlockStore store, int height)
+            throws BlockStoreException {
+        StoredBlock block = store.getChainHead();
+
+        if (height >= block.getHeight()) {
+            return block;
+        }
+
+        int periodStart = height - height % params.getInterval();
+        StoredBlock found = null;
+
+        while (block != null && block.getHeight() >= periodStart) {
+            if (block.getHeight() == height) {
+                found = block;
+            }
+
+            if (block.getHeight() == periodStart) {
+                return found;
+            }
+
+            block = block.getPrev(store);
+        }
+
+        return null;
+    }
+
+    private static boolean appearedAfter(Protos.Transaction txProto, int height) {
+        Protos.TransactionConfidence confidence = txProto.getConfidence();
+
+        return txProto.hasConfidence() && confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+                && confidence.hasAppearedAtHeight() && confidence.getAppearedAtHeight() > height;
+    }
+
+    /**
+     * Adds the transactions that can't be kept without the removed ones to the removed set, and returns how many.
+     * Only transactions that aren't in the chain can depend on ones that appeared after the block.
+     */
+    private static int removeDependentTransactions(Protos.Wallet walletData, HashSet<ByteString> removed) {
+        int count = 0;
+        boolean found = true;
+
+        // until nothing else depends on a removed transaction, since dependent ones can be chained
+        while (found) {
+            found = false;
+
+            for (Protos.Transaction txProto : walletData.getTransactionList()) {
+                if (!removed.contains(txProto.getHash()) && dependsOnRemoved(txProto, removed)) {
+                    removed.add(txProto.getHash());
+                    found = true;
+                    count++;
+                }
+            }
+        }
+
+        return count;
+    }
+
+    private static boolean dependsOnRemoved(Protos.Transaction txProto, HashSet<ByteString> removed) {
+        for (Protos.TransactionInput input : txProto.getTransactionInputList()) {
+            if (removed.contains(input.getTransactionOutPointHash())) {
+                return true;
+            }
+        }
+
+        Protos.TransactionConfidence confidence = txProto.getConfidence();
+        return confidence.hasOverridingTransaction() && removed.contains(confidence.getOverridingTransaction());
+    }
+
+    private static Protos.Transaction rewindTransaction(Wallet source, Protos.Transaction txProto,
+                                                        HashSet<ByteString> removed, int height) {
+        Protos.Transaction.Builder builder = txProto.toBuilder();
+        boolean ownOutputFreed = false;
+
+        for (int i = 0; i < builder.getTransactionOutputCount(); i++) {
+            Protos.TransactionOutput output = builder.getTransactionOutput(i);
+
+            if (output.hasSpentByTransactionHash() && removed.contains(output.getSpentByTransactionHash())) {
+                builder.getTransactionOutputBuilder(i).clearSpentByTransactionHash().clearSpentByTransactionIndex();
+                ownOutputFreed |= isOwnOutput(source, txProto, i);
+            }
+        }
+
+        if (ownOutputFreed && builder.getPool() == Protos.Transaction.Pool.SPENT) {
+            builder.setPool(Protos.Transaction.Pool.UNSPENT);
+        }
+
+        Protos.TransactionConfidence confidence = builder.getConfidence();
+
+        if (builder.hasConfidence() && confidence.getType() == Protos.TransactionConfidence.Type.BUILDING
+                && confidence.hasAppearedAtHeight()) {
+            builder.setConfidence(WalletJournal.withDepth(confidence, height - confidence.getAppearedAtHeight() + 1));
+        }
+
+        return builder.build();
+    }
+
+    private static boolean isOwnOutput(Wallet wallet, Protos.Transaction txProto, int index) {
+        Transaction tx = wallet.getTransaction(new Sha256Hash(txProto.getHash().toByteArray()));
+        return tx != null && tx.getOutput(index).isMine(wallet);
+    }
+}
@@ -0,0 +1,289 @@
+package org.slf4j.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of log records passed to the Cocoa side from a single background thread, so that threads which
+ * log don't have to wait for the JNI call. The record slots are allocated once up front and reused.
+ */
+public class AsyncLogQueue {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_SAMPLING_RATE = 100;
+
+    private static final int BATCH_SIZE = 64;
+
+    /** What to do when a record is logged and the queue is full. */
+    public enum OverflowPolicy {
+        /** Drop the new record. */
+        DROP,
+
+        /** Wait until there's space for the new record. */
+        BLOCK,
+
+        /** Drop most new records, but wait for space for every Nth one, so the log doesn't go completely silent. */
+        SAMPLE
+    }
+
+    private static class Record {
+        CocoaLogger logger;
+        String fileName;
+        String methodName;
+        int lineNumber;
+        int level;
+        String msg;
+
+        void copyFrom(Record other) {
+            logger = other.logger;
+            fileName = other.fileName;
+            methodName = other.methodName;
+            lineNumber = other.lineNumber;
+            level = other.level;
+            msg = other.msg;
+        }
+
+        void clear() {
+            logger = null;
+            fileName = null;
+            methodName = null;
+            msg = null;
+        }
+    }
+
+    private final Record[] ring;
+    private final Record[] batch;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final Thread consumer;
+
+    private long head;
+    private long tail;
+    private boolean delivering;
+    private boolean closed;
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP;
+    private volatile int samplingRate = DEFAULT_SAMPLING_RATE;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    public AsyncLogQueue(int capacity) {
+        ring = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Record();
+        }
+
+        batch = new Record[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = new Record();
+        }
+
+        consumer = new Thread(new Runnable() {
+            public void run() {
+                deliverRecords();
+            }
+        }, "CocoaLogger");
+
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        overflowPolicy = policy;
+    }
+
+    public void setSamplingRate(int rate) {
+        samplingRate = rate;
+    }
+
+    public void enqueue(CocoaLogger logger, String fileName, String methodName, int lineNumber, int level, String msg) {
+        lock.lock();
+
+        try {
+            if (!closed) {
+                add(logger, fileName, methodName, lineNumber, level, msg);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // logged by a thread that got the queue just before it was closed
+        logger.receiveLogFromJVM(fileName, methodName, lineNumber, level, msg);
+    }
+
+    private void add(CocoaLogger logger, String fileName, String methodName, int lineNumber, int level, String msg) {
+        if (tail - head == ring.length) {
+            if (!waitForSpace()) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+
+        Record record = ring[(int) (tail % ring.length)];
+        record.logger = logger;
+        record.fileName = fileName;
+        record.methodName = methodName;
+        record.lineNumber = lineNumber;
+        record.level = level;
+        record.msg = msg;
+
+        tail++;
+        enqueued.incrementAndGet();
+        notEmpty.signal();
+    }
+
+    private boolean waitForSpace() {
+        OverflowPolicy policy = overflowPolicy;
+        long overflow = overflows.incrementAndGet();
+
+        if (policy == OverflowPolicy.DROP) {
+            return false;
+        } else if (policy == OverflowPolicy.SAMPLE && overflow % Math.max(samplingRate, 1) != 0) {
+            return false;
+        }
+
+        while (tail - head == ring.length) {
+            notFull.awaitUninterruptibly();
+        }
+
+        return true;
+    }
+
+    /** Waits until all records logged so far have been passed to the Cocoa side. */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        lock.lock();
+
+        try {
+            while (head != tail || delivering) {
+                long remaining = deadline - System.nanoTime();
+
+                if (remaining <= 0) {
+                    return false;
+                }
+
+                drained.awaitNanos(remaining);
+            }
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delivers the records that are still queued and stops the background thread, waiting until it's done. Records
+     * logged after this are passed to the Cocoa side directly from the thread that logs them.
+     */
+    public void close() {
+        lock.lock();
+
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (Thread.currentThread() == consumer) {
+            return;
+        }
+
+        boolean interrupted = false;
+
+        while (consumer.isAlive()) {
+            try {
+                consumer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deliverRecords() {
+        while (true) {
+            int count;
+
+            lock.lock();
+
+            try {
+                while (head == tail) {
+                    delivering = false;
+                    drained.signalAll();
+
+                    if (closed) {
+                        return;
+                    }
+
+                    notEmpty.awaitUninterruptibly();
+                }
+
+                count = (int) Math.min(tail - head, BATCH_SIZE);
+
+                for (int i = 0; i < count; i++) {
+                    Record record = ring[(int) (head % ring.length)];
+                    batch[i].copyFrom(record);
+                    record.clear();
+                    head++;
+                }
+
+                delivering = true;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            for (int i = 0; i < count; i++) {
+                Record record = batch[i];
+
+                try {
+                    record.logger.receiveLogFromJVM(record.fileName, record.methodName, record.lineNumber,
+                            record.level, record.msg);
+                } catch (Throwable t) {
+                    // there's nowhere to log this to, and the logging thread must survive it
+                }
+
+                record.clear();
+            }
+
+            delivered.addAndGet(count);
+        }
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueued.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncLogQueue: capacity = " + ring.length + ", enqueued = " + enqueued + ", delivered = " + delivered
+                + ", dropped = " + dropped + ", policy = " + overflowPolicy;
+    }
+}
@@ -0,0 +1,94 @@
+package org.slf4j.impl;
+
+import java.lang.reflect.Method;
+
+/**
+ * Finds the stack frame that called the logger.
+ *
+ * Throwable.getStackTrace() creates StackTraceElement objects for the whole stack, even though we only need a few
+ * frames from the top. On JVMs that provide sun.misc.JavaLangAccess (Java 6 - 8) frames are read one by one instead,
+ * stopping at the caller; on other JVMs we fall back to getStackTrace().
+ */
+class CallerLocator {
+    private static final Object javaLangAccess;
+    private static final Method getStackTraceDepth;
+    private static final Method getStackTraceElement;
+
+    static {
+        Object access = null;
+        Method depthMethod = null;
+        Method elementMethod = null;
+
+        try {
+            Class<?> secretsClass = Class.forName("sun.misc.SharedSecrets");
+            Class<?> accessClass = Class.forName("sun.misc.JavaLangAccess");
+
+            access = secretsClass.getMethod("getJavaLangAccess").invoke(null);
+            depthMethod = accessClass.getMethod("getStackTraceDepth", Throwable.class);
+            elementMethod = accessClass.getMethod("getStackTraceElement", Throwable.class, int.class);
+        } catch (Throwable t) {
+            access = null;
+        }
+
+        javaLangAccess = access;
+        getStackTraceDepth = depthMethod;
+        getStackTraceElement = elementMethod;
+    }
+
+    private CallerLocator() {
+    }
+
+    /** Returns the first frame outside the logger classes that called into them, or null if there's none. */
+    static StackTraceElement locate(String loggerClass, String loggerSuperclass) {
+        Throwable throwable = new Throwable();
+
+        if (javaLangAccess != null) {
+            try {
+                return locateFrameByFrame(throwable, loggerClass, loggerSuperclass);
+            } catch (Exception e) {
+                // fall back to the standard way below
+            }
+        }
+
+        return locateInStackTrace(throwable.getStackTrace(), loggerClass, loggerSuperclass);
+    }
+
+    private static StackTraceElement locateFrameByFrame(Throwable throwable, String loggerClass,
+                                                        String loggerSuperclass) throws Exception {
+        int depth = (Integer) getStackTraceDepth.invoke(javaLangAccess, throwable);
+        boolean insideLogger = false;
+
+        for (int i = 0; i < depth; i++) {
+            StackTraceElement frame = (StackTraceElement) getStackTraceElement.invoke(javaLangAccess, throwable, i);
+            boolean loggerFrame = isLoggerFrame(frame, loggerClass, loggerSuperclass);
+
+            if (loggerFrame) {
+                insideLogger = true;
+            } else if (insideLogger) {
+                return frame;
+            }
+        }
+
+        return null;
+    }
+
+    private static StackTraceElement locateInStackTrace(StackTraceElement[] frames, String loggerClass,
+                                                        String loggerSuperclass) {
+        boolean insideLogger = false;
+
+        for (StackTraceElement frame : frames) {
+            if (isLoggerFrame(frame, loggerClass, loggerSuperclass)) {
+                insideLogger = true;
+            } else if (insideLogger) {
+                return frame;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean isLoggerFrame(StackTraceElement frame, String loggerClass, String loggerSuperclass) {
+        String className = frame.getClassName();
+        return className.equals(loggerClass) || className.equals(loggerSuperclass);
+    }
+}
@@ -5,6 +5,8 @@ import org.slf4j.helpers.FormattingTuple;
 import org.slf4j.helpers.MarkerIgnoringBase;
 import org.slf4j.helpers.MessageFormatter;
 
+import java.util.concurrent.TimeUnit;
+
 // based on http://javaeenotes.blogspot.com/2011/12/custom-slf4j-logger-adapter.html and JDK14LoggerAdapter
 
 public class CocoaLogger extends MarkerIgnoringBase implements Logger {
@@ -13,12 +15,29 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger {
     public static final int HILoggerLevelInfo = 2;
     public static final int HILoggerLevelWarn = 3;
     public static final int HILoggerLevelError = 4;
+    public static final int HILoggerLevelNone = 5;
 
     private static String SELF = CocoaLogger.class.getName();
     private static String SUPER = MarkerIgnoringBase.class.getName();
 
-    private static int globalLevel = HILoggerLevelDebug;
+    private static volatile int globalLevel = HILoggerLevelDebug;
+    private static volatile int globalCallerDataLevel = HILoggerLevelWarn;
+    private static volatile AsyncLogQueue asyncQueue;
+    private static volatile FlightRecorder flightRecorder;
+    private static volatile int flightRecorderLevel = HILoggerLevelDebug;
+
     private int level = HILoggerLevelNotSet;
+    private int callerDataLevel = HILoggerLevelNotSet;
+
+    // resolved from the fields above and the global settings whenever any of them changes
+    private volatile int effectiveLevel;
+    private volatile int effectiveCallerDataLevel;
+
+    // lowest level that goes anywhere, either to the Cocoa side or to the flight recorder
+    private volatile int enabledLevel;
+
+    private final String fallbackFileName;
+    private final String fallbackMethodName;
 
     public static int getGlobalLevel() {
         return globalLevel;
@@ -26,254 +45,345 @@ public class CocoaLogger extends MarkerIgnoringBase implements Logger {
 
     public static void setGlobalLevel(int newLevel) {
         globalLevel = newLevel;
+        getFactory().updateEffectiveLevels();
+    }
+
+    public static int getGlobalCallerDataLevel() {
+        return globalCallerDataLevel;
+    }
+
+    /**
+     * Sets the lowest level at which messages include the file, method and line they were logged from (for loggers
+     * that don't set their own). Finding that out requires inspecting the stack, which is relatively expensive, so by
+     * default it's only done for warnings and errors. Use HILoggerLevelNone to turn it off completely.
+     */
+    public static void setGlobalCallerDataLevel(int newLevel) {
+        globalCallerDataLevel = newLevel;
+        getFactory().updateEffectiveLevels();
+    }
+
+    private static CocoaLoggerFactory getFactory() {
+        return (CocoaLoggerFactory) StaticLoggerBinder.getSingleton().getLoggerFactory();
+    }
+
+    public static boolean isAsynchronous() {
+        return asyncQueue != null;
+    }
+
+    /**
+     * In asynchronous mode log messages are passed to the Cocoa side from a separate thread instead of the thread
+     * that logs them (see AsyncLogQueue). Switching it off again waits until the queued messages are delivered and
+     * stops the queue's thread.
+     */
+    public static synchronized void setAsynchronous(boolean asynchronous) {
+        if (asynchronous && asyncQueue == null) {
+            asyncQueue = new AsyncLogQueue(AsyncLogQueue.DEFAULT_CAPACITY);
+        } else if (!asynchronous && asyncQueue != null) {
+            AsyncLogQueue queue = asyncQueue;
+            asyncQueue = null;
+            queue.close();
+        }
+    }
+
+    public static AsyncLogQueue getAsyncQueue() {
+        return asyncQueue;
+    }
+
+    public static void flushAsynchronousLogs(long timeoutMs) {
+        AsyncLogQueue queue = asyncQueue;
+
+        if (queue != null) {
+            try {
+                queue.flush(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static FlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    public static int getFlightRecorderLevel() {
+        return flightRecorderLevel;
+    }
+
+    /**
+     * Messages at or above the given level are also stored in the flight recorder (see FlightRecorder), regardless
+     * of the level set for sending them to the Cocoa side. Pass null to stop recording; the recorder isn't closed.
+     */
+    public static synchronized void setFlightRecorder(FlightRecorder recorder, int level) {
+        flightRecorderLevel = level;
+        flightRecorder = recorder;
+        getFactory().updateEffectiveLevels();
     }
 
     CocoaLogger(String name) {
         this.name = name;
+
+        // used when the caller isn't looked up
+        this.fallbackFileName = name.substring(name.lastIndexOf('.') + 1);
+        this.fallbackMethodName = "[" + fallbackFileName + "]";
+
+        updateEffectiveLevels();
     }
 
     public int getLevel() {
-        return (level == HILoggerLevelNotSet) ? globalLevel : level;
+        return effectiveLevel;
     }
 
-    public void setLevel(int newLevel) {
+    public synchronized void setLevel(int newLevel) {
         level = newLevel;
+        updateEffectiveLevels();
+    }
+
+    public int getCallerDataLevel() {
+        return effectiveCallerDataLevel;
+    }
+
+    public synchronized void setCallerDataLevel(int newLevel) {
+        callerDataLevel = newLevel;
+        updateEffectiveLevels();
+    }
+
+    synchronized void updateEffectiveLevels() {
+        effectiveLevel = (level == HILoggerLevelNotSet) ? globalLevel : level;
+        effectiveCallerDataLevel = (callerDataLevel == HILoggerLevelNotSet) ? globalCallerDataLevel : callerDataLevel;
+        enabledLevel = (flightRecorder != null) ? Math.min(effectiveLevel, flightRecorderLevel) : effectiveLevel;
     }
 
     public boolean isTraceEnabled() {
-        return getLevel() <= HILoggerLevelDebug;
+        return enabledLevel <= HILoggerLevelDebug;
     }
 
     public void trace(String msg) {
         if (isTraceEnabled()) {
-            log(SELF, HILoggerLevelDebug, msg, null);
+            logMessage(HILoggerLevelDebug, msg, null);
         }
     }
 
     public void trace(String format, Object arg) {
         if (isTraceEnabled()) {
-            FormattingTuple ft = MessageFormatter.format(format, arg);
-            log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelDebug, format, new Object[] { arg });
         }
     }
 
     public void trace(String format, Object arg1, Object arg2) {
         if (isTraceEnabled()) {
-            FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-            log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelDebug, format, new Object[] { arg1, arg2 });
         }
     }
 
     public void trace(String format, Object... argArray) {
         if (isTraceEnabled()) {
-            FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-            log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelDebug, format, argArray);
         }
     }
 
     public void trace(String msg, Throwable t) {
         if (isTraceEnabled()) {
-            log(SELF, HILoggerLevelDebug, msg, t);
+            logMessage(HILoggerLevelDebug, msg, t);
         }
     }
 
     public boolean isDebugEnabled() {
-        return getLevel() <= HILoggerLevelDebug;
+        return enabledLevel <= HILoggerLevelDebug;
     }
 
     public void debug(String msg) {
         if (isDebugEnabled()) {
-            log(SELF, HILoggerLevelDebug, msg, null);
+            logMessage(HILoggerLevelDebug, msg, null);
         }
     }
 
     public void debug(String format, Object arg) {
         if (isDebugEnabled()) {
-            FormattingTuple ft = MessageFormatter.format(format, arg);
-            log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelDebug, format, new Object[] { arg });
         }
     }
 
     public void debug(String format, Object arg1, Object arg2) {
         if (isDebugEnabled()) {
-            FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-            log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelDebug, format, new Object[] { arg1, arg2 });
         }
     }
 
     public void debug(String format, Object... argArray) {
         if (isDebugEnabled()) {
-            FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-            log(SELF, HILoggerLevelDebug, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelDebug, format, argArray);
         }
     }
 
     public void debug(String msg, Throwable t) {
         if (isDebugEnabled()) {
-            log(SELF, HILoggerLevelDebug, msg, t);
+            logMessage(HILoggerLevelDebug, msg, t);
         }
     }
 
     public boolean isInfoEnabled() {
-        return getLevel() <= HILoggerLevelInfo;
+        return enabledLevel <= HILoggerLevelInfo;
     }
 
     public void info(String msg) {
         if (isInfoEnabled()) {
-            log(SELF, HILoggerLevelInfo, msg, null);
+            logMessage(HILoggerLevelInfo, msg, null);
         }
     }
 
     public void info(String format, Object arg) {
         if (isInfoEnabled()) {
-            FormattingTuple ft = MessageFormatter.format(format, arg);
-            log(SELF, HILoggerLevelInfo, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelInfo, format, new Object[] { arg });
         }
     }
 
     public void info(String format, Object arg1, Object arg2) {
         if (isInfoEnabled()) {
-            FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-            log(SELF, HILoggerLevelInfo, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelInfo, format, new Object[] { arg1, arg2 });
         }
     }
 
     public void info(String format, Object... argArray) {
         if (isInfoEnabled()) {
-            FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-            log(SELF, HILoggerLevelInfo, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelInfo, format, argArray);
         }
     }
 
     public void info(String msg, Throwable t) {
         if (isInfoEnabled()) {
-            log(SELF, HILoggerLevelInfo, msg, t);
+            logMessage(HILoggerLevelInfo, msg, t);
         }
     }
 
     public boolean isWarnEnabled() {
-        return getLevel() <= HILoggerLevelWarn;
+        return enabledLevel <= HILoggerLevelWarn;
     }
 
     public void warn(String msg) {
         if (isWarnEnabled()) {
-            log(SELF, HILoggerLevelWarn, msg, null);
+            logMessage(HILoggerLevelWarn, msg, null);
         }
     }
 
     public void warn(String format, Object arg) {
         if (isWarnEnabled()) {
-            FormattingTuple ft = MessageFormatter.format(format, arg);
-            log(SELF, HILoggerLevelWarn, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelWarn, format, new Object[] { arg });
         }
     }
 
     public void warn(String format, Object arg1, Object arg2) {
         if (isWarnEnabled()) {
-            FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-            log(SELF, HILoggerLevelWarn, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelWarn, format, new Object[] { arg1, arg2 });
         }
     }
 
     public void warn(String format, Object... argArray) {
         if (isWarnEnabled()) {
-            FormattingTuple ft = MessageFormatter.arrayFormat(format, argArray);
-            log(SELF, HILoggerLevelWarn, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelWarn, format, argArray);
         }
     }
 
     public void warn(String msg, Throwable t) {
         if (isWarnEnabled()) {
-            log(SELF, HILoggerLevelWarn, msg, t);
+            logMessage(HILoggerLevelWarn, msg, t);
         }
     }
 
     public boolean isErrorEnabled() {
-        return getLevel() <= HILoggerLevelError;
+        return enabledLevel <= HILoggerLevelError;
     }
 
     public void error(String msg) {
         if (isErrorEnabled()) {
-            log(SELF, HILoggerLevelError, msg, null);
+            logMessage(HILoggerLevelError, msg, null);
         }
     }
 
     public void error(String format, Object arg) {
         if (isErrorEnabled()) {
-            FormattingTuple ft = MessageFormatter.format(format, arg);
-            log(SELF, HILoggerLevelError, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelError, format, new Object[] { arg });
         }
     }
 
     public void error(String format, Object arg1, Object arg2) {
         if (isErrorEnabled()) {
-            FormattingTuple ft = MessageFormatter.format(format, arg1, arg2);
-            log(SELF, HILoggerLevelError, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelError, format, new Object[] { arg1, arg2 });
         }
     }
 
     public void error(String format, Object... arguments) {
         if (isErrorEnabled()) {
-            FormattingTuple ft = MessageFormatter.arrayFormat(format, arguments);
-            log(SELF, HILoggerLevelError, ft.getMessage(), ft.getThrowable());
+            logFormat(HILoggerLevelError, format, arguments);
         }
     }
 
     public void error(String msg, Throwable t) {
         if (isErrorEnabled()) {
-            log(SELF, HILoggerLevelError, msg, t);
+            logMessage(HILoggerLevelError, msg, t);
         }
     }
 
-    private void log(String callerFQCN, int level, String msg, Throwable t) {
-        String fileName = null;
-        String methodName = null;
-        int lineNumber = 0;
+    private void logMessage(int level, String msg, Throwable t) {
+        FlightRecorder recorder = flightRecorder;
 
-        StackTraceElement callerData = getCallerData(callerFQCN);
-        if (callerData != null) {
-            fileName = callerData.getFileName();
-            lineNumber = callerData.getLineNumber();
+        if (recorder != null && level >= flightRecorderLevel) {
+            recorder.record(level, name, msg, null, t);
+        }
 
-            String className = callerData.getClassName().replaceAll(".*\\.", "");
-            methodName = "[" + className + " " + callerData.getMethodName() + "]";
+        if (level >= effectiveLevel) {
+            log(SELF, level, msg, t);
         }
+    }
 
-        if (msg != null) {
-            receiveLogFromJVM(fileName, methodName, lineNumber, level, msg);
+    private void logFormat(int level, String format, Object[] arguments) {
+        FlightRecorder recorder = flightRecorder;
+
+        if (recorder != null && level >= flightRecorderLevel) {
+            // the recorder stores the template and arguments, so there's no need to format the message for it
+            Object last = (arguments != null && arguments.length > 0) ? arguments[arguments.length - 1] : null;
+            recorder.record(level, name, format, arguments, (last instanceof Throwable) ? (Throwable) last : null);
         }
 
-        if (t != null) {
-            receiveLogFromJVM(fileName, methodName, lineNumber, level, "Exception logged: " + t);
+        if (level >= effectiveLevel) {
+            FormattingTuple ft = MessageFormatter.arrayFormat(format, arguments);
+            log(SELF, level, ft.getMessage(), ft.getThrowable());
         }
     }
 
-    // TODO
-    private StackTraceElement getCallerData(String callerFQCN) {
-        StackTraceElement[] steArray = new Throwable().getStackTrace();
+    private void log(String callerFQCN, int level, String msg, Throwable t) {
+        String fileName = fallbackFileName;
+        String methodName = fallbackMethodName;
+        int lineNumber = 0;
 
-        int selfIndex = -1;
-        for (int i = 0; i < steArray.length; i++) {
-            final String className = steArray[i].getClassName();
-            if (className.equals(callerFQCN) || className.equals(SUPER)) {
-                selfIndex = i;
-                break;
+        if (level >= effectiveCallerDataLevel) {
+            StackTraceElement callerData = CallerLocator.locate(callerFQCN, SUPER);
+
+            if (callerData != null) {
+                fileName = callerData.getFileName();
+                lineNumber = callerData.getLineNumber();
+
+                String className = callerData.getClassName();
+                className = className.substring(className.lastIndexOf('.') + 1);
+                methodName = "[" + className + " " + callerData.getMethodName() + "]";
             }
         }
 
-        int found = -1;
-        for (int i = selfIndex + 1; i < steArray.length; i++) {
-            final String className = steArray[i].getClassName();
-            if (!(className.equals(callerFQCN) || className.equals(SUPER))) {
-                found = i;
-                break;
-            }
+        if (msg != null) {
+            send(fileName, methodName, lineNumber, level, msg);
         }
 
-        if (found != -1) {
-            return steArray[found];
+        if (t != null) {
+            send(fileName, methodName, lineNumber, level, "Exception logged: " + t);
+        }
+    }
+
+    private void send(String fileName, String methodName, int lineNumber, int level, String msg) {
+        AsyncLogQueue queue = asyncQueue;
+
+        if (queue != null) {
+            queue.enqueue(this, fileName, methodName, lineNumber, level, msg);
         } else {
-            return null;
+            receiveLogFromJVM(fileName, methodName, lineNumber, level, msg);
         }
     }
 
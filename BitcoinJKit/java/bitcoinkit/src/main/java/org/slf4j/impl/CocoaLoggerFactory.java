@@ -25,4 +25,12 @@ public class CocoaLoggerFactory implements ILoggerFactory {
             return loggerMap.get(name);
         }
     }
+
+    void updateEffectiveLevels() {
+        synchronized (loggerMap) {
+            for (CocoaLogger logger : loggerMap.values()) {
+                logger.updateEffectiveLevels();
+            }
+        }
+    }
 }
@@ -0,0 +1,424 @@
+package org.slf4j.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Keeps the most recent log messages in a fixed-size memory-mapped file, so that there's a detailed history available
+ * after a problem (or a crash - the OS writes the mapped pages out even if the process dies). Messages are stored
+ * in binary form and not formatted; logger names and message templates are stored once in a dictionary and records
+ * only refer to them by id. Messages logged without arguments are stored in the record itself, since they often
+ * contain ids or amounts and would fill the dictionary with strings that never come again. Use FlightRecorderReader
+ * to turn the file back into text.
+ *
+ * File layout (all numbers little-endian, strings are a uint16 length followed by that many bytes of UTF-8):
+ *
+ *   header, 64 bytes:
+ *     int32   magic, "HIFR"
+ *     int32   format version (1)
+ *     int32   dictionary size in bytes
+ *     int32   ring size in bytes
+ *     int32   used part of the dictionary
+ *     int32   ring offset where the next record will be written
+ *     int32   ring offset of the oldest record from the previous pass over the ring (if wrapped)
+ *     int32   1 if the ring has wrapped around at least once
+ *     int64   number of records written
+ *
+ *   dictionary, entries of:
+ *     int8    kind (1 = logger name, 2 = message template)
+ *     int32   id
+ *     string  value
+ *
+ *   ring, records of:
+ *     int32   record length including this field; -1 means the rest of the ring is unused
+ *     int64   time in milliseconds
+ *     int8    level (CocoaLogger.HILoggerLevel*)
+ *     int8    flags (1 = has exception)
+ *     int32   logger id, or -1 followed by the name if it's not in the dictionary
+ *     int32   template id, or -1 followed by the template if it's not in the dictionary
+ *     uint16  number of arguments, followed by each argument as a string
+ *     string  exception with stack trace (only if flag 1 is set)
+ *
+ * When the ring is full, writing continues from its start, overwriting the oldest records. The header is updated
+ * after each record is written, so a record that was interrupted halfway is simply not there.
+ */
+public class FlightRecorder {
+    public static final int DEFAULT_FILE_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_DICTIONARY_SIZE = 256 * 1024;
+
+    static final int MAGIC = 0x52464948;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_DICTIONARY_SIZE = 8;
+    static final int HEADER_RING_SIZE = 12;
+    static final int HEADER_DICTIONARY_END = 16;
+    static final int HEADER_WRITE_OFFSET = 20;
+    static final int HEADER_OLDEST_OFFSET = 24;
+    static final int HEADER_WRAPPED = 28;
+    static final int HEADER_RECORD_COUNT = 32;
+
+    static final int KIND_LOGGER = 1;
+    static final int KIND_TEMPLATE = 2;
+    static final int FLAG_EXCEPTION = 1;
+    static final int END_OF_RING = -1;
+    static final int NOT_INTERNED = -1;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAX_STRING_BYTES = 2048;
+    private static final int MAX_EXCEPTION_BYTES = 8192;
+    private static final int MAX_ARGUMENTS = 16;
+    private static final int MAX_RECORD_SIZE =
+            22 + 2 * (4 + 2 + MAX_STRING_BYTES) + MAX_ARGUMENTS * (2 + MAX_STRING_BYTES) + 2 + MAX_EXCEPTION_BYTES;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final ByteBuffer ringView;
+    private final ByteBuffer record;
+    private final int dictionarySize;
+    private final int ringStart;
+    private final int ringSize;
+
+    private final HashMap<String, Integer> loggerIds = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> templateIds = new HashMap<String, Integer>();
+    private int nextId;
+    private int dictionaryEnd;
+    private int writeOffset;
+    private int oldestOffset;
+    private boolean wrapped;
+    private long recordCount;
+    private long droppedCount;
+    private boolean closed;
+
+    public static FlightRecorder open(File file) throws IOException {
+        return new FlightRecorder(file, DEFAULT_FILE_SIZE, DEFAULT_DICTIONARY_SIZE);
+    }
+
+    /**
+     * Opens the file, continuing after the records that are already there if it was created with the same sizes,
+     * or starting from scratch otherwise.
+     */
+    public FlightRecorder(File file, int fileSize, int dictionarySize) throws IOException {
+        if (fileSize - HEADER_SIZE - dictionarySize < 4 * MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("Flight recorder file size is too small: " + fileSize);
+        }
+
+        this.file = file;
+        this.dictionarySize = dictionarySize;
+        this.ringStart = HEADER_SIZE + dictionarySize;
+        this.ringSize = fileSize - ringStart;
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            if (randomAccessFile.length() != fileSize) {
+                randomAccessFile.setLength(fileSize);
+            }
+
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+
+        ringView = buffer.duplicate();
+        record = ByteBuffer.allocate(MAX_RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        if (!loadState()) {
+            initialize();
+        }
+    }
+
+    private boolean loadState() {
+        if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION
+                || buffer.getInt(HEADER_DICTIONARY_SIZE) != dictionarySize
+                || buffer.getInt(HEADER_RING_SIZE) != ringSize) {
+            return false;
+        }
+
+        dictionaryEnd = buffer.getInt(HEADER_DICTIONARY_END);
+        writeOffset = buffer.getInt(HEADER_WRITE_OFFSET);
+        oldestOffset = buffer.getInt(HEADER_OLDEST_OFFSET);
+        wrapped = (buffer.getInt(HEADER_WRAPPED) != 0);
+        recordCount = buffer.getLong(HEADER_RECORD_COUNT);
+
+        if (dictionaryEnd < 0 || dictionaryEnd > dictionarySize || writeOffset < 0 || writeOffset > ringSize
+                || oldestOffset < 0 || oldestOffset > ringSize) {
+            return false;
+        }
+
+        int position = HEADER_SIZE;
+        int end = HEADER_SIZE + dictionaryEnd;
+
+        while (position + 7 <= end) {
+            int kind = buffer.get(position);
+            int id = buffer.getInt(position + 1);
+            int length = buffer.getShort(position + 5) & 0xFFFF;
+
+            if (position + 7 + length > end) {
+                return false;
+            }
+
+            byte[] bytes = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+            source.position(position + 7);
+            source.get(bytes);
+
+            String value = new String(bytes, UTF8);
+
+            if (kind == KIND_LOGGER) {
+                loggerIds.put(value, id);
+            } else if (kind == KIND_TEMPLATE) {
+                templateIds.put(value, id);
+            } else {
+                return false;
+            }
+
+            nextId = Math.max(nextId, id + 1);
+            position += 7 + length;
+        }
+
+        return true;
+    }
+
+    private void initialize() {
+        loggerIds.clear();
+        templateIds.clear();
+        nextId = 0;
+        dictionaryEnd = 0;
+        writeOffset = 0;
+        oldestOffset = 0;
+        wrapped = false;
+        recordCount = 0;
+
+        for (int i = 0; i < HEADER_SIZE; i += 4) {
+            buffer.putInt(i, 0);
+        }
+
+        buffer.putInt(HEADER_VERSION, VERSION);
+        buffer.putInt(HEADER_DICTIONARY_SIZE, dictionarySize);
+        buffer.putInt(HEADER_RING_SIZE, ringSize);
+        buffer.putInt(HEADER_MAGIC, MAGIC);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Stores one log message. The arguments are converted to strings here, but the message itself isn't formatted.
+     * The template is only added to the dictionary if there are arguments (i.e. it isn't null); pass null for messages
+     * that were logged as they are.
+     */
+    public void record(int level, String loggerName, String template, Object[] arguments, Throwable throwable) {
+        long time = System.currentTimeMillis();
+
+        // toString() of the arguments can run arbitrary code (including logging), so do it before locking
+        int argumentCount = (arguments != null) ? Math.min(arguments.length, MAX_ARGUMENTS) : 0;
+        String[] argumentStrings = new String[argumentCount];
+
+        for (int i = 0; i < argumentCount; i++) {
+            argumentStrings[i] = argumentToString(arguments[i]);
+        }
+
+        String exception = (throwable != null) ? exceptionToString(throwable) : null;
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+
+            try {
+                encode(time, level, loggerName, String.valueOf(template), arguments != null, argumentStrings,
+                        exception);
+                append();
+            } catch (RuntimeException e) {
+                // the logger must never fail because of the recorder
+                droppedCount++;
+            }
+        }
+    }
+
+    private static String argumentToString(Object argument) {
+        if (argument instanceof Object[]) {
+            return Arrays.deepToString((Object[]) argument);
+        }
+
+        try {
+            return String.valueOf(argument);
+        } catch (RuntimeException e) {
+            return "[toString() failed: " + e + "]";
+        }
+    }
+
+    private static String exceptionToString(Throwable throwable) {
+        StringWriter writer = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    private void encode(long time, int level, String loggerName, String template, boolean internTemplate,
+                        String[] arguments, String exception) {
+        record.clear();
+        record.putInt(0);
+        record.putLong(time);
+        record.put((byte) level);
+        record.put((byte) (exception != null ? FLAG_EXCEPTION : 0));
+
+        putInterned(loggerIds, KIND_LOGGER, loggerName);
+
+        if (internTemplate) {
+            putInterned(templateIds, KIND_TEMPLATE, template);
+        } else {
+            record.putInt(NOT_INTERNED);
+            putString(record, template, MAX_STRING_BYTES);
+        }
+
+        record.putShort((short) arguments.length);
+
+        for (String argument : arguments) {
+            putString(record, argument, MAX_STRING_BYTES);
+        }
+
+        if (exception != null) {
+            putString(record, exception, MAX_EXCEPTION_BYTES);
+        }
+
+        record.putInt(0, record.position());
+        record.flip();
+    }
+
+    private void putInterned(HashMap<String, Integer> ids, int kind, String value) {
+        Integer id = ids.get(value);
+
+        if (id == null) {
+            id = addToDictionary(ids, kind, value);
+        }
+
+        record.putInt(id);
+
+        if (id == NOT_INTERNED) {
+            putString(record, value, MAX_STRING_BYTES);
+        }
+    }
+
+    private int addToDictionary(HashMap<String, Integer> ids, int kind, String value) {
+        byte[] bytes = value.getBytes(UTF8);
+
+        if (bytes.length > MAX_STRING_BYTES || dictionaryEnd + 7 + bytes.length > dictionarySize) {
+            return NOT_INTERNED;
+        }
+
+        int id = nextId++;
+        int position = HEADER_SIZE + dictionaryEnd;
+
+        buffer.put(position, (byte) kind);
+        buffer.putInt(position + 1, id);
+        buffer.putShort(position + 5, (short) bytes.length);
+
+        ByteBuffer target = buffer.duplicate();
+        target.position(position + 7);
+        target.put(bytes);
+
+        dictionaryEnd += 7 + bytes.length;
+        buffer.putInt(HEADER_DICTIONARY_END, dictionaryEnd);
+
+        ids.put(value, id);
+        return id;
+    }
+
+    private static void putString(ByteBuffer target, String value, int maxBytes) {
+        byte[] bytes = value.getBytes(UTF8);
+        int length = Math.min(bytes.length, maxBytes);
+
+        target.putShort((short) length);
+        target.put(bytes, 0, length);
+    }
+
+    private void append() {
+        int length = record.remaining();
+
+        if (writeOffset + length > ringSize) {
+            // doesn't fit at the end, continue from the start of the ring
+            if (ringSize - writeOffset >= 4) {
+                buffer.putInt(ringStart + writeOffset, END_OF_RING);
+            }
+
+            writeOffset = 0;
+            oldestOffset = 0;
+            wrapped = true;
+        }
+
+        if (wrapped) {
+            // skip the old records that are about to be overwritten
+            int end = writeOffset + length;
+
+            while (oldestOffset < end && oldestOffset < ringSize) {
+                int oldLength = (oldestOffset + 4 <= ringSize) ? buffer.getInt(ringStart + oldestOffset) : END_OF_RING;
+                oldestOffset = (oldLength > 0) ? oldestOffset + oldLength : ringSize;
+            }
+
+            buffer.putInt(HEADER_OLDEST_OFFSET, oldestOffset);
+            buffer.putInt(HEADER_WRAPPED, 1);
+        }
+
+        ringView.clear();
+        ringView.position(ringStart + writeOffset);
+        ringView.put(record);
+
+        writeOffset += length;
+        recordCount++;
+
+        buffer.putLong(HEADER_RECORD_COUNT, recordCount);
+        buffer.putInt(HEADER_WRITE_OFFSET, writeOffset);
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /** Bytes used in the dictionary. */
+    synchronized int getDictionaryEnd() {
+        return dictionaryEnd;
+    }
+
+    /** Writes the mapped file to disk; not needed to survive a crash of the app itself, only of the whole system. */
+    public synchronized void force() {
+        if (!closed) {
+            buffer.force();
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            buffer.force();
+            closed = true;
+            randomAccessFile.close();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FlightRecorder: " + file + ", records = " + recordCount + ", dropped = " + droppedCount
+                + ", dictionary = " + dictionaryEnd + "/" + dictionarySize + " bytes";
+    }
+}
@@ -0,0 +1,224 @@
+package org.slf4j.impl;
+
+import org.slf4j.helpers.MessageFormatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Decodes a file written by FlightRecorder, oldest message first. Can be run from the command line:
+ *
+ *   java -cp bitcoinkit.jar:slf4j-api.jar org.slf4j.impl.FlightRecorderReader bitcoinkit.flightlog
+ */
+public class FlightRecorderReader {
+    public static class Entry {
+        public final long time;
+        public final int level;
+        public final String loggerName;
+        public final String template;
+        public final String[] arguments;
+        public final String exception;
+
+        Entry(long time, int level, String loggerName, String template, String[] arguments, String exception) {
+            this.time = time;
+            this.level = level;
+            this.loggerName = loggerName;
+            this.template = template;
+            this.arguments = arguments;
+            this.exception = exception;
+        }
+
+        public String getMessage() {
+            return MessageFormatter.arrayFormat(template, arguments).getMessage();
+        }
+    }
+
+    private final ByteBuffer buffer;
+    private final HashMap<Integer, String> dictionary = new HashMap<Integer, String>();
+    private final int ringStart;
+    private final int ringSize;
+    private final int writeOffset;
+    private final int oldestOffset;
+    private final boolean wrapped;
+    private final long recordCount;
+
+    public FlightRecorderReader(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            byte[] bytes = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(bytes);
+            buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        if (buffer.capacity() < FlightRecorder.HEADER_SIZE
+                || buffer.getInt(FlightRecorder.HEADER_MAGIC) != FlightRecorder.MAGIC) {
+            throw new IOException("Not a flight recorder file: " + file);
+        }
+
+        int version = buffer.getInt(FlightRecorder.HEADER_VERSION);
+
+        if (version != FlightRecorder.VERSION) {
+            throw new IOException("Unsupported flight recorder version: " + version);
+        }
+
+        int dictionarySize = buffer.getInt(FlightRecorder.HEADER_DICTIONARY_SIZE);
+        ringStart = FlightRecorder.HEADER_SIZE + dictionarySize;
+        ringSize = buffer.getInt(FlightRecorder.HEADER_RING_SIZE);
+        writeOffset = buffer.getInt(FlightRecorder.HEADER_WRITE_OFFSET);
+        oldestOffset = buffer.getInt(FlightRecorder.HEADER_OLDEST_OFFSET);
+        wrapped = (buffer.getInt(FlightRecorder.HEADER_WRAPPED) != 0);
+        recordCount = buffer.getLong(FlightRecorder.HEADER_RECORD_COUNT);
+
+        if (ringStart + ringSize > buffer.capacity() || writeOffset > ringSize || oldestOffset > ringSize) {
+            throw new IOException("Flight recorder file is damaged: " + file);
+        }
+
+        readDictionary(buffer.getInt(FlightRecorder.HEADER_DICTIONARY_END));
+    }
+
+    private void readDictionary(int length) {
+        buffer.position(FlightRecorder.HEADER_SIZE);
+        int end = FlightRecorder.HEADER_SIZE + length;
+
+        while (buffer.position() + 7 <= end) {
+            buffer.get();
+            int id = buffer.getInt();
+            dictionary.put(id, getString());
+        }
+    }
+
+    /** Total number of records ever written to the file, including those that were overwritten since. */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    public List<Entry> readEntries() {
+        List<Entry> entries = new ArrayList<Entry>();
+
+        if (wrapped) {
+            readRecords(oldestOffset, ringSize, entries);
+        }
+
+        readRecords(0, writeOffset, entries);
+        return entries;
+    }
+
+    private void readRecords(int from, int to, List<Entry> entries) {
+        int offset = from;
+
+        while (offset + 4 <= to) {
+            int length = buffer.getInt(ringStart + offset);
+
+            if (length <= 0 || offset + length > to) {
+                break;
+            }
+
+            buffer.position(ringStart + offset);
+            buffer.limit(ringStart + offset + length);
+
+            try {
+                entries.add(readRecord());
+            } catch (BufferUnderflowException e) {
+                entries.add(new Entry(0, CocoaLogger.HILoggerLevelError, "FlightRecorderReader",
+                        "[damaged record at offset {}]", new String[] { String.valueOf(offset) }, null));
+            } finally {
+                buffer.limit(buffer.capacity());
+            }
+
+            offset += length;
+        }
+    }
+
+    private Entry readRecord() {
+        buffer.getInt();
+        long time = buffer.getLong();
+        int level = buffer.get();
+        int flags = buffer.get();
+        String loggerName = getInterned();
+        String template = getInterned();
+
+        String[] arguments = new String[buffer.getShort() & 0xFFFF];
+
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = getString();
+        }
+
+        String exception = ((flags & FlightRecorder.FLAG_EXCEPTION) != 0) ? getString() : null;
+
+        return new Entry(time, level, loggerName, template, arguments, exception);
+    }
+
+    private String getInterned() {
+        int id = buffer.getInt();
+
+        if (id == FlightRecorder.NOT_INTERNED) {
+            return getString();
+        }
+
+        String value = dictionary.get(id);
+        return (value != null) ? value : "[unknown #" + id + "]";
+    }
+
+    private String getString() {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, FlightRecorder.UTF8);
+    }
+
+    public static String format(Entry entry, SimpleDateFormat dateFormat) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(dateFormat.format(new Date(entry.time)));
+        builder.append(' ').append(getLevelName(entry.level));
+        builder.append(" [").append(entry.loggerName).append("] ");
+        builder.append(entry.getMessage());
+
+        if (entry.exception != null) {
+            builder.append("\nException logged: ").append(entry.exception);
+        }
+
+        return builder.toString();
+    }
+
+    static String getLevelName(int level) {
+        switch (level) {
+            case CocoaLogger.HILoggerLevelDebug: return "DEBUG";
+            case CocoaLogger.HILoggerLevelInfo: return "INFO";
+            case CocoaLogger.HILoggerLevelWarn: return "WARN";
+            case CocoaLogger.HILoggerLevelError: return "ERROR";
+            default: return "LEVEL" + level;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: FlightRecorderReader <file>");
+            System.exit(1);
+        }
+
+        FlightRecorderReader reader = new FlightRecorderReader(new File(args[0]));
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS z");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        List<Entry> entries = reader.readEntries();
+
+        for (Entry entry : entries) {
+            System.out.println(format(entry, dateFormat));
+        }
+
+        System.err.println(entries.size() + " of " + reader.getRecordCount() + " messages are still in the file.");
+    }
+}
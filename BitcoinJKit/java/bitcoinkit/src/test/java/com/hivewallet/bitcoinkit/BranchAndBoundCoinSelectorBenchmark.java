@@ -0,0 +1,87 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.wallet.CoinSelection;
+import com.google.bitcoin.wallet.CoinSelector;
+import com.google.bitcoin.wallet.DefaultCoinSelector;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.Random;
+
+import static com.hivewallet.bitcoinkit.UtxoIndexTest.output;
+
+/**
+ * Compares BranchAndBoundCoinSelector with DefaultCoinSelector on wallets with 100 to 100000 outputs: the time per
+ * selection, the number of inputs and how many selections need no change. Between selections one output is spent
+ * and one received, as after a send. Not run with the unit tests; run it with
+ * mvn test -Dtest=BranchAndBoundCoinSelectorBenchmark.
+ */
+public class BranchAndBoundCoinSelectorBenchmark {
+    private static final int[] OUTPUT_COUNTS = { 100, 1000, 10000, 100000 };
+    private static final int SELECTIONS = 100;
+    private static final int WARMUP_SELECTIONS = 20;
+
+    @Test
+    public void compareSelectors() {
+        System.out.println(String.format("%8s  %-20s %12s %10s %12s", "outputs", "selector", "us/select", "inputs",
+                "changeless"));
+
+        for (int count : OUTPUT_COUNTS) {
+            run(count, new DefaultCoinSelector(), "default");
+            run(count, new BranchAndBoundCoinSelector(), "branch and bound");
+        }
+    }
+
+    private static void run(int count, CoinSelector selector, String name) {
+        Random random = new Random(count);
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>();
+        long total = 0;
+
+        for (int i = 0; i < count; i++) {
+            TransactionOutput output = output(randomValue(random));
+            candidates.add(output);
+            total += output.getValue().longValue();
+        }
+
+        long timeNs = 0;
+        long inputs = 0;
+        int changeless = 0;
+
+        for (int i = 0; i < WARMUP_SELECTIONS + SELECTIONS; i++) {
+            long target = 1 + (long) (random.nextDouble() * Math.min(total / 2, 100000000L));
+
+            long start = System.nanoTime();
+            CoinSelection selection = selector.select(BigInteger.valueOf(target), candidates);
+            long time = System.nanoTime() - start;
+
+            if (i >= WARMUP_SELECTIONS) {
+                timeNs += time;
+                inputs += selection.gathered.size();
+
+                if (selection.valueGathered.longValue() == target) {
+                    changeless++;
+                }
+            }
+
+            // a send spends an output and a payment brings a new one
+            TransactionOutput spent = candidates.remove(random.nextInt(candidates.size()));
+            TransactionOutput received = output(randomValue(random));
+            candidates.add(received);
+            total += received.getValue().longValue() - spent.getValue().longValue();
+        }
+
+        System.out.println(String.format("%8d  %-20s %12.1f %10.2f %11.1f%%", count, name,
+                timeNs / 1000.0 / SELECTIONS, (double) inputs / SELECTIONS, 100.0 * changeless / SELECTIONS));
+    }
+
+    /** Round amounts (which make exact matches possible) and amounts from a few satoshis to 10 BTC. */
+    private static long randomValue(Random random) {
+        if (random.nextInt(3) == 0) {
+            return (1 + random.nextInt(100)) * 100000L;
+        } else {
+            return 1 + (long) Math.pow(10, 3 + random.nextDouble() * 6);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.wallet.CoinSelection;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.hivewallet.bitcoinkit.UtxoIndexTest.output;
+import static com.hivewallet.bitcoinkit.UtxoIndexTest.outputs;
+import static org.junit.Assert.assertEquals;
+
+public class BranchAndBoundCoinSelectorTest {
+    private final BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+
+    @Test
+    public void findsExactMatch() {
+        CoinSelection selection = select(80000, 100000, 70000, 50000, 30000, 20000);
+
+        assertEquals(Arrays.asList(50000L, 30000L), values(selection));
+        assertEquals(80000, selection.valueGathered.longValue());
+    }
+
+    @Test
+    public void prefersExactMatchWithFewestOutputs() {
+        // also 60000 + 30000 + 10000 and 40000 + 30000 + 20000 + 10000
+        CoinSelection selection = select(100000, 60000, 40000, 30000, 20000, 10000);
+
+        assertEquals(Arrays.asList(60000L, 40000L), values(selection));
+    }
+
+    @Test
+    public void prefersExactMatchToSingleOutput() {
+        CoinSelection selection = select(50000, 60000, 40000, 30000, 20000, 10000);
+
+        assertEquals(Arrays.asList(40000L, 10000L), values(selection));
+    }
+
+    @Test
+    public void fallsBackToSmallestSingleOutput() {
+        CoinSelection selection = select(30001, 100000, 50000, 40000, 20000);
+
+        assertEquals(Collections.singletonList(40000L), values(selection));
+    }
+
+    @Test
+    public void fallsBackToLargestFirst() {
+        // no single output covers it and no set adds up to exactly 85000
+        CoinSelection selection = select(85000, 30000, 50000, 7, 40000);
+
+        assertEquals(Arrays.asList(50000L, 40000L), values(selection));
+    }
+
+    @Test
+    public void skipsExactMatchWithTooManyInputs() {
+        // ten 1000s would be changeless, but need more kB (and so a higher fee) than one large output with change
+        long[] values = new long[11];
+        Arrays.fill(values, 1000);
+        values[10] = 100000;
+
+        CoinSelection selection = select(10000, values);
+
+        assertEquals(Collections.singletonList(100000L), values(selection));
+    }
+
+    @Test
+    public void takesExactMatchWithManyInputsThatFitTheSameKilobyte() {
+        long[] values = new long[11];
+        Arrays.fill(values, 1000);
+        values[10] = 100000;
+
+        // up to six inputs fit in the same kB as one input and a change output
+        CoinSelection selection = select(4000, values);
+
+        assertEquals(Arrays.asList(1000L, 1000L, 1000L, 1000L), values(selection));
+    }
+
+    @Test
+    public void fallsBackWhenSearchIsCutShort() {
+        selector.setMaxTries(1);
+
+        CoinSelection selection = select(50000, 60000, 40000, 30000, 20000, 10000);
+
+        assertEquals(Collections.singletonList(60000L), values(selection));
+    }
+
+    @Test
+    public void returnsEverythingIfNotEnough() {
+        CoinSelection selection = select(1000000, 60000, 40000, 30000);
+
+        assertEquals(Arrays.asList(60000L, 40000L, 30000L), values(selection));
+        assertEquals(130000, selection.valueGathered.longValue());
+    }
+
+    @Test
+    public void followsCandidateChanges() {
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>(outputs(60000, 40000, 10000));
+        assertEquals(Arrays.asList(40000L, 10000L), values(selector.select(BigInteger.valueOf(50000), candidates)));
+
+        // 40000 spent, 20000 and 30000 received
+        candidates.remove(1);
+        candidates.add(output(20000));
+        candidates.add(output(30000));
+        assertEquals(Arrays.asList(30000L, 20000L), values(selector.select(BigInteger.valueOf(50000), candidates)));
+    }
+
+    @Test
+    public void keepsTimeBudget() {
+        assertEquals(BranchAndBoundCoinSelector.DEFAULT_TIME_BUDGET_MS, selector.getTimeBudget());
+
+        selector.setTimeBudget(BranchAndBoundCoinSelector.NO_TIME_BUDGET);
+        CoinSelection selection = select(100000, 60000, 40000, 30000, 20000, 10000);
+
+        assertEquals(BranchAndBoundCoinSelector.NO_TIME_BUDGET, selector.getTimeBudget());
+        assertEquals(Arrays.asList(60000L, 40000L), values(selection));
+    }
+
+    private CoinSelection select(long target, long... values) {
+        return selector.select(BigInteger.valueOf(target), new LinkedList<TransactionOutput>(outputs(values)));
+    }
+
+    private static List<Long> values(CoinSelection selection) {
+        List<Long> values = new ArrayList<Long>();
+
+        for (TransactionOutput output : selection.gathered) {
+            values.add(output.getValue().longValue());
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,323 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.CheckpointManager;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.impl.CocoaLogger;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CheckpointIndexTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int CHECKPOINTS = 50;
+    private static final Address coinbaseAddress = new ECKey().toAddress(params);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // all of them as they're in the checkpoints file, and without the one that shares its time with the next
+    private List<StoredBlock> fileCheckpoints;
+    private List<StoredBlock> checkpoints;
+    private File checkpointsFile;
+
+    @BeforeClass
+    public static void setUpLogging() {
+        // the Cocoa side isn't there to receive the logs
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        fileCheckpoints = createCheckpoints();
+        checkpoints = distinctTimes(fileCheckpoints);
+        assertEquals(fileCheckpoints.size() - 1, checkpoints.size());
+
+        checkpointsFile = folder.newFile("test.checkpoints");
+        writeCheckpointsFile(checkpointsFile, fileCheckpoints);
+    }
+
+    @Test
+    public void findsTheSameCheckpointsAsCheckpointManager() throws Exception {
+        CheckpointIndex index = CheckpointIndex.convert(params, checkpointsFile, folder.newFile("test.idx"));
+        CheckpointManager manager = openCheckpointManager();
+        assertEquals(manager.numCheckpoints(), index.size());
+
+        List<Long> times = new ArrayList<Long>();
+
+        // on, just before and just after every checkpoint, and in between
+        for (StoredBlock checkpoint : checkpoints) {
+            long time = checkpoint.getHeader().getTimeSeconds();
+
+            for (long t = time - 2; t <= time + 2; t++) {
+                times.add(t);
+            }
+
+            times.add(time + 150);
+        }
+
+        // CheckpointManager only takes times after the genesis block
+        times.add(params.getGenesisBlock().getTimeSeconds() + 1);
+        times.add(Long.MAX_VALUE / 2);
+
+        for (long time : times) {
+            assertEquals("Time " + time, manager.getCheckpointBefore(time), index.getCheckpointBefore(time));
+        }
+
+        assertEquals(0, CheckpointIndex.verify(params, index, checkpointsFile));
+    }
+
+    @Test
+    public void seedsTheSameChainHeadAsCheckpointManager() throws Exception {
+        CheckpointIndex index = CheckpointIndex.convert(params, checkpointsFile, folder.newFile("test.idx"));
+
+        for (int i = 0; i < checkpoints.size(); i += 7) {
+            // CheckpointManager goes back a week from the key time as well
+            long keyTime = checkpoints.get(i).getHeader().getTimeSeconds() + CheckpointIndex.KEY_TIME_MARGIN;
+
+            MemoryBlockStore expected = new MemoryBlockStore(params);
+            InputStream stream = new FileInputStream(checkpointsFile);
+
+            try {
+                CheckpointManager.checkpoint(params, stream, expected, keyTime);
+            } finally {
+                stream.close();
+            }
+
+            MemoryBlockStore actual = new MemoryBlockStore(params);
+            index.checkpoint(actual, keyTime);
+
+            assertEquals(expected.getChainHead(), actual.getChainHead());
+            assertEquals(checkpoints.get(i), actual.getChainHead());
+        }
+    }
+
+    @Test
+    public void buildRoundTrips() throws Exception {
+        // the order doesn't matter, the index is sorted by time and keeps the higher of two with the same time
+        List<StoredBlock> shuffled = new ArrayList<StoredBlock>(fileCheckpoints);
+        Collections.shuffle(shuffled, new Random(1));
+
+        File first = folder.newFile("first.idx");
+        CheckpointIndex.write(params, shuffled, first);
+        CheckpointIndex index = CheckpointIndex.open(params, first);
+
+        List<StoredBlock> read = new ArrayList<StoredBlock>();
+
+        for (int i = 0; i < index.size(); i++) {
+            read.add(index.get(i));
+            assertEquals(index.get(i).getHeader().getTimeSeconds(), index.getTime(i));
+        }
+
+        assertEquals(checkpoints, read);
+        assertEquals(checkpoints, CheckpointIndex.readCheckpointsFile(params, checkpointsFile));
+
+        // writing what was read gives the same file, and verifies against the checkpoints file
+        File second = folder.newFile("second.idx");
+        CheckpointIndex.write(params, read, second);
+        assertArrayEquals(readFile(first), readFile(second));
+        assertEquals(0, CheckpointIndex.verify(params, CheckpointIndex.open(params, second), checkpointsFile));
+
+        // converting has the same records, only the header remembers the checkpoints file
+        File converted = folder.newFile("converted.idx");
+        CheckpointIndex.convert(params, checkpointsFile, converted);
+        assertArrayEquals(records(first), records(converted));
+    }
+
+    @Test
+    public void verifyFindsMissingCheckpoints() throws Exception {
+        File indexFile = folder.newFile("partial.idx");
+        CheckpointIndex.write(params, checkpoints.subList(0, CHECKPOINTS / 2), indexFile);
+
+        assertTrue(CheckpointIndex.verify(params, CheckpointIndex.open(params, indexFile), checkpointsFile) > 0);
+    }
+
+    @Test
+    public void noticesChangedCheckpointsFile() throws Exception {
+        CheckpointIndex converted = CheckpointIndex.convert(params, checkpointsFile, folder.newFile("test.idx"));
+        assertTrue(converted.isUpToDateWith(checkpointsFile));
+
+        File built = folder.newFile("built.idx");
+        CheckpointIndex.write(params, checkpoints, built);
+
+        // a newer checkpoints file with one more checkpoint
+        List<StoredBlock> more = new ArrayList<StoredBlock>(fileCheckpoints);
+        StoredBlock last = fileCheckpoints.get(fileCheckpoints.size() - 1);
+        more.add(createNext(last, last.getHeader().getTimeSeconds() + 600));
+        writeCheckpointsFile(checkpointsFile, more);
+
+        assertFalse(converted.isUpToDateWith(checkpointsFile));
+
+        // indexes built with the tool aren't tied to a file
+        assertTrue(CheckpointIndex.open(params, built).isUpToDateWith(checkpointsFile));
+    }
+
+    @Test
+    public void rejectsOtherNetworksAndDamagedFiles() throws Exception {
+        File indexFile = folder.newFile("test.idx");
+        CheckpointIndex.write(params, checkpoints, indexFile);
+
+        try {
+            CheckpointIndex.open(MainNetParams.get(), indexFile);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        // cut off in the middle of the records
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+
+        try {
+            file.setLength(file.length() - CheckpointIndex.RECORD_SIZE / 2);
+        } finally {
+            file.close();
+        }
+
+        try {
+            CheckpointIndex.open(params, indexFile);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Builds a chain of blocks and takes every tenth as a checkpoint, like at difficulty transitions. The times are
+     * irregular, and halfway through a checkpoint comes with the same time as the one before.
+     */
+    private static List<StoredBlock> createCheckpoints() throws Exception {
+        Random random = new Random(1);
+        List<StoredBlock> checkpoints = new ArrayList<StoredBlock>();
+        StoredBlock block = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                params.getGenesisBlock().getWork(), 0);
+
+        while (checkpoints.size() < CHECKPOINTS) {
+            long time = block.getHeader().getTimeSeconds() + 60 + random.nextInt(1200);
+
+            if ((block.getHeight() + 1) % 10 == 0 && checkpoints.size() == CHECKPOINTS / 2) {
+                time = checkpoints.get(checkpoints.size() - 1).getHeader().getTimeSeconds();
+            }
+
+            block = createNext(block, time);
+
+            if (block.getHeight() % 10 == 0) {
+                checkpoints.add(block);
+            }
+        }
+
+        return checkpoints;
+    }
+
+    /** Leaves out the lower of two checkpoints with the same time, like CheckpointManager and the index do. */
+    private static List<StoredBlock> distinctTimes(List<StoredBlock> checkpoints) {
+        List<StoredBlock> distinct = new ArrayList<StoredBlock>();
+
+        for (StoredBlock checkpoint : checkpoints) {
+            int last = distinct.size() - 1;
+
+            if (last >= 0 && distinct.get(last).getHeader().getTimeSeconds()
+                    == checkpoint.getHeader().getTimeSeconds()) {
+                distinct.remove(last);
+            }
+
+            distinct.add(checkpoint);
+        }
+
+        return distinct;
+    }
+
+    private static StoredBlock createNext(StoredBlock previous, long time) throws Exception {
+        // the unit test genesis block is from now, and blocks mustn't be from more than two hours later than now
+        Utils.setMockClock(time);
+
+        try {
+            Block block = previous.getHeader().createNextBlock(coinbaseAddress, time);
+
+            // createNextBlock() goes at least a second past the previous block
+            if (block.getTimeSeconds() != time) {
+                block.setTime(time);
+                block.solve();
+            }
+
+            return previous.build(block.cloneAsHeader());
+        } finally {
+            Utils.mockTime = null;
+        }
+    }
+
+    /** Writes the checkpoints in bitcoinj's format, without signatures. */
+    private static void writeCheckpointsFile(File file, List<StoredBlock> checkpoints) throws IOException {
+        DataOutputStream stream = new DataOutputStream(new FileOutputStream(file));
+
+        try {
+            stream.write("CHECKPOINTS 1".getBytes("US-ASCII"));
+            stream.writeInt(0);
+            stream.writeInt(checkpoints.size());
+            ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+
+            for (StoredBlock checkpoint : checkpoints) {
+                buffer.clear();
+                checkpoint.serializeCompact(buffer);
+                stream.write(buffer.array());
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    private CheckpointManager openCheckpointManager() throws IOException {
+        InputStream stream = new FileInputStream(checkpointsFile);
+
+        try {
+            return new CheckpointManager(params, stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private static byte[] records(File file) throws IOException {
+        byte[] bytes = readFile(file);
+        return Arrays.copyOfRange(bytes, CheckpointIndex.HEADER_SIZE, bytes.length);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            byte[] bytes = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(bytes);
+            return bytes;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
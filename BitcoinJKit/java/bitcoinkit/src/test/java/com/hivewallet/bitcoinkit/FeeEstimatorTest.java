@@ -0,0 +1,213 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.utils.Threading;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FeeEstimatorTest extends WalletTestBase {
+    private ECKey uncompressedKey;
+    private Random random;
+    private Address otherAddress;
+    private Address scriptAddress;
+
+    @Before
+    public void setUp() throws Exception {
+        random = new Random(1);
+        uncompressedKey = watchOnly(new ECKey(new BigInteger(200, random), null, false));
+        wallet.addKey(uncompressedKey);
+
+        otherAddress = new ECKey().toAddress(params);
+        scriptAddress = Address.fromP2SHHash(params, new byte[20]);
+
+        receiveRandomOutputs(60);
+    }
+
+    /**
+     * The wallet only has public keys, so completeTx() signs with dummy signatures instead of ECDSA. It works out the
+     * fee before signing, from the size of the keys, so the fee is the same either way.
+     */
+    @Override
+    protected ECKey createKey() {
+        return watchOnly(new ECKey());
+    }
+
+    private static ECKey watchOnly(ECKey key) {
+        return new ECKey(null, key.getPubKey());
+    }
+
+    @Test
+    public void quotesMatchCompleteTxWithDefaultSelector() throws Exception {
+        assertQuotesMatch(randomAmounts(300));
+    }
+
+    @Test
+    public void quotesMatchCompleteTxWithBranchAndBoundSelector() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        wallet.setCoinSelector(selector);
+        assertQuotesMatch(randomAmounts(300));
+        assertEquals(BranchAndBoundCoinSelector.NO_TIME_BUDGET, selector.getTimeBudget());
+    }
+
+    @Test
+    public void quotesMatchCompleteTxWhenSearchIsCutShort() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector();
+        selector.setMaxTries(50);
+        wallet.setCoinSelector(selector);
+        assertQuotesMatch(randomAmounts(300));
+    }
+
+    @Test
+    public void quotesFollowWalletChanges() throws Exception {
+        wallet.setCoinSelector(new BranchAndBoundCoinSelector());
+        FeeEstimator estimator = new FeeEstimator(params, wallet);
+        List<Long> amounts = randomAmounts(50);
+
+        try {
+            for (long amount : amounts) {
+                assertEquals(getCompleteTxResult(otherAddress, amount), getQuote(estimator, otherAddress, amount));
+            }
+
+            receiveRandomOutputs(5);
+
+            for (long amount : amounts) {
+                assertEquals(getCompleteTxResult(otherAddress, amount), getQuote(estimator, otherAddress, amount));
+            }
+        } finally {
+            estimator.close();
+        }
+    }
+
+    private void assertQuotesMatch(List<Long> amounts) throws Exception {
+        FeeEstimator estimator = new FeeEstimator(params, wallet);
+
+        try {
+            for (long amount : amounts) {
+                for (Address address : new Address[] { otherAddress, scriptAddress }) {
+                    assertEquals("amount " + amount + " to " + address,
+                            getCompleteTxResult(address, amount), getQuote(estimator, address, amount));
+                }
+            }
+        } finally {
+            estimator.close();
+        }
+    }
+
+    /** The fee completeTx() pays, or why it fails. */
+    private String getCompleteTxResult(Address address, long amount) {
+        try {
+            Wallet.SendRequest request = Wallet.SendRequest.to(address, BigInteger.valueOf(amount));
+            wallet.completeTx(request);
+            return String.valueOf(TransactionDetails.getTransactionFee(request.tx));
+        } catch (InsufficientMoneyException e) {
+            return "missing " + e.missing;
+        } catch (IllegalArgumentException e) {
+            return "dust";
+        }
+    }
+
+    private static String getQuote(FeeEstimator estimator, Address address, long amount) {
+        try {
+            return String.valueOf(estimator.getFee(address, amount));
+        } catch (InsufficientMoneyException e) {
+            return "missing " + e.missing;
+        } catch (IllegalArgumentException e) {
+            return "dust";
+        }
+    }
+
+    /** Dust, small and large amounts, amounts close to the balance and amounts over it. */
+    private List<Long> randomAmounts(int count) {
+        long balance = wallet.getBalance().longValue();
+        List<Long> amounts = new ArrayList<Long>();
+
+        while (amounts.size() < count) {
+            long amount;
+
+            switch (random.nextInt(5)) {
+                case 0:
+                    amount = 1 + random.nextInt(20000);
+                    break;
+                case 1:
+                    amount = balance - random.nextInt(300000);
+                    break;
+                case 2:
+                    amount = (long) (random.nextDouble() * balance);
+                    break;
+                case 3:
+                    amount = 990000 + random.nextInt(20000);
+                    break;
+                default:
+                    amount = (long) Math.pow(10, 3 + random.nextDouble() * 6);
+            }
+
+            if (amount > 0) {
+                amounts.add(amount);
+            }
+        }
+
+        return amounts;
+    }
+
+    /**
+     * Adds blocks with payments to the wallet: pay-to-address outputs to both keys and pay-to-pubkey outputs, with
+     * values from a few satoshis to 10 BTC, then a few empty blocks so that they can all be spent.
+     */
+    private void receiveRandomOutputs(int blocks) throws Exception {
+        for (int i = 0; i < blocks; i++) {
+            Transaction[] payments = new Transaction[1 + random.nextInt(3)];
+
+            for (int j = 0; j < payments.length; j++) {
+                payments[j] = createPayment();
+            }
+
+            addBlock(payments);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            addBlock();
+        }
+
+        Threading.waitForUserCode();
+    }
+
+    private Transaction createPayment() {
+        long value;
+
+        if (random.nextInt(4) == 0) {
+            value = 1 + random.nextInt(2000000);
+        } else {
+            value = (long) Math.pow(10, 4 + random.nextDouble() * 5);
+        }
+
+        Transaction tx = new Transaction(params);
+
+        if (random.nextInt(5) == 0) {
+            tx.addOutput(BigInteger.valueOf(value), key);
+        } else {
+            ECKey to = random.nextBoolean() ? key : uncompressedKey;
+            tx.addOutput(BigInteger.valueOf(value), to.toAddress(params));
+        }
+
+        byte[] outPointHash = new byte[32];
+        random.nextBytes(outPointHash);
+        TransactionOutPoint outPoint = new TransactionOutPoint(params, 0, new Sha256Hash(outPointHash));
+        tx.addInput(new TransactionInput(params, tx, new byte[] { 1 }, outPoint));
+
+        return tx;
+    }
+}
@@ -0,0 +1,145 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.script.Script;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * The transaction JSON as BitcoinManager rendered it with Jettison before TransactionJSONWriter, kept as the
+ * reference that the writer's output has to match.
+ */
+class JettisonTransactionJSON {
+    private final NetworkParameters networkParams;
+    private final Wallet wallet;
+
+    JettisonTransactionJSON(NetworkParameters networkParams, Wallet wallet) {
+        this.networkParams = networkParams;
+        this.wallet = wallet;
+    }
+
+    /** The whole object, with the confidence fields between the cached parts like TransactionJSONCache.Entry. */
+    String toJSON(Transaction tx, String confidence, int peers, int confirmations) throws JSONException {
+        String[] parts = render(tx);
+
+        StringBuilder buffer = new StringBuilder(parts[0].length() + parts[1].length() + 64);
+        buffer.append(parts[0]);
+        buffer.append(",\"confidence\":\"").append(confidence).append('"');
+        buffer.append(",\"peers\":").append(peers);
+        buffer.append(",\"confirmations\":").append(confirmations);
+        buffer.append(',').append(parts[1]);
+        return buffer.toString();
+    }
+
+    /** Returns the head and the tail of the cache entry. */
+    String[] render(Transaction tx) throws JSONException {
+        JSONArray inputs = new JSONArray();
+
+        for (TransactionInput input : tx.getInputs()) {
+            JSONObject inputData = new JSONObject();
+
+            if (!input.isCoinBase()) {
+                try {
+                    Script scriptSig = input.getScriptSig();
+                    Address fromAddress = new Address(networkParams, Utils.sha256hash160(scriptSig.getPubKey()));
+                    inputData.put("address", fromAddress);
+                } catch (ScriptException e) {
+                    // can't parse script, give up
+                }
+            }
+
+            TransactionOutput source = input.getConnectedOutput();
+            if (source != null) {
+                inputData.put("amount", source.getValue());
+            }
+
+            inputs.put(inputData);
+        }
+
+        JSONArray outputs = new JSONArray();
+
+        for (TransactionOutput output : tx.getOutputs()) {
+            JSONObject outputData = new JSONObject();
+
+            try {
+                Script scriptPubKey = output.getScriptPubKey();
+
+                if (scriptPubKey.isSentToAddress() || scriptPubKey.isPayToScriptHash()) {
+                    Address toAddress = scriptPubKey.getToAddress(networkParams);
+                    outputData.put("address", toAddress);
+
+                    if (toAddress.toString().equals(getWalletAddress())) {
+                        outputData.put("type", "own");
+                    } else {
+                        outputData.put("type", "external");
+                    }
+                } else if (scriptPubKey.isSentToRawPubKey()) {
+                    outputData.put("type", "pubkey");
+                } else if (scriptPubKey.isSentToMultiSig()) {
+                    outputData.put("type", "multisig");
+                } else {
+                    outputData.put("type", "unknown");
+                }
+            } catch (ScriptException e) {
+                // can't parse script, give up
+            }
+
+            outputData.put("amount", output.getValue());
+            outputs.put(outputData);
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        // confidence, peers and confirmations are filled in between these two parts by the cache entry
+        JSONObject head = new JSONObject();
+        head.put("amount", tx.getValue(wallet));
+        head.put("fee", getTransactionFee(tx));
+        head.put("txid", tx.getHashAsString());
+        head.put("time", dateFormat.format(tx.getUpdateTime()));
+
+        JSONObject tail = new JSONObject();
+        tail.put("inputs", inputs);
+        tail.put("outputs", outputs);
+
+        String headJSON = head.toString();
+        String tailJSON = tail.toString();
+
+        return new String[] { headJSON.substring(0, headJSON.length() - 1), tailJSON.substring(1) };
+    }
+
+    private String getWalletAddress() {
+        return wallet.getKeys().get(0).toAddress(networkParams).toString();
+    }
+
+    private static BigInteger getTransactionFee(Transaction tx) {
+        BigInteger v = BigInteger.ZERO;
+
+        for (TransactionInput input : tx.getInputs()) {
+            TransactionOutput connected = input.getConnectedOutput();
+            if (connected != null) {
+                v = v.add(connected.getValue());
+            } else {
+                // we can't calculate the fee amount without having all data
+                return BigInteger.ZERO;
+            }
+        }
+
+        for (TransactionOutput output : tx.getOutputs()) {
+            v = v.subtract(output.getValue());
+        }
+
+        return v;
+    }
+}
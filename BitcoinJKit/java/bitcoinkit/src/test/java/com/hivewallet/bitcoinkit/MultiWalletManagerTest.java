@@ -0,0 +1,218 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.SPVBlockStore;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.bitcoin.utils.Threading;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.impl.CocoaLogger;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Syncs wallets on a chain of solved blocks, closes some of them on the way, and loads them all into a
+ * MultiWalletManager the way start() does, without the peer group.
+ */
+public class MultiWalletManagerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    // UnitTestParams retargets the difficulty at block 10, which the solved test blocks don't follow
+    private static final int CHAIN_HEIGHT = 9;
+    private static final int EARLY_PAYMENT_HEIGHT = 3;
+    private static final int LATE_PAYMENT_HEIGHT = 7;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File walletsDirectory;
+    private List<Block> chainBlocks;
+    private Transaction[] earlyPayments;
+    private Transaction[] latePayments;
+    private MultiWalletManager manager;
+
+    @BeforeClass
+    public static void setUpLogging() {
+        // the Cocoa side isn't there to receive the logs
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        walletsDirectory = folder.newFolder("wallets");
+        chainBlocks = new ArrayList<Block>();
+
+        manager = new MultiWalletManager(new MultiWalletManager.Listener() {
+            public void onBalanceChanged(WalletHandle wallet) {}
+            public void onTransactionChanged(WalletHandle wallet, String txid, String json) {}
+            public void onSynchronizationUpdate(float percent) {}
+            public void onPeerCountChanged(int peerCount) {}
+        });
+        manager.setNetworkParameters(params);
+        manager.setDataDirectory(folder.getRoot().getPath());
+    }
+
+    @After
+    public void tearDown() {
+        manager.stop();
+    }
+
+    @Test
+    public void rewindsWalletsAheadOfOneThatIsBehind() throws Exception {
+        // "behind" was closed after block 5, "ahead" kept syncing
+        syncWallets(5, "ahead", "behind");
+
+        manager.loadWallets();
+
+        assertEquals(5, manager.getBlockStore().getChainHead().getHeight());
+
+        // the wallet ahead was set back to the same block and saved like that
+        Wallet ahead = manager.getWallet("ahead").getWallet();
+        Wallet behind = manager.getWallet("behind").getWallet();
+        assertRewound(ahead, 0);
+        assertRewound(behind, 1);
+        assertEquals(5, Wallet.loadFromFile(new File(walletsDirectory, "ahead.wallet")).getLastBlockSeenHeight());
+
+        replay(ahead, behind);
+
+        assertSynced(ahead, 0);
+        assertSynced(behind, 1);
+    }
+
+    @Test
+    public void keepsTheChainIfAllWalletsAreUpToDate() throws Exception {
+        syncWallets(CHAIN_HEIGHT, "first", "second");
+
+        manager.loadWallets();
+
+        assertEquals(CHAIN_HEIGHT, manager.getBlockStore().getChainHead().getHeight());
+        assertSynced(manager.getWallet("first").getWallet(), 0);
+        assertSynced(manager.getWallet("second").getWallet(), 1);
+    }
+
+    @Test
+    public void replaysTheWholeChainForAWalletThatSawNoBlocks() throws Exception {
+        syncWallets(CHAIN_HEIGHT, "synced");
+
+        // copied into the wallets directory while the other one kept syncing
+        Wallet copied = new Wallet(params);
+        copied.addKey(new ECKey());
+        copied.saveToFile(new File(walletsDirectory, "copied.wallet"));
+
+        manager.loadWallets();
+
+        // the store doesn't go back before the first block, so it starts over at the genesis block
+        assertEquals(0, manager.getBlockStore().getChainHead().getHeight());
+        assertEquals(params.getGenesisBlock().getHash(), manager.getBlockStore().getChainHead().getHeader().getHash());
+
+        Wallet synced = manager.getWallet("synced").getWallet();
+        assertEquals(0, synced.getTransactions(true).size());
+
+        replay(synced, manager.getWallet("copied").getWallet());
+        assertSynced(synced, 0);
+    }
+
+    /**
+     * Mines CHAIN_HEIGHT blocks into a new block store with a wallet for each id, which all get paid early and late
+     * in the chain; the last wallet is closed after the given height. The wallets and the store are saved in the data
+     * directory.
+     */
+    private void syncWallets(int lastHeight, String... ids) throws Exception {
+        SPVBlockStore store = new SPVBlockStore(params, new File(folder.getRoot(), "wallets.spvchain"));
+        BlockChain chain = new BlockChain(params, store);
+        Wallet[] wallets = new Wallet[ids.length];
+        earlyPayments = new Transaction[ids.length];
+        latePayments = new Transaction[ids.length];
+
+        for (int i = 0; i < ids.length; i++) {
+            wallets[i] = new Wallet(params);
+            wallets[i].addKey(new ECKey());
+            chain.addWallet(wallets[i]);
+
+            earlyPayments[i] = TestUtils.createFakeTx(params, Utils.CENT, wallets[i].getKeys().get(0));
+            latePayments[i] = TestUtils.createFakeTx(params, Utils.COIN, wallets[i].getKeys().get(0));
+        }
+
+        Block previous = params.getGenesisBlock();
+
+        for (int height = 1; height <= CHAIN_HEIGHT; height++) {
+            if (height == lastHeight + 1) {
+                saveWallet(wallets[ids.length - 1], ids[ids.length - 1]);
+                chain.removeWallet(wallets[ids.length - 1]);
+            }
+
+            Transaction[] transactions = (height == EARLY_PAYMENT_HEIGHT) ? earlyPayments
+                    : (height == LATE_PAYMENT_HEIGHT) ? latePayments : new Transaction[0];
+            Block block = TestUtils.makeSolvedTestBlock(previous, transactions);
+            chain.add(block);
+            chainBlocks.add(block);
+            previous = block;
+        }
+
+        Threading.waitForUserCode();
+
+        for (int i = 0; i < ids.length; i++) {
+            if (i < ids.length - 1 || lastHeight >= CHAIN_HEIGHT) {
+                saveWallet(wallets[i], ids[i]);
+            }
+        }
+
+        store.close();
+    }
+
+    private void saveWallet(Wallet wallet, String id) throws Exception {
+        Threading.waitForUserCode();
+        wallet.saveToFile(new File(walletsDirectory, id + ".wallet"));
+    }
+
+    /** Passes the blocks after the block store's head to the wallets, as the peer group would download them. */
+    private void replay(Wallet... wallets) throws Exception {
+        BlockChain chain = new BlockChain(params, manager.getBlockStore());
+
+        for (Wallet wallet : wallets) {
+            chain.addWallet(wallet);
+        }
+
+        int head = manager.getBlockStore().getChainHead().getHeight();
+
+        for (Block block : chainBlocks.subList(head, chainBlocks.size())) {
+            chain.add(block);
+        }
+
+        Threading.waitForUserCode();
+        assertEquals(CHAIN_HEIGHT, manager.getBlockStore().getChainHead().getHeight());
+    }
+
+    private void assertRewound(Wallet wallet, int index) {
+        assertEquals(5, wallet.getLastBlockSeenHeight());
+        assertEquals(chainBlocks.get(4).getHash(), wallet.getLastBlockSeenHash());
+        assertNotNull(wallet.getTransaction(earlyPayments[index].getHash()));
+        assertNull(wallet.getTransaction(latePayments[index].getHash()));
+        assertEquals(Utils.CENT, wallet.getBalance());
+    }
+
+    private void assertSynced(Wallet wallet, int index) {
+        assertEquals(CHAIN_HEIGHT, wallet.getLastBlockSeenHeight());
+        assertNotNull(wallet.getTransaction(earlyPayments[index].getHash()));
+        assertNotNull(wallet.getTransaction(latePayments[index].getHash()));
+        assertEquals(Utils.CENT.add(Utils.COIN), wallet.getBalance());
+        assertEquals(CHAIN_HEIGHT - LATE_PAYMENT_HEIGHT + 1,
+                wallet.getTransaction(latePayments[index].getHash()).getConfidence().getDepthInBlocks());
+    }
+}
@@ -0,0 +1,174 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.SPVBlockStore;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.bitcoin.utils.Threading;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.impl.CocoaLogger;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Syncs 2000 blocks into 1, 10 and 50 wallets, once on one shared block store and chain (MultiWalletManager) and
+ * once with a store and chain for each wallet (a BitcoinManager each), and prints the time, the heap and block store
+ * files used, the peer connections the peer groups would open and the data they would download: every block header
+ * for each chain, and the transactions matching its wallets' bloom filter. Every twentieth block pays each wallet.
+ * The blocks are solved in memory, so the network isn't part of the time. Not run with the unit tests; run it with
+ * mvn test -Dtest=MultiWalletSyncBenchmark.
+ */
+public class MultiWalletSyncBenchmark {
+    private static final int[] WALLET_COUNTS = { 1, 10, 50 };
+    private static final int BLOCKS = 2000;
+    private static final int PAYMENT_INTERVAL = 20;
+
+    // PeerGroup's default maximum
+    private static final int CONNECTIONS_PER_PEER_GROUP = 4;
+    private static final int HEADER_SIZE = 80;
+
+    /** UnitTestParams without the difficulty retargeting, which blocks solved a moment apart wouldn't pass. */
+    private static class BenchmarkParams extends UnitTestParams {
+        BenchmarkParams() {
+            interval = Integer.MAX_VALUE;
+        }
+    }
+
+    private static final NetworkParameters params = new BenchmarkParams();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // the size of the payments in the blocks last created, downloaded once in both cases
+    private long paymentBytes;
+
+    @BeforeClass
+    public static void setUpLogging() {
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+    }
+
+    @Test
+    public void compareWithManagerPerWallet() throws Exception {
+        System.out.println(String.format("%8s  %-9s %10s %10s %10s %10s %12s %14s", "wallets", "chains", "ms",
+                "ms/block", "heap MB", "store MB", "connections", "download MB"));
+
+        for (int walletCount : WALLET_COUNTS) {
+            List<ECKey> keys = new ArrayList<ECKey>();
+
+            for (int i = 0; i < walletCount; i++) {
+                keys.add(new ECKey());
+            }
+
+            List<Block> blocks = createBlocks(keys);
+
+            // the first run warms up
+            sync(keys, blocks, 1, false);
+            sync(keys, blocks, 1, true);
+            sync(keys, blocks, walletCount, true);
+        }
+    }
+
+    /** Syncs a wallet for each key on the given number of chains, which share the wallets out between them. */
+    private void sync(List<ECKey> keys, List<Block> blocks, int chainCount, boolean print) throws Exception {
+        long heapBefore = usedHeap();
+
+        List<File> storeFiles = new ArrayList<File>();
+        List<SPVBlockStore> stores = new ArrayList<SPVBlockStore>();
+        List<BlockChain> chains = new ArrayList<BlockChain>();
+        List<Wallet> wallets = new ArrayList<Wallet>();
+
+        for (int i = 0; i < chainCount; i++) {
+            File storeFile = new File(folder.getRoot(), "benchmark-" + i + ".spvchain");
+            storeFile.delete();
+            SPVBlockStore store = new SPVBlockStore(params, storeFile);
+
+            storeFiles.add(storeFile);
+            stores.add(store);
+            chains.add(new BlockChain(params, store));
+        }
+
+        for (int i = 0; i < keys.size(); i++) {
+            Wallet wallet = new Wallet(params);
+            wallet.addKey(keys.get(i));
+            chains.get(i % chainCount).addWallet(wallet);
+            wallets.add(wallet);
+        }
+
+        long start = System.nanoTime();
+
+        for (Block block : blocks) {
+            for (BlockChain chain : chains) {
+                chain.add(block);
+            }
+        }
+
+        Threading.waitForUserCode();
+        long timeNs = System.nanoTime() - start;
+        long heap = usedHeap() - heapBefore;
+
+        BigInteger expectedBalance = Utils.CENT.multiply(BigInteger.valueOf(BLOCKS / PAYMENT_INTERVAL));
+        long storeBytes = 0;
+
+        for (Wallet wallet : wallets) {
+            if (!wallet.getBalance().equals(expectedBalance) || wallet.getLastBlockSeenHeight() != BLOCKS) {
+                throw new AssertionError("A wallet didn't get all its transactions");
+            }
+        }
+
+        for (int i = 0; i < chainCount; i++) {
+            stores.get(i).close();
+            storeBytes += storeFiles.get(i).length();
+        }
+
+        if (print) {
+            long downloadBytes = (long) chainCount * BLOCKS * HEADER_SIZE + paymentBytes;
+
+            System.out.println(String.format("%8d  %-9d %10.1f %10.3f %10.1f %10.1f %12d %14.2f", keys.size(),
+                    chainCount, timeNs / 1000000.0, timeNs / 1000000.0 / BLOCKS, heap / 1048576.0,
+                    storeBytes / 1048576.0, chainCount * CONNECTIONS_PER_PEER_GROUP, downloadBytes / 1048576.0));
+        }
+    }
+
+    /** Solves a chain of blocks where every PAYMENT_INTERVAL-th one pays each key. */
+    private List<Block> createBlocks(List<ECKey> keys) throws Exception {
+        List<Block> blocks = new ArrayList<Block>(BLOCKS);
+        Block previous = params.getGenesisBlock();
+        paymentBytes = 0;
+
+        for (int height = 1; height <= BLOCKS; height++) {
+            Transaction[] transactions = new Transaction[(height % PAYMENT_INTERVAL == 0) ? keys.size() : 0];
+
+            for (int i = 0; i < transactions.length; i++) {
+                transactions[i] = TestUtils.createFakeTx(params, Utils.CENT, keys.get(i));
+                paymentBytes += transactions[i].bitcoinSerialize().length;
+            }
+
+            previous = TestUtils.makeSolvedTestBlock(previous, transactions);
+            blocks.add(previous);
+        }
+
+        return blocks;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
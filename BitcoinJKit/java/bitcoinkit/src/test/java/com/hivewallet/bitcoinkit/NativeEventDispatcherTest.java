@@ -0,0 +1,251 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.utils.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.impl.CocoaLogger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NativeEventDispatcherTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    // the scheduled flush never comes in the tests that flush by hand
+    private static final long LONG_INTERVAL_MS = 60 * 60 * 1000;
+    private static final long WAIT_MS = 5000;
+
+    private ScheduledExecutorService executor;
+    private RecordingTarget target;
+    private NativeEventDispatcher dispatcher;
+
+    /** Records what's sent to the Cocoa side, with the confidence each transaction had when it was sent. */
+    private static class RecordingTarget implements NativeEventDispatcher.Target {
+        final List<Object> events = new ArrayList<Object>();
+        final List<ConfidenceType> confidences = new ArrayList<ConfidenceType>();
+        final List<Thread> threads = new ArrayList<Thread>();
+        private CountDownLatch latch = new CountDownLatch(0);
+
+        synchronized void expect(int events) {
+            latch = new CountDownLatch(events);
+        }
+
+        void await() throws InterruptedException {
+            CountDownLatch latch;
+
+            synchronized (this) {
+                latch = this.latch;
+            }
+
+            assertTrue("Not all events were sent", latch.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        }
+
+        synchronized List<Object> getEvents() {
+            return new ArrayList<Object>(events);
+        }
+
+        public synchronized void dispatchBalanceChanged() {
+            record("balance", null);
+        }
+
+        public synchronized void dispatchTransactionChanged(Transaction tx) {
+            record(tx, tx.getConfidence().getConfidenceType());
+        }
+
+        private void record(Object event, ConfidenceType confidence) {
+            events.add(event);
+            confidences.add(confidence);
+            threads.add(Thread.currentThread());
+            latch.countDown();
+        }
+    }
+
+    @BeforeClass
+    public static void setUpLogging() {
+        // the Cocoa side isn't there to receive the logs
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+    }
+
+    @Before
+    public void setUp() {
+        executor = NativeEventDispatcher.createExecutor();
+        target = new RecordingTarget();
+        dispatcher = new NativeEventDispatcher(target, executor);
+        dispatcher.setFlushInterval(LONG_INTERVAL_MS);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void mergesBalanceChanges() {
+        for (int i = 0; i < 5; i++) {
+            dispatcher.balanceChanged();
+        }
+
+        assertTrue(target.getEvents().isEmpty());
+        dispatcher.flush();
+
+        assertEquals(Arrays.<Object>asList("balance"), target.getEvents());
+        assertEquals(5, dispatcher.getBalanceEventCount());
+        assertEquals(4, dispatcher.getCoalescedBalanceEventCount());
+        assertEquals(1, dispatcher.getFlushCount());
+
+        // nothing left to send
+        dispatcher.flush();
+        assertEquals(1, target.getEvents().size());
+        assertEquals(1, dispatcher.getFlushCount());
+    }
+
+    @Test
+    public void sendsEachTransactionOnceInItsLatestState() throws Exception {
+        Transaction first = createTransaction();
+        Transaction second = createTransaction();
+
+        dispatcher.transactionChanged(first);
+        dispatcher.balanceChanged();
+        dispatcher.transactionChanged(second);
+
+        // confirmed before the flush
+        first.getConfidence().setAppearedAtChainHeight(1);
+        dispatcher.transactionChanged(first);
+
+        // a copy of the second one, like after the wallet was reloaded
+        Transaction secondCopy = new Transaction(params, second.bitcoinSerialize());
+        assertNotSame(second, secondCopy);
+        dispatcher.transactionChanged(secondCopy);
+
+        dispatcher.flush();
+
+        // the balance first, then the transactions in the order they first changed
+        assertEquals(Arrays.<Object>asList("balance", first, secondCopy), target.getEvents());
+        assertSame(secondCopy, target.getEvents().get(2));
+        assertEquals(ConfidenceType.BUILDING, target.confidences.get(1));
+        assertEquals(4, dispatcher.getTransactionEventCount());
+        assertEquals(2, dispatcher.getCoalescedTransactionEventCount());
+        assertEquals(1, dispatcher.getFlushCount());
+    }
+
+    @Test
+    public void flushesAfterTheInterval() throws Exception {
+        long intervalMs = 100;
+        dispatcher.setFlushInterval(intervalMs);
+        target.expect(2);
+
+        long start = System.nanoTime();
+        Transaction tx = createTransaction();
+        dispatcher.balanceChanged();
+        dispatcher.transactionChanged(tx);
+
+        // later events go into the flush that is already scheduled
+        dispatcher.balanceChanged();
+        target.await();
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertTrue("Flushed after " + elapsedMs + " ms", elapsedMs >= intervalMs);
+        assertEquals(Arrays.<Object>asList("balance", tx), target.getEvents());
+        assertEquals(1, dispatcher.getFlushCount());
+        assertDispatchedOnExecutor();
+    }
+
+    @Test
+    public void flushesFullBatchRightAway() throws Exception {
+        dispatcher.setMaxBatchSize(3);
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 3; i++) {
+            transactions.add(createTransaction());
+        }
+
+        dispatcher.balanceChanged();
+        dispatcher.transactionChanged(transactions.get(0));
+        dispatcher.transactionChanged(transactions.get(1));
+
+        // the same one again doesn't make the batch any bigger
+        dispatcher.transactionChanged(transactions.get(1));
+        Thread.sleep(100);
+        assertTrue(target.getEvents().isEmpty());
+
+        // the third one fills the batch, long before the interval is over
+        target.expect(4);
+        dispatcher.transactionChanged(transactions.get(2));
+        target.await();
+
+        List<Object> expected = new ArrayList<Object>();
+        expected.add("balance");
+        expected.addAll(transactions);
+        assertEquals(expected, target.getEvents());
+        assertEquals(1, dispatcher.getFlushCount());
+        assertDispatchedOnExecutor();
+    }
+
+    @Test
+    public void synchronousModeSendsEveryEventOnTheCallingThread() throws Exception {
+        dispatcher.setSynchronous(true);
+        Transaction tx = createTransaction();
+
+        dispatcher.balanceChanged();
+        dispatcher.balanceChanged();
+        dispatcher.transactionChanged(tx);
+        dispatcher.transactionChanged(tx);
+
+        // nothing is merged or held back
+        assertEquals(Arrays.<Object>asList("balance", "balance", tx, tx), target.getEvents());
+        assertEquals(0, dispatcher.getCoalescedBalanceEventCount());
+        assertEquals(0, dispatcher.getCoalescedTransactionEventCount());
+        assertEquals(0, dispatcher.getFlushCount());
+
+        for (Thread thread : target.threads) {
+            assertSame(Thread.currentThread(), thread);
+        }
+    }
+
+    @Test
+    public void switchingToSynchronousModeSendsPendingEvents() throws Exception {
+        Transaction tx = createTransaction();
+        dispatcher.balanceChanged();
+        dispatcher.transactionChanged(tx);
+        assertTrue(target.getEvents().isEmpty());
+
+        dispatcher.setSynchronous(true);
+
+        assertEquals(Arrays.<Object>asList("balance", tx), target.getEvents());
+        assertSame(Thread.currentThread(), target.threads.get(0));
+
+        // and the scheduled flush was cancelled
+        dispatcher.setSynchronous(false);
+        dispatcher.flush();
+        assertEquals(2, target.getEvents().size());
+        assertEquals(1, dispatcher.getFlushCount());
+    }
+
+    private void assertDispatchedOnExecutor() {
+        synchronized (target) {
+            for (Thread thread : target.threads) {
+                assertEquals("BitcoinKit event dispatcher", thread.getName());
+            }
+        }
+    }
+
+    private static Transaction createTransaction() throws Exception {
+        return TestUtils.createFakeTx(params, Utils.CENT, new ECKey().toAddress(params));
+    }
+}
@@ -0,0 +1,70 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.impl.CocoaLogger;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Downloads a chain of 20000 blocks from 1 to 8 stand-in peers (see StandInPeerGroup) that each answer a request
+ * after 50 ms and then send a block per millisecond, and once more with one of 8 peers ten times slower. With one
+ * peer it's about what PeerGroup's download peer does. Not run with the unit tests; run it with
+ * mvn test -Dtest=ParallelBlockDownloaderBenchmark.
+ */
+public class ParallelBlockDownloaderBenchmark {
+    private static final int BLOCKS = 20000;
+    private static final long REQUEST_DELAY_MS = 50;
+    private static final double BLOCK_DELAY_MS = 1;
+
+    @BeforeClass
+    public static void setUpLogging() {
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+    }
+
+    @Test
+    public void downloadWithMorePeers() throws Exception {
+        System.out.println(String.format("%-24s %10s %10s", "peers", "ms", "blocks/s"));
+
+        for (int peers : new int[] { 1, 2, 4, 8 }) {
+            run(peers + "", peers, false);
+        }
+
+        run("8, one slow", 8, true);
+    }
+
+    private static void run(String name, int peerCount, boolean oneSlow) throws Exception {
+        StandInPeerGroup group = new StandInPeerGroup(BLOCKS);
+        BlockChain chain = new BlockChain(group.getParams(), new MemoryBlockStore(group.getParams()));
+
+        for (int i = 0; i < peerCount; i++) {
+            boolean slow = oneSlow && i == peerCount - 1;
+            group.addPeer().setDelays(REQUEST_DELAY_MS, slow ? BLOCK_DELAY_MS * 10 : BLOCK_DELAY_MS);
+        }
+
+        final CountDownLatch done = new CountDownLatch(1);
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(group.getParams(), group, chain);
+
+        long start = System.currentTimeMillis();
+
+        downloader.start(new AbstractPeerEventListener(), new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        done.await();
+        long time = System.currentTimeMillis() - start;
+        group.closeAll();
+
+        if (chain.getBestChainHeight() != BLOCKS) {
+            throw new AssertionError("Download stopped at " + chain.getBestChainHeight());
+        }
+
+        System.out.println(String.format("%-24s %10d %10d", name, time, BLOCKS * 1000L / time));
+    }
+}
@@ -0,0 +1,242 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractBlockChainListener;
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.GetDataMessage;
+import com.google.bitcoin.core.InventoryItem;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.utils.Threading;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.impl.CocoaLogger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelBlockDownloaderTest {
+    private static final int BLOCKS = 2400;
+    private static final int RANGE_SIZE = 100;
+
+    private StandInPeerGroup group;
+    private BlockChain chain;
+    private List<Integer> addedHeights;
+    private AtomicInteger blocksLeftReports;
+
+    @BeforeClass
+    public static void setUpLogging() {
+        // the Cocoa side isn't there to receive the logs
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        group = new StandInPeerGroup(BLOCKS);
+        chain = new BlockChain(group.getParams(), new MemoryBlockStore(group.getParams()));
+        addedHeights = Collections.synchronizedList(new ArrayList<Integer>());
+        blocksLeftReports = new AtomicInteger();
+
+        chain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) {
+                addedHeights.add(block.getHeight());
+            }
+        }, Threading.SAME_THREAD);
+    }
+
+    @After
+    public void tearDown() {
+        group.closeAll();
+    }
+
+    @Test
+    public void downloadsBlocksInOrderFromAllPeers() throws Exception {
+        List<StandInPeerGroup.StandInPeer> peers = new ArrayList<StandInPeerGroup.StandInPeer>();
+
+        for (int i = 0; i < 3; i++) {
+            peers.add(group.addPeer().setDelays(5, 0.05));
+        }
+
+        // only headers before the wallet's first key
+        group.setFastCatchupTimeSecs(group.getBlock(300).getTimeSeconds());
+
+        download(new ParallelBlockDownloader(group.getParams(), group, chain, RANGE_SIZE));
+
+        assertAddedInOrder(1, BLOCKS);
+        assertEquals(BLOCKS, blocksLeftReports.get());
+
+        Map<Integer, Integer> requests = new HashMap<Integer, Integer>();
+        int peersUsed = 0;
+
+        for (StandInPeerGroup.StandInPeer peer : peers) {
+            if (!peer.getBlockRequests().isEmpty()) {
+                peersUsed++;
+            }
+
+            for (GetDataMessage getData : peer.getBlockRequests()) {
+                assertTrue(getData.getItems().size() <= RANGE_SIZE);
+                List<Integer> heights = getHeights(getData);
+
+                for (int height : heights) {
+                    Integer count = requests.get(height);
+                    requests.put(height, (count == null) ? 1 : count + 1);
+                }
+
+                // a range is a run of consecutive heights
+                assertEquals(heights.size() - 1, heights.get(heights.size() - 1) - heights.get(0));
+            }
+        }
+
+        assertEquals(BLOCKS - 300 + 1, requests.size());
+
+        for (int height = 300; height <= BLOCKS; height++) {
+            assertEquals("requests for " + height, 1, (int) requests.get(height));
+        }
+
+        assertTrue(peersUsed > 1);
+    }
+
+    @Test
+    public void continuesFromChainHead() throws Exception {
+        group.addBlocksTo(chain, 200);
+        addedHeights.clear();
+
+        group.addPeer();
+        group.addPeer();
+
+        download(new ParallelBlockDownloader(group.getParams(), group, chain, RANGE_SIZE));
+
+        assertAddedInOrder(201, BLOCKS);
+    }
+
+    @Test
+    public void leavesShortDownloadsToDownloadPeer() throws Exception {
+        group.addBlocksTo(chain, BLOCKS - ParallelBlockDownloader.MIN_BLOCKS + 1);
+        addedHeights.clear();
+
+        StandInPeerGroup.StandInPeer peer = group.addPeer();
+
+        download(new ParallelBlockDownloader(group.getParams(), group, chain, RANGE_SIZE));
+
+        assertTrue(addedHeights.isEmpty());
+        assertTrue(peer.getBlockRequests().isEmpty());
+        assertEquals(BLOCKS - ParallelBlockDownloader.MIN_BLOCKS + 1, chain.getBestChainHeight());
+    }
+
+    @Test
+    public void replacesStalledPeer() throws Exception {
+        group.addPeer();
+        StandInPeerGroup.StandInPeer stalling = group.addPeer().setStallAfterBlocks(RANGE_SIZE / 2);
+        group.addPeer();
+
+        ParallelBlockDownloader downloader = new ParallelBlockDownloader(group.getParams(), group, chain,
+                RANGE_SIZE);
+        downloader.setStallTimeout(300);
+        download(downloader);
+
+        assertAddedInOrder(1, BLOCKS);
+        assertTrue(stalling.isClosed());
+        assertEquals(1, stalling.getBlockRequests().size());
+        assertFalse(group.getConnectedPeers().contains(stalling));
+    }
+
+    @Test
+    public void replacesSlowPeer() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            group.addPeer().setDelays(0, 0.01);
+        }
+
+        StandInPeerGroup.StandInPeer slow = group.addPeer().setDelays(0, 5);
+
+        download(new ParallelBlockDownloader(group.getParams(), group, chain, RANGE_SIZE));
+
+        assertAddedInOrder(1, BLOCKS);
+        assertTrue(slow.isClosed());
+        assertEquals(1, slow.getBlockRequests().size());
+    }
+
+    @Test
+    public void getsBlocksThatPeersDontHaveFromOthers() throws Exception {
+        // slow enough that timing noise doesn't make one look slow and get replaced
+        group.addPeer().setDelays(5, 0.05).setMissing(1000).setMissing(1001);
+        group.addPeer().setDelays(5, 0.05).setMissing(1000);
+        group.addPeer().setDelays(5, 0.05);
+
+        download(new ParallelBlockDownloader(group.getParams(), group, chain, RANGE_SIZE));
+
+        assertAddedInOrder(1, BLOCKS);
+    }
+
+    @Test
+    public void stopsIfNoPeerHasBlock() throws Exception {
+        group.addPeer().setMissing(1000);
+        group.addPeer().setMissing(1000);
+
+        download(new ParallelBlockDownloader(group.getParams(), group, chain, RANGE_SIZE));
+
+        assertAddedInOrder(1, 999);
+    }
+
+    private void download(ParallelBlockDownloader downloader) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        downloader.start(new AbstractPeerEventListener() {
+            @Override
+            public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+                blocksLeftReports.incrementAndGet();
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+
+        if (!done.await(60, TimeUnit.SECONDS)) {
+            downloader.cancel();
+            throw new AssertionError("Download didn't finish: " + downloader);
+        }
+    }
+
+    private void assertAddedInOrder(int first, int last) {
+        List<Integer> expected = new ArrayList<Integer>();
+
+        for (int height = first; height <= last; height++) {
+            expected.add(height);
+        }
+
+        assertEquals(expected, addedHeights);
+        assertEquals(group.getBlock(last).getHash(), chain.getChainHead().getHeader().getHash());
+    }
+
+    private List<Integer> getHeights(GetDataMessage getData) {
+        Map<Object, Integer> heights = new HashMap<Object, Integer>();
+
+        for (int height = 0; height <= BLOCKS; height++) {
+            heights.put(group.getBlock(height).getHash(), height);
+        }
+
+        List<Integer> result = new ArrayList<Integer>();
+
+        for (InventoryItem item : getData.getItems()) {
+            result.add(heights.get(item.hash));
+        }
+
+        return result;
+    }
+}
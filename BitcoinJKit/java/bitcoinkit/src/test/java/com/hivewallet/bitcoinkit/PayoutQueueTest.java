@@ -0,0 +1,282 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.InsufficientMoneyException;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionBroadcaster;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayoutQueueTest extends WalletTestBase {
+    // the scheduled flush never comes in these tests
+    private static final long LONG_DELAY_MS = 60 * 60 * 1000;
+
+    private WalletHandle handle;
+    private List<Transaction> broadcast;
+    private ListenableFuture<Transaction> broadcastFailure;
+    private RecordingListener listener;
+    private List<Address> recipients;
+    private PayoutQueue queue;
+
+    /** Broadcasts right away, or fails if broadcastFailure is set. */
+    private class StubBroadcaster implements TransactionBroadcaster {
+        public synchronized ListenableFuture<Transaction> broadcastTransaction(Transaction tx) {
+            broadcast.add(tx);
+            return (broadcastFailure != null) ? broadcastFailure : Futures.immediateFuture(tx);
+        }
+    }
+
+    private static class RecordingListener implements PayoutQueue.Listener {
+        final Map<Integer, String> sent = Collections.synchronizedMap(new HashMap<Integer, String>());
+        final Map<Integer, Throwable> failed = Collections.synchronizedMap(new HashMap<Integer, Throwable>());
+        private CountDownLatch latch = new CountDownLatch(0);
+
+        void expect(int payouts) {
+            latch = new CountDownLatch(payouts);
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("Not all payouts were reported", latch.await(10, TimeUnit.SECONDS));
+        }
+
+        public void onPayoutSent(int callbackId, String txid) {
+            sent.put(callbackId, txid);
+            latch.countDown();
+        }
+
+        public void onPayoutFailed(int callbackId, Throwable error) {
+            failed.put(callbackId, error);
+            latch.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        NativeEventDispatcher dispatcher = new NativeEventDispatcher(new NativeEventDispatcher.Target() {
+            public void dispatchBalanceChanged() {}
+            public void dispatchTransactionChanged(Transaction tx) {}
+        });
+        dispatcher.setSynchronous(true);
+
+        handle = new WalletHandle("test", params, wallet, null, dispatcher, new TransactionJSONCache());
+        handle.setTransactionBroadcaster(new StubBroadcaster());
+
+        broadcast = new ArrayList<Transaction>();
+        listener = new RecordingListener();
+        recipients = new ArrayList<Address>();
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.close();
+        }
+
+        handle.close();
+    }
+
+    @Test
+    public void sendsFullBatchInOneTransaction() throws Exception {
+        fund(1, Utils.COIN);
+        queue = new PayoutQueue(handle, null, 5, LONG_DELAY_MS, listener);
+
+        // the fifth payout sends the batch on the queue's thread
+        listener.expect(5);
+        enqueue(5, Utils.CENT);
+        listener.await();
+
+        assertEquals(1, broadcast.size());
+        Transaction tx = broadcast.get(0);
+        assertPaysRecipients(tx, 0, 5, Utils.CENT);
+        assertSent(0, 5, tx);
+        assertTrue(listener.failed.isEmpty());
+        assertEquals(0, queue.getPendingCount());
+
+        // committed to the wallet before the broadcast
+        assertTrue(wallet.getPendingTransactions().contains(tx));
+    }
+
+    @Test
+    public void sendsWhatTheWalletCanPayAndFailsTheRest() throws Exception {
+        fund(1, Utils.COIN);
+        queue = new PayoutQueue(handle, null, 100, LONG_DELAY_MS, listener);
+
+        // six fit into the coin with the fee, the seventh doesn't
+        BigInteger amount = Utils.CENT.multiply(BigInteger.valueOf(15));
+        enqueue(10, amount);
+        queue.flush();
+
+        assertEquals(1, broadcast.size());
+        assertPaysRecipients(broadcast.get(0), 0, 6, amount);
+        assertSent(0, 6, broadcast.get(0));
+
+        assertEquals(4, listener.failed.size());
+
+        for (int i = 6; i < 10; i++) {
+            assertTrue(listener.failed.get(i) instanceof InsufficientMoneyException);
+        }
+    }
+
+    @Test
+    public void failsEverythingIfTheWalletCantPayTheFirst() throws Exception {
+        fund(1, Utils.CENT);
+        queue = new PayoutQueue(handle, null, 100, LONG_DELAY_MS, listener);
+
+        enqueue(3, Utils.COIN);
+        queue.flush();
+
+        assertTrue(broadcast.isEmpty());
+        assertTrue(listener.sent.isEmpty());
+        assertEquals(3, listener.failed.size());
+        assertTrue(listener.failed.get(0) instanceof InsufficientMoneyException);
+    }
+
+    @Test
+    public void splitsTransactionsThatWouldBeTooLarge() throws Exception {
+        // the change of the first transaction is still pending, so the second needs a coin of its own
+        fund(2, Utils.COIN);
+        queue = new PayoutQueue(handle, null, 5000, LONG_DELAY_MS, listener);
+
+        // over 100 KB of outputs; the payouts that don't fit go back to the front of the queue
+        int count = 4000;
+        enqueue(count, Transaction.MIN_NONDUST_OUTPUT);
+        queue.flush();
+
+        assertEquals(2, broadcast.size());
+        assertTrue(listener.failed.isEmpty());
+
+        Transaction first = broadcast.get(0);
+        Transaction second = broadcast.get(1);
+        int firstCount = first.getOutputs().size() - 1;
+
+        assertTrue(firstCount > count / 2 && firstCount < count);
+        assertTrue(first.bitcoinSerialize().length <= Transaction.MAX_STANDARD_TX_SIZE);
+        assertPaysRecipients(first, 0, firstCount, Transaction.MIN_NONDUST_OUTPUT);
+        assertPaysRecipients(second, firstCount, count - firstCount, Transaction.MIN_NONDUST_OUTPUT);
+        assertSent(0, firstCount, first);
+        assertSent(firstCount, count - firstCount, second);
+    }
+
+    @Test
+    public void failedBroadcastFailsThePayouts() throws Exception {
+        fund(1, Utils.COIN);
+        queue = new PayoutQueue(handle, null, 100, LONG_DELAY_MS, listener);
+        broadcastFailure = Futures.immediateFailedFuture(new IOException("no peers"));
+
+        enqueue(3, Utils.CENT);
+        queue.flush();
+
+        assertEquals(1, broadcast.size());
+        assertTrue(listener.sent.isEmpty());
+        assertEquals(3, listener.failed.size());
+        assertTrue(listener.failed.get(2) instanceof IOException);
+    }
+
+    @Test
+    public void closeFailsPendingPayoutsAndWipesTheKey() throws Exception {
+        fund(1, Utils.COIN);
+        KeyParameter aesKey = new KeyParameter(new byte[] { 1, 2, 3, 4 });
+        queue = new PayoutQueue(handle, aesKey, 100, LONG_DELAY_MS, listener);
+
+        enqueue(3, Utils.CENT);
+        assertEquals(3, queue.getPendingCount());
+        queue.close();
+
+        assertTrue(broadcast.isEmpty());
+        assertTrue(listener.sent.isEmpty());
+        assertEquals(3, listener.failed.size());
+        assertTrue(listener.failed.get(0) instanceof IllegalStateException);
+        assertEquals(0, queue.getPendingCount());
+        assertArrayEquals(new byte[4], aesKey.getKey());
+
+        try {
+            queue.enqueue(new ECKey().toAddress(params), Utils.CENT, 3);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        queue = null;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDust() {
+        queue = new PayoutQueue(handle, null, 100, LONG_DELAY_MS, listener);
+        queue.enqueue(new ECKey().toAddress(params), Transaction.MIN_NONDUST_OUTPUT.subtract(BigInteger.ONE), 0);
+    }
+
+    private void fund(int coins, BigInteger value) throws Exception {
+        Transaction[] transactions = new Transaction[coins];
+
+        for (int i = 0; i < coins; i++) {
+            transactions[i] = TestUtils.createFakeTx(params, value, key.toAddress(params));
+        }
+
+        addBlock(transactions);
+    }
+
+    /**
+     * Enqueues payouts to new addresses, with the callback ids following on the previous ones. The addresses are
+     * made up from the callback id, generating thousands of keys would take long.
+     */
+    private void enqueue(int count, BigInteger amount) {
+        for (int i = 0; i < count; i++) {
+            int callbackId = recipients.size();
+            byte[] hash160 = new byte[20];
+            ByteBuffer.wrap(hash160).putInt(callbackId + 1);
+            Address address = new Address(params, hash160);
+            recipients.add(address);
+            queue.enqueue(address, amount, callbackId);
+        }
+    }
+
+    /** Checks that the transaction pays these recipients and nobody else, plus the change back to the wallet. */
+    private void assertPaysRecipients(Transaction tx, int from, int count, BigInteger amount) {
+        List<TransactionOutput> outputs = tx.getOutputs();
+        assertEquals(count + 1, outputs.size());
+        Set<Address> paid = new HashSet<Address>();
+
+        for (TransactionOutput output : outputs) {
+            Address address = output.getScriptPubKey().getToAddress(params);
+
+            if (!output.isMine(wallet)) {
+                assertEquals(amount, output.getValue());
+                paid.add(address);
+            }
+        }
+
+        assertEquals(new HashSet<Address>(recipients.subList(from, from + count)), paid);
+    }
+
+    private void assertSent(int from, int count, Transaction tx) {
+        for (int i = from; i < from + count; i++) {
+            assertEquals(tx.getHashAsString(), listener.sent.get(i));
+        }
+    }
+}
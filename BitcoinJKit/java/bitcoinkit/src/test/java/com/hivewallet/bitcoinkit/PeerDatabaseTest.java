@@ -0,0 +1,252 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.utils.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.impl.CocoaLogger;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PeerDatabaseTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StandInPeerGroup group;
+    private File file;
+    private PeerDatabase database;
+
+    @BeforeClass
+    public static void setUpLogging() {
+        // the Cocoa side isn't there to receive the logs
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        group = new StandInPeerGroup(10);
+        file = new File(folder.getRoot(), "test.peers");
+        database = new PeerDatabase(group.getParams(), file);
+    }
+
+    @After
+    public void tearDown() {
+        group.closeAll();
+    }
+
+    @Test
+    public void savesAndLoadsPeers() throws Exception {
+        StandInPeerGroup.StandInPeer fast = group.addPeer().setPingTime(40);
+        StandInPeerGroup.StandInPeer slow = group.addPeer().setPingTime(300);
+
+        database.onPeerConnected(fast, 1);
+        database.onPeerConnected(slow, 2);
+        downloadBlocks(fast, 1, 3);
+        database.onPeerDisconnected(slow, 1);
+
+        // the connected peer's ping time is saved too
+        fast.setPingTime(50);
+        database.save();
+
+        PeerDatabase loaded = new PeerDatabase(group.getParams(), file);
+        loaded.load();
+
+        assertEquals(2, loaded.size());
+        assertSameEntry(database.getEntry(address(fast)), loaded.getEntry(address(fast)));
+        assertSameEntry(database.getEntry(address(slow)), loaded.getEntry(address(slow)));
+        assertEquals(50, loaded.getEntry(address(fast)).pingTime);
+        assertEquals(300, loaded.getEntry(address(slow)).pingTime);
+    }
+
+    @Test
+    public void ignoresDatabaseOfOtherNetwork() throws Exception {
+        database.onPeerConnected(group.addPeer(), 1);
+        database.save();
+
+        PeerDatabase loaded = new PeerDatabase(MainNetParams.get(), file);
+        loaded.load();
+
+        assertEquals(0, loaded.size());
+    }
+
+    @Test
+    public void dropsDownloadSpeedsOfVersion1() throws Exception {
+        StandInPeerGroup.StandInPeer peer = group.addPeer().setPingTime(40);
+        database.onPeerConnected(peer, 1);
+        downloadBlocks(peer, 1, 3);
+        database.save();
+
+        assertTrue(database.getEntry(address(peer)).bytesDownloaded > 0);
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            randomAccessFile.seek(4);
+            randomAccessFile.writeInt(1);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        PeerDatabase loaded = new PeerDatabase(group.getParams(), file);
+        loaded.load();
+
+        PeerDatabase.Entry entry = loaded.getEntry(address(peer));
+        assertEquals(40, entry.pingTime);
+        assertEquals(1, entry.successes);
+        assertEquals(0, entry.bytesDownloaded);
+        assertEquals(0, entry.downloadTime);
+    }
+
+    @Test
+    public void countsFilteredBlocksWithTheirTransactions() throws Exception {
+        StandInPeerGroup.StandInPeer peer = group.addPeer();
+        database.onPeerConnected(peer, 1);
+
+        long expectedBytes = 0;
+
+        for (int height = 1; height <= 4; height++) {
+            FilteredBlock filteredBlock = group.createFilteredBlock(height);
+            database.onPreMessageReceived(peer, filteredBlock);
+            long bytes = filteredBlock.getMessageSize();
+
+            // the transactions that matched the filter follow the merkleblock
+            for (int i = 0; i < height - 1; i++) {
+                Transaction tx = TestUtils.createFakeTx(group.getParams(), Utils.CENT, new ECKey());
+                Transaction received = new Transaction(group.getParams(), tx.bitcoinSerialize());
+                database.onPreMessageReceived(peer, received);
+                bytes += received.getMessageSize();
+            }
+
+            database.onBlocksDownloaded(peer, filteredBlock.getBlockHeader(), 4 - height);
+
+            // the first block only starts the clock
+            if (height > 1) {
+                expectedBytes += bytes;
+            }
+
+            Thread.sleep(5);
+        }
+
+        PeerDatabase.Entry entry = database.getEntry(address(peer));
+        assertEquals(expectedBytes, entry.bytesDownloaded);
+        assertTrue(entry.bytesDownloaded > 3 * 80);
+        assertTrue(entry.downloadTime >= 15);
+    }
+
+    @Test
+    public void offersBestPeersFirst() throws Exception {
+        StandInPeerGroup.StandInPeer quick = group.addPeer().setPingTime(20);
+        StandInPeerGroup.StandInPeer unreliable = group.addPeer().setPingTime(20);
+        StandInPeerGroup.StandInPeer far = group.addPeer().setPingTime(500);
+        StandInPeerGroup.StandInPeer farButFast = group.addPeer().setPingTime(500);
+        StandInPeerGroup.StandInPeer unknownPing = group.addPeer();
+
+        for (Peer peer : Arrays.<Peer>asList(quick, unreliable, far, farButFast, unknownPing)) {
+            database.onPeerConnected(peer, 1);
+            database.onPeerDisconnected(peer, 0);
+        }
+
+        database.getEntry(address(unreliable)).failures = 3;
+
+        PeerDatabase.Entry fastEntry = database.getEntry(address(farButFast));
+        fastEntry.bytesDownloaded = 10000000;
+        fastEntry.downloadTime = 10000;
+
+        // a fast download makes up for a long ping, but not for failing to connect
+        assertEquals(Arrays.asList(address(quick), address(farButFast), address(unreliable), address(far),
+                address(unknownPing)), getPeers());
+    }
+
+    @Test
+    public void handsOutPeersInBatches() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            StandInPeerGroup.StandInPeer peer = group.addPeer().setPingTime(10 + i);
+            database.onPeerConnected(peer, 1);
+            database.onPeerDisconnected(peer, 0);
+        }
+
+        // connected peers aren't offered
+        StandInPeerGroup.StandInPeer connected = group.addPeer().setPingTime(1);
+        database.onPeerConnected(connected, 1);
+
+        database.setBatchSize(4);
+        List<InetSocketAddress> first = getPeers();
+        List<InetSocketAddress> second = getPeers();
+
+        assertEquals(4, first.size());
+        assertEquals(2, second.size());
+        assertTrue(!first.contains(address(connected)) && !second.contains(address(connected)));
+        assertTrue(Collections.disjoint(first, second));
+
+        // when all were tried the next discovery gets a turn, then it starts over
+        assertEquals(0, getPeers().size());
+        assertEquals(4, getPeers().size());
+    }
+
+    @Test
+    public void countsFailedConnections() throws Exception {
+        StandInPeerGroup.StandInPeer good = group.addPeer().setPingTime(10);
+        StandInPeerGroup.StandInPeer bad = group.addPeer().setPingTime(20);
+
+        for (Peer peer : Arrays.<Peer>asList(good, bad)) {
+            database.onPeerConnected(peer, 1);
+            database.onPeerDisconnected(peer, 0);
+        }
+
+        assertEquals(Arrays.asList(address(good), address(bad)), getPeers());
+        database.onPeerConnected(good, 1);
+
+        // PeerGroup asks again when it has run out of addresses to try
+        getPeers();
+
+        assertEquals(2, database.getEntry(address(good)).successes);
+        assertEquals(0, database.getEntry(address(good)).failures);
+        assertEquals(1, database.getEntry(address(bad)).successes);
+        assertEquals(1, database.getEntry(address(bad)).failures);
+    }
+
+    private void downloadBlocks(Peer peer, int first, int last) throws Exception {
+        for (int height = first; height <= last; height++) {
+            FilteredBlock filteredBlock = group.createFilteredBlock(height);
+            database.onPreMessageReceived(peer, filteredBlock);
+            database.onBlocksDownloaded(peer, filteredBlock.getBlockHeader(), last - height);
+            Thread.sleep(5);
+        }
+    }
+
+    private List<InetSocketAddress> getPeers() throws Exception {
+        return Arrays.asList(database.getPeers(10, TimeUnit.SECONDS));
+    }
+
+    private static InetSocketAddress address(Peer peer) {
+        return peer.getAddress().toSocketAddress();
+    }
+
+    private static void assertSameEntry(PeerDatabase.Entry expected, PeerDatabase.Entry actual) {
+        assertEquals(expected.address, actual.address);
+        assertEquals(expected.lastSuccessTime, actual.lastSuccessTime);
+        assertEquals(expected.successes, actual.successes);
+        assertEquals(expected.failures, actual.failures);
+        assertEquals(expected.pingTime, actual.pingTime);
+        assertEquals(expected.bytesDownloaded, actual.bytesDownloaded);
+        assertEquals(expected.downloadTime, actual.downloadTime);
+    }
+}
@@ -0,0 +1,81 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import com.lambdaworks.crypto.SCrypt;
+import org.bitcoinj.wallet.Protos;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.impl.CocoaLogger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ScryptCalibratorTest {
+    private static final long MB = 1024 * 1024;
+
+    @BeforeClass
+    public static void setUpLogging() {
+        // the Cocoa side isn't there to receive the logs
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+    }
+
+    @Test
+    public void neverGoesBelowTheDefaults() {
+        ScryptCalibrator calibrator = new ScryptCalibrator();
+
+        // far too short for bitcoinj's defaults on any computer
+        calibrator.setTarget(1, 64 * MB);
+        Protos.ScryptParameters parameters = calibrator.createKeyCrypter().getScryptParameters();
+
+        assertEquals(ScryptCalibrator.MIN_N, parameters.getN());
+        assertEquals(8, parameters.getR());
+        assertEquals(1, parameters.getP());
+        assertEquals(KeyCrypterScrypt.SALT_LENGTH, parameters.getSalt().size());
+    }
+
+    @Test
+    public void staysWithinTheMemoryBudget() {
+        ScryptCalibrator calibrator = new ScryptCalibrator();
+
+        // twice the memory of the defaults, and more time than that takes, so p makes up the rest
+        calibrator.setTarget(300, 32 * MB);
+        Protos.ScryptParameters parameters = calibrator.createKeyCrypter().getScryptParameters();
+        long n = parameters.getN();
+
+        assertTrue(128L * parameters.getR() * n <= 32 * MB);
+        assertTrue(n >= ScryptCalibrator.MIN_N && n <= ScryptCalibrator.MAX_N);
+        assertEquals(n, Long.highestOneBit(n));
+        assertTrue(parameters.getP() >= 1 && parameters.getP() <= ScryptCalibrator.MAX_P);
+        assertEquals(n, calibrator.getN());
+        assertEquals(parameters.getP(), calibrator.getP());
+    }
+
+    @Test
+    public void recalibratesForANewTarget() {
+        ScryptCalibrator calibrator = new ScryptCalibrator();
+        calibrator.setTarget(1, 64 * MB);
+        calibrator.calibrate();
+        assertEquals(ScryptCalibrator.MIN_N, calibrator.getN());
+
+        calibrator.setTarget(300, 16 * MB);
+        assertEquals(0, calibrator.getN());
+
+        // the budget only fits the defaults' N
+        assertEquals(ScryptCalibrator.MIN_N, calibrator.createKeyCrypter().getScryptParameters().getN());
+    }
+
+    @Test
+    public void largestNIsAccepted() throws Exception {
+        assertEquals(ScryptCalibrator.MAX_N, Long.highestOneBit(ScryptCalibrator.MAX_N));
+        assertTrue(ScryptCalibrator.MAX_N <= Integer.MAX_VALUE / 128 / ScryptCalibrator.R);
+
+        // the next step up is rejected before anything is allocated
+        try {
+            SCrypt.scryptJ(new byte[1], new byte[1], (int) ScryptCalibrator.MAX_N * 2, ScryptCalibrator.R, 1, 32);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.crypto.KeyCrypterScrypt;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.wallet.Protos;
+import org.junit.After;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The timeouts are short, but the checks leave the timer thread a lot more time than that, so that a slow machine
+ * doesn't make them fail.
+ */
+public class SigningSessionTest extends WalletTestBase {
+    private static final long SHORT_TIMEOUT_MS = 100;
+    private static final long LONG_TIMEOUT_MS = 60 * 1000;
+    private static final long WAIT_MS = 5000;
+
+    private final SigningSession session = new SigningSession();
+    private WalletHandle handle;
+
+    @After
+    public void tearDown() {
+        session.lock();
+
+        if (handle != null) {
+            handle.close();
+        }
+    }
+
+    @Test
+    public void handsOutCopiesOfTheKey() {
+        KeyParameter aesKey = createKey(1);
+        session.unlock(aesKey, LONG_TIMEOUT_MS, LONG_TIMEOUT_MS);
+
+        KeyParameter copy = session.getKey();
+        assertNotSame(aesKey.getKey(), copy.getKey());
+        assertArrayEquals(aesKey.getKey(), copy.getKey());
+
+        // the caller wiping its copy doesn't touch the session's key
+        WalletHandle.wipeAesKey(copy);
+        assertArrayEquals(createKey(1).getKey(), session.getKey().getKey());
+        assertTrue(session.isUnlocked());
+    }
+
+    @Test
+    public void locksAfterIdleTimeout() throws Exception {
+        KeyParameter aesKey = createKey(1);
+        session.unlock(aesKey, SHORT_TIMEOUT_MS, LONG_TIMEOUT_MS);
+        assertNotNull(session.getKey());
+
+        Thread.sleep(SHORT_TIMEOUT_MS * 3);
+
+        assertNull(session.getKey());
+        assertFalse(session.isUnlocked());
+        assertWiped(aesKey);
+    }
+
+    @Test
+    public void locksAfterAbsoluteTimeoutEvenIfUsed() throws Exception {
+        KeyParameter aesKey = createKey(1);
+        session.unlock(aesKey, LONG_TIMEOUT_MS, SHORT_TIMEOUT_MS * 3);
+        long start = System.currentTimeMillis();
+
+        while (System.currentTimeMillis() - start < SHORT_TIMEOUT_MS) {
+            assertNotNull(session.getKey());
+            Thread.sleep(10);
+        }
+
+        Thread.sleep(SHORT_TIMEOUT_MS * 4);
+
+        assertNull(session.getKey());
+        assertFalse(session.isUnlocked());
+        assertWiped(aesKey);
+    }
+
+    @Test
+    public void timerReschedulesWhileUsed() throws Exception {
+        KeyParameter aesKey = createKey(1);
+        session.unlock(aesKey, SHORT_TIMEOUT_MS, LONG_TIMEOUT_MS);
+        long start = System.currentTimeMillis();
+
+        // the timer goes off several times in between, and has to wait for the next idle timeout each time
+        while (System.currentTimeMillis() - start < SHORT_TIMEOUT_MS * 5) {
+            assertNotNull(session.getKey());
+            Thread.sleep(SHORT_TIMEOUT_MS / 5);
+        }
+
+        assertTrue(session.isUnlocked());
+
+        // without anything asking for the key, only the rescheduled timer can wipe it
+        waitUntilWiped(aesKey);
+        assertNull(session.getKey());
+    }
+
+    @Test
+    public void unlockWipesThePreviousKey() {
+        KeyParameter first = createKey(1);
+        KeyParameter second = createKey(2);
+
+        session.unlock(first, LONG_TIMEOUT_MS, LONG_TIMEOUT_MS);
+        session.unlock(second, LONG_TIMEOUT_MS, LONG_TIMEOUT_MS);
+
+        assertWiped(first);
+        assertArrayEquals(createKey(2).getKey(), session.getKey().getKey());
+    }
+
+    @Test
+    public void lockWipesTheKey() {
+        KeyParameter aesKey = createKey(1);
+        session.unlock(aesKey, LONG_TIMEOUT_MS, LONG_TIMEOUT_MS);
+
+        session.lock();
+
+        assertWiped(aesKey);
+        assertNull(session.getKey());
+        assertFalse(session.isUnlocked());
+    }
+
+    @Test
+    public void rejectsTimeoutsAndWipesTheKey() {
+        KeyParameter aesKey = createKey(1);
+
+        try {
+            session.unlock(aesKey, 0, LONG_TIMEOUT_MS);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        assertWiped(aesKey);
+        assertFalse(session.isUnlocked());
+    }
+
+    @Test
+    public void sessionKeyStandsInForThePassword() throws Exception {
+        KeyParameter aesKey = createEncryptedHandle("password");
+        handle.unlock("password".toCharArray(), LONG_TIMEOUT_MS, LONG_TIMEOUT_MS);
+        assertTrue(handle.isUnlocked());
+
+        assertArrayEquals(aesKey.getKey(), handle.aesKeyForPassword(null).getKey());
+        assertArrayEquals(aesKey.getKey(), handle.aesKeyForPassword(null, false).getKey());
+
+        // changing the password or keeping the key needs the password itself
+        try {
+            handle.aesKeyForPassword(null, true);
+            fail();
+        } catch (WrongPasswordException e) {
+            // expected
+        }
+
+        assertArrayEquals(aesKey.getKey(), handle.aesKeyForPassword("password".toCharArray(), true).getKey());
+    }
+
+    @Test
+    public void wrongPasswordDoesNotUnlock() throws Exception {
+        createEncryptedHandle("password");
+
+        try {
+            handle.unlock("wrong".toCharArray(), LONG_TIMEOUT_MS, LONG_TIMEOUT_MS);
+            fail();
+        } catch (WrongPasswordException e) {
+            // expected
+        }
+
+        assertFalse(handle.isUnlocked());
+    }
+
+    @Test
+    public void closingTheWalletLocksIt() throws Exception {
+        createEncryptedHandle("password");
+        handle.unlock("password".toCharArray(), LONG_TIMEOUT_MS, LONG_TIMEOUT_MS);
+
+        // BitcoinManager.stop locks the session before shutting down, and close locks it for any other owner
+        handle.lock();
+        assertFalse(handle.isUnlocked());
+
+        handle.unlock("password".toCharArray(), LONG_TIMEOUT_MS, LONG_TIMEOUT_MS);
+        handle.close();
+        assertFalse(handle.isUnlocked());
+
+        try {
+            handle.aesKeyForPassword(null);
+            fail();
+        } catch (WrongPasswordException e) {
+            // expected
+        }
+
+        handle = null;
+    }
+
+    /** Encrypts the wallet with cheap scrypt parameters and opens a handle for it; returns the wallet's key. */
+    private KeyParameter createEncryptedHandle(String password) {
+        Protos.ScryptParameters parameters = Protos.ScryptParameters.newBuilder()
+                .setSalt(ByteString.copyFrom(new byte[KeyCrypterScrypt.SALT_LENGTH]))
+                .setN(16)
+                .setR(8)
+                .setP(1)
+                .build();
+        KeyCrypterScrypt keyCrypter = new KeyCrypterScrypt(parameters);
+        KeyParameter aesKey = keyCrypter.deriveKey(password);
+        wallet.encrypt(keyCrypter, new KeyParameter(aesKey.getKey().clone()));
+
+        NativeEventDispatcher dispatcher = new NativeEventDispatcher(new NativeEventDispatcher.Target() {
+            public void dispatchBalanceChanged() {}
+            public void dispatchTransactionChanged(Transaction tx) {}
+        });
+        dispatcher.setSynchronous(true);
+
+        handle = new WalletHandle("test", params, wallet, null, dispatcher, new TransactionJSONCache());
+        return aesKey;
+    }
+
+    private static KeyParameter createKey(int value) {
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) value);
+        return new KeyParameter(key);
+    }
+
+    private static void assertWiped(KeyParameter aesKey) {
+        assertArrayEquals(new byte[32], aesKey.getKey());
+    }
+
+    private static void waitUntilWiped(KeyParameter aesKey) throws Exception {
+        long start = System.currentTimeMillis();
+
+        while (!Arrays.equals(new byte[32], aesKey.getKey())) {
+            assertTrue("The key wasn't wiped in " + WAIT_MS + " ms", System.currentTimeMillis() - start < WAIT_MS);
+            Thread.sleep(10);
+        }
+    }
+}
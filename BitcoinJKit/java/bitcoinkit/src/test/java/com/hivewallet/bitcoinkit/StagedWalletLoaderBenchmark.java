@@ -0,0 +1,172 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.wallet.WalletTransaction;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.impl.CocoaLogger;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.Random;
+
+/**
+ * Opens synthetic wallets of 10000 and 100000 confirmed transactions in full and with StagedWalletLoader: the time
+ * until the wallet can be used (readCore() when staged), the time until it's complete, and the heap used by the
+ * wallet at those points. Each transaction spends the one before, and every hundredth starts a new chain, so one
+ * in a hundred is unspent like in a wallet that has received many payments and sent most of them on. Not run with
+ * the unit tests; run it with mvn test -Dtest=StagedWalletLoaderBenchmark.
+ */
+public class StagedWalletLoaderBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final int[] TRANSACTION_COUNTS = { 10000, 100000 };
+    private static final int CHAIN_LENGTH = 100;
+    private static final int RUNS = 3;
+
+    @BeforeClass
+    public static void setUpLogging() {
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+    }
+
+    @Test
+    public void compareLoading() throws Exception {
+        System.out.println(String.format("%12s  %-8s %12s %12s %12s %12s", "transactions", "loading", "usable ms",
+                "complete ms", "usable MB", "complete MB"));
+
+        for (int count : TRANSACTION_COUNTS) {
+            File walletFile = File.createTempFile("staged", ".wallet");
+
+            try {
+                createWallet(count).saveToFile(walletFile);
+
+                for (int i = 0; i < RUNS; i++) {
+                    // the first run warms up the JIT
+                    boolean print = (i == RUNS - 1);
+                    loadFull(walletFile, count, print);
+                    loadStaged(walletFile, count, print);
+                }
+            } finally {
+                walletFile.delete();
+            }
+        }
+    }
+
+    private static void loadFull(File walletFile, int count, boolean print) throws Exception {
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+
+        Wallet wallet = new Wallet(params);
+        WalletJournal.readWallet(walletFile, wallet);
+
+        long time = System.nanoTime() - start;
+        long heap = usedHeap() - heapBefore;
+        check(wallet, count);
+
+        if (print) {
+            print(count, "full", time, time, heap, heap);
+        }
+    }
+
+    private static void loadStaged(File walletFile, int count, boolean print) throws Exception {
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+
+        Wallet wallet = new Wallet(params);
+        StagedWalletLoader loader = new StagedWalletLoader(walletFile);
+        loader.readCore(wallet);
+
+        long usableTime = System.nanoTime() - start;
+        long usableHeap = usedHeap() - heapBefore;
+
+        // the GC above isn't counted
+        long historyStart = System.nanoTime();
+        loader.loadHistory(null);
+
+        if (!loader.awaitHistory()) {
+            throw new AssertionError("The history couldn't be loaded");
+        }
+
+        long completeTime = usableTime + System.nanoTime() - historyStart;
+        long completeHeap = usedHeap() - heapBefore;
+        check(wallet, count);
+
+        if (print) {
+            print(count, "staged", usableTime, completeTime, usableHeap, completeHeap);
+        }
+    }
+
+    private static void check(Wallet wallet, int count) {
+        if (wallet.getTransactions(true).size() != count) {
+            throw new AssertionError("Loaded " + wallet.getTransactions(true).size() + " transactions");
+        }
+    }
+
+    private static void print(int count, String name, long usableNs, long completeNs, long usableBytes,
+                              long completeBytes) {
+        System.out.println(String.format("%12d  %-8s %12d %12d %12.1f %12.1f", count, name, usableNs / 1000000,
+                completeNs / 1000000, usableBytes / 1048576.0, completeBytes / 1048576.0));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** Builds the wallet directly, signing and passing this many transactions through the wallet would take long. */
+    private static Wallet createWallet(int count) {
+        Random random = new Random(count);
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Address address = key.toAddress(params);
+
+        Transaction previous = null;
+
+        for (int i = 0; i < count; i++) {
+            Transaction tx = new Transaction(params);
+
+            if (i % CHAIN_LENGTH == 0) {
+                // received from outside the wallet
+                byte[] hash = new byte[32];
+                random.nextBytes(hash);
+                TransactionOutPoint outPoint = new TransactionOutPoint(params, 0, new Sha256Hash(hash));
+                tx.addInput(new TransactionInput(params, tx, new byte[0], outPoint));
+            } else {
+                TransactionOutput spent = previous.getOutput(0);
+                TransactionInput input = tx.addInput(spent);
+                spent.markAsSpent(input);
+            }
+
+            tx.addOutput(BigInteger.valueOf(100000000L - i % CHAIN_LENGTH * 10000L), address);
+            tx.getConfidence().setAppearedAtChainHeight(i + 1);
+            tx.getConfidence().setDepthInBlocks(count - i);
+            tx.getConfidence().setWorkDone(BigInteger.valueOf(count - i));
+
+            if (previous != null) {
+                boolean spent = previous.getOutput(0).getSpentBy() != null;
+                wallet.addWalletTransaction(new WalletTransaction(
+                        spent ? WalletTransaction.Pool.SPENT : WalletTransaction.Pool.UNSPENT, previous));
+            }
+
+            previous = tx;
+        }
+
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, previous));
+        wallet.setLastBlockSeenHeight(count);
+        return wallet;
+    }
+}
@@ -0,0 +1,117 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.bitcoin.utils.Threading;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.hivewallet.bitcoinkit.WalletJournalTest.assertSameWallet;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StagedWalletLoaderTest extends WalletTestBase {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File walletFile;
+
+    @Before
+    public void setUp() throws Exception {
+        walletFile = new File(folder.getRoot(), "test.wallet");
+        assertTrue(StagedWalletLoader.isSupported());
+
+        // receive a few payments and send from them, so that most transactions end up spent
+        for (int i = 1; i <= 3; i++) {
+            addBlock(TestUtils.createFakeTx(params, Utils.COIN.multiply(BigInteger.valueOf(i)), key));
+        }
+
+        for (int i = 1; i <= 6; i++) {
+            addBlock(send(Utils.CENT.multiply(BigInteger.valueOf(10 * i))));
+        }
+
+        wallet.receivePending(TestUtils.createFakeTx(params, Utils.CENT, key), null);
+        send(Utils.CENT.shiftRight(1));
+        addBlock();
+
+        Threading.waitForUserCode();
+        wallet.saveToFile(walletFile);
+    }
+
+    @Test
+    public void stagedLoadEqualsFullLoad() throws Exception {
+        Wallet full = createWallet();
+        WalletJournal.readWallet(walletFile, full);
+
+        StagedWalletLoader loader = new StagedWalletLoader(walletFile);
+        Wallet staged = createWallet();
+        loader.readCore(staged);
+
+        assertTrue(loader.getPendingHistoryCount() > 0);
+        assertEquals(full.getBalance(), staged.getBalance());
+        assertEquals(full.getBalance(Wallet.BalanceType.ESTIMATED), staged.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertFalse(loader.isHistoryLoaded());
+
+        loader.loadHistory(null);
+        assertTrue(loader.awaitHistory());
+
+        assertSameWallet(full, staged);
+        assertSameWallet(wallet, staged);
+        assertTrue(staged.isConsistent());
+    }
+
+    @Test
+    public void historyLoadedWhileBlocksArriveHasTheirDepth() throws Exception {
+        StagedWalletLoader loader = new StagedWalletLoader(walletFile);
+        final Wallet staged = createWallet();
+        loader.readCore(staged);
+
+        int blocksBefore = blocks.size();
+
+        for (int i = 0; i < 50; i++) {
+            addBlock();
+        }
+
+        final List<StoredBlock> newBlocks = blocks.subList(blocksBefore, blocks.size());
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Thread chainThread = new Thread() {
+            @Override
+            public void run() {
+                started.countDown();
+
+                for (StoredBlock block : newBlocks) {
+                    staged.notifyNewBestBlock(block);
+                }
+            }
+        };
+
+        chainThread.start();
+        started.await();
+        loader.loadHistory(null);
+
+        assertTrue(loader.awaitHistory());
+        chainThread.join();
+
+        assertSameWallet(wallet, staged);
+    }
+
+    private Transaction send(BigInteger amount) throws Exception {
+        Wallet.SendRequest request = Wallet.SendRequest.to(new ECKey().toAddress(params), amount);
+        wallet.completeTx(request);
+        wallet.commitTx(request.tx);
+        return request.tx;
+    }
+}
@@ -0,0 +1,373 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.FilteredBlock;
+import com.google.bitcoin.core.GetDataMessage;
+import com.google.bitcoin.core.GetHeadersMessage;
+import com.google.bitcoin.core.HeadersMessage;
+import com.google.bitcoin.core.InventoryItem;
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.NotFoundMessage;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.PeerEventListener;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.Pong;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.VersionMessage;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A PeerGroup with in-process stand-in peers instead of network connections, for testing ParallelBlockDownloader
+ * and PeerDatabase.
+ *
+ * The peers serve headers and filtered blocks (without matching transactions) from a chain of blocks made when
+ * the group is created, each on its own thread like a peer's network thread, and pass them to the group's event
+ * listeners' onPreMessageReceived(). They can be made slow (a delay per request and per block), stall after a
+ * number of blocks, or not have some blocks. The network parameters are UnitTestParams without difficulty changes,
+ * with a genesis block far enough in the past that the blocks, one second apart, aren't in the future.
+ */
+class StandInPeerGroup extends PeerGroup {
+    class StandInPeer extends Peer {
+        private final ExecutorService executor;
+        private final VersionMessage versionMessage;
+        private final List<GetDataMessage> blockRequests = new CopyOnWriteArrayList<GetDataMessage>();
+        private final Set<Integer> missingHeights = new HashSet<Integer>();
+
+        private volatile long requestDelayNs;
+        private volatile long blockDelayNs;
+        private volatile long pingTime = Long.MAX_VALUE;
+        private volatile int stallAfterBlocks = -1;
+        private volatile boolean closed;
+        private int blocksSent;
+
+        StandInPeer(int port) {
+            super(StandInPeerGroup.this.params, new VersionMessage(StandInPeerGroup.this.params, 0),
+                    new PeerAddress(InetAddress.getLoopbackAddress(), port), null, null);
+
+            this.versionMessage = new VersionMessage(StandInPeerGroup.this.params, blocks.size() - 1);
+            this.executor = Executors.newSingleThreadExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("Stand-in peer " + port).setDaemon(true).build());
+        }
+
+        /** Waits this long before it answers a request, and this long before each block it sends. */
+        StandInPeer setDelays(long requestDelayMs, double blockDelayMs) {
+            requestDelayNs = requestDelayMs * 1000000;
+            blockDelayNs = (long) (blockDelayMs * 1000000);
+            return this;
+        }
+
+        /** The ping time it reports, instead of none. */
+        StandInPeer setPingTime(long pingTime) {
+            this.pingTime = pingTime;
+            return this;
+        }
+
+        /** Stops answering after sending this many blocks. */
+        StandInPeer setStallAfterBlocks(int blocks) {
+            stallAfterBlocks = blocks;
+            return this;
+        }
+
+        /** Answers requests for the block at this height with a notfound. */
+        synchronized StandInPeer setMissing(int height) {
+            missingHeights.add(height);
+            return this;
+        }
+
+        List<GetDataMessage> getBlockRequests() {
+            return blockRequests;
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public VersionMessage getPeerVersionMessage() {
+            return versionMessage;
+        }
+
+        @Override
+        public void sendMessage(final Message message) {
+            if (message instanceof GetDataMessage) {
+                blockRequests.add((GetDataMessage) message);
+            }
+
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    pause(requestDelayNs);
+
+                    if (message instanceof GetHeadersMessage) {
+                        sendHeaders(((GetHeadersMessage) message).getLocator().get(0));
+                    } else if (message instanceof GetDataMessage) {
+                        sendBlocks(((GetDataMessage) message).getItems());
+                    }
+                }
+            });
+        }
+
+        @Override
+        public long getPingTime() {
+            return pingTime;
+        }
+
+        @Override
+        public ListenableFuture<Long> ping() {
+            final SettableFuture<Long> future = SettableFuture.create();
+
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(StandInPeer.this, new Pong(0));
+                    future.set(0L);
+                }
+            });
+
+            return future;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            executor.shutdownNow();
+            disconnected(this);
+        }
+
+        private void execute(final Runnable task) {
+            if (closed) {
+                return;
+            }
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!closed && !isStalled()) {
+                        task.run();
+                    }
+                }
+            });
+        }
+
+        private synchronized boolean isStalled() {
+            return stallAfterBlocks >= 0 && blocksSent >= stallAfterBlocks;
+        }
+
+        private void sendHeaders(Sha256Hash after) {
+            int start = heights.get(after) + 1;
+            int end = Math.min(start + HeadersMessage.MAX_HEADERS, blocks.size());
+
+            List<Block> headers = new ArrayList<Block>();
+
+            for (int height = start; height < end; height++) {
+                headers.add(blocks.get(height).cloneAsHeader());
+            }
+
+            deliver(this, new HeadersMessage(params, headers.toArray(new Block[headers.size()])));
+        }
+
+        private void sendBlocks(List<InventoryItem> items) {
+            List<InventoryItem> notFound = new ArrayList<InventoryItem>();
+
+            for (InventoryItem item : items) {
+                int height = heights.get(item.hash);
+
+                synchronized (this) {
+                    if (missingHeights.contains(height)) {
+                        notFound.add(item);
+                        continue;
+                    }
+                }
+
+                if (isStalled() || closed) {
+                    return;
+                }
+
+                pause(blockDelayNs);
+                deliver(this, createFilteredBlock(height));
+                blocksServed.incrementAndGet();
+
+                synchronized (this) {
+                    blocksSent++;
+                }
+            }
+
+            if (!notFound.isEmpty()) {
+                deliver(this, new NotFoundMessage(params, notFound));
+            }
+        }
+    }
+
+    private final NetworkParameters params;
+    private final List<Block> blocks;
+    private final HashMap<Sha256Hash, Integer> heights;
+    private final List<StandInPeer> peers = new CopyOnWriteArrayList<StandInPeer>();
+    private final List<PeerEventListener> listeners = new CopyOnWriteArrayList<PeerEventListener>();
+    private final AtomicInteger blocksServed = new AtomicInteger();
+
+    private int nextPort = 18444;
+
+    /** Creates a group for a chain of the given number of blocks after the genesis block. */
+    StandInPeerGroup(int blockCount) {
+        this(createParams(blockCount), blockCount);
+    }
+
+    private StandInPeerGroup(NetworkParameters params, int blockCount) {
+        super(params);
+
+        this.params = params;
+        this.blocks = new ArrayList<Block>(blockCount + 1);
+        this.heights = new HashMap<Sha256Hash, Integer>();
+
+        Address address = new ECKey().toAddress(params);
+        Block block = params.getGenesisBlock();
+
+        for (int height = 0; height <= blockCount; height++) {
+            if (height > 0) {
+                block = block.createNextBlock(address, block.getTimeSeconds() + 1);
+            }
+
+            blocks.add(block);
+            heights.put(block.getHash(), height);
+        }
+    }
+
+    private static NetworkParameters createParams(int blockCount) {
+        NetworkParameters params = new UnitTestParams() {
+            {
+                // blocks a second apart would make the difficulty go up
+                interval = Integer.MAX_VALUE;
+            }
+        };
+
+        Block genesis = params.getGenesisBlock();
+        genesis.setTime(Utils.currentTimeMillis() / 1000 - blockCount - 60);
+        genesis.solve();
+        return params;
+    }
+
+    NetworkParameters getParams() {
+        return params;
+    }
+
+    Block getBlock(int height) {
+        return blocks.get(height);
+    }
+
+    int getBlocksServed() {
+        return blocksServed.get();
+    }
+
+    StandInPeer addPeer() {
+        StandInPeer peer = new StandInPeer(nextPort++);
+        peers.add(peer);
+        return peer;
+    }
+
+    /** Adds the blocks up to the given height to the chain, as if they had been downloaded before. */
+    void addBlocksTo(AbstractBlockChain chain, int height) throws Exception {
+        for (int i = 1; i <= height; i++) {
+            chain.add(blocks.get(i).cloneAsHeader());
+        }
+    }
+
+    /** A merkleblock for a block that only has the coinbase, which doesn't match the filter. */
+    FilteredBlock createFilteredBlock(int height) {
+        Block block = blocks.get(height);
+
+        try {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            block.cloneAsHeader().bitcoinSerialize(stream);
+            Utils.uint32ToByteStreamLE(1, stream);
+            stream.write(1);
+            stream.write(Utils.reverseBytes(block.getMerkleRoot().getBytes()));
+            stream.write(1);
+            stream.write(0);
+
+            return new FilteredBlock(params, stream.toByteArray());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void deliver(Peer peer, Message message) {
+        for (PeerEventListener listener : listeners) {
+            listener.onPreMessageReceived(peer, message);
+        }
+    }
+
+    private void disconnected(StandInPeer peer) {
+        if (peers.remove(peer)) {
+            for (PeerEventListener listener : listeners) {
+                listener.onPeerDisconnected(peer, peers.size());
+            }
+        }
+    }
+
+    /** Closes all peers, which stops their threads. */
+    void closeAll() {
+        for (StandInPeer peer : peers) {
+            peer.close();
+        }
+    }
+
+    private static void pause(long nanoseconds) {
+        if (nanoseconds > 0) {
+            LockSupport.parkNanos(nanoseconds);
+        }
+    }
+
+
+    /* --- PeerGroup --- */
+
+    @Override
+    public void addEventListener(PeerEventListener listener, Executor executor) {
+        // all listeners are called on the peers' threads
+        listeners.add(listener);
+    }
+
+    @Override
+    public boolean removeEventListener(PeerEventListener listener) {
+        return listeners.remove(listener);
+    }
+
+    @Override
+    public List<Peer> getConnectedPeers() {
+        return Collections.<Peer>unmodifiableList(new ArrayList<Peer>(peers));
+    }
+
+    @Override
+    public Peer getDownloadPeer() {
+        return peers.isEmpty() ? null : peers.get(0);
+    }
+
+    @Override
+    public ListenableFuture<PeerGroup> waitForPeers(int numPeers) {
+        return Futures.<PeerGroup>immediateFuture(this);
+    }
+}
@@ -0,0 +1,168 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.wallet.WalletTransaction;
+import org.codehaus.jettison.json.JSONArray;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Lists the transactions of a wallet with 10000 transactions through WalletHandle as JSON (getAllTransactions and
+ * getTransactions) and as binary pages (getAllTransactionsBinary and getTransactionsBinary), for the whole list and
+ * for pages of 100, and prints the size of the result, the time to produce it, the time to produce and decode it
+ * (with Jettison or TransactionBinaryReader, standing in for the Cocoa side) and the memory allocated per listing.
+ * The JSON cache is warm, like after the first listing. Not run with the unit tests; run it with
+ * mvn test -Dtest=TransactionBinaryWriterBenchmark.
+ */
+public class TransactionBinaryWriterBenchmark extends WalletTestBase {
+    private static final int TRANSACTIONS = 10000;
+    private static final int PAGE_SIZE = 100;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 5;
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Listing {
+        /** Returns the size of the result in bytes. */
+        int list(int from, int count, boolean decode) throws Exception;
+    }
+
+    @Test
+    public void compareWithJSON() throws Exception {
+        fillWallet();
+
+        NativeEventDispatcher dispatcher = new NativeEventDispatcher(new NativeEventDispatcher.Target() {
+            public void dispatchBalanceChanged() {}
+            public void dispatchTransactionChanged(Transaction tx) {}
+        });
+
+        final WalletHandle handle = new WalletHandle("benchmark", params, wallet, null, dispatcher,
+                new TransactionJSONCache());
+        handle.rebuildTransactionIndex();
+
+        if (handle.getTransactionCount() != TRANSACTIONS) {
+            throw new AssertionError("The wallet has " + handle.getTransactionCount() + " transactions");
+        }
+
+        Listing json = new Listing() {
+            public int list(int from, int count, boolean decode) throws Exception {
+                String transactions = (from == 0 && count == TRANSACTIONS)
+                        ? handle.getAllTransactions() : handle.getTransactions(from, count);
+
+                if (decode) {
+                    new JSONArray(transactions);
+                }
+
+                // the Cocoa side gets it as UTF-8, and it's all ASCII
+                return transactions.length();
+            }
+        };
+
+        Listing binary = new Listing() {
+            public int list(int from, int count, boolean decode) {
+                ByteBuffer transactions = (from == 0 && count == TRANSACTIONS)
+                        ? handle.getAllTransactionsBinary() : handle.getTransactionsBinary(from, count);
+
+                if (decode) {
+                    TransactionBinaryReader.read(transactions);
+                }
+
+                return transactions.remaining();
+            }
+        };
+
+        try {
+            System.out.println(String.format("%-8s %-6s %12s %12s %18s %14s", "format", "range", "bytes",
+                    "produce ms", "produce+decode ms", "MB allocated"));
+            run("json", "all", json, TRANSACTIONS);
+            run("binary", "all", binary, TRANSACTIONS);
+            run("json", "page", json, PAGE_SIZE);
+            run("binary", "page", binary, PAGE_SIZE);
+        } finally {
+            handle.close();
+        }
+    }
+
+    /** Lists the whole wallet in pages of the given size, and prints the numbers per page. */
+    private static void run(String format, String range, Listing listing, int pageSize) throws Exception {
+        int pages = TRANSACTIONS / pageSize;
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            listPages(listing, pageSize, true);
+        }
+
+        long produceNs = 0;
+        long decodeNs = 0;
+        long allocated = 0;
+        long bytes = 0;
+
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            bytes += listPages(listing, pageSize, false);
+            produceNs += System.nanoTime() - start;
+
+            long bytesBefore = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            start = System.nanoTime();
+            listPages(listing, pageSize, true);
+            decodeNs += System.nanoTime() - start;
+            allocated += threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytesBefore;
+        }
+
+        int listings = RUNS * pages;
+        System.out.println(String.format("%-8s %-6s %12d %12.2f %18.2f %14.2f", format, range, bytes / listings,
+                produceNs / 1000000.0 / listings, decodeNs / 1000000.0 / listings, allocated / 1048576.0 / listings));
+    }
+
+    private static long listPages(Listing listing, int pageSize, boolean decode) throws Exception {
+        long bytes = 0;
+
+        for (int from = 0; from < TRANSACTIONS; from += pageSize) {
+            bytes += listing.list(from, pageSize, decode);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Adds transactions with a signed input that pay to an external address with change back to the wallet. They're
+     * added directly, passing this many through the wallet would take long.
+     */
+    private void fillWallet() {
+        Random random = new Random(1);
+        Address ownAddress = key.toAddress(params);
+        Address externalAddress = new ECKey().toAddress(params);
+
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Transaction funding = new Transaction(params);
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            funding.addInput(new TransactionInput(params, funding, new byte[0],
+                    new TransactionOutPoint(params, 0, new Sha256Hash(hash))));
+            funding.addOutput(BigInteger.valueOf(100000000L + i), ownAddress);
+
+            Transaction tx = new Transaction(params);
+            TransactionInput input = tx.addInput(funding.getOutput(0));
+            input.setScriptSig(ScriptBuilder.createInputScript(TransactionSignature.dummy(), key));
+
+            long sent = 1000 + random.nextInt(10000000);
+            tx.addOutput(BigInteger.valueOf(sent), externalAddress);
+            tx.addOutput(BigInteger.valueOf(100000000L + i - sent - 10000), ownAddress);
+
+            tx.getConfidence().setAppearedAtChainHeight(i + 1);
+            tx.getConfidence().setDepthInBlocks(TRANSACTIONS - i);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, tx));
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.utils.TestUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The binary pages have to carry the same data as the JSON returned for the same range, since the Cocoa side builds
+ * the same dictionaries from both.
+ */
+public class TransactionBinaryWriterTest extends WalletTestBase {
+    private WalletHandle handle;
+    private Transaction pendingTx;
+
+    @Before
+    public void setUp() throws Exception {
+        NativeEventDispatcher dispatcher = new NativeEventDispatcher(new NativeEventDispatcher.Target() {
+            public void dispatchBalanceChanged() {}
+            public void dispatchTransactionChanged(Transaction tx) {}
+        });
+        dispatcher.setSynchronous(true);
+
+        handle = new WalletHandle("test", params, wallet, null, dispatcher, new TransactionJSONCache());
+        fillWallet();
+        handle.rebuildTransactionIndex();
+    }
+
+    @After
+    public void tearDown() {
+        handle.close();
+    }
+
+    @Test
+    public void allTransactionsMatchJSON() throws Exception {
+        int count = handle.getTransactionCount();
+        TransactionBinaryReader.Page page = TransactionBinaryReader.read(handle.getAllTransactionsBinary());
+
+        assertEquals(7, count);
+        assertEquals(count, page.totalCount);
+        assertEquals(0, page.from);
+        assertSameTransactions(new JSONArray(handle.getAllTransactions()), page.records);
+    }
+
+    @Test
+    public void pagesMatchJSON() throws Exception {
+        int count = handle.getTransactionCount();
+        List<TransactionBinaryReader.Record> all = new ArrayList<TransactionBinaryReader.Record>();
+
+        for (int from = 0; from < count; from += 3) {
+            // the JSON is fetched first, since the page buffer is only valid until the next call
+            JSONArray json = new JSONArray(handle.getTransactions(from, 3));
+            TransactionBinaryReader.Page page = TransactionBinaryReader.read(handle.getTransactionsBinary(from, 3));
+
+            assertEquals(count, page.totalCount);
+            assertEquals(from, page.from);
+            assertEquals(Math.min(3, count - from), page.records.size());
+            assertSameTransactions(json, page.records);
+            all.addAll(page.records);
+        }
+
+        assertSameTransactions(new JSONArray(handle.getAllTransactions()), all);
+        assertNull(handle.getTransactionsBinary(count, 3));
+    }
+
+    @Test
+    public void cachedRecordsFollowChanges() throws Exception {
+        // the block's time replaces a later update time, so the cached time gets out of date
+        pendingTx.setUpdateTime(new Date(System.currentTimeMillis() + 3600 * 1000));
+        handle.rebuildTransactionIndex();
+        TransactionBinaryReader.read(handle.getAllTransactionsBinary());
+
+        // every depth changes, the pending transaction gets confirmed and a new one is received
+        addBlock(pendingTx, TestUtils.createFakeTx(params, Utils.COIN, key.toAddress(params)));
+        assertEquals(8, handle.getTransactionCount());
+
+        JSONArray json = new JSONArray(handle.getAllTransactions());
+        assertSameTransactions(json, TransactionBinaryReader.read(handle.getAllTransactionsBinary()).records);
+        assertEquals("building", json.getJSONObject(indexOf(json, pendingTx)).getString("confidence"));
+    }
+
+    @Test
+    public void recordsHaveTheirLength() throws Exception {
+        ByteBuffer page = handle.getAllTransactionsBinary().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int records = page.getInt(16);
+        int position = TransactionBinaryWriter.HEADER_SIZE;
+
+        // the Cocoa side can skip records by their length without decoding them
+        for (int i = 0; i < records; i++) {
+            int length = page.getInt(position);
+            int inputs = page.getInt(position + TransactionBinaryWriter.RECORD_FIXED_SIZE - 8);
+            int outputs = page.getInt(position + TransactionBinaryWriter.RECORD_FIXED_SIZE - 4);
+
+            assertTrue(length >= TransactionBinaryWriter.RECORD_FIXED_SIZE - 4
+                    + (inputs + outputs) * TransactionBinaryWriter.ENTRY_FIXED_SIZE);
+            position += 4 + length;
+        }
+
+        assertEquals(page.limit(), position);
+    }
+
+    /** Fills the wallet with received, sent, multi-input and unusual transactions. */
+    private void fillWallet() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            addBlock(TestUtils.createFakeTx(params, Utils.CENT.add(BigInteger.valueOf(i)), key.toAddress(params)));
+        }
+
+        // needs all three coins, so it has three inputs with a sender address and an amount each
+        Wallet.SendRequest request = Wallet.SendRequest.to(new ECKey().toAddress(params),
+                Utils.CENT.multiply(BigInteger.valueOf(2)).add(Utils.CENT.shiftRight(1)));
+        wallet.completeTx(request);
+        wallet.commitTx(request.tx);
+        assertEquals(3, request.tx.getInputs().size());
+        addBlock(request.tx);
+
+        // still pending
+        Wallet.SendRequest pending = Wallet.SendRequest.to(new ECKey().toAddress(params), Utils.CENT.shiftRight(4));
+        wallet.completeTx(pending);
+        wallet.commitTx(pending.tx);
+        pendingTx = pending.tx;
+
+        // an input that isn't connected, and every type of output
+        Transaction unusual = new Transaction(params);
+        byte[] hash = new byte[32];
+        Arrays.fill(hash, (byte) 7);
+        unusual.addInput(new TransactionInput(params, unusual, new byte[0],
+                new TransactionOutPoint(params, 3, new Sha256Hash(hash))));
+
+        ECKey other = new ECKey();
+        unusual.addOutput(Utils.CENT, key.toAddress(params));
+        unusual.addOutput(Utils.CENT, other.toAddress(params));
+        unusual.addOutput(Utils.CENT, other);
+        addOutput(unusual, ScriptBuilder.createMultiSigOutputScript(1, Arrays.asList(key, other)).getProgram());
+        addOutput(unusual, ScriptBuilder.createP2SHOutputScript(new byte[20]).getProgram());
+        addOutput(unusual, new byte[] { 0x4c, 0x10, 0x01 });
+        addBlock(unusual);
+
+        // a coinbase
+        Transaction coinbase = new Transaction(params);
+        coinbase.addInput(new TransactionInput(params, coinbase, new byte[] { 0x01, 0x02 }));
+        coinbase.addOutput(Utils.COIN.multiply(BigInteger.valueOf(50)), key.toAddress(params));
+        addBlock(coinbase);
+    }
+
+    private static int indexOf(JSONArray transactions, Transaction tx) throws Exception {
+        for (int i = 0; i < transactions.length(); i++) {
+            if (transactions.getJSONObject(i).getString("txid").equals(tx.getHashAsString())) {
+                return i;
+            }
+        }
+
+        throw new AssertionError(tx.getHashAsString() + " isn't listed");
+    }
+
+    private static void addOutput(Transaction tx, byte[] script) {
+        tx.addOutput(new TransactionOutput(params, tx, Utils.CENT, script));
+    }
+
+    private static void assertSameTransactions(JSONArray expected, List<TransactionBinaryReader.Record> actual)
+            throws Exception {
+        assertEquals(expected.length(), actual.size());
+
+        for (int i = 0; i < actual.size(); i++) {
+            JSONObject json = expected.getJSONObject(i);
+            TransactionBinaryReader.Record record = actual.get(i);
+
+            assertEquals(json.getString("txid"), record.txid);
+            assertEquals(json.getLong("amount"), record.amount);
+            assertEquals(json.getLong("fee"), record.fee);
+            assertEquals(json.getString("time"), TransactionJSONWriter.formatTime(new Date(record.time)));
+            assertEquals(json.getString("confidence"), record.confidence);
+            assertEquals(json.getInt("peers"), record.peers);
+            assertEquals(json.getInt("confirmations"), record.confirmations);
+
+            JSONArray inputs = json.getJSONArray("inputs");
+            assertEquals(inputs.length(), record.inputs.size());
+
+            for (int j = 0; j < inputs.length(); j++) {
+                JSONObject input = inputs.getJSONObject(j);
+                TransactionBinaryReader.Input binaryInput = record.inputs.get(j);
+
+                assertEquals(input.optString("address", null), binaryInput.address);
+                assertEquals(input.has("amount") ? Long.valueOf(input.getLong("amount")) : null, binaryInput.amount);
+            }
+
+            JSONArray outputs = json.getJSONArray("outputs");
+            assertEquals(outputs.length(), record.outputs.size());
+
+            for (int j = 0; j < outputs.length(); j++) {
+                JSONObject output = outputs.getJSONObject(j);
+                TransactionBinaryReader.Output binaryOutput = record.outputs.get(j);
+
+                assertEquals(output.optString("address", null), binaryOutput.address);
+                assertEquals(output.optString("type", null),
+                        (binaryOutput.type != null) ? binaryOutput.type.getName() : null);
+                assertEquals(output.getLong("amount"), binaryOutput.amount);
+            }
+        }
+    }
+}
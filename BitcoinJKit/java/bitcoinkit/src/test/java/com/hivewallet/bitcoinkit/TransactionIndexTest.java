@@ -0,0 +1,105 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.utils.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionIndexTest extends WalletTestBase {
+    private TransactionIndex index;
+    private Random random;
+
+    @Before
+    public void setUp() {
+        index = new TransactionIndex();
+        random = new Random(1);
+    }
+
+    @Test
+    public void rebuildMatchesWallet() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            receive(randomTime());
+        }
+
+        index.rebuild(wallet);
+
+        assertTrue(index.isConsistentWith(wallet));
+        assertEquals(wallet.getTransactionsByTime(), index.getRange(0, 100));
+    }
+
+    @Test
+    public void updatesKeepOrder() throws Exception {
+        index.rebuild(wallet);
+        List<Transaction> received = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 50; i++) {
+            Transaction tx = receive(randomTime());
+            index.update(tx);
+            received.add(tx);
+        }
+
+        assertTrue(index.isConsistentWith(wallet));
+
+        // e.g. confirmations, which change the update time
+        for (int i = 0; i < 20; i++) {
+            Transaction tx = received.get(random.nextInt(received.size()));
+            tx.setUpdateTime(randomTime());
+            index.update(tx);
+        }
+
+        assertTrue(index.isConsistentWith(wallet));
+        assertEquals(wallet.getTransactionsByTime(), index.getRange(0, 100));
+        assertEquals(10, index.getRange(40, 100).size());
+        assertTrue(index.getRange(50, 10).isEmpty());
+    }
+
+    @Test
+    public void deadTransactionsAreRemoved() throws Exception {
+        Transaction tx = receive(randomTime());
+        index.rebuild(wallet);
+
+        tx.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.DEAD);
+        index.update(tx);
+
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void detectsInconsistency() throws Exception {
+        receive(randomTime());
+        index.rebuild(wallet);
+
+        // a transaction the index wasn't told about
+        Transaction missed = receive(randomTime());
+        assertFalse(index.isConsistentWith(wallet));
+
+        index.update(missed);
+        assertTrue(index.isConsistentWith(wallet));
+
+        // an update time that changed without an update
+        missed.setUpdateTime(new Date(missed.getUpdateTime().getTime() + 1000));
+        assertFalse(index.isConsistentWith(wallet));
+    }
+
+    private Transaction receive(Date time) throws Exception {
+        Transaction tx = TestUtils.createFakeTx(params, Utils.CENT, key);
+        tx.setUpdateTime(time);
+        wallet.receivePending(tx, null);
+        return wallet.getTransaction(tx.getHash());
+    }
+
+    private Date randomTime() {
+        return new Date(1400000000000L + random.nextInt(1000) * 1000L);
+    }
+}
@@ -0,0 +1,228 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.BlockChain;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.bitcoin.utils.Threading;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * The cache itself, and the JSON that WalletHandle returns from it staying the same as a fresh render while the
+ * transactions' confidence and depth change.
+ */
+public class TransactionJSONCacheTest extends WalletTestBase {
+    private TransactionJSONCache cache;
+    private WalletHandle handle;
+
+    @Before
+    public void setUp() {
+        cache = new TransactionJSONCache();
+        handle = createHandle(cache);
+        handle.rebuildTransactionIndex();
+    }
+
+    @After
+    public void tearDown() {
+        handle.close();
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedEntries() {
+        TransactionJSONCache cache = new TransactionJSONCache(3, Long.MAX_VALUE);
+        cache.put(hash(1), entry(10));
+        cache.put(hash(2), entry(10));
+        cache.put(hash(3), entry(10));
+
+        // the first one was used last, so the second one goes
+        cache.get(hash(1));
+        cache.put(hash(4), entry(10));
+
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get(hash(1)));
+        assertNull(cache.get(hash(2)));
+        assertNotNull(cache.get(hash(3)));
+        assertNotNull(cache.get(hash(4)));
+        assertEquals(4, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void staysWithinTheByteLimit() {
+        long entrySize = entry(100).getSizeInBytes();
+        TransactionJSONCache cache = new TransactionJSONCache(1000, entrySize * 3);
+
+        for (int i = 0; i < 10; i++) {
+            cache.put(hash(i), entry(100));
+            assertEquals(Math.min(i + 1, 3) * entrySize, cache.getUsedBytes());
+        }
+
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get(hash(7)));
+        assertNotNull(cache.get(hash(9)));
+
+        // a larger replacement counts for its new size and pushes out what doesn't fit anymore
+        TransactionJSONCache.Entry larger = entry(200);
+        cache.put(hash(9), larger);
+        assertEquals(2, cache.size());
+        assertEquals(entrySize + larger.getSizeInBytes(), cache.getUsedBytes());
+        assertNull(cache.get(hash(8)));
+        assertSame(larger, cache.get(hash(9)));
+
+        cache.remove(hash(9));
+        assertEquals(entrySize, cache.getUsedBytes());
+
+        // an entry over the limit on its own isn't kept
+        cache.put(hash(10), entry(1000));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getUsedBytes());
+    }
+
+    @Test
+    public void splicesNewDepthIntoCachedJSON() throws Exception {
+        Transaction tx = TestUtils.createFakeTx(params, Utils.COIN, key.toAddress(params));
+        addBlock(tx);
+        Threading.waitForUserCode();
+        assertEquals(1, getJSON(tx).getInt("confirmations"));
+
+        long misses = cache.getMisses();
+        addBlock();
+        addBlock();
+
+        // the cached parts are used again with the new depth in between
+        JSONObject json = getJSON(tx);
+        assertEquals(misses, cache.getMisses());
+        assertEquals(3, json.getInt("confirmations"));
+        assertEquals(renderUncached(tx), handle.getJSONFromTransaction(tx));
+    }
+
+    @Test
+    public void confirmationInvalidatesCachedJSON() throws Exception {
+        Transaction pending = sendPending();
+
+        // the block's time replaces a later update time, so the cached time gets out of date
+        pending.setUpdateTime(new Date(System.currentTimeMillis() + 3600 * 1000));
+        handle.rebuildTransactionIndex();
+        assertEquals("pending", getJSON(pending).getString("confidence"));
+
+        addBlock(pending);
+        Threading.waitForUserCode();
+
+        assertEquals("building", getJSON(pending).getString("confidence"));
+        assertEquals(renderUncached(pending), handle.getJSONFromTransaction(pending));
+    }
+
+    @Test
+    public void doubleSpendInvalidatesCachedJSON() throws Exception {
+        Transaction pending = sendPending();
+        assertEquals("pending", getJSON(pending).getString("confidence"));
+
+        // a transaction in a block spends the same coin
+        Transaction doubleSpend = new Transaction(params);
+        doubleSpend.addInput(pending.getInput(0).getConnectedOutput());
+        doubleSpend.addOutput(Utils.CENT, new ECKey().toAddress(params));
+        addBlock(doubleSpend);
+        Threading.waitForUserCode();
+
+        assertEquals("dead", getJSON(pending).getString("confidence"));
+        assertEquals(renderUncached(pending), handle.getJSONFromTransaction(pending));
+    }
+
+    @Test
+    public void reorganizationInvalidatesCachedJSON() throws Exception {
+        // a real chain this time, the wallet only reorganizes when the block chain tells it to
+        BlockChain chain = new BlockChain(params, wallet, new MemoryBlockStore(params));
+        Transaction tx = TestUtils.createFakeTx(params, Utils.COIN, key.toAddress(params));
+
+        Block first = TestUtils.makeSolvedTestBlock(params.getGenesisBlock());
+        chain.add(first);
+        chain.add(TestUtils.makeSolvedTestBlock(first, tx));
+        Threading.waitForUserCode();
+        handle.rebuildTransactionIndex();
+        assertEquals(1, getJSON(tx).getInt("confirmations"));
+        long misses = cache.getMisses();
+
+        // a longer chain that has the transaction one block later
+        Block forkFirst = TestUtils.makeSolvedTestBlock(first);
+        Block forkSecond = TestUtils.makeSolvedTestBlock(forkFirst, tx);
+        chain.add(forkFirst);
+        chain.add(forkSecond);
+        chain.add(TestUtils.makeSolvedTestBlock(forkSecond));
+        Threading.waitForUserCode();
+
+        assertEquals(forkSecond.getHash(), chain.getChainHead().getPrev(chain.getBlockStore()).getHeader().getHash());
+        // rendered again, the transaction's position could have changed in any way
+        assertEquals(2, getJSON(tx).getInt("confirmations"));
+        assertEquals(misses + 1, cache.getMisses());
+        assertEquals(renderUncached(tx), handle.getJSONFromTransaction(tx));
+    }
+
+    /** Sends a payment from a coin received in a block, and leaves it pending. */
+    private Transaction sendPending() throws Exception {
+        addBlock(TestUtils.createFakeTx(params, Utils.COIN, key.toAddress(params)));
+
+        Wallet.SendRequest request = Wallet.SendRequest.to(new ECKey().toAddress(params), Utils.CENT);
+        wallet.completeTx(request);
+        wallet.commitTx(request.tx);
+        Threading.waitForUserCode();
+
+        return request.tx;
+    }
+
+    private JSONObject getJSON(Transaction tx) throws Exception {
+        return new JSONObject(handle.getJSONFromTransaction(tx));
+    }
+
+    /** Renders the transaction's JSON with an empty cache. */
+    private String renderUncached(Transaction tx) {
+        WalletHandle uncached = createHandle(new TransactionJSONCache());
+
+        try {
+            return uncached.getJSONFromTransaction(tx);
+        } finally {
+            uncached.close();
+        }
+    }
+
+    private WalletHandle createHandle(TransactionJSONCache cache) {
+        NativeEventDispatcher dispatcher = new NativeEventDispatcher(new NativeEventDispatcher.Target() {
+            public void dispatchBalanceChanged() {}
+            public void dispatchTransactionChanged(Transaction tx) {}
+        });
+        dispatcher.setSynchronous(true);
+
+        return new WalletHandle("test", params, wallet, null, dispatcher, cache);
+    }
+
+    private static Sha256Hash hash(int value) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) value;
+        return new Sha256Hash(hash);
+    }
+
+    /** An entry with this many characters of JSON. */
+    private static TransactionJSONCache.Entry entry(int length) {
+        StringBuilder head = new StringBuilder("{");
+
+        while (head.length() < length - 1) {
+            head.append(' ');
+        }
+
+        return new TransactionJSONCache.Entry(head.toString(), "}");
+    }
+}
@@ -0,0 +1,146 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.crypto.TransactionSignature;
+import com.google.bitcoin.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Renders the transaction list of a wallet with 50000 transactions the way getTransactions does when nothing is
+ * cached yet, with the old Jettison code (see JettisonTransactionJSON) and with TransactionJSONWriter, and prints
+ * the time and the memory allocated per listing. Each transaction has a signed input and pays to an external
+ * address with change back to the wallet. Not run with the unit tests; run it with
+ * mvn test -Dtest=TransactionJSONWriterBenchmark.
+ */
+public class TransactionJSONWriterBenchmark extends WalletTestBase {
+    private static final int TRANSACTIONS = 50000;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 5;
+
+    private static final com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private interface Renderer {
+        String render(List<Transaction> transactions) throws Exception;
+    }
+
+    @Test
+    public void compareWithJettison() throws Exception {
+        final List<Transaction> transactions = createTransactions();
+        final JettisonTransactionJSON jettison = new JettisonTransactionJSON(params, wallet);
+        final TransactionDetails details = new TransactionDetails(params, wallet);
+
+        Renderer oldRenderer = new Renderer() {
+            public String render(List<Transaction> transactions) throws Exception {
+                StringBuffer txs = new StringBuffer();
+                txs.append("[\n");
+                boolean first = true;
+
+                for (Transaction tx : transactions) {
+                    if (first) {
+                        first = false;
+                    } else {
+                        txs.append("\n,");
+                    }
+
+                    txs.append(jettison.toJSON(tx, "building", 0, 6));
+                }
+
+                txs.append("]\n");
+                return txs.toString();
+            }
+        };
+
+        Renderer newRenderer = new Renderer() {
+            public String render(List<Transaction> transactions) {
+                // a new writer each time, as if the cache was empty
+                TransactionJSONWriter writer = new TransactionJSONWriter(details);
+                StringBuilder buffer = new StringBuilder();
+                buffer.append("[\n");
+                boolean first = true;
+
+                for (Transaction tx : transactions) {
+                    if (first) {
+                        first = false;
+                    } else {
+                        buffer.append("\n,");
+                    }
+
+                    writer.render(tx).appendTo(buffer, "building", 0, 6);
+                }
+
+                buffer.append("]\n");
+                return buffer.toString();
+            }
+        };
+
+        if (!oldRenderer.render(transactions).equals(newRenderer.render(transactions))) {
+            throw new AssertionError("The writer's JSON differs from Jettison's");
+        }
+
+        System.out.println(String.format("%-10s %10s %12s %14s", "renderer", "ms", "tx/s", "MB allocated"));
+        run("jettison", oldRenderer, transactions);
+        run("writer", newRenderer, transactions);
+    }
+
+    private static void run(String name, Renderer renderer, List<Transaction> transactions) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            renderer.render(transactions);
+        }
+
+        long timeNs = 0;
+        long allocated = 0;
+
+        for (int i = 0; i < RUNS; i++) {
+            long bytesBefore = threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long start = System.nanoTime();
+
+            renderer.render(transactions);
+
+            timeNs += System.nanoTime() - start;
+            allocated += threadBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytesBefore;
+        }
+
+        System.out.println(String.format("%-10s %10.1f %12d %14.1f", name, timeNs / 1000000.0 / RUNS,
+                (long) (1000000000.0 * TRANSACTIONS * RUNS / timeNs), allocated / 1048576.0 / RUNS));
+    }
+
+    private List<Transaction> createTransactions() {
+        Random random = new Random(1);
+        Address ownAddress = key.toAddress(params);
+        Address externalAddress = new ECKey().toAddress(params);
+        List<Transaction> transactions = new ArrayList<Transaction>(TRANSACTIONS);
+
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            Transaction funding = new Transaction(params);
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            funding.addInput(new TransactionInput(params, funding, new byte[0],
+                    new TransactionOutPoint(params, 0, new Sha256Hash(hash))));
+            funding.addOutput(BigInteger.valueOf(100000000L + i), ownAddress);
+
+            Transaction tx = new Transaction(params);
+            TransactionInput input = tx.addInput(funding.getOutput(0));
+            input.setScriptSig(ScriptBuilder.createInputScript(TransactionSignature.dummy(), key));
+
+            long sent = 1000 + random.nextInt(10000000);
+            tx.addOutput(BigInteger.valueOf(sent), externalAddress);
+            tx.addOutput(BigInteger.valueOf(100000000L + i - sent - 10000), ownAddress);
+
+            transactions.add(tx);
+        }
+
+        return transactions;
+    }
+}
@@ -0,0 +1,118 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.utils.TestUtils;
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The writer's output has to stay byte for byte what BitcoinManager rendered with Jettison before it, since the
+ * Cocoa side parses it (see JettisonTransactionJSON).
+ */
+public class TransactionJSONWriterTest extends WalletTestBase {
+    private JettisonTransactionJSON jettison;
+    private TransactionJSONWriter writer;
+
+    @Before
+    public void setUp() {
+        jettison = new JettisonTransactionJSON(params, wallet);
+        writer = new TransactionJSONWriter(new TransactionDetails(params, wallet));
+    }
+
+    @Test
+    public void receivedTransactionMatchesJettison() throws Exception {
+        Transaction tx = TestUtils.createFakeTx(params, Utils.COIN, key.toAddress(params));
+        addBlock(tx);
+
+        assertSameJSON(wallet.getTransaction(tx.getHash()));
+    }
+
+    @Test
+    public void sentTransactionMatchesJettison() throws Exception {
+        addBlock(TestUtils.createFakeTx(params, Utils.COIN, key.toAddress(params)));
+        addBlock(TestUtils.createFakeTx(params, Utils.CENT, new ECKey().toAddress(params)));
+
+        // signed inputs have a sender address, and the change goes back to the wallet's address
+        Wallet.SendRequest request = Wallet.SendRequest.to(new ECKey().toAddress(params), Utils.CENT.shiftRight(1));
+        wallet.completeTx(request);
+        wallet.commitTx(request.tx);
+
+        assertSameJSON(request.tx);
+    }
+
+    @Test
+    public void allOutputTypesMatchJettison() throws Exception {
+        Transaction tx = new Transaction(params);
+
+        // not connected, so there's no amount and no fee
+        byte[] hash = new byte[32];
+        Arrays.fill(hash, (byte) 7);
+        tx.addInput(new TransactionInput(params, tx, new byte[0],
+                new TransactionOutPoint(params, 3, new Sha256Hash(hash))));
+
+        ECKey other = new ECKey();
+        tx.addOutput(Utils.CENT, key.toAddress(params));
+        tx.addOutput(Utils.CENT, other.toAddress(params));
+        tx.addOutput(Utils.CENT, other);
+        addOutput(tx, ScriptBuilder.createMultiSigOutputScript(1, Arrays.asList(key, other)).getProgram());
+        addOutput(tx, ScriptBuilder.createP2SHOutputScript(new byte[20]).getProgram());
+        addOutput(tx, new byte[] { 0x6a, 0x01, 0x01 });
+
+        // a push that runs past the end of the script can't be parsed
+        addOutput(tx, new byte[] { 0x4c, 0x10, 0x01 });
+
+        tx.setUpdateTime(new Date(1400000000000L));
+        assertSameJSON(tx);
+    }
+
+    @Test
+    public void coinbaseMatchesJettison() throws Exception {
+        Transaction tx = new Transaction(params);
+        tx.addInput(new TransactionInput(params, tx, new byte[] { 0x01, 0x02 }));
+        tx.addOutput(Utils.COIN.multiply(BigInteger.valueOf(50)), key.toAddress(params));
+        tx.setUpdateTime(new Date(0));
+
+        assertSameJSON(tx);
+    }
+
+    @Test
+    public void escapesStringsLikeJettison() throws Exception {
+        StringBuilder all = new StringBuilder();
+
+        for (char c = 0; c < 0x80; c++) {
+            all.append(c);
+        }
+
+        for (String string : new String[] { "", "2014-05-13 16:53:20 GMT", "a/b\\c\"d", "</script>", all.toString() }) {
+            StringBuilder buffer = new StringBuilder();
+            TransactionJSONWriter.appendString(buffer, string);
+            assertEquals(JSONObject.quote(string), buffer.toString());
+        }
+    }
+
+    private static void addOutput(Transaction tx, byte[] script) {
+        tx.addOutput(new TransactionOutput(params, tx, Utils.CENT, script));
+    }
+
+    private void assertSameJSON(Transaction tx) throws Exception {
+        StringBuilder buffer = new StringBuilder();
+        writer.render(tx).appendTo(buffer, "building", 3, 2);
+
+        assertEquals(jettison.toJSON(tx, "building", 3, 2), buffer.toString());
+    }
+}
@@ -0,0 +1,95 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.math.BigInteger;
+
+/**
+ * Signs transactions with 1, 10, 100 and 1000 inputs in an encrypted wallet with two keys, with bitcoinj's
+ * Transaction.signInputs and with TransactionSigner on one and on DEFAULT_THREADS threads, and prints the time per
+ * transaction. Not run with the unit tests; run it with mvn test -Dtest=TransactionSignerBenchmark.
+ */
+public class TransactionSignerBenchmark extends WalletTestBase {
+    private static final int[] INPUT_COUNTS = { 1, 10, 100, 1000 };
+
+    // about this many inputs are signed for each measurement, but at least one transaction
+    private static final int INPUTS_PER_RUN = 200;
+
+    private ECKey secondKey;
+    private KeyParameter aesKey;
+
+    @Before
+    public void setUp() {
+        secondKey = new ECKey();
+        wallet.addKey(secondKey);
+        aesKey = wallet.encrypt("password");
+    }
+
+    @After
+    public void tearDown() {
+        WalletHandle.wipeAesKey(aesKey);
+    }
+
+    @Test
+    public void compareSigning() {
+        TransactionSigner singleThread = new TransactionSigner(1);
+        TransactionSigner parallel = new TransactionSigner(TransactionSigner.DEFAULT_THREADS);
+
+        // warm up the JIT
+        for (int i = 0; i < 3; i++) {
+            time(null, 20);
+            time(singleThread, 20);
+            time(parallel, 20);
+        }
+
+        System.out.println(String.format("%6s %14s %20s %20s", "inputs", "bitcoinj ms", "signer, 1 thread ms",
+                "signer, " + TransactionSigner.DEFAULT_THREADS + " threads ms"));
+
+        for (int inputs : INPUT_COUNTS) {
+            System.out.println(String.format("%6d %14.1f %20.1f %20.1f", inputs, time(null, inputs),
+                    time(singleThread, inputs), time(parallel, inputs)));
+        }
+    }
+
+    /** Returns the time per transaction in ms, signed by bitcoinj if the signer is null. */
+    private double time(TransactionSigner signer, int inputs) {
+        int runs = Math.max(1, INPUTS_PER_RUN / inputs);
+        long timeNs = 0;
+
+        for (int i = 0; i < runs; i++) {
+            Transaction tx = createTransaction(inputs);
+            long start = System.nanoTime();
+
+            if (signer != null) {
+                signer.signInputs(tx, wallet, aesKey);
+            } else {
+                tx.signInputs(Transaction.SigHash.ALL, wallet, aesKey);
+            }
+
+            timeNs += System.nanoTime() - start;
+        }
+
+        return timeNs / 1000000.0 / runs;
+    }
+
+    /** A transaction spending outputs to both keys in turn. */
+    private Transaction createTransaction(int inputs) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.CENT, new ECKey().toAddress(params));
+
+        for (int i = 0; i < inputs; i++) {
+            Transaction funding = new Transaction(params);
+            ECKey owner = (i % 2 == 0) ? key : secondKey;
+            funding.addOutput(Utils.CENT.add(BigInteger.valueOf(i)), owner.toAddress(params));
+            tx.addInput(funding.getOutput(0));
+        }
+
+        return tx;
+    }
+}
@@ -0,0 +1,184 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.utils.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.spongycastle.crypto.params.KeyParameter;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionSignerTest extends WalletTestBase {
+    private ECKey uncompressedKey;
+    private Address destination;
+    private KeyParameter aesKey;
+    private TransactionSigner signer;
+
+    @Before
+    public void setUp() {
+        uncompressedKey = new ECKey(new BigInteger(1, new ECKey().getPrivKeyBytes()), null, false);
+        wallet.addKey(uncompressedKey);
+        destination = new ECKey().toAddress(params);
+
+        // the signer decrypts the keys itself
+        aesKey = wallet.encrypt("password");
+        signer = new TransactionSigner(4);
+    }
+
+    @After
+    public void tearDown() {
+        WalletHandle.wipeAesKey(aesKey);
+    }
+
+    @Test
+    public void signsKnownVector() throws Exception {
+        // RFC 6979 nonce with secp256k1, private key 1, SHA-256 of "Satoshi Nakamoto"
+        ECKey privateKey = new ECKey(BigInteger.ONE, null, true);
+        byte[] hash = Sha256Hash.create("Satoshi Nakamoto".getBytes("UTF-8")).getBytes();
+
+        ECKey.ECDSASignature signature = TransactionSigner.signDeterministically(privateKey, hash);
+
+        assertEquals(new BigInteger("934b1ea10a4b3c1757e2b0c017d0b6143ce3c9a7e6a4a49860d7a6ab210ee3d8", 16),
+                signature.r);
+        assertEquals(new BigInteger("2442ce9d2b916064108014783e923ec36b49743e2ffa1c4496f01a512aafd9e5", 16),
+                signature.s);
+        assertTrue(privateKey.verify(new Sha256Hash(hash), signature));
+    }
+
+    @Test
+    public void signsOneInput() {
+        assertCorrectlySpends(signedTransaction(signer, 1));
+    }
+
+    @Test
+    public void signsInputsOnCallingThreadBelowThreshold() {
+        assertCorrectlySpends(signedTransaction(signer, TransactionSigner.PARALLEL_THRESHOLD));
+    }
+
+    @Test
+    public void signsManyInputs() {
+        assertCorrectlySpends(signedTransaction(signer, 100));
+    }
+
+    @Test
+    public void parallelSigningMatchesSingleThread() {
+        Transaction single = signedTransaction(new TransactionSigner(1), 100);
+        Transaction parallel = signedTransaction(signer, 100);
+
+        assertArrayEquals(single.bitcoinSerialize(), parallel.bitcoinSerialize());
+    }
+
+    @Test
+    public void signingTransactionIsSignedWhenCompleted() throws Exception {
+        Transaction tx = signer.newTransaction(params);
+        tx.addOutput(Utils.CENT, destination);
+
+        for (TransactionOutput output : createOutputs(20)) {
+            tx.addInput(output);
+        }
+
+        tx.signInputs(Transaction.SigHash.ALL, wallet, aesKey);
+
+        assertCorrectlySpends(tx);
+        assertTrue(signer.toString().contains("1 transactions with 20 inputs"));
+    }
+
+    @Test
+    public void copiedSendRequestIsSignedWhenCompleted() throws Exception {
+        addBlock(TestUtils.createFakeTx(params, Utils.CENT, key.toAddress(params)),
+                TestUtils.createFakeTx(params, Utils.CENT, uncompressedKey.toAddress(params)),
+                TestUtils.createFakeTx(params, Utils.CENT, key.toAddress(params)));
+
+        // like the request that PaymentSession.getSendRequest returns, with a plain transaction
+        Transaction requested = new Transaction(params);
+        requested.addOutput(Utils.CENT.multiply(BigInteger.valueOf(2)), destination);
+        requested.addOutput(Utils.CENT.shiftRight(2), new ECKey().toAddress(params));
+        Wallet.SendRequest request = Wallet.SendRequest.forTx(requested);
+        request.aesKey = aesKey;
+
+        Wallet.SendRequest copy = signer.newSendRequest(request);
+        wallet.completeTx(copy);
+
+        assertTrue(copy.tx instanceof TransactionSigner.SigningTransaction);
+        assertEquals(3, copy.tx.getInputs().size());
+        assertCorrectlySpends(copy.tx);
+        assertTrue(signer.toString().contains("1 transactions with 3 inputs"));
+
+        for (int i = 0; i < requested.getOutputs().size(); i++) {
+            assertEquals(requested.getOutput(i).getValue(), copy.tx.getOutput(i).getValue());
+            assertArrayEquals(requested.getOutput(i).getScriptBytes(), copy.tx.getOutput(i).getScriptBytes());
+        }
+
+        assertTrue(requested.getInputs().isEmpty());
+    }
+
+    /** A transaction spending the given number of outputs to the wallet's keys, signed by the signer. */
+    private Transaction signedTransaction(TransactionSigner signer, int inputs) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.CENT, destination);
+
+        for (TransactionOutput output : createOutputs(inputs)) {
+            tx.addInput(output);
+        }
+
+        signer.signInputs(tx, wallet, aesKey);
+        return tx;
+    }
+
+    /**
+     * Pay-to-address outputs to the compressed and the uncompressed key, and pay-to-pubkey outputs, in the same
+     * order on each call.
+     */
+    private List<TransactionOutput> createOutputs(int count) {
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(count);
+
+        for (int i = 0; i < count; i++) {
+            Transaction tx = new Transaction(params);
+            BigInteger value = Utils.CENT.add(BigInteger.valueOf(i));
+
+            switch (i % 3) {
+                case 0:
+                    tx.addOutput(value, key.toAddress(params));
+                    break;
+                case 1:
+                    tx.addOutput(value, uncompressedKey.toAddress(params));
+                    break;
+                default:
+                    tx.addOutput(value, key);
+            }
+
+            outputs.add(tx.getOutput(0));
+        }
+
+        return outputs;
+    }
+
+    private void assertCorrectlySpends(Transaction tx) {
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            TransactionInput input = tx.getInput(i);
+            TransactionOutput connected = input.getOutpoint().getConnectedOutput();
+
+            assertTrue(input.getScriptBytes().length > 0);
+            input.getScriptSig().correctlySpends(tx, i, connected.getScriptPubKey(), true);
+        }
+
+        // only the copies the signer decrypted were used
+        for (ECKey walletKey : wallet.getKeys()) {
+            assertTrue(walletKey.isEncrypted());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Address;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UtxoIndexTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private static final Address address = new ECKey().toAddress(params);
+
+    private final UtxoIndex index = new UtxoIndex();
+
+    @Test
+    public void sortsLargestFirstAndKeepsOrderOfEqualValues() {
+        List<TransactionOutput> outputs = outputs(300, 500, 100, 500, 200);
+        index.update(outputs);
+
+        UtxoIndex.Entry[] entries = index.getEntries();
+        assertEquals(Arrays.asList(500L, 500L, 300L, 200L, 100L), values(entries));
+        assertSame(outputs.get(1), entries[0].output);
+        assertSame(outputs.get(3), entries[1].output);
+        assertEquals(1600, index.getTotalValue());
+    }
+
+    @Test
+    public void updatesIncrementally() {
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>(outputs(300, 100, 200));
+
+        assertTrue(index.update(candidates));
+        UtxoIndex.Entry[] entries = index.getEntries();
+
+        // nothing changed, so the sorted array is reused
+        assertFalse(index.update(candidates));
+        assertSame(entries, index.getEntries());
+
+        // spent
+        TransactionOutput spent = candidates.remove(0);
+        assertTrue(index.update(candidates));
+        assertEquals(Arrays.asList(200L, 100L), values(index.getEntries()));
+        assertEquals(300, index.getTotalValue());
+
+        // received, including the one spent before (e.g. after a reorganize)
+        candidates.add(output(150));
+        candidates.add(spent);
+        assertTrue(index.update(candidates));
+        assertEquals(Arrays.asList(300L, 200L, 150L, 100L), values(index.getEntries()));
+        assertEquals(750, index.getTotalValue());
+        assertEquals(4, index.size());
+
+        // everything spent
+        assertTrue(index.update(new LinkedList<TransactionOutput>()));
+        assertEquals(0, index.getEntries().length);
+        assertEquals(0, index.getTotalValue());
+    }
+
+    @Test
+    public void skipsOutputsThatCantBeSelected() {
+        List<TransactionOutput> candidates = outputs(300, 100);
+
+        // not in a block and not sent by us
+        Transaction tx = new Transaction(params);
+        tx.addOutput(BigInteger.valueOf(1000), address);
+        candidates.add(tx.getOutput(0));
+
+        index.update(candidates);
+
+        assertEquals(Arrays.asList(300L, 100L), values(index.getEntries()));
+        assertEquals(400, index.getTotalValue());
+    }
+
+    @Test
+    public void findsSmallestCoveringEntry() {
+        index.update(outputs(500, 300, 300, 100));
+
+        assertEquals(100, index.getSmallestCovering(1).value);
+        assertEquals(100, index.getSmallestCovering(100).value);
+        assertEquals(300, index.getSmallestCovering(101).value);
+        assertEquals(300, index.getSmallestCovering(300).value);
+        assertEquals(500, index.getSmallestCovering(301).value);
+        assertEquals(500, index.getSmallestCovering(500).value);
+        assertNull(index.getSmallestCovering(501));
+    }
+
+    @Test
+    public void findsNothingInEmptyIndex() {
+        index.update(new ArrayList<TransactionOutput>());
+
+        assertNull(index.getSmallestCovering(1));
+        assertEquals(0, index.size());
+    }
+
+    /** Outputs of transactions in the chain, which are selectable. */
+    static List<TransactionOutput> outputs(long... values) {
+        List<TransactionOutput> outputs = new ArrayList<TransactionOutput>();
+
+        for (long value : values) {
+            outputs.add(output(value));
+        }
+
+        return outputs;
+    }
+
+    static TransactionOutput output(long value) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(BigInteger.valueOf(value), address);
+        tx.getConfidence().setAppearedAtChainHeight(1);
+        return tx.getOutput(0);
+    }
+
+    private static List<Long> values(UtxoIndex.Entry[] entries) {
+        List<Long> values = new ArrayList<Long>();
+
+        for (UtxoIndex.Entry entry : entries) {
+            values.add(entry.value);
+        }
+
+        return values;
+    }
+}
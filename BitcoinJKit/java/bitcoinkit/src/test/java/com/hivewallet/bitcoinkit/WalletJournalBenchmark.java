@@ -0,0 +1,124 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.bitcoin.utils.Threading;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.math.BigInteger;
+
+/**
+ * Syncs 500 blocks into wallets with 100, 1000 and 5000 transactions, once saving the whole wallet after every block
+ * (what autosave does when blocks come in slower than its delay) and once with WalletJournal, and prints the bytes
+ * and records written and the time per block, including the wallet's own processing. Every tenth block pays to the
+ * wallet, the others only move the last seen block. Both sync every write to disk. The journal's bytes include any compaction it did on the way.
+ * Not run with the unit tests; run it with mvn test -Dtest=WalletJournalBenchmark.
+ */
+public class WalletJournalBenchmark extends WalletTestBase {
+    private static final int[] HISTORY_SIZES = { 100, 1000, 5000 };
+    private static final int TRANSACTIONS_PER_HISTORY_BLOCK = 100;
+    private static final int BLOCKS = 500;
+    private static final int PAYMENT_INTERVAL = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compareWithFullSaves() throws Exception {
+        System.out.println(String.format("%8s  %-10s %12s %14s %12s %12s %14s", "history", "saving", "bytes/block",
+                "records/block", "ms/block", "save ms", "journal size"));
+
+        for (int historySize : HISTORY_SIZES) {
+            runFullSaves(historySize);
+            runJournal(historySize);
+        }
+    }
+
+    private void runFullSaves(int historySize) throws Exception {
+        File walletFile = createWallet(historySize, "full");
+        long bytes = 0;
+        long saveNs = 0;
+        long start = System.nanoTime();
+
+        for (int i = 0; i < BLOCKS; i++) {
+            addNextBlock(i);
+            Threading.waitForUserCode();
+
+            long saveStart = System.nanoTime();
+            wallet.saveToFile(walletFile);
+            saveNs += System.nanoTime() - saveStart;
+            bytes += walletFile.length();
+        }
+
+        print(historySize, "full save", bytes, BLOCKS, System.nanoTime() - start, saveNs, -1);
+    }
+
+    private void runJournal(int historySize) throws Exception {
+        File walletFile = createWallet(historySize, "journal");
+        WalletJournal journal = new WalletJournal(wallet, walletFile);
+        journal.setSyncPolicy(WalletJournal.SyncPolicy.ALWAYS);
+
+        try {
+            long start = System.nanoTime();
+
+            // the journal writes from the wallet's listeners, which run on the user thread
+            for (int i = 0; i < BLOCKS; i++) {
+                addNextBlock(i);
+                Threading.waitForUserCode();
+            }
+
+            long timeNs = System.nanoTime() - start;
+
+            print(historySize, "journal", journal.getJournalBytesWritten() + journal.getSnapshotBytesWritten(),
+                    journal.getRecordsWritten(), timeNs, -1, journal.getJournalSize());
+        } finally {
+            journal.close();
+        }
+    }
+
+    /** Starts over with a wallet that has received this many transactions, saved to a new file. */
+    private File createWallet(int historySize, String name) throws Exception {
+        setUpWallet();
+
+        for (int i = 0; i < historySize; i += TRANSACTIONS_PER_HISTORY_BLOCK) {
+            Transaction[] transactions = new Transaction[Math.min(TRANSACTIONS_PER_HISTORY_BLOCK, historySize - i)];
+
+            for (int j = 0; j < transactions.length; j++) {
+                transactions[j] = createPayment(i + j);
+            }
+
+            addBlock(transactions);
+        }
+
+        Threading.waitForUserCode();
+
+        File walletFile = new File(folder.getRoot(), historySize + "-" + name + ".wallet");
+        wallet.saveToFile(walletFile);
+        return walletFile;
+    }
+
+    private void addNextBlock(int index) throws Exception {
+        if (index % PAYMENT_INTERVAL == 0) {
+            addBlock(createPayment(index));
+        } else {
+            addBlock();
+        }
+    }
+
+    private Transaction createPayment(int index) throws Exception {
+        return TestUtils.createFakeTx(params, Utils.CENT.add(BigInteger.valueOf(index)), key.toAddress(params));
+    }
+
+    /** The save time is only measured separately for full saves, the journal writes from the wallet's listeners. */
+    private static void print(int historySize, String name, long bytes, long records, long timeNs, long saveNs,
+                              long journalSize) {
+        System.out.println(String.format("%8d  %-10s %12d %14.2f %12.2f %12s %14s", historySize, name,
+                bytes / BLOCKS, (double) records / BLOCKS, timeNs / 1000000.0 / BLOCKS,
+                (saveNs >= 0) ? String.format("%.2f", saveNs / 1000000.0 / BLOCKS) : "-",
+                (journalSize >= 0) ? String.valueOf(journalSize) : "-"));
+    }
+}
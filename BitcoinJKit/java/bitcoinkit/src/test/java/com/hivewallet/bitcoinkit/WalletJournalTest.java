@@ -0,0 +1,320 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.store.WalletProtobufSerializer;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.bitcoin.utils.Threading;
+import com.google.protobuf.ByteString;
+import org.bitcoinj.wallet.Protos;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WalletJournalTest extends WalletTestBase {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File walletFile;
+    private File journalFile;
+    private WalletJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        walletFile = new File(folder.getRoot(), "test.wallet");
+        journalFile = WalletJournal.getJournalFile(walletFile);
+        wallet.saveToFile(walletFile);
+
+        assertTrue(WalletJournal.isSupported());
+        journal = new WalletJournal(wallet, walletFile);
+        journal.setSyncPolicy(WalletJournal.SyncPolicy.ALWAYS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        journal.close();
+    }
+
+    @Test
+    public void replayEqualsFullSave() throws Exception {
+        Transaction confirmed = receivePending();
+        receivePending();
+        addBlock(confirmed);
+        addBlock();
+
+        LastWalletChangeExtension extension = (LastWalletChangeExtension) wallet.getExtensions().get(
+                LastWalletChangeExtension.class.getName());
+        extension.setLastWalletChangeDate(new Date(1400000000000L));
+
+        // spending marks the confirmed transaction's output as spent, which is journaled as well
+        Wallet.SendRequest request = Wallet.SendRequest.to(new ECKey().toAddress(params), Utils.CENT.shiftRight(1));
+        wallet.completeTx(request);
+        wallet.commitTx(request.tx);
+
+        addBlock(request.tx);
+        addBlock();
+        Threading.waitForUserCode();
+
+        assertTrue(journal.getRecordsWritten() > 0);
+        assertEquals(0, journal.getSnapshotsWritten());
+
+        Wallet loaded = load();
+        assertSameWallet(wallet, loaded);
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(4, loaded.getTransaction(confirmed.getHash()).getConfidence().getDepthInBlocks());
+        assertTrue(loaded.isConsistent());
+    }
+
+    @Test
+    public void tornLastRecordIsIgnored() throws Exception {
+        List<Transaction> received = new ArrayList<Transaction>();
+
+        for (int i = 0; i < 3; i++) {
+            received.add(receivePending());
+        }
+
+        Threading.waitForUserCode();
+
+        // cut off the end of the last record, as if the app was terminated while writing it
+        truncate(journalFile, journalFile.length() - 5);
+
+        Wallet loaded = load();
+        assertEquals(2, loaded.getTransactions(true).size());
+        assertTrue(loaded.getTransaction(received.get(2).getHash()) == null);
+
+        // journaling continues after the last complete record; the old journal is abandoned as if the app had
+        // been terminated, closing it would save the wallet in full
+        journal = new WalletJournal(loaded, walletFile);
+        journal.setSyncPolicy(WalletJournal.SyncPolicy.ALWAYS);
+        assertEquals(journalFile.length(), journal.getJournalSize());
+
+        Transaction later = TestUtils.createFakeTx(params, Utils.COIN, key);
+        loaded.receivePending(later, null);
+        Threading.waitForUserCode();
+
+        Wallet reloaded = load();
+        assertEquals(3, reloaded.getTransactions(true).size());
+        assertTrue(reloaded.getTransaction(later.getHash()) != null);
+    }
+
+    @Test
+    public void recordsFromCrcMismatchAreIgnored() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            receivePending();
+        }
+
+        Threading.waitForUserCode();
+
+        List<long[]> records = readRecordPositions(journalFile);
+        assertEquals(5, records.size());
+
+        // flip a bit in the payload of the third record
+        long payloadStart = records.get(2)[0] + 5;
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+
+        try {
+            file.seek(payloadStart);
+            int value = file.read();
+            file.seek(payloadStart);
+            file.write(value ^ 0x01);
+        } finally {
+            file.close();
+        }
+
+        Set<ByteString> expected = new HashSet<ByteString>();
+
+        for (int i = 0; i < 2; i++) {
+            expected.add(readTransactionRecord(journalFile, records.get(i)).getHash());
+        }
+
+        Set<ByteString> loadedHashes = new HashSet<ByteString>();
+
+        for (Transaction tx : load().getTransactions(true)) {
+            loadedHashes.add(ByteString.copyFrom(tx.getHash().getBytes()));
+        }
+
+        assertEquals(expected, loadedHashes);
+    }
+
+    @Test
+    public void journalLeftOverFromInterruptedCompactionIsIgnored() throws Exception {
+        Transaction tx = receivePending();
+        Threading.waitForUserCode();
+
+        // the journal as it was before the compaction, when the transaction was still pending
+        byte[] staleJournal = readFile(journalFile);
+        long generation = getGeneration(wallet);
+
+        addBlock(tx);
+        Threading.waitForUserCode();
+
+        // the snapshot is written, but the app is terminated before the journal is emptied
+        journal.compact();
+        assertEquals(generation + 1, getGeneration(wallet));
+        writeFile(journalFile, staleJournal);
+
+        Wallet loaded = load();
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING,
+                loaded.getTransaction(tx.getHash()).getConfidence().getConfidenceType());
+        assertSameWallet(readSnapshot(), loaded);
+
+        // and the stale journal is started over when journaling the loaded wallet
+        journal.close();
+        journal = new WalletJournal(loaded, walletFile);
+        assertEquals(WalletJournal.HEADER_SIZE, journalFile.length());
+
+        ByteBuffer header = ByteBuffer.wrap(readFile(journalFile));
+        assertEquals(WalletJournal.MAGIC, header.getInt());
+        assertEquals(WalletJournal.VERSION, header.getInt());
+        assertEquals(getGeneration(loaded), header.getLong());
+    }
+
+    @Override
+    protected Wallet createWallet() {
+        Wallet wallet = new Wallet(params);
+        wallet.addExtension(new WalletJournalExtension());
+        wallet.addExtension(new LastWalletChangeExtension());
+        return wallet;
+    }
+
+    private Wallet load() throws Exception {
+        Wallet loaded = createWallet();
+        WalletJournal.readWallet(walletFile, loaded);
+        return loaded;
+    }
+
+    private Wallet readSnapshot() throws Exception {
+        Wallet snapshot = createWallet();
+        FileInputStream stream = new FileInputStream(walletFile);
+
+        try {
+            new WalletProtobufSerializer().readWallet(WalletProtobufSerializer.parseToProto(stream), snapshot);
+        } finally {
+            stream.close();
+        }
+
+        return snapshot;
+    }
+
+    private Transaction receivePending() throws Exception {
+        // a different amount each time, otherwise the fake transactions spend the same fake output
+        BigInteger amount = Utils.CENT.add(BigInteger.valueOf(wallet.getTransactions(true).size()));
+        Transaction tx = TestUtils.createFakeTx(params, amount, key);
+        wallet.receivePending(tx, null);
+        return wallet.getTransaction(tx.getHash());
+    }
+
+    static void assertSameWallet(Wallet expected, Wallet actual) {
+        assertEquals(sortedProto(expected), sortedProto(actual));
+    }
+
+    /** The wallet's protobuf form, with the transactions and extensions in a fixed order. */
+    private static Protos.Wallet sortedProto(Wallet wallet) {
+        Protos.Wallet proto = new WalletProtobufSerializer().walletToProto(wallet);
+
+        List<Protos.Transaction> transactions = new ArrayList<Protos.Transaction>(proto.getTransactionList());
+        Collections.sort(transactions, new Comparator<Protos.Transaction>() {
+            public int compare(Protos.Transaction tx1, Protos.Transaction tx2) {
+                return Utils.bytesToHexString(tx1.getHash().toByteArray()).compareTo(
+                        Utils.bytesToHexString(tx2.getHash().toByteArray()));
+            }
+        });
+
+        List<Protos.Extension> extensions = new ArrayList<Protos.Extension>(proto.getExtensionList());
+        Collections.sort(extensions, new Comparator<Protos.Extension>() {
+            public int compare(Protos.Extension extension1, Protos.Extension extension2) {
+                return extension1.getId().compareTo(extension2.getId());
+            }
+        });
+
+        return proto.toBuilder()
+                .clearTransaction().addAllTransaction(transactions)
+                .clearExtension().addAllExtension(extensions)
+                .build();
+    }
+
+    private static long getGeneration(Wallet wallet) {
+        WalletJournalExtension extension =
+                (WalletJournalExtension) wallet.getExtensions().get(WalletJournalExtension.EXTENSION_ID);
+        return extension.getGeneration();
+    }
+
+    /** Returns the start offset and the payload length of each record. */
+    private static List<long[]> readRecordPositions(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(readFile(file));
+        buffer.position(WalletJournal.HEADER_SIZE);
+        List<long[]> records = new ArrayList<long[]>();
+
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            records.add(new long[] { start, length });
+            buffer.position(start + 4 + 1 + length + 4);
+        }
+
+        return records;
+    }
+
+    private static Protos.Transaction readTransactionRecord(File file, long[] record) throws IOException {
+        byte[] data = readFile(file);
+        int start = (int) record[0];
+
+        assertEquals(WalletJournal.RECORD_TRANSACTION, data[start + 4]);
+        return Protos.Transaction.parseFrom(ByteString.copyFrom(data, start + 5, (int) record[1]));
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+
+        try {
+            byte[] data = new byte[(int) randomAccessFile.length()];
+            randomAccessFile.readFully(data);
+            return data;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            randomAccessFile.setLength(0);
+            randomAccessFile.write(data);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.utils.TestUtils;
+import com.google.bitcoin.utils.Threading;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WalletRewinderTest extends WalletTestBase {
+    @Test
+    public void removesTransactionsAfterBlock() throws Exception {
+        Transaction kept = TestUtils.createFakeTx(params, Utils.CENT, key);
+        Transaction later = TestUtils.createFakeTx(params, Utils.COIN, key);
+
+        addBlock();
+        addBlock(kept);
+        addBlock();
+        addBlock();
+        addBlock(later);
+        addBlock();
+
+        Wallet rewound = rewind(3, 1);
+
+        assertNotNull(rewound.getTransaction(kept.getHash()));
+        assertNull(rewound.getTransaction(later.getHash()));
+        assertEquals(Utils.CENT, rewound.getBalance());
+        assertEquals(3, rewound.getLastBlockSeenHeight());
+
+        // the fake blocks all have the same difficulty
+        TransactionConfidence confidence = rewound.getTransaction(kept.getHash()).getConfidence();
+        assertEquals(2, confidence.getDepthInBlocks());
+        assertEquals(blocks.get(1).getHeader().getWork().shiftLeft(1), confidence.getWorkDone());
+    }
+
+    @Test
+    public void removesPendingTransactionsSpendingRemovedOutputs() throws Exception {
+        Transaction kept = TestUtils.createFakeTx(params, Utils.CENT, key);
+        Transaction later = TestUtils.createFakeTx(params, Utils.COIN, key);
+
+        addBlock();
+        addBlock(kept);
+        addBlock();
+        addBlock();
+        addBlock(later);
+
+        // a pending payment spending the removed transaction, and one spending its change
+        ECKey changeKey = new ECKey();
+        wallet.addKey(changeKey);
+        Transaction spend = spend(wallet.getTransaction(later.getHash()).getOutput(0), changeKey);
+        Transaction spendChange = spend(spend.getOutput(1), new ECKey());
+
+        Wallet rewound = rewind(3, 3);
+
+        assertNull(rewound.getTransaction(spend.getHash()));
+        assertNull(rewound.getTransaction(spendChange.getHash()));
+        assertNotNull(rewound.getTransaction(kept.getHash()));
+        assertEquals(Utils.CENT, rewound.getBalance());
+
+        // the output of the kept transaction wasn't touched
+        assertTrue(rewound.getTransaction(kept.getHash()).getOutput(0).isAvailableForSpending());
+    }
+
+    @Test
+    public void removesTransactionsOverriddenByRemovedOnes() throws Exception {
+        // two payments to the wallet spending the same output
+        Transaction parent = TestUtils.createFakeTx(params, Utils.COIN, new ECKey());
+        Transaction overridden = new Transaction(params);
+        overridden.addInput(parent.getOutput(0));
+        overridden.addOutput(Utils.CENT, key);
+        Transaction overriding = new Transaction(params);
+        overriding.addInput(parent.getOutput(0));
+        overriding.addOutput(Utils.CENT.shiftLeft(1), key);
+
+        addBlock();
+        addBlock();
+        wallet.receivePending(overridden, null);
+        addBlock(overriding);
+
+        assertEquals(TransactionConfidence.ConfidenceType.DEAD,
+                wallet.getTransaction(overridden.getHash()).getConfidence().getConfidenceType());
+
+        Wallet rewound = rewind(2, 2);
+
+        assertNull(rewound.getTransaction(overridden.getHash()));
+        assertNull(rewound.getTransaction(overriding.getHash()));
+    }
+
+    private Wallet rewind(int height, int expectedRemoved) throws Exception {
+        Threading.waitForUserCode();
+
+        Wallet rewound = new Wallet(params);
+        int removed = WalletRewinder.rewind(wallet, blocks.get(height - 1), rewound);
+
+        assertEquals(expectedRemoved, removed);
+        assertTrue(rewound.isConsistent());
+        return rewound;
+    }
+
+    private Transaction spend(TransactionOutput output, ECKey changeKey) throws Exception {
+        BigInteger fee = Utils.CENT.divide(BigInteger.TEN);
+        BigInteger half = output.getValue().subtract(fee).shiftRight(1);
+
+        Transaction tx = new Transaction(params);
+        tx.addInput(output);
+        tx.addOutput(half, new ECKey().toAddress(params));
+        tx.addOutput(output.getValue().subtract(fee).subtract(half), changeKey.toAddress(params));
+        tx.signInputs(Transaction.SigHash.ALL, wallet);
+
+        wallet.commitTx(tx);
+        return tx;
+    }
+}
@@ -0,0 +1,77 @@
+package com.hivewallet.bitcoinkit;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.StoredBlock;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.slf4j.impl.CocoaLogger;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A wallet with one key, and a chain of fake blocks that are passed to it the way the block chain would. The blocks
+ * are only headers (the wallet doesn't check them), made on top of each other with the given transactions.
+ */
+public abstract class WalletTestBase {
+    protected static final NetworkParameters params = UnitTestParams.get();
+
+    protected Wallet wallet;
+    protected ECKey key;
+    protected List<StoredBlock> blocks;
+
+    @BeforeClass
+    public static void setUpLogging() {
+        // the Cocoa side isn't there to receive the logs
+        CocoaLogger.setGlobalLevel(CocoaLogger.HILoggerLevelNone);
+    }
+
+    @Before
+    public void setUpWallet() throws Exception {
+        wallet = createWallet();
+        key = createKey();
+        wallet.addKey(key);
+        blocks = new ArrayList<StoredBlock>();
+    }
+
+    protected Wallet createWallet() {
+        return new Wallet(params);
+    }
+
+    protected ECKey createKey() {
+        return new ECKey();
+    }
+
+    /** Returns the last block added, or null if there's none yet. */
+    protected StoredBlock getLastBlock() {
+        return blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+    }
+
+    /**
+     * Adds a block a second after the last one (or the genesis block): UnitTestParams' genesis block is from the
+     * time the class was loaded, and blocks more than two hours later are rejected.
+     */
+    protected StoredBlock addBlock(Transaction... transactions) throws Exception {
+        StoredBlock last = getLastBlock();
+        Block previous = (last != null) ? last.getHeader() : params.getGenesisBlock();
+        int height = blocks.size() + 1;
+
+        Block block = previous.createNextBlock(new ECKey().toAddress(params), previous.getTimeSeconds() + 1);
+        StoredBlock storedBlock = new StoredBlock(block.cloneAsHeader(), BigInteger.valueOf(height), height);
+        blocks.add(storedBlock);
+
+        for (int i = 0; i < transactions.length; i++) {
+            wallet.receiveFromBlock(transactions[i], storedBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, i);
+        }
+
+        wallet.notifyNewBestBlock(storedBlock);
+        return storedBlock;
+    }
+}
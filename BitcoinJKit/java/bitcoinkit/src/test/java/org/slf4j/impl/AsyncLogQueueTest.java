@@ -0,0 +1,86 @@
+package org.slf4j.impl;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncLogQueueTest {
+    private static class RecordingLogger extends CocoaLogger {
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+        RecordingLogger() {
+            super("test.RecordingLogger");
+        }
+
+        @Override
+        public void receiveLogFromJVM(String fileName, String methodName, int lineNumber, int level, String msg) {
+            // slow enough that records pile up in the queue
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            messages.add(msg);
+            threads.add(Thread.currentThread());
+        }
+    }
+
+    @Test
+    public void closeDeliversQueuedRecordsAndStopsThread() {
+        RecordingLogger logger = new RecordingLogger();
+        int threads = countLoggerThreads();
+        AsyncLogQueue queue = new AsyncLogQueue(1024);
+        queue.setOverflowPolicy(AsyncLogQueue.OverflowPolicy.BLOCK);
+
+        for (int i = 0; i < 200; i++) {
+            queue.enqueue(logger, "File", "method", i, CocoaLogger.HILoggerLevelInfo, "message " + i);
+        }
+
+        queue.close();
+
+        assertEquals(200, logger.messages.size());
+        assertEquals(200, queue.getDeliveredCount());
+
+        for (int i = 0; i < 200; i++) {
+            assertEquals("message " + i, logger.messages.get(i));
+        }
+
+        assertEquals(threads, countLoggerThreads());
+
+        // logged after closing: delivered right away on the logging thread
+        queue.enqueue(logger, "File", "method", 0, CocoaLogger.HILoggerLevelInfo, "late");
+        assertEquals("late", logger.messages.get(200));
+        assertTrue(logger.threads.get(200) == Thread.currentThread());
+    }
+
+    @Test
+    public void togglingAsynchronousModeDoesNotLeakThreads() {
+        int before = countLoggerThreads();
+
+        for (int i = 0; i < 5; i++) {
+            CocoaLogger.setAsynchronous(true);
+            CocoaLogger.setAsynchronous(false);
+        }
+
+        assertEquals(before, countLoggerThreads());
+    }
+
+    private static int countLoggerThreads() {
+        int count = 0;
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("CocoaLogger") && thread.isAlive()) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,185 @@
+package org.slf4j.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FlightRecorderTest {
+    // the smallest ring that FlightRecorder accepts is a bit under 180 KB
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final int DICTIONARY_SIZE = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private FlightRecorder recorder;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "test.flightlog");
+        recorder = new FlightRecorder(file, FILE_SIZE, DICTIONARY_SIZE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        recorder.close();
+    }
+
+    @Test
+    public void readsBackWhatWasRecorded() throws Exception {
+        recorder.record(CocoaLogger.HILoggerLevelInfo, "first", "Received {} from {}", new Object[] { 5, "peer" },
+                null);
+        recorder.record(CocoaLogger.HILoggerLevelDebug, "second", "Plain message with {} in it", null, null);
+        recorder.record(CocoaLogger.HILoggerLevelError, "first", "Failed", null, new IOException("disk full"));
+        recorder.record(CocoaLogger.HILoggerLevelWarn, "second", "Arrays {}", new Object[] { new Object[] { 1, 2 } },
+                null);
+        recorder.close();
+
+        List<FlightRecorderReader.Entry> entries = new FlightRecorderReader(file).readEntries();
+        assertEquals(4, entries.size());
+
+        assertEntry(entries.get(0), CocoaLogger.HILoggerLevelInfo, "first", "Received {} from {}", "5", "peer");
+        assertEquals("Received 5 from peer", entries.get(0).getMessage());
+        assertNull(entries.get(0).exception);
+
+        assertEntry(entries.get(1), CocoaLogger.HILoggerLevelDebug, "second", "Plain message with {} in it");
+        assertEquals("Plain message with {} in it", entries.get(1).getMessage());
+
+        assertEntry(entries.get(2), CocoaLogger.HILoggerLevelError, "first", "Failed");
+        assertTrue(entries.get(2).exception.startsWith("java.io.IOException: disk full"));
+
+        assertEntry(entries.get(3), CocoaLogger.HILoggerLevelWarn, "second", "Arrays {}", "[1, 2]");
+
+        for (int i = 1; i < entries.size(); i++) {
+            assertTrue(entries.get(i).time >= entries.get(i - 1).time);
+        }
+    }
+
+    @Test
+    public void onlyInternsTemplatesOfParameterizedMessages() throws Exception {
+        recorder.record(CocoaLogger.HILoggerLevelInfo, "logger", "Balance is {}", new Object[] { 1 }, null);
+        int dictionaryEnd = recorder.getDictionaryEnd();
+
+        for (int i = 0; i < 1000; i++) {
+            recorder.record(CocoaLogger.HILoggerLevelInfo, "logger", "Balance is " + i, null, null);
+            recorder.record(CocoaLogger.HILoggerLevelInfo, "logger", "Balance is {}", new Object[] { i }, null);
+        }
+
+        // neither the plain messages nor the repeated template take up more space
+        assertEquals(dictionaryEnd, recorder.getDictionaryEnd());
+        recorder.close();
+
+        List<FlightRecorderReader.Entry> entries = new FlightRecorderReader(file).readEntries();
+        assertEquals(2001, entries.size());
+        assertEquals("Balance is 999", entries.get(1999).getMessage());
+        assertEquals("Balance is 999", entries.get(2000).getMessage());
+    }
+
+    @Test
+    public void keepsNewestRecordsWhenWrappingAround() throws Exception {
+        int count = 20000;
+
+        for (int i = 0; i < count; i++) {
+            recorder.record(CocoaLogger.HILoggerLevelInfo, "logger", "Message {}", new Object[] { i }, null);
+        }
+
+        recorder.close();
+
+        FlightRecorderReader reader = new FlightRecorderReader(file);
+        List<FlightRecorderReader.Entry> entries = reader.readEntries();
+
+        assertEquals(count, reader.getRecordCount());
+        assertTrue(entries.size() > 1000 && entries.size() < count);
+        assertConsecutive(entries, count - entries.size(), count - 1);
+    }
+
+    @Test
+    public void continuesExistingFile() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            recorder.record(CocoaLogger.HILoggerLevelInfo, "logger", "Message {}", new Object[] { i }, null);
+        }
+
+        int dictionaryEnd = recorder.getDictionaryEnd();
+        recorder.close();
+
+        // the dictionary is loaded again, so the template isn't added a second time
+        recorder = new FlightRecorder(file, FILE_SIZE, DICTIONARY_SIZE);
+        recorder.record(CocoaLogger.HILoggerLevelInfo, "logger", "Message {}", new Object[] { 10 }, null);
+        assertEquals(dictionaryEnd, recorder.getDictionaryEnd());
+
+        recorder.record(CocoaLogger.HILoggerLevelInfo, "other", "Other {}", new Object[] { 11 }, null);
+        assertTrue(recorder.getDictionaryEnd() > dictionaryEnd);
+        assertEquals(12, recorder.getRecordCount());
+        recorder.close();
+
+        List<FlightRecorderReader.Entry> entries = new FlightRecorderReader(file).readEntries();
+        assertConsecutive(entries.subList(0, 11), 0, 10);
+        assertEntry(entries.get(11), CocoaLogger.HILoggerLevelInfo, "other", "Other {}", "11");
+    }
+
+    @Test
+    public void continuesExistingFileAfterWrappingAround() throws Exception {
+        int count = 0;
+
+        for (int run = 0; run < 3; run++) {
+            for (int i = 0; i < 8000; i++) {
+                recorder.record(CocoaLogger.HILoggerLevelInfo, "logger", "Message {}", new Object[] { count++ }, null);
+            }
+
+            recorder.close();
+            recorder = new FlightRecorder(file, FILE_SIZE, DICTIONARY_SIZE);
+        }
+
+        recorder.close();
+
+        FlightRecorderReader reader = new FlightRecorderReader(file);
+        List<FlightRecorderReader.Entry> entries = reader.readEntries();
+
+        assertEquals(count, reader.getRecordCount());
+        assertConsecutive(entries, count - entries.size(), count - 1);
+    }
+
+    @Test
+    public void startsOverWithDifferentSizes() throws Exception {
+        recorder.record(CocoaLogger.HILoggerLevelInfo, "logger", "Message {}", new Object[] { 1 }, null);
+        recorder.close();
+
+        recorder = new FlightRecorder(file, FILE_SIZE * 2, DICTIONARY_SIZE);
+        recorder.record(CocoaLogger.HILoggerLevelInfo, "logger", "Message {}", new Object[] { 2 }, null);
+        recorder.close();
+
+        FlightRecorderReader reader = new FlightRecorderReader(file);
+        assertEquals(1, reader.getRecordCount());
+        assertConsecutive(reader.readEntries(), 2, 2);
+    }
+
+    private static void assertEntry(FlightRecorderReader.Entry entry, int level, String loggerName, String template,
+                                    String... arguments) {
+        assertEquals(level, entry.level);
+        assertEquals(loggerName, entry.loggerName);
+        assertEquals(template, entry.template);
+        assertArrayEquals(arguments, entry.arguments);
+    }
+
+    /** Checks that the entries are "Message {}" with the numbers from first to last. */
+    private static void assertConsecutive(List<FlightRecorderReader.Entry> entries, int first, int last) {
+        assertEquals(last - first + 1, entries.size());
+
+        for (int i = 0; i < entries.size(); i++) {
+            assertEntry(entries.get(i), CocoaLogger.HILoggerLevelInfo, "logger", "Message {}",
+                    String.valueOf(first + i));
+        }
+    }
+}